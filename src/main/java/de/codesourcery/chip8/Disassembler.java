@@ -31,8 +31,6 @@ public class Disassembler
 
     private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-    private static final List<String> result = new ArrayList<>();
-
     private static void wordToHex(int value)
     {
         byteToHex( (value & 0xff00)>>>8 );
@@ -58,19 +56,47 @@ public class Disassembler
      */
     public static List<String> disAsm(Memory memory, int startAddress, int words)
     {
-        result.clear();
+        final byte[] window = new byte[ words * 2 ];
+        memory.read( startAddress, window.length, window );
+        return disAsmWindow( window, startAddress, memory.getSizeInBytes() );
+    }
+
+    /**
+     * Disassemble's N words starting at a given address.
+     *
+     * This method will automatically wrap around at the end of memory.
+     *
+     * @param memory memory contents
+     * @param startAddress
+     * @param words number of words to disassembly
+     * @return disassembled lines, one for each word
+     */
+    public static List<String> disAsm(byte[] memory, int startAddress, int words)
+    {
+        final byte[] window = new byte[ words * 2 ];
+        for ( int i = 0 ; i < window.length ; i++ ) {
+            window[i] = memory[ (startAddress + i) % memory.length ];
+        }
+        return disAsmWindow( window, startAddress, memory.length );
+    }
+
+    private static synchronized List<String> disAsmWindow(byte[] window, int startAddress, int memorySize)
+    {
+        final List<String> result = new ArrayList<>();
 
         int pc = startAddress;
-        for ( int i = 0 ; i < words ; i++ )
+        for ( int i = 0, words = window.length / 2 ; i < words ; i++ )
         {
+            final int cmd = window[ i * 2 ] & 0xff;
+            final int data = window[ i * 2 + 1 ] & 0xff;
             buffer.setLength( 0 );
             wordToHex( pc );
             buffer.append(": ");
-            disassembleInstruction(memory,pc);
+            disassembleInstruction(cmd,data);
             buffer.append(" ; ");
-            byteToHex( memory.read(pc) );
-            byteToHex( memory.read(pc+1) );
-            pc = (pc+2) % memory.getSizeInBytes();
+            byteToHex( cmd );
+            byteToHex( data );
+            pc = (pc+2) % memorySize;
             if ( (i+1) < words )
             {
                 buffer.append("\n");
@@ -80,10 +106,8 @@ public class Disassembler
         return result;
     }
 
-    private static void disassembleInstruction(Memory memory,final int pc)
+    private static void disassembleInstruction(final int cmd,final int data)
     {
-        final int cmd = memory.read( pc );
-        final int data = memory.read( pc+1 );
         if ( cmd == 0x00 )
         {
             if ( data == 0xe0 )
@@ -95,6 +119,26 @@ public class Disassembler
             {
                 // 0x00EE 	ret return from subroutine call
                 buffer.append("ret");
+            }
+            else if ( (data & 0xf0) == 0xc0 )
+            {
+                // 0x00CN   scd n   SUPER-CHIP: scroll down N pixels
+                buffer.append("scd ").append( data & 0x0f );
+            }
+            else if ( data == 0xfb ) {
+                buffer.append("scr");
+            }
+            else if ( data == 0xfc ) {
+                buffer.append("scl");
+            }
+            else if ( data == 0xfd ) {
+                buffer.append("exit");
+            }
+            else if ( data == 0xfe ) {
+                buffer.append("low");
+            }
+            else if ( data == 0xff ) {
+                buffer.append("high");
             } else {
                 illegalInstruction();
             }
@@ -269,6 +313,15 @@ public class Disassembler
                     // Sprite is 5 bytes high
                     buffer.append("ld v").append(r0).append(", F");
                     break;
+                case 0x30:   // 0xfr30  SUPER-CHIP: point I to 10-byte sprite for hexadecimal character in vr
+                    buffer.append("ld HF, v").append(r0);
+                    break;
+                case 0x75:   // 0xfr75  SUPER-CHIP: store v0-vr in RPL user flags
+                    buffer.append("ld R, v").append(r0);
+                    break;
+                case 0x85:   // 0xfr85  SUPER-CHIP: load v0-vr from RPL user flags
+                    buffer.append("ld v").append(r0).append(", R");
+                    break;
                 case 0x33:   // 0xfr33	bcd vr 	store the bcd representation of register vr at
                     // // location I,I+1,I+2
                     // Doesn't change I
@@ -20,8 +20,12 @@ import de.codesourcery.chip8.emulator.EmulatorDriver;
 import de.codesourcery.chip8.emulator.Keyboard;
 import de.codesourcery.chip8.emulator.Memory;
 import de.codesourcery.chip8.emulator.Screen;
+import de.codesourcery.chip8.emulator.SharedFramebuffer;
 import de.codesourcery.chip8.emulator.SixtyHertzTimer;
 import de.codesourcery.chip8.emulator.Timer;
+import de.codesourcery.chip8.headless.BatchMain;
+import de.codesourcery.chip8.headless.HeadlessMain;
+import de.codesourcery.chip8.terminal.TerminalMain;
 import de.codesourcery.chip8.ui.Configuration;
 import de.codesourcery.chip8.ui.MainFrame;
 
@@ -31,38 +35,54 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.function.Consumer;
 
 /**
  * Emulator UI main class to be invoked from the command line.
  *
+ * Pass <code>--terminal [ROM file]</code> to run inside a terminal instead of bringing up the GUI,
+ * <code>--headless [options] ROM file</code> runs a ROM without any UI (see {@link HeadlessMain}) and
+ * <code>--batch [options] directory|zip file...</code> runs whole ROM collections in parallel (see {@link BatchMain}).
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class Main
 {
     public static final String PROGRAM_CLASSPATH = "/space_invaders.ch8";
 
+    /**
+     * System property holding the path of a file to mirror the screen's content to.
+     *
+     * @see SharedFramebuffer
+     */
+    public static final String FRAMEBUFFER_PROPERTY = "chip8.framebuffer";
+
     private static final SixtyHertzTimer timer60Hz =new SixtyHertzTimer();
     private static final Timer soundTimer = new Timer( "sound" )
     {
-        private final EmulatorDriver.IDriverCallback cb = ip -> ip.emulator.screen.setBeep(false);
+        private final EmulatorDriver.IDriverCallback cb = ip ->
+        {
+            if ( ip.emulator.soundTimer.value() == 0 ) {
+                ip.emulator.screen.setBeep(false);
+            }
+        };
 
         @Override
         protected void triggered()
         {
-            driver.runOnThread(cb);
+            driver.post(cb);
         }
     };
 
     private static final Timer delayTimer = new Timer( "delay" )
     {
-        private final EmulatorDriver.IDriverCallback cb = ip -> ip.delayTimerTriggered();
-
         @Override
         protected void triggered()
         {
-            driver.runOnThread(cb);
+            driver.delayTimerTriggered();
         }
     };
     private static EmulatorDriver driver;
@@ -77,8 +97,24 @@ public class Main
         }
     };
 
-    public static void main(String[] args) throws InvocationTargetException, InterruptedException
+    public static void main(String[] args) throws InvocationTargetException, InterruptedException, IOException
     {
+        if ( args.length > 0 && "--terminal".equals( args[0] ) )
+        {
+            TerminalMain.main( Arrays.copyOfRange( args, 1, args.length ) );
+            return;
+        }
+        if ( args.length > 0 && "--headless".equals( args[0] ) )
+        {
+            HeadlessMain.main( Arrays.copyOfRange( args, 1, args.length ) );
+            return;
+        }
+        if ( args.length > 0 && "--batch".equals( args[0] ) )
+        {
+            BatchMain.main( Arrays.copyOfRange( args, 1, args.length ) );
+            return;
+        }
+
         final File configFile = new File( System.getProperty("user.home"), ".chip8Config.properties");
         final MainFrame.IConfigurationProvider configProvider = new MainFrame.IConfigurationProvider()
         {
@@ -159,13 +195,58 @@ public class Main
         driver = new EmulatorDriver(ip);
 
         driver.setSpeed( 0.5f );
+        driver.setExecutionEngine( Configuration.of( configProvider.load() ).getEngineType() );
+        if ( Configuration.of( configProvider.load() ).isFrameSynchronous() ) {
+            driver.setFrameSynchronous( EmulatorDriver.DEFAULT_INSTRUCTIONS_PER_FRAME, true );
+        }
 
         driver.addShutdownListener(() -> timer60Hz.terminate() );
+        exportFramebuffer( driver );
 
-        timer60Hz.addListener(soundTimer);
-        timer60Hz.addListener(delayTimer);
+        // when running frame-synchronously, the emulation thread advances the timers itself
+        timer60Hz.addListener( () ->
+        {
+            if ( ! driver.isFrameSynchronous() )
+            {
+                soundTimer.run();
+                delayTimer.run();
+            }
+        });
         timer60Hz.start();
 
         SwingUtilities.invokeAndWait( () -> new MainFrame(driver, configProvider));
     }
+
+    /**
+     * Mirrors the screen's content to a memory-mapped file if the {@link #FRAMEBUFFER_PROPERTY}
+     * system property is set.
+     *
+     * @param driver
+     */
+    public static void exportFramebuffer(EmulatorDriver driver)
+    {
+        final String path = System.getProperty( FRAMEBUFFER_PROPERTY );
+        if ( path != null )
+        {
+            try
+            {
+                final SharedFramebuffer framebuffer = SharedFramebuffer.create( Paths.get( path ) );
+                driver.setSharedFramebuffer( framebuffer );
+                driver.addShutdownListener( () ->
+                {
+                    try {
+                        framebuffer.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
+                System.out.println("Mirroring screen to "+path);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Failed to create framebuffer file "+path);
+                e.printStackTrace();
+            }
+        }
+    }
 }
\ No newline at end of file
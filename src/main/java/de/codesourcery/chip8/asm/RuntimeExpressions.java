@@ -0,0 +1,143 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.asm;
+
+import de.codesourcery.chip8.asm.ast.ASTNode;
+import de.codesourcery.chip8.asm.ast.IdentifierNode;
+import de.codesourcery.chip8.asm.ast.RegisterNode;
+import de.codesourcery.chip8.asm.ast.TextNode;
+import de.codesourcery.chip8.asm.parser.Lexer;
+import de.codesourcery.chip8.asm.parser.Parser;
+import de.codesourcery.chip8.asm.parser.Scanner;
+
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Expressions referring to the state of a running emulation (breakpoint conditions, watches etc).
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class RuntimeExpressions
+{
+    /**
+     * Creates an evaluator that resolves <code>pc</code> and <code>v0</code>...<code>vf</code>
+     * to the emulation's current values.
+     *
+     * @param pc
+     * @param register
+     * @return
+     */
+    public static ExpressionEvaluator.INodeEvaluator createNodeEvaluator(IntSupplier pc, IntUnaryOperator register)
+    {
+        final ISymbolResolver symbolResolver = new ISymbolResolver()
+        {
+            @Override public SymbolTable.Symbol get(Identifier scope, Identifier name) { return get(name); }
+
+            @Override
+            public SymbolTable.Symbol get(Identifier name)
+            {
+                Integer result = null;
+                final String v = name.value.toLowerCase();
+                if ( "pc".equals( v ) ) {
+                    result = pc.getAsInt();
+                }
+                else if ( v.startsWith("v" ) ) {
+                    try {
+                        int regNum = Integer.parseInt( v.substring( 1 ) );
+                        result = register.applyAsInt( regNum );
+                    }
+                    catch(Exception e) {
+                        // failure will be reported because of NULL symbol return
+                    }
+                }
+                if ( result == null ) {
+                    return null;
+                }
+                return new SymbolTable.Symbol( SymbolTable.GLOBAL_SCOPE,name, SymbolTable.Symbol.Type.LABEL,result);
+            }
+        };
+        return new ExpressionEvaluator.NodeEvaluator( symbolResolver )
+        {
+            @Override
+            public Object evaluate(ASTNode node, boolean failOnErrors)
+            {
+                if ( node instanceof RegisterNode ) {
+                    final int reg = ((RegisterNode ) node).regNum;
+                    return register.applyAsInt( reg );
+                }
+                if ( node instanceof TextNode )
+                {
+                    // string like "pc" , "v0" etc. are considered reserved words and thus are never
+                    // valid identifiers ; the lexer will turn these into Token.Type.TEXT and not Token.Type.IDENTIFIER
+                    final String value = ((TextNode) node).value;
+                    // convert into IdentifierNode and then use evaluateIdentifier() to interpret it
+                    final IdentifierNode idNode = new IdentifierNode(Identifier.unsafe( value ), node.getRegion() );
+                    return evaluateIdentifier( idNode, failOnErrors );
+                }
+                return super.evaluate( node, failOnErrors );
+            }
+        };
+    }
+
+    /**
+     * Evaluates an expression.
+     *
+     * @param expression
+     * @param evaluator
+     * @return value or <code>null</code> if the expression is invalid or does not yield a number
+     */
+    public static Integer evaluate(String expression, ExpressionEvaluator.INodeEvaluator evaluator)
+    {
+        final ASTNode ast = compile( expression );
+        if ( ast == null ) {
+            return null;
+        }
+
+        Object obj = null;
+        try
+        {
+            obj = evaluator.evaluate(ast, true);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            System.err.println( "Failed to evaluate expression >" + expression + "<" );
+        }
+        return obj instanceof Number ? ((Number) obj).intValue() : null;
+    }
+
+    /**
+     * Parses an expression, printing errors to <code>System.err</code>.
+     *
+     * @param expression
+     * @return AST or <code>null</code> if the expression is invalid
+     */
+    public static ASTNode compile(String expression)
+    {
+        final Assembler.CompilationContext ctx = new Assembler.CompilationContext( new ExecutableWriter() );
+        final Parser p = new Parser( new Lexer( new Scanner(expression) ) , ctx );
+        ASTNode ast = p.parseExpression();
+
+        if ( ctx.hasErrors() )
+        {
+            System.err.println("Failed to evaluate expression >"+expression+"<");
+            ctx.messages.stream().forEach( System.err::println );
+            return null;
+        }
+        return ast;
+    }
+}
@@ -17,61 +17,107 @@ package de.codesourcery.chip8.emulator;
 
 import org.apache.commons.lang3.Validate;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Helper class that helps passing commands to the emulation thread as well as
  * completely suspending the thread while waiting for external events like key presses
  * or the delay timer.
  *
+ * Commands may be submitted by any number of threads but must only be consumed
+ * by the emulation thread. Submission never blocks, the emulation thread
+ * only needs to check a single volatile flag to find out whether there's work to do.
+ * Wait conditions are only ever cleared by commands (or by the emulation thread itself),
+ * so while waiting the emulation thread just parks until the next command arrives.
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public final class CommandQueue
 {
-    private final Object QUEUE_LOCK = new Object();
+    private final Queue<EmulatorDriver.Cmd> queue = new ConcurrentLinkedQueue<>();
+
+    // set after a command got enqueued, cleared by the consumer once the queue is drained
+    private volatile boolean hasWork;
+
+    // thread to unpark when a command gets enqueued
+    private volatile Thread consumer;
+
+    // set by signal(), makes take() return without a command
+    private volatile boolean signalled;
 
     // bit mask indicating the conditions the emulation thread is waiting for
     private int waitFlags; // no need for synchronization as this field is
     // only accessed by the ControllerThread
 
-    // @GuardedBy( LOCK );
-    public final List<EmulatorDriver.Cmd> queue = new ArrayList<>();
-
     public long totalCycleCount;
     public long lastTimestamp;
 
     /**
-     * Polls the command queue for the next command to process, blocking if the queue is empty and wait flags are set.
+     * Returns whether there (probably) are commands waiting to be processed.
      *
-     * This method will immediately return the next command if the queue is
-     * <b>not</b> empty.
-     * If the queue is empty and no wait flags are active, this method will return <code>NULL</code>.
-     * If the queue is empty and wait flags are active, this method will block until either all
-     * wait flags are cleared or a command gets enqueued.
+     * @return
+     */
+    boolean hasWork()
+    {
+        return hasWork;
+    }
+
+    /**
+     * Polls the command queue for the next command to process, never blocking.
      *
-     * @return command to execute or <code>NULL</code> if the queue was empty and no wait flags were active or
-     * <code>NULL</code> if the queue was empty and a condition the emulation was waiting for got satisfied
+     * @return command to execute or <code>NULL</code> if the queue was empty
      */
     EmulatorDriver.Cmd poll()
     {
-        synchronized (QUEUE_LOCK)
+        if ( ! hasWork ) {
+            return null;
+        }
+        EmulatorDriver.Cmd cmd = queue.poll();
+        if ( cmd == null )
         {
-            if ( ! queue.isEmpty() )
-            {
-                return queue.remove(0);
+            hasWork = false;
+            // a command might have been enqueued right before we cleared the flag
+            cmd = queue.poll();
+            if ( cmd != null ) {
+                hasWork = true;
             }
-            return isWaiting() ? take() : null;
         }
+        return cmd;
     }
 
+    /**
+     * Enqueues a command and wakes up the consumer thread.
+     *
+     * @param cmd
+     */
     void add(EmulatorDriver.Cmd cmd)
     {
         Validate.notNull(cmd, "cmd must not be null");
-        synchronized (QUEUE_LOCK)
-        {
-            queue.add(cmd);
-            QUEUE_LOCK.notifyAll();
+        queue.offer( cmd );
+        hasWork = true;
+        final Thread thread = consumer;
+        if ( thread != null ) {
+            LockSupport.unpark( thread );
+        }
+    }
+
+    /**
+     * Wakes up the consumer thread without enqueuing a command.
+     *
+     * Used to notify the emulation thread about events it polls by itself (key presses),
+     * never blocks and does not allocate.
+     *
+     * @see #take()
+     */
+    void signal()
+    {
+        signalled = true;
+        hasWork = true;
+        final Thread thread = consumer;
+        if ( thread != null ) {
+            LockSupport.unpark( thread );
         }
     }
 
@@ -79,7 +125,7 @@ public final class CommandQueue
      * Returns wether the emulation thread should wait for an external condition.
      * @return
      */
-    boolean isWaiting()
+    public boolean isWaiting()
     {
         return waitFlags != 0;
     }
@@ -124,64 +170,35 @@ public final class CommandQueue
     void setWaitFlags(int value)
     {
         waitFlags = value;
-        synchronized (QUEUE_LOCK)
-        {
-            QUEUE_LOCK.notifyAll();
-        }
     }
 
     /**
-     * Polls the command queue for the next command to process, blocking if the queue is empty or wait flags are set.
+     * Takes the next command from the queue, parking the calling thread until one becomes available
+     * or {@link #signal()} gets invoked.
      *
-     * This method will immediately return the next command if the queue is
-     * <b>not</b> empty.
-     * If the queue is empty and no wait flags are active, this method will return <code>NULL</code>.
-     * If the queue is empty and wait flags are active, this method will block until either all
-     * wait flags are cleared or a command gets enqueued.
+     * The calling thread becomes the consumer that gets unparked whenever a command is enqueued.
      *
-     * @return command to execute or <code>NULL</code> if the queue was empty and a
-     * condition the emulation was waiting for got satisfied
-     * @see #isWaiting()
+     * @return command to execute, <code>NULL</code> if woken up by {@link #signal()}
      */
     EmulatorDriver.Cmd take()
     {
-        synchronized (QUEUE_LOCK)
+        consumer = Thread.currentThread();
+        EmulatorDriver.Cmd cmd;
+        while ( ( cmd = poll() ) == null )
         {
-            while (queue.isEmpty())
+            if ( signalled )
             {
-                boolean wasWaiting = waitFlags != 0;
-                try
-                {
-                    QUEUE_LOCK.wait();
-                }
-                catch (InterruptedException e)
-                {
-                    e.printStackTrace();
-                    continue;
-                }
-                if ( wasWaiting && waitFlags == 0 ) // woke up
-                {
-                    if ( EmulatorDriver.PRINT_CYCLES_PER_SECOND )
-                    {
-                        // start counting cycles again since it makes
-                        // no sense to track cycles per second while
-                        // the thread state was SLEEPING.
-                        totalCycleCount = 0;
-                        lastTimestamp = System.currentTimeMillis();
-                    }
-                    return queue.isEmpty() ? null : queue.remove(0);
-                }
-                if ( ! queue.isEmpty() )
-                {
-                    return queue.remove(0);
-                }
+                signalled = false;
+                return null;
             }
-            return queue.remove(0);
+            LockSupport.park( this );
+            Thread.interrupted(); // can't help it
         }
+        return cmd;
     }
 
     public void reset()
     {
         waitFlags = 0;
     }
-}
\ No newline at end of file
+}
@@ -59,6 +59,9 @@ public class Emulator
     public int[] register = new int[16];
     public int[] stack = new int[16];
 
+    // SUPER-CHIP RPL user flags (FX75/FX85), deliberately not cleared on reset
+    public final int[] rplFlags = new int[8];
+
     private final int[] backtrace = new int[BACKTRACE_SIZE];
     private int backtraceReadPtr = 0;
     private int backtraceWritePtr = 0;
@@ -73,6 +76,10 @@ public class Emulator
 
     private volatile Consumer<Emulator> resetHook;
 
+    private IExecutionEngine engine = EngineType.INTERPRETER.create();
+
+    private Quirks quirks = Quirks.DEFAULT;
+
     public Emulator(Memory memory, Screen screen, Keyboard keyboard, Timer soundTimer, Timer delayTimer, Consumer<Emulator> resetHook)
     {
         Validate.notNull(memory, "memory must not be null");
@@ -90,6 +97,133 @@ public class Emulator
         reset();
     }
 
+    /**
+     * Replaces the engine used to execute instructions.
+     *
+     * @param engine
+     * @see #execute(CommandQueue, int)
+     */
+    public void setExecutionEngine(IExecutionEngine engine)
+    {
+        Validate.notNull(engine, "engine must not be null");
+        if ( engine != this.engine )
+        {
+            this.engine.detach( this );
+            this.engine = engine;
+            engine.attach( this );
+        }
+    }
+
+    /**
+     * Returns the engine currently used to execute instructions.
+     *
+     * @return
+     */
+    public IExecutionEngine getExecutionEngine()
+    {
+        return engine;
+    }
+
+    /**
+     * Sets the behaviour variations to emulate.
+     *
+     * @param quirks
+     */
+    public void setQuirks(Quirks quirks)
+    {
+        Validate.notNull(quirks, "quirks must not be null");
+        if ( ! quirks.equals( this.quirks ) )
+        {
+            this.quirks = quirks;
+            // discard anything that has been decoded/translated using the old settings
+            engine.reset();
+        }
+    }
+
+    /**
+     * Returns the behaviour variations currently being emulated.
+     *
+     * @return
+     */
+    public Quirks getQuirks()
+    {
+        return quirks;
+    }
+
+    /**
+     * Executes instructions using the current execution engine.
+     *
+     * @param cmdQueue command queue, used to suspend the emulation while waiting for external events
+     *                 like key presses or the delay timer
+     * @param maxInstructions max. number of instructions to execute, must be greater than zero
+     * @return number of instructions that were actually executed (at least one)
+     * @see IExecutionEngine#execute(Emulator, CommandQueue, int)
+     */
+    public int execute(CommandQueue cmdQueue, int maxInstructions)
+    {
+        return engine.execute( this, cmdQueue, maxInstructions );
+    }
+
+    /**
+     * Advances the delay and sound timers by one 60 Hz tick.
+     *
+     * Used when running frame-synchronously, where timers are driven by emulated
+     * time instead of by {@link SixtyHertzTimer}. Timer expiry is handled right
+     * here instead of through {@link Timer#triggered()}.
+     *
+     * @param cmdQueue
+     */
+    public void tickTimers(CommandQueue cmdQueue)
+    {
+        if ( delayTimer.tick() ) {
+            cmdQueue.clear( EmulatorDriver.FLAG_WAIT_DELAY );
+        }
+        if ( soundTimer.tick() ) {
+            screen.setBeep( false );
+        }
+    }
+
+    /**
+     * Handles the key events reported by the keyboard since the last call,
+     * these only matter while waiting for a key press (FX0A).
+     *
+     * Must only be invoked by the thread running the emulation.
+     *
+     * @param cmdQueue
+     */
+    void processKeyEvents(CommandQueue cmdQueue)
+    {
+        int event;
+        while ( ( event = keyboard.pollEvent() ) != -1 )
+        {
+            final int key = event & 0x0f;
+            if ( (event & Keyboard.PRESSED) != 0 )
+            {
+                if ( cmdQueue.isSet( EmulatorDriver.FLAG_WAIT_KEY_PRESS ) )
+                {
+                    pressedKey = key;
+                    cmdQueue.set( EmulatorDriver.FLAG_WAIT_KEY_RELEASE );
+                    cmdQueue.clear( EmulatorDriver.FLAG_WAIT_KEY_PRESS );
+                }
+            }
+            else if ( cmdQueue.isSet( EmulatorDriver.FLAG_WAIT_KEY_RELEASE ) && key == pressedKey )
+            {
+                register[ keyDestReg ] = key;
+                cmdQueue.clear( EmulatorDriver.FLAG_WAIT_KEY_RELEASE );
+            }
+        }
+    }
+
+    /**
+     * Returns the next value from the emulator's random number generator.
+     *
+     * @return random value (0...255)
+     */
+    public int randomByte()
+    {
+        return rnd.nextInt(256);
+    }
+
     /**
      * Set callback to execute after the emulator gets reset.
      *
@@ -132,6 +266,8 @@ public class Emulator
         sp = 0;
         index = 0;
 
+        engine.reset();
+
         resetHook.accept( this );
     }
 
@@ -141,7 +277,7 @@ public class Emulator
      * @param cmdQueue command queue, used to suspend the emulation while waiting for external events
      *                 like key presses or the delay timer
      */
-    void executeOneInstruction(CommandQueue cmdQueue)
+    public void executeOneInstruction(CommandQueue cmdQueue)
     {
         if ( CAPTURE_BACKTRACE ) {
             backtrace[ backtraceWritePtr ] = pc;
@@ -177,7 +313,7 @@ public class Emulator
             }
             else
             {
-                illegalInstruction( cmd, data );
+                executeSuperChip( data );
             }
             return;
         }
@@ -266,17 +402,26 @@ public class Emulator
                     case 0x01:
                         // 0x8ry1 	or rx,ry 	or register vy into register vr
                         register[dst] |= register[src];
+                        if ( quirks.logicResetsVF ) {
+                            register[0x0f] = 0;
+                        }
                         if (TRACE) trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
                         break;
                     case 0x02:
                         // 0x8ry2 	and rx,ry 	and register vy into register vx
                         register[dst] &= register[src];
+                        if ( quirks.logicResetsVF ) {
+                            register[0x0f] = 0;
+                        }
                         if (TRACE) trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
                         break;
                     case 0x03:
                         // 0x8ry3 	xor rx,ry 	exclusive or register ry into register rx
                         register[dst] = (register[dst] ^ register[src]) & 0xff;
-                        trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
+                        if ( quirks.logicResetsVF ) {
+                            register[0x0f] = 0;
+                        }
+                        if (TRACE) trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
                         break;
                     case 0x04:
                         // 0x8ry4 	add vr,vy 	add register vy to vr,carry in vf
@@ -304,9 +449,19 @@ public class Emulator
                         // 8XY6
                         // Shift register VY right one bit and copy it to register VX
                         //Set register VF to the least significant bit prior to the shift
-                        register[0x0f] = register[src] & 1;
-                        register[src] >>>= 1;
-                        register[dst] = register[src];
+                        if ( quirks.shiftUsesVY )
+                        {
+                            register[0x0f] = register[src] & 1;
+                            register[src] >>>= 1;
+                            register[dst] = register[src];
+                        }
+                        else
+                        {
+                            // shift VX in-place
+                            final int value = register[dst];
+                            register[0x0f] = value & 1;
+                            register[dst] = value >>> 1;
+                        }
                         if (TRACE) trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
                         break;
                     case 0x07:
@@ -323,14 +478,24 @@ public class Emulator
                         break;
                     case 0x0e:
                         // 0x8r0e 	shl vr 	shift register vr left,bit 7 goes into register vf
-                        register[0x0f] = (register[src] & 0b1000_0000) >>> 7;
-                        register[src] = (register[src] << 1) & 0xff;
-                        register[dst] = register[src];
+                        if ( quirks.shiftUsesVY )
+                        {
+                            register[0x0f] = (register[src] & 0b1000_0000) >>> 7;
+                            register[src] = (register[src] << 1) & 0xff;
+                            register[dst] = register[src];
+                        }
+                        else
+                        {
+                            // shift VX in-place
+                            final int value = register[dst];
+                            register[0x0f] = (value & 0b1000_0000) >>> 7;
+                            register[dst] = (value << 1) & 0xff;
+                        }
                         if (TRACE) trace("Register " + dst + " = 0x" + Integer.toHexString(register[dst]));
                         if (TRACE) trace("VF = " + register[0x0f]);
                         break;
                     default:
-                        throw new RuntimeException("Unhandled opcode: 0x" + Integer.toHexString(cmd << 8 | data));
+                        illegalInstruction(cmd, data);
                 }
                 break;
             case 0x90:
@@ -354,7 +519,9 @@ public class Emulator
                 break;
             case 0xb0:
                 // 0xbxxx 	jmi xxx 	Jump to address xxx+register v0
-                int adr = register[0x00] + (cmd & 0x0f) << 8 | (data & 0xff);
+                // (or xxx + register vx, see Quirks#jumpUsesVX)
+                final int offset = quirks.jumpUsesVX ? register[cmd & 0x0f] : register[0x00];
+                int adr = offset + ((cmd & 0x0f) << 8 | (data & 0xff));
                 pc = (adr & 0xfff);
                 break;
             case 0xc0:
@@ -362,7 +529,7 @@ public class Emulator
                 // 0xcrxx 	rand vr,xxx    	vr = random number less than or equal to xxx
                 final int reg = cmd & 0x0f;
                 final int cnst = data & 0xff;
-                register[reg] = rnd.nextInt(256) & cnst;
+                register[reg] = randomByte() & cnst;
                 break;
             }
             case 0xd0:
@@ -437,6 +604,10 @@ public class Emulator
                         index = screen.getGlyphAddr(register[r0]);
                         if (TRACE) trace("Index = 0x" + Integer.toHexString(index));
                         break;
+                    case 0x30:   // 0xfr30	point I to the SUPER-CHIP 10-byte sprite for hexadecimal character in vr
+                        index = screen.getLargeGlyphAddr(register[r0]);
+                        if (TRACE) trace("Index = 0x" + Integer.toHexString(index));
+                        break;
                     case 0x33:   // 0xfr33	bcd vr 	store the bcd representation of register vr at
                         // // location I,I+1,I+2
                         // Doesn't change I
@@ -463,7 +634,9 @@ public class Emulator
                             memory.write(ptr, register[i++]);
                             ptr = (ptr + 1) & 0xfff;
                         }
-                        index = ptr;
+                        if ( quirks.loadStoreIncrementsI ) {
+                            index = ptr;
+                        }
                         break;
                     case 0x65:   // 0xfx65	ldr v0-vr 	load registers v0-vr from location I onwards as above.
                         ptr = index;
@@ -473,7 +646,15 @@ public class Emulator
                             register[i++] = memory.read(ptr);
                             ptr = (ptr + 1) & 0xfff;
                         }
-                        index = ptr;
+                        if ( quirks.loadStoreIncrementsI ) {
+                            index = ptr;
+                        }
+                        break;
+                    case 0x75:   // 0xfr75	store v0-vr in RPL user flags (r <= 7)
+                        System.arraycopy( register, 0, rplFlags, 0, (r0 & 7) + 1 );
+                        break;
+                    case 0x85:   // 0xfr85	load v0-vr from RPL user flags (r <= 7)
+                        System.arraycopy( rplFlags, 0, register, 0, (r0 & 7) + 1 );
                         break;
                     default:
                         illegalInstruction(cmd, data);
@@ -486,7 +667,45 @@ public class Emulator
         }
     }
 
-    private void illegalInstruction(int cmd, int data)
+    /**
+     * Executes one of the SUPER-CHIP <code>00xx</code> display control instructions.
+     *
+     * Also used by execution engines that do not translate these
+     * instructions themselves.
+     *
+     * @param data low byte of the opcode
+     */
+    void executeSuperChip(int data)
+    {
+        if ( (data & 0xf0) == 0xc0 )
+        {
+            // 0x00CN   scd n   scroll display down by N pixels
+            screen.scrollDown( data & 0x0f );
+            return;
+        }
+        switch( data )
+        {
+            case 0xfb: // 0x00FB   scr   scroll display right by 4 pixels
+                screen.scrollRight();
+                break;
+            case 0xfc: // 0x00FC   scl   scroll display left by 4 pixels
+                screen.scrollLeft();
+                break;
+            case 0xfd: // 0x00FD   exit   exit interpreter, emulated by looping on this instruction
+                pc -= 2;
+                break;
+            case 0xfe: // 0x00FE   low   disable extended screen mode
+                screen.setExtendedMode( false );
+                break;
+            case 0xff: // 0x00FF   high   enable extended screen mode (128x64)
+                screen.setExtendedMode( true );
+                break;
+            default:
+                illegalInstruction( 0x00, data );
+        }
+    }
+
+    void illegalInstruction(int cmd, int data)
     {
         if ( CAPTURE_BACKTRACE ) {
 
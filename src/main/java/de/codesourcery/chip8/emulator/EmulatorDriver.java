@@ -15,13 +15,16 @@
  */
 package de.codesourcery.chip8.emulator;
 
+import de.codesourcery.chip8.emulator.recording.VideoRecorder;
 import org.apache.commons.lang3.Validate;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 /**
@@ -30,6 +33,12 @@ import java.util.function.Consumer;
  * Since the actual emulation is not thread-safe, all changes to /inspection of emulation state
  * needs to be executed on the emulator driver's thread (see {@link #runOnThread(IDriverCallback)}.
  *
+ * Most operations come in three flavours: A blocking method that waits for the emulation thread
+ * to process the request, a <code>...Async</code> method returning a {@link CompletableFuture} and
+ * (where no result is needed) a fire-and-forget variant like {@link #post(IDriverCallback)}.
+ * The blocking methods are thin wrappers around the asynchronous ones, requests are always
+ * processed in submission order.
+ *
  * @author tobias.gierke@code-sourcery.de
  * @see Emulator
  */
@@ -39,7 +48,28 @@ public class EmulatorDriver
 
     static final boolean PRINT_CYCLES_PER_SECOND = false;
 
-    private static final int MAX_DELAY = 1000000;
+    /**
+     * Speed used by {@link #setSpeed(float)} for the lowest setting (instructions per second).
+     */
+    private static final long MIN_SPEED = 10;
+
+    /**
+     * Default number of instructions per 60 Hz frame when running frame-synchronously.
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = 15;
+
+    /**
+     * Default number of state snapshots to publish per second while the emulation is running.
+     *
+     * @see #setSnapshotRate(int)
+     */
+    public static final int DEFAULT_SNAPSHOT_RATE = 30;
+
+    // max. time to park before checking for new commands again
+    private static final long MAX_PARK_NANOS = 10_000_000;
+
+    // max. number of instructions to execute before checking for new commands
+    private static final int MAX_BATCH_SIZE = 64;
     private static final int MAX_TICK_INTERVAL = 45000000;
 
     static final int FLAG_WAIT_DELAY = 1;
@@ -107,6 +137,19 @@ public class EmulatorDriver
 
     private final ControllerThread thread = new ControllerThread();
 
+    private volatile boolean frameSynchronous;
+
+    private static final long FRAME_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos( 1 ) / 60;
+
+    // latest snapshot, written by the emulation thread only
+    private volatile EmulatorState state;
+
+    private final FrameExchange frames = new FrameExchange();
+
+    // only accessed by the emulation thread
+    private VideoRecorder videoRecorder;
+    private SharedFramebuffer sharedFramebuffer;
+
     public enum CmdType
     {
         START,STOP,STEP,RESET,RUN,TERMINATE,CHANGE_BREAKPOINTS
@@ -132,42 +175,88 @@ public class EmulatorDriver
         private final CommandQueue cmdQueue = new CommandQueue();
 
         private volatile boolean terminated;
-        private long delay=1000;
-        public double dummyValue = 123;
+        private final ThroughputGovernor governor = new ThroughputGovernor( speedToInstructionsPerSecond( 0.5f ) );
         private long tickInterval = MAX_TICK_INTERVAL/2;
 
-        private void keyPressed(int key)
+        // speed requested through setSpeed() / setInstructionsPerSecond()
+        private long instructionsPerSecond = governor.getInstructionsPerSecond();
+
+        // frame-synchronous execution
+        private int instructionsPerFrame;
+        private boolean throttleFrames;
+        private int frameInstructions;
+
+        private boolean running;
+        private boolean ignoreBreakpoint;
+        private boolean isStepping;
+
+        private long snapshotIntervalNanos = TimeUnit.SECONDS.toNanos( 1 ) / DEFAULT_SNAPSHOT_RATE;
+        private long lastSnapshotNanos;
+
+        private long lastFrameNanos;
+
+        private void publishFrame(long now)
         {
-            if ( cmdQueue.isSet( FLAG_WAIT_KEY_PRESS ) )
-            {
-                emulator.pressedKey = key;
-                cmdQueue.set( FLAG_WAIT_KEY_RELEASE );
-                cmdQueue.clear( FLAG_WAIT_KEY_PRESS );
+            final boolean changed = frames.publish( emulator.screen );
+            if ( changed && videoRecorder != null ) {
+                videoRecorder.record( emulator.screen );
+            }
+            if ( sharedFramebuffer != null ) {
+                sharedFramebuffer.update( emulator.screen, changed );
             }
+            lastFrameNanos = now;
         }
 
-        private void keyReleased(int key)
+        private void publishState()
         {
-            if ( cmdQueue.isSet( FLAG_WAIT_KEY_RELEASE) && key == emulator.pressedKey )
-            {
-                emulator.register[ emulator.keyDestReg ] = key;
-                cmdQueue.clear( FLAG_WAIT_KEY_RELEASE );
+            state = EmulatorState.capture( emulator, state );
+            lastSnapshotNanos = System.nanoTime();
+        }
+
+        private void updateGovernor()
+        {
+            if ( frameSynchronous ) {
+                governor.setInstructionsPerSecond( throttleFrames ? instructionsPerFrame * 60L : ThroughputGovernor.UNLIMITED );
+            } else {
+                governor.setInstructionsPerSecond( instructionsPerSecond );
+            }
+        }
+
+        /*
+         * Finishes the current frame, the remaining instructions
+         * of the frame are spent idling.
+         */
+        private void endFrame()
+        {
+            governor.executed( instructionsPerFrame - frameInstructions );
+            frameInstructions = 0;
+            emulator.tickTimers( cmdQueue );
+            // no point in publishing more than 60 frames per second when running unthrottled
+            final long now = System.nanoTime();
+            if ( throttleFrames || now - lastFrameNanos >= FRAME_INTERVAL_NANOS ) {
+                publishFrame( now );
             }
         }
 
         private void delayTimerTriggered()
         {
-            cmdQueue.clear(FLAG_WAIT_DELAY);
+            // ignore stale notifications, the timer
+            // might have been restarted in the meantime
+            if ( emulator.delayTimer.value() == 0 ) {
+                cmdQueue.clear(FLAG_WAIT_DELAY);
+            }
         }
 
         private boolean setRunning(boolean oldState, boolean newState, Reason reason)
         {
             if ( ! oldState && newState)
             {
+                publishState();
                 invokeStateListeners( reason );
             }
             else if ( oldState && ! newState )
             {
+                publishState();
                 invokeTickListeners();
                 invokeStateListeners( reason );
             }
@@ -179,19 +268,10 @@ public class EmulatorDriver
             if ( terminated ) {
                 throw new IllegalStateException("Cannot submit command to terminated thread");
             }
+            // also wakes up the thread in case it's waiting for the next batch
             cmdQueue.add( cmd );
         }
 
-        private void delay()
-        {
-            double v = dummyValue;
-            for ( long i = delay ; i > 0 ; i--)
-            {
-                v += v * 1.35 * i + v / 3.74;
-            }
-            dummyValue = v;
-        }
-
         @Override
         public void run()
         {
@@ -206,77 +286,64 @@ public class EmulatorDriver
         {
             long cyclesUntilTick = tickInterval;
 
-            boolean running = false;
-            boolean ignoreBreakpoint = false;
-            boolean isStepping = false;
-
             while( true)
             {
-                Cmd cmd = running ? cmdQueue.poll() : cmdQueue.take();
-                if ( cmd != null )
+                // the command queue is only checked between batches of instructions
+                if ( ! running || cmdQueue.hasWork() || isWaiting() )
                 {
-                    cmd.onReceive(this);
-                    switch(cmd.type)
-                    {
-                        case TERMINATE:
-                            terminated = true;
-                            cmdQueue.setWaitFlags(0); // prevent cmdQueue#poll() from blocking
-                            setRunning( running, false , Reason.STOPPED);
-                            while( ( cmd = cmdQueue.poll() ) != null ) {
-                                cmd.onReceive(this);
-                            }
-                            shutdownListeners.forEach(x -> { try { x.run(); } catch(Exception e) {
-                                e.printStackTrace();
-                            }} );
-                            return; /* stop thread */
-                        case CHANGE_BREAKPOINTS:
-                        case RUN:
-                            continue;
-                        case RESET:
-                            running = setRunning( running, false , Reason.STOPPED);
-                            enabledBreakpoints.clearTemporary();
-                            disabledBreakpoints.clearTemporary();
-                            emulator.reset();
-                            cmdQueue.reset();
-                            invokeStateListeners( Reason.RESET );
-                            continue;
-                        case STEP:
-                            isStepping = true;
-                        case START:
-                            cmdQueue.totalCycleCount = 0;
-                            cmdQueue.lastTimestamp = System.currentTimeMillis();
-                            if ( ! running )
-                            {
-                                ignoreBreakpoint = true;
-                                running = setRunning( running,true, Reason.STARTED);
-                            }
-                            if ( cmd.type == CmdType.STEP) {
-                                break;
-                            }
-                            continue;
-                        case STOP:
-                            running = setRunning( running, false, Reason.STOPPED );
-                            isStepping = false;
-                            continue;
+                    if ( ! processCommands() ) {
+                        return; /* stop thread */
                     }
+                    if ( ! running || isWaiting() ) {
+                        continue;
+                    }
+                }
 
-                    if ( cmdQueue.isWaiting() )
+                if ( ! isStepping || frameSynchronous )
+                {
+                    final long waitNanos = governor.nanosUntilNextBatch();
+                    if ( waitNanos > 0 )
                     {
+                        // wait for next batch, command submission unparks us
+                        LockSupport.parkNanos( Math.min( waitNanos, MAX_PARK_NANOS ) );
                         continue;
                     }
                 }
 
-                if ( ! ignoreBreakpoint && enabledBreakpoints.checkBreakpointHit(emulator.pc,EmulatorDriver.this ) )
+                if ( frameSynchronous && ( frameInstructions >= instructionsPerFrame || cmdQueue.isWaiting() ) )
                 {
-                    running = setRunning( running, false , Reason.STOPPED_BREAKPOINT);
+                    endFrame();
                     continue;
                 }
 
-                ignoreBreakpoint = false;
-
+                int maxInstructions = isStepping ? 1 : governor.batchSize( MAX_BATCH_SIZE );
+                if ( frameSynchronous ) {
+                    maxInstructions = Math.min( maxInstructions, instructionsPerFrame - frameInstructions );
+                }
+                int executed = 0;
+                boolean breakpointHit = false;
                 try
                 {
-                    emulator.executeOneInstruction(cmdQueue);
+                    if ( enabledBreakpoints.isNotEmpty() )
+                    {
+                        // execution engines may execute more than one instruction per invocation,
+                        // so make sure we're not skipping over any breakpoints
+                        do
+                        {
+                            if ( ! ignoreBreakpoint && enabledBreakpoints.checkBreakpointHit( emulator.pc, EmulatorDriver.this ) )
+                            {
+                                breakpointHit = true;
+                                break;
+                            }
+                            ignoreBreakpoint = false;
+                            executed += emulator.execute( cmdQueue, 1 );
+                        } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+                    }
+                    else
+                    {
+                        ignoreBreakpoint = false;
+                        executed = emulator.execute( cmdQueue, maxInstructions );
+                    }
                 }
                 catch(Exception e)
                 {
@@ -284,10 +351,14 @@ public class EmulatorDriver
                     running = setRunning( running, false, Reason.STOPPED );
                     continue;
                 }
+                if ( frameSynchronous ) {
+                    frameInstructions += executed;
+                }
+                governor.executed( executed );
                 if ( PRINT_CYCLES_PER_SECOND )
                 {
-                    cmdQueue.totalCycleCount++;
-                    if ((cmdQueue.totalCycleCount % tickInterval) == 0 && cmdQueue.lastTimestamp != 0)
+                    cmdQueue.totalCycleCount += executed;
+                    if ((cmdQueue.totalCycleCount % tickInterval) < executed && cmdQueue.lastTimestamp != 0)
                     {
                         final float elapsedSeconds = (System.currentTimeMillis() - cmdQueue.lastTimestamp) / 1000f;
                         final long cyclesPerSecond = (long) (cmdQueue.totalCycleCount / elapsedSeconds);
@@ -295,6 +366,20 @@ public class EmulatorDriver
                     }
                 }
 
+                final long now = System.nanoTime();
+                if ( ! frameSynchronous && now - lastFrameNanos >= FRAME_INTERVAL_NANOS ) {
+                    publishFrame( now );
+                }
+                if ( snapshotIntervalNanos > 0 && now - lastSnapshotNanos >= snapshotIntervalNanos ) {
+                    publishState();
+                }
+
+                if ( breakpointHit )
+                {
+                    running = setRunning( running, false , Reason.STOPPED_BREAKPOINT);
+                    continue;
+                }
+
                 if ( --cyclesUntilTick >= 0 )
                 {
                     cyclesUntilTick = tickInterval;
@@ -308,8 +393,106 @@ public class EmulatorDriver
                 {
                     running = setRunning( running, false, Reason.STOPPED );
                     isStepping = false;
-                } else if ( delay > 0 ) {
-                    delay();
+                }
+            }
+        }
+
+        /*
+         * Whether the emulation is suspended until an external event (key press, delay timer) happens.
+         * When running frame-synchronously, time advances while waiting so we must not block.
+         */
+        private boolean isWaiting()
+        {
+            return running && ! frameSynchronous && cmdQueue.isWaiting();
+        }
+
+        /**
+         * Processes all pending commands in one batch.
+         *
+         * Blocks while the emulation is stopped or waiting for an external event.
+         *
+         * @return <code>false</code> if the thread got terminated
+         */
+        private boolean processCommands()
+        {
+            while ( true )
+            {
+                emulator.processKeyEvents( cmdQueue );
+                final boolean wasWaiting = isWaiting();
+                Cmd cmd;
+                if ( ! running || wasWaiting )
+                {
+                    // about to block, renderers must not miss the last changes
+                    publishFrame( System.nanoTime() );
+                    cmd = cmdQueue.take();
+                }
+                else
+                {
+                    cmd = cmdQueue.poll();
+                }
+                if ( cmd == null ) {
+                    return true;
+                }
+                cmd.onReceive(this);
+                switch(cmd.type)
+                {
+                    case TERMINATE:
+                        terminated = true;
+                        cmdQueue.setWaitFlags(0);
+                        setRunning( running, false , Reason.STOPPED);
+                        while( ( cmd = cmdQueue.poll() ) != null ) {
+                            cmd.onReceive(this);
+                        }
+                        shutdownListeners.forEach(x -> { try { x.run(); } catch(Exception e) {
+                            e.printStackTrace();
+                        }} );
+                        return false;
+                    case CHANGE_BREAKPOINTS:
+                    case RUN:
+                        break;
+                    case RESET:
+                        running = setRunning( running, false , Reason.STOPPED);
+                        enabledBreakpoints.clearTemporary();
+                        disabledBreakpoints.clearTemporary();
+                        emulator.reset();
+                        cmdQueue.reset();
+                        frameInstructions = 0;
+                        publishState();
+                        invokeStateListeners( Reason.RESET );
+                        break;
+                    case STEP:
+                        isStepping = true;
+                    case START:
+                        cmdQueue.totalCycleCount = 0;
+                        cmdQueue.lastTimestamp = System.currentTimeMillis();
+                        if ( ! running )
+                        {
+                            governor.restart();
+                            ignoreBreakpoint = true;
+                            running = setRunning( running,true, Reason.STARTED);
+                        }
+                        if ( cmd.type == CmdType.STEP) {
+                            return true; // execute step before looking at any other commands
+                        }
+                        break;
+                    case STOP:
+                        running = setRunning( running, false, Reason.STOPPED );
+                        isStepping = false;
+                        break;
+                }
+                if ( ! running ) {
+                    // commands might have changed the emulation state
+                    publishState();
+                }
+                if ( wasWaiting && ! isWaiting() )
+                {
+                    // time spent waiting for a key press or the delay timer does not count
+                    governor.restart();
+                    if ( PRINT_CYCLES_PER_SECOND )
+                    {
+                        cmdQueue.totalCycleCount = 0;
+                        cmdQueue.lastTimestamp = System.currentTimeMillis();
+                    }
                 }
             }
         }
@@ -356,6 +539,7 @@ public class EmulatorDriver
     {
         Validate.notNull(emulator, "interpreter must not be null");
         this.emulator = emulator;
+        this.state = EmulatorState.capture( emulator, null );
         thread.setDaemon( true );
         thread.setName("controller-thread");
         thread.start();
@@ -369,7 +553,19 @@ public class EmulatorDriver
      */
     public void start()
     {
-        execute(CmdType.START);
+        await( startAsync() );
+    }
+
+    /**
+     * Start emulation without waiting for the emulation thread to pick up the request.
+     *
+     * @return future that completes once the emulation thread received the request
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #start()
+     */
+    public CompletableFuture<Void> startAsync()
+    {
+        return execute(CmdType.START);
     }
 
     /**
@@ -378,7 +574,18 @@ public class EmulatorDriver
      * @see #destroy()
      */
     public void reset() {
-        execute(CmdType.RESET);
+        await( resetAsync() );
+    }
+
+    /**
+     * Stops and resets emulation without waiting for the emulation thread to pick up the request.
+     *
+     * @return future that completes once the emulation thread received the request
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #reset()
+     */
+    public CompletableFuture<Void> resetAsync() {
+        return execute(CmdType.RESET);
     }
 
     /**
@@ -389,7 +596,18 @@ public class EmulatorDriver
      * @see #destroy()
      */
     public void stop() {
-        execute(CmdType.STOP);
+        await( stopAsync() );
+    }
+
+    /**
+     * Stops the emulation without waiting for the emulation thread to pick up the request.
+     *
+     * @return future that completes once the emulation thread received the request
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #stop()
+     */
+    public CompletableFuture<Void> stopAsync() {
+        return execute(CmdType.STOP);
     }
 
     /**
@@ -400,7 +618,7 @@ public class EmulatorDriver
      */
     public void destroy()
     {
-        execute(CmdType.TERMINATE);
+        await( execute(CmdType.TERMINATE) );
     }
 
     /**
@@ -413,7 +631,19 @@ public class EmulatorDriver
      */
     public void step()
     {
-        execute(CmdType.STEP);
+        await( stepAsync() );
+    }
+
+    /**
+     * Single-step the next instruction without waiting for the emulation thread to pick up the request.
+     *
+     * @return future that completes once the emulation thread received the request
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #step()
+     */
+    public CompletableFuture<Void> stepAsync()
+    {
+        return execute(CmdType.STEP);
     }
 
     /**
@@ -434,39 +664,267 @@ public class EmulatorDriver
     /**
      * Set emulation speed.
      *
+     * The speed is mapped logarithmically to instructions per second, 0 corresponds to
+     * {@value #MIN_SPEED} instructions per second, 0.5 to 1000 instructions per second and 1
+     * disables throttling.
+     *
      * @param percentageValue value between 0 and 1
+     * @see #setInstructionsPerSecond(long)
      */
     public void setSpeed(float percentageValue)
     {
         if ( percentageValue < 0f || percentageValue > 1f ) {
             throw new IllegalArgumentException("value must be 0...1");
         }
-        float factor = Math.max(0, Math.min(1,percentageValue) );
-        final long newDelay = (long) ((1.0f-factor)*MAX_DELAY);
-        final long newTickInterval = (long) Math.max(1, factor*MAX_TICK_INTERVAL );
-        System.out.println("Setting speed to "+(100.0f*factor)+" % " +
-                               "(delay: "+newDelay+
-                               ", tick interval: "+newTickInterval+")");
+        setInstructionsPerSecond( speedToInstructionsPerSecond( percentageValue ) );
+    }
+
+    private static long speedToInstructionsPerSecond(float factor)
+    {
+        if ( factor >= 1f ) {
+            return ThroughputGovernor.UNLIMITED;
+        }
+        return Math.round( MIN_SPEED * Math.pow( 10, 4 * factor ) );
+    }
+
+    /**
+     * Set emulation speed.
+     *
+     * @param instructionsPerSecond target speed or {@link ThroughputGovernor#UNLIMITED} to run as fast as possible
+     */
+    public void setInstructionsPerSecond(long instructionsPerSecond)
+    {
+        Validate.isTrue( instructionsPerSecond >= 0, "instructions per second must be >= 0" );
+        final long newTickInterval = instructionsPerSecond == ThroughputGovernor.UNLIMITED ?
+                                         MAX_TICK_INTERVAL : Math.max( 1, instructionsPerSecond );
+        System.out.println("Setting speed to "+( instructionsPerSecond == ThroughputGovernor.UNLIMITED ?
+                                                     "unlimited" : instructionsPerSecond+" instructions/s" ) +
+                               " (tick interval: "+newTickInterval+")");
         thread.submit( new Cmd( CmdType.RUN, thread ->
         {
-            thread.delay = newDelay;
+            thread.instructionsPerSecond = instructionsPerSecond;
+            thread.updateGovernor();
             thread.tickInterval = newTickInterval;
         }));
     }
 
+    /**
+     * Switches to frame-synchronous execution.
+     *
+     * The emulation executes a fixed number of instructions per emulated 60 Hz frame and
+     * decrements the delay and sound timers at the end of each frame, on the emulation thread.
+     * Results only depend on the program and the (frame-accurate) input, not on OS scheduling.
+     * The speed set through {@link #setSpeed(float)} is ignored while in this mode.
+     *
+     * Callers are responsible for no longer invoking the emulator's timers from
+     * a {@link SixtyHertzTimer}, see {@link #isFrameSynchronous()}.
+     *
+     * @param instructionsPerFrame number of instructions per frame
+     * @param throttled whether to limit execution to 60 frames per second or to run as fast as possible
+     * @see #setRealTime()
+     */
+    public void setFrameSynchronous(int instructionsPerFrame, boolean throttled)
+    {
+        Validate.isTrue( instructionsPerFrame > 0, "instructions per frame must be > 0" );
+        thread.submit( new Cmd( CmdType.RUN, thread ->
+        {
+            frameSynchronous = true;
+            thread.instructionsPerFrame = instructionsPerFrame;
+            thread.throttleFrames = throttled;
+            thread.frameInstructions = 0;
+            thread.updateGovernor();
+        }));
+    }
+
+    /**
+     * Switches back to real-time execution, where timers are driven by a {@link SixtyHertzTimer}.
+     *
+     * @see #setFrameSynchronous(int, boolean)
+     */
+    public void setRealTime()
+    {
+        thread.submit( new Cmd( CmdType.RUN, thread ->
+        {
+            frameSynchronous = false;
+            thread.updateGovernor();
+        }));
+    }
+
+    /**
+     * Returns whether the emulation is running frame-synchronously.
+     *
+     * @return
+     * @see #setFrameSynchronous(int, boolean)
+     */
+    public boolean isFrameSynchronous()
+    {
+        return frameSynchronous;
+    }
+
+    /**
+     * Returns the latest snapshot of the emulation state.
+     *
+     * While the emulation is running, snapshots are published at the rate configured through
+     * {@link #setSnapshotRate(int)}. A snapshot is also published whenever the emulation stops
+     * and after every command processed while it is stopped.
+     * This method never blocks and may be called from any thread.
+     *
+     * @return
+     */
+    public EmulatorState getState()
+    {
+        return state;
+    }
+
+    /**
+     * Returns the exchange through which the emulation thread hands the screen's content to a renderer.
+     *
+     * Frames get published at most 60 times per second (once per frame when running frame-synchronously
+     * and throttled), whenever the emulation stops or starts waiting for an external event, but only if the
+     * screen actually changed.
+     *
+     * @return
+     * @see #requestFrame()
+     */
+    public FrameExchange getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * Requests a complete frame to be published, even if the screen did not change.
+     *
+     * Useful for renderers that just got attached.
+     *
+     * @see #getFrames()
+     */
+    public void requestFrame()
+    {
+        post( driver ->
+        {
+            frames.invalidate();
+            // publishing consumes the screen's dirty rows, so all other sinks need to see this frame as well
+            thread.publishFrame( System.nanoTime() );
+        });
+    }
+
+    /**
+     * Sets the recorder that gets every frame published through {@link #getFrames()}.
+     *
+     * The screen's current content is recorded right away. Once this method returns the
+     * emulation thread no longer uses the previous recorder, so it may be closed safely.
+     *
+     * @param recorder recorder or <code>NULL</code> to stop recording
+     * @return the previous recorder, may be <code>NULL</code>
+     */
+    public VideoRecorder setVideoRecorder(VideoRecorder recorder)
+    {
+        return runOnThreadWithResult( driver ->
+        {
+            final VideoRecorder previous = videoRecorder;
+            videoRecorder = recorder;
+            if ( recorder != null ) {
+                recorder.record( emulator.screen );
+            }
+            return previous;
+        });
+    }
+
+    /**
+     * Sets the memory-mapped file the screen's content gets mirrored to.
+     *
+     * The file is updated whenever a frame gets published through {@link #getFrames()} or the beeper
+     * state changed. Once this method returns the emulation thread no longer uses the previous
+     * framebuffer, so it may be closed safely.
+     *
+     * @param framebuffer framebuffer or <code>NULL</code> to stop mirroring the screen
+     * @return the previous framebuffer, may be <code>NULL</code>
+     */
+    public SharedFramebuffer setSharedFramebuffer(SharedFramebuffer framebuffer)
+    {
+        return runOnThreadWithResult( driver ->
+        {
+            final SharedFramebuffer previous = sharedFramebuffer;
+            sharedFramebuffer = framebuffer;
+            if ( framebuffer != null ) {
+                framebuffer.update( emulator.screen, true );
+            }
+            return previous;
+        });
+    }
+
+    /**
+     * Sets the number of state snapshots to publish per second while the emulation is running.
+     *
+     * @param snapshotsPerSecond snapshots per second, 0 to only publish snapshots while the emulation is stopped
+     * @see #getState()
+     */
+    public void setSnapshotRate(int snapshotsPerSecond)
+    {
+        Validate.isTrue( snapshotsPerSecond >= 0, "snapshots per second must be >= 0" );
+        thread.submit( new Cmd( CmdType.RUN, thread ->
+            thread.snapshotIntervalNanos = snapshotsPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos( 1 ) / snapshotsPerSecond ) );
+    }
+
+    /**
+     * Switch the engine used to execute instructions.
+     *
+     * @param type
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #destroy()
+     */
+    public void setExecutionEngine(EngineType type)
+    {
+        Validate.notNull(type, "type must not be null");
+        runOnThread( driver -> driver.emulator.setExecutionEngine( type.create() ) );
+    }
+
     /**
      * Execute a callback on the emulation thread.
      *
      * @param callback callback to execute
      * @throws IllegalStateException if this driver has already been destroyed.
      * @see #destroy()
+     * @see #runOnThreadAsync(IDriverCallback)
      */
     public void runOnThread(IDriverCallback callback)
     {
-        runOnThread(callback, CmdType.RUN );
+        await( runOnThreadAsync( callback ) );
     }
 
-    private void runOnThread(IDriverCallback callback, CmdType type)
+    /**
+     * Execute a callback on the emulation thread without waiting for it to complete.
+     *
+     * If invoked on the emulation thread, the callback is executed right away.
+     *
+     * @param callback callback to execute
+     * @return future that completes after the callback has been executed, exceptions
+     * thrown by the callback complete the future exceptionally
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #destroy()
+     */
+    public CompletableFuture<Void> runOnThreadAsync(IDriverCallback callback)
+    {
+        Validate.notNull(callback, "callback must not be null");
+        return submit( CmdType.RUN, driver ->
+        {
+            callback.invoke( driver );
+            return null;
+        });
+    }
+
+    /**
+     * Execute a callback on the emulation thread without waiting for it to complete.
+     *
+     * Unlike {@link #runOnThreadAsync(IDriverCallback)}, no future gets created and exceptions
+     * thrown by the callback are just logged. This method never blocks and is
+     * thus safe to use from time-critical threads.
+     *
+     * @param callback callback to execute
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #destroy()
+     */
+    public void post(IDriverCallback callback)
     {
         Validate.notNull(callback, "callback must not be null");
         if ( Thread.currentThread() == thread )
@@ -475,64 +933,113 @@ public class EmulatorDriver
         }
         else
         {
-            final CountDownLatch latch = new CountDownLatch(1);
-            thread.submit( new Cmd( type, thread ->
+            thread.submit( new Cmd( CmdType.RUN, thread ->
             {
                 try
                 {
                     callback.invoke(this);
-                } finally {
-                    latch.countDown();
+                }
+                catch(Exception e)
+                {
+                    System.err.println("Callback "+callback+" threw exception.");
+                    e.printStackTrace();
                 }
             }));
-            try
-            {
-                latch.await();
-            }
-            catch(InterruptedException e) {
-                /* can't help it */
-            }
         }
     }
 
+    /**
+     * Execute a callback on the emulation thread and return its result.
+     *
+     * @param callback callback to execute
+     * @return result of the callback
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #destroy()
+     * @see #runOnThreadWithResultAsync(IDriverCallbackWithValue)
+     */
     public <T> T runOnThreadWithResult(IDriverCallbackWithValue<T> callback)
+    {
+        return await( runOnThreadWithResultAsync( callback ) );
+    }
+
+    /**
+     * Execute a callback on the emulation thread without waiting for its result.
+     *
+     * If invoked on the emulation thread, the callback is executed right away.
+     *
+     * @param callback callback to execute
+     * @return future that completes with the callback's result, exceptions
+     * thrown by the callback complete the future exceptionally
+     * @throws IllegalStateException if this driver has already been destroyed.
+     * @see #destroy()
+     */
+    public <T> CompletableFuture<T> runOnThreadWithResultAsync(IDriverCallbackWithValue<T> callback)
     {
         Validate.notNull(callback, "callback must not be null");
-        if ( Thread.currentThread() == thread )
+        return submit( CmdType.RUN, callback );
+    }
+
+    private void runOnThread(IDriverCallback callback, CmdType type)
+    {
+        await( submit( type, driver ->
+        {
+            callback.invoke( driver );
+            return null;
+        }));
+    }
+
+    private <T> CompletableFuture<T> submit(CmdType type, IDriverCallbackWithValue<T> callback)
+    {
+        if ( ( type == CmdType.RUN || type == CmdType.CHANGE_BREAKPOINTS ) && Thread.currentThread() == thread )
         {
-            return callback.invoke(this);
+            // prevent deadlock, all other command types need to go through the controller loop
+            try {
+                return CompletableFuture.completedFuture( callback.invoke( this ) );
+            }
+            catch(Exception e)
+            {
+                return CompletableFuture.failedFuture( e );
+            }
         }
-        final AtomicReference<T> result = new AtomicReference<>();
-        final CountDownLatch latch = new CountDownLatch(1);
-        thread.submit( new Cmd( CmdType.RUN, thread ->
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        thread.submit( new Cmd( type, thread ->
         {
             try
             {
-                result.set( callback.invoke(this) );
-            } finally {
-                latch.countDown();
+                result.complete( callback.invoke(this) );
+            }
+            catch(Exception e)
+            {
+                result.completeExceptionally( e );
             }
         }));
-        try
-        {
-            latch.await();
-        }
-        catch(InterruptedException e) {
-            /* can't help it */
-        }
-        return result.get();
+        return result;
     }
 
-    private void execute(CmdType type)
+    private CompletableFuture<Void> execute(CmdType type)
+    {
+        return submit( type, driver -> null );
+    }
+
+    /*
+     * Waits for a future to complete, rethrowing any runtime exception
+     * that completed it exceptionally.
+     */
+    private static <T> T await(CompletableFuture<T> future)
     {
-        final CountDownLatch latch = new CountDownLatch(1);
-        thread.submit( new Cmd(type, thread -> latch.countDown() ) );
         try
         {
-            latch.await();
+            return future.join();
         }
-        catch(InterruptedException e) {
-            /* can't help it */
+        catch(CompletionException e)
+        {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            if ( e.getCause() instanceof Error ) {
+                throw (Error) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -583,20 +1090,24 @@ public class EmulatorDriver
      */
     public List<Breakpoint> getAllBreakpoints()
     {
-        final List<Breakpoint> list = new ArrayList<>();
+        return await( getAllBreakpointsAsync() );
+    }
 
-        runOnThread( ip ->
-        {
-            synchronized(list)
-            {
-                enabledBreakpoints.getAll( list );
-                disabledBreakpoints.getAll( list );
-            }
-        });
-        synchronized(list)
+    /**
+     * Returns all breakpoints without waiting for the emulation thread.
+     *
+     * @return future that completes with all (enabled and disabled) breakpoints
+     * @see #getAllBreakpoints()
+     */
+    public CompletableFuture<List<Breakpoint>> getAllBreakpointsAsync()
+    {
+        return runOnThreadWithResultAsync( ip ->
         {
+            final List<Breakpoint> list = new ArrayList<>();
+            enabledBreakpoints.getAll( list );
+            disabledBreakpoints.getAll( list );
             return list;
-        }
+        });
     }
 
     /**
@@ -660,25 +1171,31 @@ public class EmulatorDriver
      */
     public Boolean isEnabled(Breakpoint bp)
     {
-        final Boolean[] result = new Boolean[1];
-        runOnThread(driver ->
+        return await( isEnabledAsync( bp ) );
+    }
+
+    /**
+     * Check whether a given breakpoint is enabled, disabled or unknown without waiting for the emulation thread.
+     *
+     * @param bp
+     * @return future that completes with true/false if the breakpoint is enabled/disabled, <code>NULL</code> if the breakpoint is not
+     * known.
+     * @see #isEnabled(Breakpoint)
+     */
+    public CompletableFuture<Boolean> isEnabledAsync(Breakpoint bp)
+    {
+        return runOnThreadWithResultAsync( driver ->
         {
-            synchronized (result)
+            if (enabledBreakpoints.contains(bp))
             {
-                if (enabledBreakpoints.contains(bp))
-                {
-                    result[0] = Boolean.TRUE;
-                }
-                else if (disabledBreakpoints.contains(bp))
-                {
-                    result[0] = Boolean.FALSE;
-                }
+                return Boolean.TRUE;
+            }
+            if (disabledBreakpoints.contains(bp))
+            {
+                return Boolean.FALSE;
             }
+            return null;
         });
-        synchronized (result)
-        {
-            return result[0];
-        }
     }
 
     /**
@@ -736,32 +1253,49 @@ public class EmulatorDriver
 
     /**
      * Tells the emulation that the delay timer finished counting down to zero.
+     *
+     * This method does not wait for the emulation thread to process the notification.
      */
     public void delayTimerTriggered()
     {
-        runOnThread(driver -> driver.thread.delayTimerTriggered());
+        post(driver -> driver.thread.delayTimerTriggered());
     }
 
     /**
      * Tells the emulation that a key has been pressed down.
      *
+     * May be invoked by any thread, never blocks and does not allocate.
+     *
      * @param key key code (0x00...0x0f)
      * @see #keyReleased(int)
+     * @see Keyboard#keyPressed(int)
      */
     public void keyPressed(int key)
     {
-        runOnThread(driver -> driver.thread.keyPressed(key));
+        emulator.keyboard.keyPressed( key );
     }
 
     /**
      * Tells the emulation that a key has been released.
      *
+     * May be invoked by any thread, never blocks and does not allocate.
+     *
      * @param key key code (0x00...0x0f)
      * @see #keyPressed(int)
+     * @see Keyboard#keyReleased(int)
      */
     public void keyReleased(int key)
     {
-        runOnThread(driver -> driver.thread.keyReleased(key));
+        emulator.keyboard.keyReleased( key );
+    }
+
+    /*
+     * Invoked by the keyboard after queueing a key event, wakes up
+     * the emulation thread in case it's waiting for a key press.
+     */
+    void keyEventsPending()
+    {
+        thread.cmdQueue.signal();
     }
 
     private void invokeBreakpointChangeListeners()
@@ -0,0 +1,461 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A fully isolated emulator instance that runs on the caller's thread.
+ *
+ * Unlike {@link EmulatorDriver}, a session owns no threads and does not rely on any static state,
+ * so any number of sessions may be hosted inside the same JVM. Time is purely emulated: every frame
+ * consists of a fixed number of instruction slots and the delay/sound timers advance by one
+ * tick at the end of each frame. Slots spent waiting for the delay timer or a key press
+ * are idle but still count as emulated time, so running a session is fully deterministic.
+ *
+ * Sessions are <b>not</b> thread-safe, only one thread at a time may invoke {@link #run(int)}
+ * and inspect the emulation state. {@link #keyPressed(int)} and {@link #keyReleased(int)}
+ * may be invoked by any thread.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see #builder()
+ */
+public final class EmulatorSession
+{
+    /**
+     * The reason why {@link #run(int)} returned.
+     *
+     * If several events happen at once, only the one declared last gets reported.
+     */
+    public enum StopReason
+    {
+        /**
+         * The requested number of instruction slots has been used up.
+         */
+        INSTRUCTION_LIMIT,
+        /**
+         * A frame ended and the timers got advanced.
+         */
+        FRAME_COMPLETED,
+        /**
+         * The screen contents changed. This is checked after every batch of instructions
+         * handed to the execution engine, so a few more instructions may have been executed
+         * after the actual change.
+         */
+        SCREEN_CHANGED,
+        /**
+         * The program started waiting for a key press (FX0A).
+         */
+        WAITING_FOR_KEY
+    }
+
+    /**
+     * Default number of instructions executed per frame.
+     */
+    public static final int DEFAULT_INSTRUCTIONS_PER_FRAME = EmulatorDriver.DEFAULT_INSTRUCTIONS_PER_FRAME;
+
+    /**
+     * Builder for {@link EmulatorSession} instances.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Builder
+    {
+        private byte[] rom = new byte[0];
+        private Quirks quirks = Quirks.DEFAULT;
+        private EngineType engineType = EngineType.INTERPRETER;
+        private int instructionsPerFrame = DEFAULT_INSTRUCTIONS_PER_FRAME;
+        private Set<StopReason> stopOn = EnumSet.noneOf( StopReason.class );
+        private int spriteCacheSlots = SpriteCache.DEFAULT_SLOTS;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the program to load at 0x200.
+         *
+         * @param rom
+         * @return this builder
+         */
+        public Builder rom(byte[] rom)
+        {
+            Validate.notNull(rom, "rom must not be null");
+            Validate.isTrue( rom.length <= MEMORY_SIZE - PROGRAM_START, "ROM too large: "+rom.length+" bytes");
+            this.rom = Arrays.copyOf( rom, rom.length );
+            return this;
+        }
+
+        /**
+         * Reads the program to load at 0x200 from a file.
+         *
+         * @param file
+         * @return this builder
+         * @throws IOException
+         */
+        public Builder rom(Path file) throws IOException
+        {
+            Validate.notNull(file, "file must not be null");
+            return rom( Files.readAllBytes( file ) );
+        }
+
+        /**
+         * Sets the behaviour variations to emulate, defaults to {@link Quirks#DEFAULT}.
+         *
+         * @param quirks
+         * @return this builder
+         */
+        public Builder quirks(Quirks quirks)
+        {
+            Validate.notNull(quirks, "quirks must not be null");
+            this.quirks = quirks;
+            return this;
+        }
+
+        /**
+         * Sets the execution engine to use, defaults to {@link EngineType#INTERPRETER}.
+         *
+         * @param engineType
+         * @return this builder
+         */
+        public Builder engine(EngineType engineType)
+        {
+            Validate.notNull(engineType, "engineType must not be null");
+            this.engineType = engineType;
+            return this;
+        }
+
+        /**
+         * Sets the emulation speed as number of instructions per frame.
+         *
+         * @param instructionsPerFrame
+         * @return this builder
+         */
+        public Builder instructionsPerFrame(int instructionsPerFrame)
+        {
+            Validate.isTrue( instructionsPerFrame > 0, "instructions per frame must be > 0" );
+            this.instructionsPerFrame = instructionsPerFrame;
+            return this;
+        }
+
+        /**
+         * Sets the emulation speed as number of instructions per (emulated) second.
+         *
+         * @param instructionsPerSecond
+         * @return this builder
+         * @see #instructionsPerFrame(int)
+         */
+        public Builder instructionsPerSecond(int instructionsPerSecond)
+        {
+            Validate.isTrue( instructionsPerSecond >= 60, "instructions per second must be >= 60" );
+            return instructionsPerFrame( instructionsPerSecond / 60 );
+        }
+
+        /**
+         * Sets the events that make {@link EmulatorSession#run(int)} return early.
+         *
+         * By default, <code>run(int)</code> only returns after the instruction limit has been reached.
+         *
+         * @param reasons
+         * @return this builder
+         */
+        public Builder stopOn(StopReason... reasons)
+        {
+            Validate.noNullElements(reasons, "reasons must not contain null elements");
+            stopOn = EnumSet.noneOf( StopReason.class );
+            stopOn.addAll( Arrays.asList( reasons ) );
+            return this;
+        }
+
+        /**
+         * Sets the number of sprites the screen caches, defaults to {@link SpriteCache#DEFAULT_SLOTS}.
+         *
+         * A full-size cache takes 64 KB per session, hosts running lots of sessions
+         * may want to use a smaller one.
+         *
+         * @param slots power of two (1...{@link SpriteCache#DEFAULT_SLOTS})
+         * @return this builder
+         * @see SpriteCache#SpriteCache(Memory, int)
+         */
+        public Builder spriteCacheSlots(int slots)
+        {
+            Validate.isTrue( slots > 0 && slots <= SpriteCache.DEFAULT_SLOTS && Integer.bitCount( slots ) == 1,
+                "sprite cache slots must be a power of two (1..."+SpriteCache.DEFAULT_SLOTS+"), was: "+slots );
+            this.spriteCacheSlots = slots;
+            return this;
+        }
+
+        /**
+         * Creates a new session, reset and ready to run.
+         *
+         * @return
+         */
+        public EmulatorSession build()
+        {
+            return new EmulatorSession( this );
+        }
+    }
+
+    private static final int MEMORY_SIZE = 4096;
+    private static final int PROGRAM_START = 0x200;
+
+    private static final int WAIT_KEY = EmulatorDriver.FLAG_WAIT_KEY_PRESS | EmulatorDriver.FLAG_WAIT_KEY_RELEASE;
+
+    private final Emulator emulator;
+    private final CommandQueue cmdQueue = new CommandQueue();
+    private final int instructionsPerFrame;
+
+    private final boolean stopOnFrame;
+    private final boolean stopOnScreenChange;
+    private final boolean stopOnKeyWait;
+
+    // instruction slots already used in the current frame
+    private int frameInstructions;
+
+    private long instructionCount;
+    private long cycleCount;
+    private long frameCount;
+
+    private EmulatorSession(Builder builder)
+    {
+        final byte[] rom = builder.rom;
+        final Memory memory = new Memory( MEMORY_SIZE );
+        final Keyboard keyboard = new Keyboard()
+        {
+            @Override
+            protected EmulatorDriver getDriver()
+            {
+                return null; // events are polled by run()
+            }
+        };
+        emulator = new Emulator( memory, new Screen( memory, builder.spriteCacheSlots ), keyboard, new SessionTimer( "sound" ), new SessionTimer( "delay" ),
+            emu -> emu.memory.write( PROGRAM_START, rom ) );
+        emulator.setExecutionEngine( builder.engineType.create() );
+        emulator.setQuirks( builder.quirks );
+        instructionsPerFrame = builder.instructionsPerFrame;
+        stopOnFrame = builder.stopOn.contains( StopReason.FRAME_COMPLETED );
+        stopOnScreenChange = builder.stopOn.contains( StopReason.SCREEN_CHANGED );
+        stopOnKeyWait = builder.stopOn.contains( StopReason.WAITING_FOR_KEY );
+        reset();
+    }
+
+    /**
+     * Returns a new builder.
+     *
+     * @return
+     */
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    /**
+     * Advances the emulation by up to a given number of instruction slots.
+     *
+     * Slots spent waiting for the delay timer or a key press count towards the limit as well.
+     *
+     * @param maxInstructions max. number of instruction slots to use, must be greater than zero
+     * @return why this method returned
+     * @see Builder#stopOn(StopReason...)
+     */
+    public StopReason run(int maxInstructions)
+    {
+        Validate.isTrue( maxInstructions > 0, "max. instructions must be > 0" );
+        int remaining = maxInstructions;
+        do
+        {
+            emulator.processKeyEvents( cmdQueue );
+
+            final int slots = Math.min( remaining, instructionsPerFrame - frameInstructions );
+            final int used;
+            boolean startedKeyWait = false;
+            if ( cmdQueue.isWaiting() )
+            {
+                // idle until the end of the frame
+                used = slots;
+            }
+            else
+            {
+                used = emulator.execute( cmdQueue, slots );
+                instructionCount += used;
+                startedKeyWait = cmdQueue.isSet( EmulatorDriver.FLAG_WAIT_KEY_PRESS );
+            }
+            remaining -= used;
+            cycleCount += used;
+            frameInstructions += used;
+
+            final boolean frameCompleted = frameInstructions >= instructionsPerFrame;
+            if ( frameCompleted )
+            {
+                frameInstructions = 0;
+                frameCount++;
+                emulator.tickTimers( cmdQueue );
+            }
+
+            if ( startedKeyWait && stopOnKeyWait ) {
+                return StopReason.WAITING_FOR_KEY;
+            }
+            if ( stopOnScreenChange && emulator.screen.hasChanged() ) {
+                return StopReason.SCREEN_CHANGED;
+            }
+            if ( frameCompleted && stopOnFrame ) {
+                return StopReason.FRAME_COMPLETED;
+            }
+        } while ( remaining > 0 );
+        return StopReason.INSTRUCTION_LIMIT;
+    }
+
+    /**
+     * Resets the emulation and reloads the ROM.
+     */
+    public void reset()
+    {
+        emulator.reset();
+        cmdQueue.reset();
+        emulator.screen.takeDirtyRows();
+        frameInstructions = 0;
+        instructionCount = 0;
+        cycleCount = 0;
+        frameCount = 0;
+    }
+
+    /**
+     * Tell the emulation that a key has been pressed.
+     *
+     * May be invoked by any thread, the event gets processed by the next call to {@link #run(int)}.
+     *
+     * @param key
+     */
+    public void keyPressed(int key)
+    {
+        emulator.keyboard.keyPressed( key );
+    }
+
+    /**
+     * Tell the emulation that a key has been released.
+     *
+     * May be invoked by any thread, the event gets processed by the next call to {@link #run(int)}.
+     *
+     * @param key
+     */
+    public void keyReleased(int key)
+    {
+        emulator.keyboard.keyReleased( key );
+    }
+
+    /**
+     * Returns whether the program is waiting for a key to be pressed and released (FX0A).
+     *
+     * @return
+     */
+    public boolean isWaitingForKey()
+    {
+        return cmdQueue.isSet( WAIT_KEY );
+    }
+
+    /**
+     * Takes an immutable snapshot of the emulation state.
+     *
+     * @return
+     */
+    public EmulatorState snapshot()
+    {
+        return EmulatorState.capture( emulator, null );
+    }
+
+    /**
+     * Returns the emulator owned by this session.
+     *
+     * Must only be accessed by the thread running the session.
+     *
+     * @return
+     */
+    public Emulator getEmulator()
+    {
+        return emulator;
+    }
+
+    /**
+     * Returns the screen.
+     *
+     * Must only be accessed by the thread running the session. Note that stopping
+     * on {@link StopReason#SCREEN_CHANGED} consumes the screen's {@link Screen#takeDirtyRows() dirty rows}.
+     *
+     * @return
+     */
+    public Screen getScreen()
+    {
+        return emulator.screen;
+    }
+
+    /**
+     * Returns the number of instructions executed since the last reset.
+     *
+     * @return
+     */
+    public long getInstructionCount()
+    {
+        return instructionCount;
+    }
+
+    /**
+     * Returns the number of instruction slots (executed or idle) used since the last reset.
+     *
+     * @return
+     */
+    public long getCycleCount()
+    {
+        return cycleCount;
+    }
+
+    /**
+     * Returns the number of frames completed since the last reset.
+     *
+     * @return
+     */
+    public long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Returns the number of instruction slots per frame.
+     *
+     * @return
+     */
+    public int getInstructionsPerFrame()
+    {
+        return instructionsPerFrame;
+    }
+
+    private static final class SessionTimer extends Timer
+    {
+        SessionTimer(String name) {
+            super( name );
+        }
+
+        @Override
+        protected void triggered() {
+            // never invoked, Emulator#tickTimers(CommandQueue) handles expiry
+        }
+    }
+}
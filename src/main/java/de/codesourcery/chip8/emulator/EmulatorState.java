@@ -0,0 +1,176 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import de.codesourcery.chip8.Disassembler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the emulation state.
+ *
+ * Snapshots get published by the {@link EmulatorDriver} and may be
+ * inspected from any thread.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EmulatorDriver#getState()
+ */
+public final class EmulatorState
+{
+    /**
+     * Sequence number, incremented for every snapshot that gets published.
+     */
+    public final long sequence;
+
+    public final int pc;
+    public final int index;
+    public final int sp;
+
+    public final int delayTimer;
+    public final int soundTimer;
+
+    /**
+     * Memory generation at the time the snapshot was taken.
+     *
+     * @see Memory#getGeneration()
+     */
+    public final long memoryGeneration;
+
+    private final int[] registers;
+    private final int[] stack;
+    // shared between snapshots as long as the memory generation does not change
+    private final byte[] memory;
+
+    private EmulatorState(long sequence, Emulator emulator, byte[] memory)
+    {
+        this.sequence = sequence;
+        this.pc = emulator.pc;
+        this.index = emulator.index;
+        this.sp = emulator.sp;
+        this.delayTimer = emulator.delayTimer.value();
+        this.soundTimer = emulator.soundTimer.value();
+        this.memoryGeneration = emulator.memory.getGeneration();
+        this.registers = emulator.register.clone();
+        this.stack = emulator.stack.clone();
+        this.memory = memory;
+    }
+
+    /**
+     * Takes a snapshot.
+     *
+     * Must only be invoked by the thread running the emulation.
+     *
+     * @param emulator
+     * @param previous previous snapshot whose memory contents may be re-used, may be <code>null</code>
+     * @return
+     */
+    static EmulatorState capture(Emulator emulator, EmulatorState previous)
+    {
+        final Memory mem = emulator.memory;
+        final byte[] memory;
+        if ( previous != null && previous.memoryGeneration == mem.getGeneration() ) {
+            memory = previous.memory;
+        }
+        else
+        {
+            memory = new byte[ mem.getSizeInBytes() ];
+            mem.read( 0, memory.length, memory );
+        }
+        return new EmulatorState( previous == null ? 0 : previous.sequence + 1, emulator, memory );
+    }
+
+    /**
+     * Returns the value of a register.
+     *
+     * @param regNum register number (0...15)
+     * @return
+     */
+    public int register(int regNum) {
+        return registers[ regNum ];
+    }
+
+    /**
+     * Returns all registers.
+     *
+     * @return copy of the register values
+     */
+    public int[] getRegisters() {
+        return registers.clone();
+    }
+
+    /**
+     * Returns the stack.
+     *
+     * @return copy of the stack contents
+     */
+    public int[] getStack() {
+        return stack.clone();
+    }
+
+    public int getMemorySize() {
+        return memory.length;
+    }
+
+    /**
+     * Read a byte.
+     *
+     * @param address
+     * @return
+     */
+    public int readMemory(int address) {
+        return memory[ address % memory.length ] & 0xff;
+    }
+
+    /**
+     * Copies a given number of bytes starting at a specific address to a byte array.
+     *
+     * @param address
+     * @param count
+     * @param destination
+     */
+    public void readMemory(int address, int count, byte[] destination)
+    {
+        for ( int i = 0 ; i < count ; i++ ) {
+            destination[i] = memory[ (address + i) % memory.length ];
+        }
+    }
+
+    /**
+     * Dump memory as hex dump.
+     *
+     * @see Memory#dump(int, int, int)
+     */
+    public String dumpMemory(int offset, int count, int bytesPerRow) {
+        return Memory.dump( offset, memory, count, bytesPerRow );
+    }
+
+    /**
+     * Disassemble's N words starting at a given address.
+     *
+     * @see Disassembler#disAsm(byte[], int, int)
+     */
+    public List<String> disassemble(int startAddress, int words) {
+        return Disassembler.disAsm( memory, startAddress, words );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "EmulatorState[ #" + sequence + ", pc=0x" + Integer.toHexString( pc ) + ", I=0x" + Integer.toHexString( index ) +
+                   ", sp=" + sp + ", registers=" + Arrays.toString( registers ) + " ]";
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import de.codesourcery.chip8.emulator.jit.AotEngine;
+import de.codesourcery.chip8.emulator.jit.JitEngine;
+
+/**
+ * The available execution engines.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see Emulator#setExecutionEngine(IExecutionEngine)
+ */
+public enum EngineType
+{
+    /**
+     * Plain switch-based interpreter that decodes every instruction before executing it.
+     */
+    INTERPRETER("Interpreter")
+    {
+        @Override
+        public IExecutionEngine create()
+        {
+            return (emulator, cmdQueue, maxInstructions) ->
+            {
+                int executed = 0;
+                do
+                {
+                    emulator.executeOneInstruction( cmdQueue );
+                    executed++;
+                } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+                return executed;
+            };
+        }
+    },
+    /**
+     * Interpreter that maps every possible opcode to a dedicated handler using a lookup table.
+     */
+    OPCODE_TABLE("Table-driven interpreter")
+    {
+        @Override
+        public IExecutionEngine create()
+        {
+            return new OpcodeTableEngine();
+        }
+    },
+    /**
+     * Interpreter that works on a predecoded copy of the program and fuses common instruction pairs.
+     */
+    PREDECODED("Predecoding interpreter")
+    {
+        @Override
+        public IExecutionEngine create()
+        {
+            return new PredecodedEngine();
+        }
+    },
+    /**
+     * Interpreter that translates frequently executed basic blocks into JVM bytecode.
+     */
+    JIT("JIT compiler")
+    {
+        @Override
+        public IExecutionEngine create()
+        {
+            return new JitEngine();
+        }
+    },
+    /**
+     * Runs programs that got translated ahead-of-time, translations are kept in an on-disk cache.
+     */
+    AOT("Ahead-of-time compiler")
+    {
+        @Override
+        public IExecutionEngine create()
+        {
+            return new AotEngine();
+        }
+    };
+
+    public final String displayName;
+
+    EngineType(String displayName)
+    {
+        this.displayName = displayName;
+    }
+
+    /**
+     * Creates a new engine instance.
+     *
+     * @return
+     */
+    public abstract IExecutionEngine create();
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A copy of the screen's content, handed from the emulation thread to a renderer
+ * through a {@link FrameExchange}.
+ *
+ * Instances get recycled, a frame obtained from {@link FrameExchange#take()} is only
+ * valid until the next call to that method.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see FrameExchange
+ */
+public final class Frame
+{
+    final long[] rows = new long[ (Screen.EXTENDED_WIDTH/64) * Screen.EXTENDED_HEIGHT ];
+
+    boolean extendedMode;
+    long dirtyRows;
+    long sequence;
+
+    Frame() {
+    }
+
+    /*
+     * Invoked by the emulation thread only.
+     */
+    void copyFrom(Screen screen, long dirtyRows, long sequence)
+    {
+        System.arraycopy( screen.rows, 0, rows, 0, rows.length );
+        this.extendedMode = screen.isExtendedMode();
+        this.dirtyRows = dirtyRows;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Copies the rows that changed since the previous frame taken from the
+     * {@link FrameExchange} to an image.
+     *
+     * @param image destination image, <b>MUST BE {@link BufferedImage#TYPE_BYTE_BINARY}</b>. May be <code>NULL</code>.
+     * @return the image the frame got copied to, a new one if <code>image</code> was <code>NULL</code>
+     *         or did not match the frame's resolution
+     * @see Screen#copyTo(BufferedImage, long)
+     */
+    public BufferedImage copyTo(BufferedImage image) {
+        return Screen.copyRows( rows, extendedMode, image, dirtyRows );
+    }
+
+    /**
+     * Copies this frame's pixels.
+     *
+     * One bit per pixel, leftmost pixel in the most significant bit. Each row
+     * takes one long in standard mode and two longs (left half first) in extended mode.
+     *
+     * @param dest destination array, must hold at least <code>getWidth()*getHeight()/64</code> elements
+     */
+    public void copyRows(long[] dest) {
+        System.arraycopy( rows, 0, dest, 0, (getWidth()*getHeight())/64 );
+    }
+
+    /**
+     * Returns the rows that changed since the previous frame taken from the {@link FrameExchange}.
+     *
+     * This is a superset, rows that changed with the frame before the previously taken one may be included as well.
+     *
+     * @return bit mask, bit n being row n
+     */
+    public long getDirtyRows() {
+        return dirtyRows;
+    }
+
+    /**
+     * Returns this frame's sequence number, frames skipped by the renderer leave gaps.
+     *
+     * @return
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public boolean isExtendedMode() {
+        return extendedMode;
+    }
+
+    public int getWidth() {
+        return extendedMode ? Screen.EXTENDED_WIDTH : Screen.WIDTH;
+    }
+
+    public int getHeight() {
+        return extendedMode ? Screen.EXTENDED_HEIGHT : Screen.HEIGHT;
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer that hands frames from the emulation thread to a single renderer.
+ *
+ * The emulation thread fills the back buffer and swaps it with the 'ready' buffer, never
+ * waiting for the renderer. The renderer swaps its front buffer with the 'ready' buffer
+ * and thus always gets the latest frame, frames it was too slow for are skipped.
+ * Each frame carries the rows that changed since the last frame the renderer is known to have taken
+ * (a superset of the rows that changed since the frame it actually took last),
+ * so renderers only need to update those.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EmulatorDriver#getFrames()
+ */
+public final class FrameExchange
+{
+    private static final int INDEX_MASK = 0x03;
+    // set while the 'ready' buffer holds a frame the renderer did not take yet
+    private static final int FRESH = 0x04;
+
+    private final Frame[] buffers = { new Frame(), new Frame(), new Frame() };
+
+    // index of the 'ready' buffer | FRESH
+    private final AtomicInteger ready = new AtomicInteger( 1 );
+
+    // only accessed by the emulation thread
+    private int back = 0;
+    private long sequence;
+    // rows changed since the last frame that the renderer is known to have taken
+    private long pendingRows = Screen.ALL_ROWS;
+    private boolean invalid = true;
+
+    // only accessed by the renderer
+    private int front = 2;
+
+    private volatile Runnable listener = () -> {};
+
+    /**
+     * Publishes the screen's content if it changed since the last call.
+     *
+     * Must only be invoked by the emulation thread, never blocks.
+     *
+     * @param screen
+     * @return <code>true</code> if a frame got published
+     */
+    public boolean publish(Screen screen)
+    {
+        final long dirty = screen.takeDirtyRows();
+        if ( dirty == 0 && ! invalid ) {
+            return false;
+        }
+        invalid = false;
+        pendingRows |= dirty;
+        buffers[ back ].copyFrom( screen, pendingRows, ++sequence );
+        final int previous = ready.getAndSet( back | FRESH );
+        back = previous & INDEX_MASK;
+        if ( (previous & FRESH) == 0 ) {
+            // the renderer took the previous frame, the one just published may not have been taken yet
+            pendingRows = dirty;
+        }
+        listener.run();
+        return true;
+    }
+
+    /**
+     * Makes the next call to {@link #publish(Screen)} publish a complete frame,
+     * even if the screen did not change.
+     *
+     * Must only be invoked by the emulation thread.
+     */
+    void invalidate()
+    {
+        invalid = true;
+        pendingRows = Screen.ALL_ROWS;
+    }
+
+    /**
+     * Takes the latest frame.
+     *
+     * Must only be invoked by the (single) renderer.
+     *
+     * @return latest frame or <code>NULL</code> if no new frame got published since the last call.
+     * The frame is only valid until the next call to this method.
+     */
+    public Frame take()
+    {
+        if ( (ready.get() & FRESH) == 0 ) {
+            return null;
+        }
+        final int previous = ready.getAndSet( front );
+        front = previous & INDEX_MASK;
+        return buffers[ front ];
+    }
+
+    /**
+     * Sets the callback to invoke after a frame got published.
+     *
+     * The callback is invoked by the emulation thread and must never block.
+     *
+     * @param listener listener or <code>NULL</code>
+     */
+    public void setFrameListener(Runnable listener)
+    {
+        this.listener = listener == null ? () -> {} : listener;
+    }
+}
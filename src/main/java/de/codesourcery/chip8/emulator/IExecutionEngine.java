@@ -0,0 +1,66 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+/**
+ * Strategy used by the {@link Emulator} to actually execute CHIP-8 instructions.
+ *
+ * Implementations are bound to exactly one emulator instance and - just like the emulator itself -
+ * are <b>not</b> thread-safe.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EngineType
+ * @see Emulator#setExecutionEngine(IExecutionEngine)
+ */
+@FunctionalInterface
+public interface IExecutionEngine
+{
+    /**
+     * Executes instructions starting at the emulator's current PC.
+     *
+     * Implementations execute at least one and at most <code>maxInstructions</code> instructions
+     * and need to return as soon as the emulation starts waiting for an external event (see {@link CommandQueue#isWaiting()}).
+     * Implementations are free to return early at any other time as well.
+     *
+     * @param emulator emulator whose state should be advanced
+     * @param cmdQueue command queue, used to suspend the emulation while waiting for external events
+     * @param maxInstructions max. number of instructions to execute, always greater than zero
+     * @return number of instructions that actually got executed
+     */
+    int execute(Emulator emulator, CommandQueue cmdQueue, int maxInstructions);
+
+    /**
+     * Invoked when this engine gets installed on an emulator.
+     *
+     * @param emulator
+     */
+    default void attach(Emulator emulator) {
+    }
+
+    /**
+     * Invoked when this engine gets removed from an emulator.
+     *
+     * @param emulator
+     */
+    default void detach(Emulator emulator) {
+    }
+
+    /**
+     * Invoked after the emulator got reset.
+     */
+    default void reset() {
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of key events.
+ *
+ * Any number of threads may offer events, only the emulation thread may poll them.
+ * Each slot carries a sequence number telling whether it is ready to be written or read,
+ * so neither side ever blocks or allocates.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see Keyboard
+ */
+final class KeyEventQueue
+{
+    private final int mask;
+    private final int[] events;
+    // slot is writable for position p if its sequence is p, readable if it's p+1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+
+    // only accessed by the consumer
+    private long head;
+
+    /**
+     * Create instance.
+     *
+     * @param capacity queue capacity, must be a power of two
+     */
+    KeyEventQueue(int capacity)
+    {
+        if ( capacity <= 0 || Integer.bitCount( capacity ) != 1 ) {
+            throw new IllegalArgumentException( "Capacity must be a power of two" );
+        }
+        this.mask = capacity - 1;
+        this.events = new int[ capacity ];
+        this.sequences = new AtomicLongArray( capacity );
+        for ( int i = 0 ; i < capacity ; i++ ) {
+            sequences.set( i, i );
+        }
+    }
+
+    /**
+     * Enqueues an event.
+     *
+     * @param event event, must not be negative
+     * @return <code>false</code> if the queue was full and the event got dropped
+     */
+    boolean offer(int event)
+    {
+        long pos = tail.get();
+        while ( true )
+        {
+            final int idx = (int) (pos & mask);
+            final long diff = sequences.get( idx ) - pos;
+            if ( diff == 0 )
+            {
+                if ( tail.compareAndSet( pos, pos + 1 ) )
+                {
+                    events[ idx ] = event;
+                    sequences.lazySet( idx, pos + 1 );
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if ( diff < 0 ) {
+                return false;
+            }
+            else {
+                // another producer claimed this slot
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Dequeues the next event.
+     *
+     * Must only be invoked by the consumer thread.
+     *
+     * @return event or -1 if the queue is empty
+     */
+    int poll()
+    {
+        final int idx = (int) (head & mask);
+        if ( sequences.get( idx ) != head + 1 ) {
+            return -1;
+        }
+        final int event = events[ idx ];
+        sequences.lazySet( idx, head + mask + 1 );
+        head++;
+        return event;
+    }
+}
@@ -17,54 +17,120 @@ package de.codesourcery.chip8.emulator;
 
 import org.apache.commons.lang3.Validate;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /**
  * Keyboard interface.
  *
+ * Key presses/releases may be reported by any thread without ever blocking. The
+ * state of all 16 keys is kept in a single bit mask, so checking a key
+ * (<code>EX9E</code>/<code>EXA1</code>) is just an AND. Events additionally go into a
+ * lock-free queue the emulation thread drains to handle <code>FX0A</code> (wait for key press).
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public abstract class Keyboard
 {
-    private final Set<Integer> pressedKeys = new HashSet<>();
+    /**
+     * Bit set on events taken from {@link #pollEvent()} that are key presses,
+     * the lower four bits hold the key.
+     */
+    static final int PRESSED = 0x10;
+
+    private static final VarHandle KEY_MASK;
+
+    static
+    {
+        try {
+            KEY_MASK = MethodHandles.lookup().findVarHandle( Keyboard.class, "keyMask", int.class );
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    // bit n is set while key n is pressed
+    private volatile int keyMask;
+
+    private final KeyEventQueue events = new KeyEventQueue( 64 );
 
     /**
      * Tell the emulation that a key has been pressed.
      *
+     * May be invoked by any thread, never blocks.
+     *
      * @param key
      */
     public void keyPressed(int key) {
         Validate.isTrue(key>=0 && key <= 0x0f);
-        pressedKeys.add(key);
-        getDriver().keyPressed(key);
+        KEY_MASK.getAndBitwiseOr( this, 1 << key );
+        keyEvent( key | PRESSED );
     }
 
     /**
      * Tell the emulation that a key has been released.
      *
+     * May be invoked by any thread, never blocks.
+     *
      * @param key
      */
     public void keyReleased(int key)
     {
         Validate.isTrue(key>=0 && key <= 0x0f);
-        System.out.println("RELEASED: "+key);
-        pressedKeys.remove(key);
-        getDriver().keyReleased(key);
+        KEY_MASK.getAndBitwiseAnd( this, ~(1 << key) );
+        keyEvent( key );
+    }
+
+    private void keyEvent(int event)
+    {
+        // if the queue is full, the emulation is not keeping up anyway and
+        // the key mask is still correct
+        events.offer( event );
+        final EmulatorDriver driver = getDriver();
+        if ( driver != null ) {
+            driver.keyEventsPending();
+        }
     }
 
     public boolean isKeyPressed(int key)
     {
-        return pressedKeys.contains(key);
+        return key <= 0x0f && ( keyMask & (1 << key) ) != 0;
+    }
+
+    /**
+     * Returns the state of all keys.
+     *
+     * @return bit mask, bit n being set while key n is pressed
+     */
+    public int getPressedKeys()
+    {
+        return keyMask;
+    }
+
+    /**
+     * Takes the next key event from the queue.
+     *
+     * Must only be invoked by the emulation thread.
+     *
+     * @return key (bits 0-3) with {@link #PRESSED} set for key presses, -1 if there are no more events
+     */
+    int pollEvent()
+    {
+        return events.poll();
     }
 
     /**
      * Clears the internal keyboard buffer.
+     *
+     * Must only be invoked by the emulation thread.
      */
     public void reset()
     {
-        pressedKeys.clear();
+        keyMask = 0;
+        while ( events.poll() != -1 ) {
+        }
     }
 
     protected abstract EmulatorDriver getDriver();
-}
\ No newline at end of file
+}
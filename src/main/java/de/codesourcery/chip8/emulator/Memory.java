@@ -30,8 +30,44 @@ import java.util.Arrays;
  */
 public class Memory
 {
+    /**
+     * Gets notified whenever the contents of a {@link Memory} change.
+     *
+     * Listeners are invoked on the thread that performed the write, so
+     * implementations need to be fast.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     * @see #addWriteListener(IWriteListener)
+     */
+    @FunctionalInterface
+    public interface IWriteListener
+    {
+        /**
+         * Invoked after a range of memory locations got written.
+         *
+         * @param address first address that was written
+         * @param count number of bytes written, never crosses the end of memory
+         */
+        void memoryWritten(int address,int count);
+    }
+
+    /**
+     * Writes are tracked per block of <code>1 &lt;&lt; WRITE_BLOCK_SHIFT</code> bytes.
+     *
+     * @see #getWriteStamp(int, int)
+     */
+    public static final int WRITE_BLOCK_SHIFT = 5;
+
     private final byte[] data;
 
+    // number of writes per block of memory
+    private final int[] blockWrites;
+
+    private IWriteListener[] writeListeners = new IWriteListener[0];
+
+    // incremented on every write
+    private long generation;
+
     /**
      * Create instance.
      *
@@ -40,6 +76,7 @@ public class Memory
     public Memory(int sizeInBytes)
     {
         this.data = new byte[ sizeInBytes ];
+        this.blockWrites = new int[ ( sizeInBytes + (1 << WRITE_BLOCK_SHIFT) - 1 ) >>> WRITE_BLOCK_SHIFT ];
     }
 
     /**
@@ -50,6 +87,40 @@ public class Memory
         return data.length;
     }
 
+    /**
+     * Returns this memory's generation.
+     *
+     * The generation changes whenever the contents of this memory get written to.
+     *
+     * @return
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Returns a value that changes whenever a memory location in the given range
+     * gets written to.
+     *
+     * The value is derived from per-block write counters, so writes to locations
+     * close to the range (sharing a block with it) change it as well. Only stamps for the
+     * very same range may be compared with each other.
+     *
+     * @param address
+     * @param count number of bytes, at least one
+     * @return
+     */
+    public int getWriteStamp(int address,int count)
+    {
+        final int first = address >>> WRITE_BLOCK_SHIFT;
+        final int last = Math.min( (address + count - 1) >>> WRITE_BLOCK_SHIFT, blockWrites.length - 1 );
+        int stamp = blockWrites[ first ];
+        for ( int block = first + 1 ; block <= last ; block++ ) {
+            stamp += blockWrites[ block ];
+        }
+        return stamp;
+    }
+
     /**
      * Read a byte.
      *
@@ -110,6 +181,9 @@ public class Memory
         {
             final byte[] input = in.readAllBytes();
             System.arraycopy( input , 0 ,data, address, input.length);
+            generation++;
+            written( address, input.length );
+            notifyWriteListeners( address, input.length );
             return input.length;
         }
     }
@@ -122,6 +196,11 @@ public class Memory
      */
     public void write(int address,int value) {
         this.data[address] = (byte) value;
+        blockWrites[ address >>> WRITE_BLOCK_SHIFT ]++;
+        generation++;
+        if ( writeListeners.length != 0 ) {
+            notifyWriteListeners( address, 1 );
+        }
     }
 
     /**
@@ -136,6 +215,24 @@ public class Memory
         {
             this.data[writePtr] = data[readPtr];
         }
+        generation++;
+        if ( data.length > 0 )
+        {
+            final int start = startAddress % this.data.length;
+            final int count = Math.min( data.length, this.data.length );
+            final int firstChunk = Math.min( count, this.data.length - start );
+            written( start, firstChunk );
+            if ( firstChunk < count ) {
+                written( 0, count - firstChunk );
+            }
+            if ( writeListeners.length != 0 )
+            {
+                notifyWriteListeners( start, firstChunk );
+                if ( firstChunk < count ) {
+                    notifyWriteListeners( 0, count - firstChunk );
+                }
+            }
+        }
     }
 
     /**
@@ -146,6 +243,66 @@ public class Memory
     public void reset()
     {
         Arrays.fill(data,(byte) 0);
+        generation++;
+        written( 0, data.length );
+        notifyWriteListeners( 0, data.length );
+    }
+
+    /**
+     * Register a listener that gets notified about every write to this memory.
+     *
+     * @param listener
+     * @see #removeWriteListener(IWriteListener)
+     */
+    public void addWriteListener(IWriteListener listener)
+    {
+        Validate.notNull(listener, "listener must not be null");
+        final IWriteListener[] copy = Arrays.copyOf( writeListeners, writeListeners.length + 1 );
+        copy[ copy.length - 1 ] = listener;
+        writeListeners = copy;
+    }
+
+    /**
+     * Unregister a write listener.
+     *
+     * If the listener is not registered, nothing (bad) happens.
+     *
+     * @param listener
+     */
+    public void removeWriteListener(IWriteListener listener)
+    {
+        Validate.notNull(listener, "listener must not be null");
+        for (int i = 0; i < writeListeners.length; i++)
+        {
+            if ( writeListeners[i] == listener )
+            {
+                final IWriteListener[] copy = new IWriteListener[ writeListeners.length - 1 ];
+                System.arraycopy( writeListeners, 0, copy, 0, i );
+                System.arraycopy( writeListeners, i + 1, copy, i, copy.length - i );
+                writeListeners = copy;
+                return;
+            }
+        }
+    }
+
+    private void written(int address,int count)
+    {
+        if ( count > 0 )
+        {
+            final int last = (address + count - 1) >>> WRITE_BLOCK_SHIFT;
+            for ( int block = address >>> WRITE_BLOCK_SHIFT ; block <= last ; block++ ) {
+                blockWrites[ block ]++;
+            }
+        }
+    }
+
+    private void notifyWriteListeners(int address,int count)
+    {
+        final IWriteListener[] listeners = this.writeListeners;
+        for (int i = 0, len = listeners.length; i < len; i++)
+        {
+            listeners[i].memoryWritten( address, count );
+        }
     }
 
     private static String hexWord(int value) {
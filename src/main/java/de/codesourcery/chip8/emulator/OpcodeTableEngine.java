@@ -0,0 +1,389 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Table-driven interpreter.
+ *
+ * Each of the 65536 possible opcodes is mapped to a handler that already has all
+ * operands extracted, so executing an instruction is just a table lookup followed by
+ * a method invocation. Opcodes that are not valid CHIP-8 instructions are mapped
+ * to handlers that report the illegal instruction, so no extra checks are needed at runtime.
+ *
+ * Handlers are stateless and tables get built once per {@link Quirks quirk configuration},
+ * they're shared by all engine instances.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class OpcodeTableEngine implements IExecutionEngine
+{
+    private static final ConcurrentMap<Quirks,IOpcodeHandler[]> TABLES = new ConcurrentHashMap<>();
+
+    private Quirks tableQuirks;
+    private IOpcodeHandler[] table;
+
+    /**
+     * Executes one specific opcode.
+     *
+     * Handlers are invoked with the emulator's PC already pointing
+     * to the next instruction.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    @FunctionalInterface
+    interface IOpcodeHandler
+    {
+        void execute(Emulator emulator,CommandQueue cmdQueue);
+    }
+
+    @Override
+    public int execute(Emulator emulator, CommandQueue cmdQueue, int maxInstructions)
+    {
+        if ( emulator.getQuirks() != tableQuirks )
+        {
+            tableQuirks = emulator.getQuirks();
+            table = getTable( tableQuirks );
+        }
+        final IOpcodeHandler[] table = this.table;
+        final Memory memory = emulator.memory;
+        int executed = 0;
+        do
+        {
+            final int pc = emulator.pc;
+            final int opcode = memory.read( pc ) << 8 | memory.read( pc + 1 );
+            emulator.pc = pc + 2;
+            table[ opcode ].execute( emulator, cmdQueue );
+            executed++;
+        } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+        return executed;
+    }
+
+    /**
+     * Returns the opcode table for a given quirk configuration, creating it if necessary.
+     *
+     * @param quirks
+     * @return
+     */
+    static IOpcodeHandler[] getTable(Quirks quirks)
+    {
+        return TABLES.computeIfAbsent( quirks, OpcodeTableEngine::createTable );
+    }
+
+    private static IOpcodeHandler[] createTable(Quirks quirks)
+    {
+        final IOpcodeHandler[] result = new IOpcodeHandler[ 65536 ];
+        for ( int opcode = 0 ; opcode < result.length ; opcode++ )
+        {
+            final IOpcodeHandler handler = createHandler( opcode, quirks );
+            if ( handler != null ) {
+                result[opcode] = handler;
+            } else {
+                final int cmd = opcode >>> 8;
+                final int data = opcode & 0xff;
+                result[opcode] = (emulator, cmdQueue) -> emulator.illegalInstruction( cmd, data );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the handler for an opcode.
+     *
+     * @param opcode
+     * @param quirks
+     * @return handler or <code>NULL</code> if the opcode is not a valid instruction
+     */
+    private static IOpcodeHandler createHandler(int opcode,Quirks quirks)
+    {
+        final int x = (opcode >>> 8) & 0x0f;
+        final int y = (opcode >>> 4) & 0x0f;
+        final int n = opcode & 0x0f;
+        final int nn = opcode & 0xff;
+        final int nnn = opcode & 0xfff;
+
+        switch( opcode >>> 12 )
+        {
+            case 0x0:
+                if ( opcode == 0x00e0 ) {
+                    return (emu, q) -> emu.screen.clear();
+                }
+                if ( opcode == 0x00ee ) {
+                    return (emu, q) -> emu.pc = emu.stack[ --emu.sp ];
+                }
+                if ( (opcode & 0xfff0) == 0x00c0 || opcode >= 0x00fb && opcode <= 0x00ff ) {
+                    return (emu, q) -> emu.executeSuperChip( nn );
+                }
+                return null;
+            case 0x1:
+                return (emu, q) -> emu.pc = nnn;
+            case 0x2:
+                return (emu, q) ->
+                {
+                    emu.stack[ emu.sp++ ] = emu.pc;
+                    emu.pc = nnn;
+                };
+            case 0x3:
+                return (emu, q) ->
+                {
+                    if ( emu.register[x] == nn ) {
+                        emu.pc += 2;
+                    }
+                };
+            case 0x4:
+                return (emu, q) ->
+                {
+                    if ( emu.register[x] != nn ) {
+                        emu.pc += 2;
+                    }
+                };
+            case 0x5:
+                return (emu, q) ->
+                {
+                    if ( emu.register[x] == emu.register[y] ) {
+                        emu.pc += 2;
+                    }
+                };
+            case 0x6:
+                return (emu, q) -> emu.register[x] = nn;
+            case 0x7:
+                return (emu, q) -> emu.register[x] = (emu.register[x] + nn) & 0xff;
+            case 0x8:
+                return createALUHandler( x, y, n, quirks );
+            case 0x9:
+                return (emu, q) ->
+                {
+                    if ( emu.register[x] != emu.register[y] ) {
+                        emu.pc += 2;
+                    }
+                };
+            case 0xa:
+                return (emu, q) -> emu.index = nnn;
+            case 0xb:
+                if ( quirks.jumpUsesVX ) {
+                    return (emu, q) -> emu.pc = (emu.register[x] + nnn) & 0xfff;
+                }
+                return (emu, q) -> emu.pc = (emu.register[0] + nnn) & 0xfff;
+            case 0xc:
+                return (emu, q) -> emu.register[x] = emu.randomByte() & nn;
+            case 0xd:
+                return (emu, q) -> emu.register[0x0f] = emu.screen.drawSprite( emu.register[x], emu.register[y], n, emu.index ) ? 1 : 0;
+            case 0xe:
+                if ( nn == 0x9e )
+                {
+                    return (emu, q) ->
+                    {
+                        if ( emu.keyboard.isKeyPressed( emu.register[x] ) ) {
+                            emu.pc += 2;
+                        }
+                    };
+                }
+                if ( nn == 0xa1 )
+                {
+                    return (emu, q) ->
+                    {
+                        if ( ! emu.keyboard.isKeyPressed( emu.register[x] ) ) {
+                            emu.pc += 2;
+                        }
+                    };
+                }
+                return null;
+            case 0xf:
+                return createMiscHandler( x, nn, quirks );
+            default:
+                throw new RuntimeException("Unreachable code reached");
+        }
+    }
+
+    private static IOpcodeHandler createALUHandler(int x,int y,int n,Quirks quirks)
+    {
+        switch( n )
+        {
+            case 0x00:
+                return (emu, q) -> emu.register[x] = emu.register[y];
+            case 0x01:
+                if ( quirks.logicResetsVF ) {
+                    return (emu, q) ->
+                    {
+                        emu.register[x] |= emu.register[y];
+                        emu.register[0x0f] = 0;
+                    };
+                }
+                return (emu, q) -> emu.register[x] |= emu.register[y];
+            case 0x02:
+                if ( quirks.logicResetsVF ) {
+                    return (emu, q) ->
+                    {
+                        emu.register[x] &= emu.register[y];
+                        emu.register[0x0f] = 0;
+                    };
+                }
+                return (emu, q) -> emu.register[x] &= emu.register[y];
+            case 0x03:
+                if ( quirks.logicResetsVF ) {
+                    return (emu, q) ->
+                    {
+                        emu.register[x] = (emu.register[x] ^ emu.register[y]) & 0xff;
+                        emu.register[0x0f] = 0;
+                    };
+                }
+                return (emu, q) -> emu.register[x] = (emu.register[x] ^ emu.register[y]) & 0xff;
+            case 0x04:
+                return (emu, q) ->
+                {
+                    final int sum = emu.register[x] + emu.register[y];
+                    emu.register[0x0f] = (sum & 0xffffff00) != 0 ? 1 : 0;
+                    emu.register[x] = sum & 0xff;
+                };
+            case 0x05:
+                return (emu, q) ->
+                {
+                    final int[] v = emu.register;
+                    v[0x0f] = v[y] > v[x] ? 0 : 1;
+                    v[x] = (v[x] - v[y]) & 0xff;
+                };
+            case 0x06:
+                if ( quirks.shiftUsesVY )
+                {
+                    return (emu, q) ->
+                    {
+                        final int[] v = emu.register;
+                        v[0x0f] = v[y] & 1;
+                        v[y] >>>= 1;
+                        v[x] = v[y];
+                    };
+                }
+                return (emu, q) ->
+                {
+                    final int value = emu.register[x];
+                    emu.register[0x0f] = value & 1;
+                    emu.register[x] = value >>> 1;
+                };
+            case 0x07:
+                return (emu, q) ->
+                {
+                    final int[] v = emu.register;
+                    v[0x0f] = v[x] > v[y] ? 0 : 1;
+                    v[x] = (v[y] - v[x]) & 0xff;
+                };
+            case 0x0e:
+                if ( quirks.shiftUsesVY )
+                {
+                    return (emu, q) ->
+                    {
+                        final int[] v = emu.register;
+                        v[0x0f] = (v[y] & 0b1000_0000) >>> 7;
+                        v[y] = (v[y] << 1) & 0xff;
+                        v[x] = v[y];
+                    };
+                }
+                return (emu, q) ->
+                {
+                    final int value = emu.register[x];
+                    emu.register[0x0f] = (value & 0b1000_0000) >>> 7;
+                    emu.register[x] = (value << 1) & 0xff;
+                };
+            default:
+                return null;
+        }
+    }
+
+    private static IOpcodeHandler createMiscHandler(int x,int nn,Quirks quirks)
+    {
+        switch( nn )
+        {
+            case 0x07:
+                return (emu, q) -> emu.register[x] = emu.delayTimer.value() & 0xff;
+            case 0x0a:
+                return (emu, q) ->
+                {
+                    emu.keyDestReg = x;
+                    q.set( EmulatorDriver.FLAG_WAIT_KEY_PRESS );
+                };
+            case 0x15:
+                return (emu, q) ->
+                {
+                    if ( emu.register[x] > 0 ) {
+                        q.set( EmulatorDriver.FLAG_WAIT_DELAY );
+                    }
+                    emu.delayTimer.setValue( emu.register[x] );
+                };
+            case 0x18:
+                return (emu, q) ->
+                {
+                    emu.soundTimer.setValue( emu.register[x] );
+                    emu.screen.setBeep( emu.register[x] > 0 );
+                };
+            case 0x1e:
+                return (emu, q) -> emu.index = (emu.index + emu.register[x]) & 0xfff;
+            case 0x29:
+                return (emu, q) -> emu.index = emu.screen.getGlyphAddr( emu.register[x] );
+            case 0x30:
+                return (emu, q) -> emu.index = emu.screen.getLargeGlyphAddr( emu.register[x] );
+            case 0x33:
+                return (emu, q) ->
+                {
+                    int value = emu.register[x];
+                    final int v0 = value / 100;
+                    value -= v0 * 100;
+                    final int v1 = value / 10;
+                    value -= v1 * 10;
+                    int ptr = emu.index;
+                    emu.memory.write( ptr, v0 );
+                    ptr = (ptr + 1) & 0xfff;
+                    emu.memory.write( ptr, v1 );
+                    ptr = (ptr + 1) & 0xfff;
+                    emu.memory.write( ptr, value );
+                };
+            case 0x55:
+                final boolean incrementOnStore = quirks.loadStoreIncrementsI;
+                return (emu, q) ->
+                {
+                    int ptr = emu.index;
+                    for ( int i = 0 ; i <= x ; i++ )
+                    {
+                        emu.memory.write( ptr, emu.register[i] );
+                        ptr = (ptr + 1) & 0xfff;
+                    }
+                    if ( incrementOnStore ) {
+                        emu.index = ptr;
+                    }
+                };
+            case 0x65:
+                final boolean incrementOnLoad = quirks.loadStoreIncrementsI;
+                return (emu, q) ->
+                {
+                    int ptr = emu.index;
+                    for ( int i = 0 ; i <= x ; i++ )
+                    {
+                        emu.register[i] = emu.memory.read( ptr );
+                        ptr = (ptr + 1) & 0xfff;
+                    }
+                    if ( incrementOnLoad ) {
+                        emu.index = ptr;
+                    }
+                };
+            case 0x75:
+                return (emu, q) -> System.arraycopy( emu.register, 0, emu.rplFlags, 0, (x & 7) + 1 );
+            case 0x85:
+                return (emu, q) -> System.arraycopy( emu.rplFlags, 0, emu.register, 0, (x & 7) + 1 );
+            default:
+                return null;
+        }
+    }
+}
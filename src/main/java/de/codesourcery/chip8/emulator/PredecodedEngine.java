@@ -0,0 +1,448 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.Arrays;
+
+/**
+ * Interpreter that works on a predecoded shadow copy of the emulator's memory.
+ *
+ * For every memory address, this engine lazily stores a packed <code>int</code> holding
+ * the id of the handler to invoke plus the already extracted operands. Writes to memory
+ * invalidate the affected entries so they get decoded again the next time they're executed.
+ *
+ * Some instruction pairs that are very common in CHIP-8 programs are fused into a single
+ * superinstruction:
+ * <ul>
+ *     <li><code>ANNN</code> followed by <code>DXYN</code> (load sprite address and draw it)</li>
+ *     <li><code>6XNN</code> followed by <code>6YNN</code> (load two registers with constants)</li>
+ * </ul>
+ * Superinstructions still count as two executed instructions.
+ *
+ * Only the {@link Quirks#DEFAULT default} behaviour is implemented here, instructions affected by
+ * other {@link Quirks quirks} are handed to the interpreter.
+ *
+ * Packed instruction layout:
+ * <pre>
+ * bits  0- 7: handler id (0 = not decoded yet)
+ * bits  8-11: register X
+ * bits 12-15: register Y
+ * bits 16-31: operand(s), either NNN / NN / N or handler-specific
+ * </pre>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class PredecodedEngine implements IExecutionEngine, Memory.IWriteListener
+{
+    private static final int UNDECODED = 0;
+    private static final int CLS = 1;
+    private static final int RET = 2;
+    private static final int JP = 3;
+    private static final int CALL = 4;
+    private static final int SE_VX_NN = 5;
+    private static final int SNE_VX_NN = 6;
+    private static final int SE_VX_VY = 7;
+    private static final int LD_VX_NN = 8;
+    private static final int ADD_VX_NN = 9;
+    private static final int LD_VX_VY = 10;
+    private static final int OR = 11;
+    private static final int AND = 12;
+    private static final int XOR = 13;
+    private static final int ADD_VX_VY = 14;
+    private static final int SUB = 15;
+    private static final int SHR = 16;
+    private static final int SUBN = 17;
+    private static final int SHL = 18;
+    private static final int SNE_VX_VY = 19;
+    private static final int LD_I = 20;
+    private static final int JP_V0 = 21;
+    private static final int RND = 22;
+    private static final int DRW = 23;
+    private static final int SKP = 24;
+    private static final int SKNP = 25;
+    private static final int LD_VX_DT = 26;
+    private static final int LD_VX_K = 27;
+    private static final int LD_DT_VX = 28;
+    private static final int LD_ST_VX = 29;
+    private static final int ADD_I_VX = 30;
+    private static final int LD_F_VX = 31;
+    private static final int LD_B_VX = 32;
+    private static final int LD_MEM_VX = 33;
+    private static final int LD_VX_MEM = 34;
+    // instruction is illegal or needs to be handled by the interpreter (quirks)
+    private static final int INTERPRET = 35;
+    // superinstructions
+    private static final int FUSED_LD_I_DRW = 36;
+    private static final int FUSED_LD_LD = 37;
+
+    private Emulator emulator;
+    private int[] decoded = new int[0];
+
+    @Override
+    public void attach(Emulator emulator)
+    {
+        this.emulator = emulator;
+        this.decoded = new int[ emulator.memory.getSizeInBytes() ];
+        emulator.memory.addWriteListener( this );
+    }
+
+    @Override
+    public void detach(Emulator emulator)
+    {
+        emulator.memory.removeWriteListener( this );
+        this.emulator = null;
+        this.decoded = new int[0];
+    }
+
+    @Override
+    public void reset()
+    {
+        Arrays.fill( decoded, UNDECODED );
+    }
+
+    @Override
+    public void memoryWritten(int address, int count)
+    {
+        // an entry covers up to 4 bytes (superinstructions)
+        Arrays.fill( decoded, Math.max( 0, address - 3 ), Math.min( decoded.length, address + count ), UNDECODED );
+    }
+
+    @Override
+    public int execute(Emulator emulator, CommandQueue cmdQueue, int maxInstructions)
+    {
+        final int[] decoded = this.decoded;
+        final int[] v = emulator.register;
+        int pc = emulator.pc;
+        int executed = 0;
+        try
+        {
+            do
+            {
+                int insn = decoded[ pc ];
+                if ( insn == UNDECODED ) {
+                    insn = decoded[ pc ] = decode( emulator.memory, pc, emulator.getQuirks() );
+                }
+                if ( (insn & 0xff) >= FUSED_LD_I_DRW && maxInstructions - executed < 2 ) {
+                    // not enough instructions left to execute a superinstruction
+                    insn = decodeSingle( emulator.memory, pc, emulator.getQuirks() );
+                }
+
+                final int x = (insn >>> 8) & 0x0f;
+                final int y = (insn >>> 12) & 0x0f;
+                final int operand = insn >>> 16;
+
+                switch( insn & 0xff )
+                {
+                    case CLS:
+                        emulator.screen.clear();
+                        pc += 2;
+                        break;
+                    case RET:
+                        pc = emulator.stack[ --emulator.sp ];
+                        break;
+                    case JP:
+                        pc = operand;
+                        break;
+                    case CALL:
+                        emulator.stack[ emulator.sp++ ] = pc + 2;
+                        pc = operand;
+                        break;
+                    case SE_VX_NN:
+                        pc += v[x] == operand ? 4 : 2;
+                        break;
+                    case SNE_VX_NN:
+                        pc += v[x] != operand ? 4 : 2;
+                        break;
+                    case SE_VX_VY:
+                        pc += v[x] == v[y] ? 4 : 2;
+                        break;
+                    case LD_VX_NN:
+                        v[x] = operand;
+                        pc += 2;
+                        break;
+                    case ADD_VX_NN:
+                        v[x] = (v[x] + operand) & 0xff;
+                        pc += 2;
+                        break;
+                    case LD_VX_VY:
+                        v[x] = v[y];
+                        pc += 2;
+                        break;
+                    case OR:
+                        v[x] |= v[y];
+                        pc += 2;
+                        break;
+                    case AND:
+                        v[x] &= v[y];
+                        pc += 2;
+                        break;
+                    case XOR:
+                        v[x] = (v[x] ^ v[y]) & 0xff;
+                        pc += 2;
+                        break;
+                    case ADD_VX_VY:
+                        final int sum = v[x] + v[y];
+                        v[0x0f] = (sum & 0xffffff00) != 0 ? 1 : 0;
+                        v[x] = sum & 0xff;
+                        pc += 2;
+                        break;
+                    case SUB:
+                        v[0x0f] = v[y] > v[x] ? 0 : 1;
+                        v[x] = (v[x] - v[y]) & 0xff;
+                        pc += 2;
+                        break;
+                    case SHR:
+                        v[0x0f] = v[y] & 1;
+                        v[y] >>>= 1;
+                        v[x] = v[y];
+                        pc += 2;
+                        break;
+                    case SUBN:
+                        v[0x0f] = v[x] > v[y] ? 0 : 1;
+                        v[x] = (v[y] - v[x]) & 0xff;
+                        pc += 2;
+                        break;
+                    case SHL:
+                        v[0x0f] = (v[y] & 0b1000_0000) >>> 7;
+                        v[y] = (v[y] << 1) & 0xff;
+                        v[x] = v[y];
+                        pc += 2;
+                        break;
+                    case SNE_VX_VY:
+                        pc += v[x] != v[y] ? 4 : 2;
+                        break;
+                    case LD_I:
+                        emulator.index = operand;
+                        pc += 2;
+                        break;
+                    case JP_V0:
+                        pc = (v[0] + operand) & 0xfff;
+                        break;
+                    case RND:
+                        v[x] = emulator.randomByte() & operand;
+                        pc += 2;
+                        break;
+                    case DRW:
+                        v[0x0f] = emulator.screen.drawSprite( v[x], v[y], operand, emulator.index ) ? 1 : 0;
+                        pc += 2;
+                        break;
+                    case SKP:
+                        pc += emulator.keyboard.isKeyPressed( v[x] ) ? 4 : 2;
+                        break;
+                    case SKNP:
+                        pc += emulator.keyboard.isKeyPressed( v[x] ) ? 2 : 4;
+                        break;
+                    case LD_VX_DT:
+                        v[x] = emulator.delayTimer.value() & 0xff;
+                        pc += 2;
+                        break;
+                    case LD_VX_K:
+                        emulator.keyDestReg = x;
+                        cmdQueue.set( EmulatorDriver.FLAG_WAIT_KEY_PRESS );
+                        pc += 2;
+                        break;
+                    case LD_DT_VX:
+                        if ( v[x] > 0 ) {
+                            cmdQueue.set( EmulatorDriver.FLAG_WAIT_DELAY );
+                        }
+                        emulator.delayTimer.setValue( v[x] );
+                        pc += 2;
+                        break;
+                    case LD_ST_VX:
+                        emulator.soundTimer.setValue( v[x] );
+                        emulator.screen.setBeep( v[x] > 0 );
+                        pc += 2;
+                        break;
+                    case ADD_I_VX:
+                        emulator.index = (emulator.index + v[x]) & 0xfff;
+                        pc += 2;
+                        break;
+                    case LD_F_VX:
+                        emulator.index = emulator.screen.getGlyphAddr( v[x] );
+                        pc += 2;
+                        break;
+                    case LD_B_VX:
+                    {
+                        int value = v[x];
+                        final int v0 = value / 100;
+                        value -= v0 * 100;
+                        final int v1 = value / 10;
+                        value -= v1 * 10;
+                        int ptr = emulator.index;
+                        emulator.memory.write( ptr, v0 );
+                        ptr = (ptr + 1) & 0xfff;
+                        emulator.memory.write( ptr, v1 );
+                        ptr = (ptr + 1) & 0xfff;
+                        emulator.memory.write( ptr, value );
+                        pc += 2;
+                        break;
+                    }
+                    case LD_MEM_VX:
+                    {
+                        int ptr = emulator.index;
+                        for ( int i = 0 ; i <= x ; i++ )
+                        {
+                            emulator.memory.write( ptr, v[i] );
+                            ptr = (ptr + 1) & 0xfff;
+                        }
+                        emulator.index = ptr;
+                        pc += 2;
+                        break;
+                    }
+                    case LD_VX_MEM:
+                    {
+                        int ptr = emulator.index;
+                        for ( int i = 0 ; i <= x ; i++ )
+                        {
+                            v[i] = emulator.memory.read( ptr );
+                            ptr = (ptr + 1) & 0xfff;
+                        }
+                        emulator.index = ptr;
+                        pc += 2;
+                        break;
+                    }
+                    case FUSED_LD_I_DRW:
+                        emulator.index = operand & 0xfff;
+                        v[0x0f] = emulator.screen.drawSprite( v[x], v[y], operand >>> 12, emulator.index ) ? 1 : 0;
+                        pc += 4;
+                        executed++;
+                        break;
+                    case FUSED_LD_LD:
+                        v[x] = operand & 0xff;
+                        v[y] = operand >>> 8;
+                        pc += 4;
+                        executed++;
+                        break;
+                    default:
+                        // let the interpreter deal with it
+                        emulator.pc = pc;
+                        try {
+                            emulator.executeOneInstruction( cmdQueue );
+                        } finally {
+                            pc = emulator.pc;
+                        }
+                }
+                executed++;
+            } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+        }
+        finally
+        {
+            emulator.pc = pc;
+        }
+        return executed;
+    }
+
+    private static int decode(Memory memory,int pc,Quirks quirks)
+    {
+        final int insn = decodeSingle( memory, pc, quirks );
+        if ( pc + 3 >= memory.getSizeInBytes() ) {
+            return insn;
+        }
+        switch( insn & 0xff )
+        {
+            case LD_I:
+                final int next = decodeSingle( memory, pc + 2, quirks );
+                if ( (next & 0xff) == DRW ) {
+                    // X,Y and N from DXYN, NNN from ANNN
+                    return FUSED_LD_I_DRW | (next & 0xff00) | (insn >>> 16) << 16 | (next >>> 16) << 28;
+                }
+                return insn;
+            case LD_VX_NN:
+                final int next2 = decodeSingle( memory, pc + 2, quirks );
+                if ( (next2 & 0xff) == LD_VX_NN ) {
+                    // X and NN from the first instruction, Y and NN from the second one
+                    return FUSED_LD_LD | (insn & 0x0f00) | ((next2 >>> 8) & 0x0f) << 12 | (insn >>> 16) << 16 | (next2 >>> 16) << 24;
+                }
+                return insn;
+            default:
+                return insn;
+        }
+    }
+
+    private static int decodeSingle(Memory memory,int pc,Quirks quirks)
+    {
+        final int opcode = memory.read( pc ) << 8 | memory.read( pc + 1 );
+        if ( quirks.affects( opcode ) ) {
+            return INTERPRET;
+        }
+        final int x = (opcode >>> 8) & 0x0f;
+        final int y = (opcode >>> 4) & 0x0f;
+        final int n = opcode & 0x0f;
+        final int nn = opcode & 0xff;
+        final int nnn = opcode & 0xfff;
+        switch( opcode & 0xf000 )
+        {
+            case 0x0000:
+                if ( opcode == 0x00e0 ) {
+                    return CLS;
+                }
+                return opcode == 0x00ee ? RET : INTERPRET;
+            case 0x1000: return pack( JP, 0, 0, nnn );
+            case 0x2000: return pack( CALL, 0, 0, nnn );
+            case 0x3000: return pack( SE_VX_NN, x, 0, nn );
+            case 0x4000: return pack( SNE_VX_NN, x, 0, nn );
+            case 0x5000: return pack( SE_VX_VY, x, y, 0 );
+            case 0x6000: return pack( LD_VX_NN, x, 0, nn );
+            case 0x7000: return pack( ADD_VX_NN, x, 0, nn );
+            case 0x8000:
+                switch( n )
+                {
+                    case 0x00: return pack( LD_VX_VY, x, y, 0 );
+                    case 0x01: return pack( OR, x, y, 0 );
+                    case 0x02: return pack( AND, x, y, 0 );
+                    case 0x03: return pack( XOR, x, y, 0 );
+                    case 0x04: return pack( ADD_VX_VY, x, y, 0 );
+                    case 0x05: return pack( SUB, x, y, 0 );
+                    case 0x06: return pack( SHR, x, y, 0 );
+                    case 0x07: return pack( SUBN, x, y, 0 );
+                    case 0x0e: return pack( SHL, x, y, 0 );
+                    default: return INTERPRET;
+                }
+            case 0x9000: return pack( SNE_VX_VY, x, y, 0 );
+            case 0xa000: return pack( LD_I, 0, 0, nnn );
+            case 0xb000: return pack( JP_V0, 0, 0, nnn );
+            case 0xc000: return pack( RND, x, 0, nn );
+            case 0xd000: return pack( DRW, x, y, n );
+            case 0xe000:
+                switch( nn )
+                {
+                    case 0x9e: return pack( SKP, x, 0, 0 );
+                    case 0xa1: return pack( SKNP, x, 0, 0 );
+                    default: return INTERPRET;
+                }
+            case 0xf000:
+                switch( nn )
+                {
+                    case 0x07: return pack( LD_VX_DT, x, 0, 0 );
+                    case 0x0a: return pack( LD_VX_K, x, 0, 0 );
+                    case 0x15: return pack( LD_DT_VX, x, 0, 0 );
+                    case 0x18: return pack( LD_ST_VX, x, 0, 0 );
+                    case 0x1e: return pack( ADD_I_VX, x, 0, 0 );
+                    case 0x29: return pack( LD_F_VX, x, 0, 0 );
+                    case 0x33: return pack( LD_B_VX, x, 0, 0 );
+                    case 0x55: return pack( LD_MEM_VX, x, 0, 0 );
+                    case 0x65: return pack( LD_VX_MEM, x, 0, 0 );
+                    default: return INTERPRET;
+                }
+            default:
+                return INTERPRET;
+        }
+    }
+
+    private static int pack(int handler,int x,int y,int operand) {
+        return handler | x << 8 | y << 12 | operand << 16;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.Objects;
+
+/**
+ * Immutable set of behaviour variations ("quirks") found in different CHIP-8 implementations.
+ *
+ * The {@link #DEFAULT default} configuration matches what this emulator has always been doing.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see Emulator#setQuirks(Quirks)
+ */
+public final class Quirks
+{
+    /**
+     * The emulator's default behaviour.
+     */
+    public static final Quirks DEFAULT = new Quirks( true, true, false, false );
+
+    /**
+     * <code>8XY6</code> / <code>8XYE</code> shift VY and store the result in VX (COSMAC VIP) instead
+     * of shifting VX in-place (CHIP-48/SUPER-CHIP).
+     */
+    public final boolean shiftUsesVY;
+
+    /**
+     * <code>FX55</code> / <code>FX65</code> leave I pointing to the location after the last register
+     * instead of leaving it unchanged.
+     */
+    public final boolean loadStoreIncrementsI;
+
+    /**
+     * <code>BXNN</code> jumps to XNN+VX instead of NNN+V0.
+     */
+    public final boolean jumpUsesVX;
+
+    /**
+     * <code>8XY1</code>, <code>8XY2</code> and <code>8XY3</code> set VF to zero.
+     */
+    public final boolean logicResetsVF;
+
+    public Quirks(boolean shiftUsesVY, boolean loadStoreIncrementsI, boolean jumpUsesVX, boolean logicResetsVF)
+    {
+        this.shiftUsesVY = shiftUsesVY;
+        this.loadStoreIncrementsI = loadStoreIncrementsI;
+        this.jumpUsesVX = jumpUsesVX;
+        this.logicResetsVF = logicResetsVF;
+    }
+
+    public Quirks withShiftUsesVY(boolean value) {
+        return new Quirks( value, loadStoreIncrementsI, jumpUsesVX, logicResetsVF );
+    }
+
+    public Quirks withLoadStoreIncrementsI(boolean value) {
+        return new Quirks( shiftUsesVY, value, jumpUsesVX, logicResetsVF );
+    }
+
+    public Quirks withJumpUsesVX(boolean value) {
+        return new Quirks( shiftUsesVY, loadStoreIncrementsI, value, logicResetsVF );
+    }
+
+    public Quirks withLogicResetsVF(boolean value) {
+        return new Quirks( shiftUsesVY, loadStoreIncrementsI, jumpUsesVX, value );
+    }
+
+    /**
+     * Returns whether an opcode behaves differently with this configuration than
+     * with the {@link #DEFAULT default} configuration.
+     *
+     * Execution engines that only implement the default behaviour use this
+     * to decide which instructions need to be handed to the interpreter.
+     *
+     * @param opcode
+     * @return
+     */
+    public boolean affects(int opcode)
+    {
+        switch( opcode & 0xf000 )
+        {
+            case 0x8000:
+                switch( opcode & 0x0f )
+                {
+                    case 0x01:
+                    case 0x02:
+                    case 0x03:
+                        return logicResetsVF != DEFAULT.logicResetsVF;
+                    case 0x06:
+                    case 0x0e:
+                        return shiftUsesVY != DEFAULT.shiftUsesVY;
+                    default:
+                        return false;
+                }
+            case 0xb000:
+                return jumpUsesVX != DEFAULT.jumpUsesVX;
+            case 0xf000:
+                final int nn = opcode & 0xff;
+                return (nn == 0x55 || nn == 0x65) && loadStoreIncrementsI != DEFAULT.loadStoreIncrementsI;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if ( this == o ) {
+            return true;
+        }
+        if ( o == null || getClass() != o.getClass() ) {
+            return false;
+        }
+        final Quirks other = (Quirks) o;
+        return shiftUsesVY == other.shiftUsesVY &&
+                   loadStoreIncrementsI == other.loadStoreIncrementsI &&
+                   jumpUsesVX == other.jumpUsesVX &&
+                   logicResetsVF == other.logicResetsVF;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash( shiftUsesVY, loadStoreIncrementsI, jumpUsesVX, logicResetsVF );
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Quirks[shiftUsesVY=" + shiftUsesVY + ", loadStoreIncrementsI=" + loadStoreIncrementsI +
+                   ", jumpUsesVX=" + jumpUsesVX + ", logicResetsVF=" + logicResetsVF + "]";
+    }
+}
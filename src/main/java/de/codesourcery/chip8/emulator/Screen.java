@@ -17,39 +17,80 @@ package de.codesourcery.chip8.emulator;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * The emulation's 64x32-pixel monochrome display.
+ * The emulation's monochrome display, either 64x32 pixels or 128x64 pixels
+ * when the SUPER-CHIP extended mode is enabled.
+ *
+ * Each row of pixels is stored as a single <code>long</code>, the leftmost
+ * pixel being the most significant bit. Drawing a sprite row thus boils down
+ * to a rotate, an XOR and an AND (for collision detection) with horizontal
+ * wrap-around for free. In extended mode each row takes two longs (left half first)
+ * and sprites are rotated as 128-bit values, so a sprite row never
+ * touches more than two words regardless of the resolution.
  *
  * @author tobias.gierke@code-sourcery.de
  */
 public class Screen
 {
     private static final int GLYPH_MEM_START = 0x000;
+    private static final int LARGE_GLYPH_MEM_START = GLYPH_MEM_START + 16*5;
 
     public static final int WIDTH = 64;
     public static final int HEIGHT = 32;
 
-    // Mask used to make sure out-of-range coordinates
-    // get mapped back to within the screen array
-    // (64*32)/8
-    public static final int PIXELARRAY_LENGTH_MASK = 0xff;
+    public static final int EXTENDED_WIDTH = 128;
+    public static final int EXTENDED_HEIGHT = 64;
 
     public static final int BYTES_PER_ROW = WIDTH/8;
 
-    // enough data to hold either standard or extended mode display
-    final byte[] data = new byte[ (WIDTH*HEIGHT)/8 ];
+    // one bit per pixel, one long per row (or two longs per row in extended mode)
+    final long[] rows = new long[ (EXTENDED_WIDTH/64) * EXTENDED_HEIGHT ];
 
     private final Memory memory;
+    private final SpriteCache spriteCache;
     private boolean isBeeping;
-    private final AtomicBoolean hasChanged = new AtomicBoolean(true);
+
+    // only changed by the emulation thread, volatile because of copyTo(BufferedImage)
+    private volatile boolean extendedMode;
+
+    static final long ALL_ROWS = 0xffffffff_ffffffffL;
+
+    private static final VarHandle DIRTY_ROWS;
+
+    static
+    {
+        try {
+            DIRTY_ROWS = MethodHandles.lookup().findVarHandle( Screen.class, "dirtyRows", long.class );
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError( e );
+        }
+    }
+
+    // bit n is set if row n changed since the last call to takeDirtyRows()
+    private volatile long dirtyRows = ALL_ROWS;
 
     private int glypPtr = GLYPH_MEM_START;
 
     public Screen(Memory memory) {
+        this( memory, SpriteCache.DEFAULT_SLOTS );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param memory
+     * @param spriteCacheSlots size of the sprite cache, see {@link SpriteCache#SpriteCache(Memory, int)}
+     */
+    public Screen(Memory memory, int spriteCacheSlots) {
         this.memory = memory;
+        this.spriteCache = new SpriteCache( memory, spriteCacheSlots );
         writeGlyphs();
     }
 
@@ -72,15 +113,55 @@ public class Screen
         storeGlyph(0b11100000, 0b10010000, 0b10010000, 0b10010000, 0b11100000);// "D"
         storeGlyph(0b11110000, 0b10000000, 0b11110000, 0b10000000, 0b11110000);// "E"
         storeGlyph(0b11110000, 0b10000000, 0b11110000, 0b10000000, 0b10000000);// "F"
+
+        // SUPER-CHIP 8x10 glyphs
+        storeGlyph(0xff, 0xff, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xff, 0xff);// "0"
+        storeGlyph(0x18, 0x78, 0x78, 0x18, 0x18, 0x18, 0x18, 0x18, 0xff, 0xff);// "1"
+        storeGlyph(0xff, 0xff, 0x03, 0x03, 0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff);// "2"
+        storeGlyph(0xff, 0xff, 0x03, 0x03, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff);// "3"
+        storeGlyph(0xc3, 0xc3, 0xc3, 0xc3, 0xff, 0xff, 0x03, 0x03, 0x03, 0x03);// "4"
+        storeGlyph(0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff);// "5"
+        storeGlyph(0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff);// "6"
+        storeGlyph(0xff, 0xff, 0x03, 0x03, 0x06, 0x0c, 0x18, 0x18, 0x18, 0x18);// "7"
+        storeGlyph(0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff);// "8"
+        storeGlyph(0xff, 0xff, 0xc3, 0xc3, 0xff, 0xff, 0x03, 0x03, 0xff, 0xff);// "9"
+        storeGlyph(0x7e, 0xff, 0xc3, 0xc3, 0xc3, 0xff, 0xff, 0xc3, 0xc3, 0xc3);// "A"
+        storeGlyph(0xfc, 0xfc, 0xc3, 0xc3, 0xfc, 0xfc, 0xc3, 0xc3, 0xfc, 0xfc);// "B"
+        storeGlyph(0x3c, 0xff, 0xc3, 0xc0, 0xc0, 0xc0, 0xc0, 0xc3, 0xff, 0x3c);// "C"
+        storeGlyph(0xfc, 0xfe, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xc3, 0xfe, 0xfc);// "D"
+        storeGlyph(0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff);// "E"
+        storeGlyph(0xff, 0xff, 0xc0, 0xc0, 0xff, 0xff, 0xc0, 0xc0, 0xc0, 0xc0);// "F"
     }
 
-    private void storeGlyph(int v0,int v1,int v2,int v3,int v4)
+    private void storeGlyph(int... rows)
     {
-        memory.write( glypPtr++, v0 );
-        memory.write( glypPtr++, v1 );
-        memory.write( glypPtr++, v2 );
-        memory.write( glypPtr++, v3 );
-        memory.write( glypPtr++, v4 );
+        for ( int row : rows ) {
+            memory.write( glypPtr++, row );
+        }
+    }
+
+    /*
+     * Marks rows as changed. The atomic OR is skipped if all of them
+     * are still waiting to be picked up anyway.
+     */
+    private void markDirty(long mask)
+    {
+        if ( (dirtyRows & mask) != mask ) {
+            DIRTY_ROWS.getAndBitwiseOr( this, mask );
+        }
+    }
+
+    /*
+     * Returns the bit mask for <code>count</code> rows starting at row <code>y</code>,
+     * wrapping around at <code>height</code> (either 32 or 64).
+     */
+    private static long rowMask(int y,int count,int height)
+    {
+        final long bits = (1L << count) - 1;
+        if ( height == 64 ) {
+            return Long.rotateLeft( bits, y );
+        }
+        return Integer.rotateLeft( (int) bits, y ) & 0xffffffffL;
     }
 
     /**
@@ -88,8 +169,8 @@ public class Screen
      */
     public void clear()
     {
-        Arrays.fill(data, (byte) 0);
-        hasChanged.set(true);
+        Arrays.fill(rows, 0);
+        markDirty( ALL_ROWS );
     }
 
     /**
@@ -103,6 +184,8 @@ public class Screen
      * If this causes any pixels to be erased, VF is set to 1, otherwise it is set to 0.
      * If the sprite is positioned so part of it is outside the coordinates of the display,
      * it wraps around to the opposite side of the screen.
+     *
+     * A <code>byteCount</code> of zero draws a SUPER-CHIP 16x16 sprite (two bytes per row).
      * @param x
      * @param y
      * @param byteCount
@@ -111,53 +194,256 @@ public class Screen
      */
     public boolean drawSprite(int x, int y, int byteCount, int spriteAddr)
     {
-        int clearedPixels = 0;
-        int srcPtr = spriteAddr;
-        int dstPtr = (x/8+y*BYTES_PER_ROW) & PIXELARRAY_LENGTH_MASK;
-        int rightShift = x-((x/8)*8);
-        if ( rightShift == 0)
+        if ( extendedMode || byteCount == 0 )
+        {
+            final int spriteWidth = byteCount == 0 ? 16 : 8;
+            final int height = byteCount == 0 ? 16 : byteCount;
+            return extendedMode ? drawExtended( x, y, height, spriteWidth, spriteAddr ) : drawWide( x, y, spriteAddr );
+        }
+        int src = spriteCache.lookup( SpriteCache.NARROW, spriteAddr, byteCount, x & (WIDTH-1) );
+        final long[] words = spriteCache.words; // only valid after lookup(), allocated lazily
+        long clearedPixels = 0;
+        for ( int row = y, toCopy = byteCount ; toCopy > 0 ; toCopy--, src++, row++ )
+        {
+            final long sprite = words[ src ];
+            final int idx = row & (HEIGHT-1);
+            final long dst = rows[ idx ];
+            rows[ idx ] = dst ^ sprite;
+            clearedPixels |= dst & sprite;
+        }
+        markDirty( rowMask( y, byteCount, HEIGHT ) );
+        return clearedPixels != 0;
+    }
+
+    /*
+     * Draws a 16x16 sprite in standard mode.
+     */
+    private boolean drawWide(int x, int y, int spriteAddr)
+    {
+        int src = spriteCache.lookup( SpriteCache.WIDE, spriteAddr, 16, x & (WIDTH-1) );
+        final long[] words = spriteCache.words;
+        long clearedPixels = 0;
+        for ( int row = y, toCopy = 16 ; toCopy > 0 ; toCopy--, src++, row++ )
         {
-            // simple byte-copy with BYTES_PER_ROW stride
-            for ( int toCopy = byteCount ; toCopy > 0 ; toCopy--,srcPtr++)
+            final long sprite = words[ src ];
+            final int idx = row & (HEIGHT-1);
+            final long dst = rows[ idx ];
+            rows[ idx ] = dst ^ sprite;
+            clearedPixels |= dst & sprite;
+        }
+        markDirty( rowMask( y, 16, HEIGHT ) );
+        return clearedPixels != 0;
+    }
+
+    /*
+     * Draws a sprite that is either 8 or 16 pixels wide in extended mode.
+     */
+    private boolean drawExtended(int x, int y, int height, int spriteWidth, int spriteAddr)
+    {
+        // index of the word the sprite starts in, relative to the row's first word
+        final int first = (x & 64) >>> 6;
+        final int second = first ^ 1;
+        final int kind = spriteWidth == 8 ? SpriteCache.EXTENDED_NARROW : SpriteCache.EXTENDED_WIDE;
+        int src = spriteCache.lookup( kind, spriteAddr, height, x & 63 );
+        final long[] words = spriteCache.words;
+        long clearedPixels = 0;
+        for ( int row = y, toCopy = height ; toCopy > 0 ; toCopy--, src += 2, row++ )
+        {
+            final long left = words[ src ];
+            final long right = words[ src+1 ];
+            final int idx = (row & (EXTENDED_HEIGHT-1)) << 1;
+            final long dstLeft = rows[ idx + first ];
+            final long dstRight = rows[ idx + second ];
+            rows[ idx + first ] = dstLeft ^ left;
+            rows[ idx + second ] = dstRight ^ right;
+            clearedPixels |= (dstLeft & left) | (dstRight & right);
+        }
+        markDirty( rowMask( y, height, EXTENDED_HEIGHT ) );
+        return clearedPixels != 0;
+    }
+
+    /**
+     * Scrolls the display down by a number of pixel rows (SUPER-CHIP <code>00CN</code>).
+     *
+     * @param pixels number of rows to scroll down
+     */
+    public void scrollDown(int pixels)
+    {
+        final int wordsPerRow = extendedMode ? 2 : 1;
+        final int words = wordsPerRow * getHeight();
+        final int offset = Math.min( pixels * wordsPerRow, words );
+        System.arraycopy( rows, 0, rows, offset, words - offset );
+        Arrays.fill( rows, 0, offset, 0 );
+        markDirty( ALL_ROWS );
+    }
+
+    /**
+     * Scrolls the display 4 pixels to the left (SUPER-CHIP <code>00FC</code>).
+     */
+    public void scrollLeft()
+    {
+        if ( extendedMode )
+        {
+            for ( int i = 0 ; i < EXTENDED_HEIGHT*2 ; i += 2 )
             {
-                int src = memory.read( srcPtr );
-                int dst = data[ dstPtr ] & 0xff;
-                int newValue = src ^ dst;
-                data[dstPtr] = (byte) newValue;
-                clearedPixels |= (src & (~newValue & 0xff));
-                dstPtr = (dstPtr+BYTES_PER_ROW) & PIXELARRAY_LENGTH_MASK;
+                final long right = rows[i+1];
+                rows[i] = rows[i] << 4 | right >>> 60;
+                rows[i+1] = right << 4;
             }
         }
         else
         {
-            int mask = 0xff<<(8-rightShift);
-            int dstPtr2 = (dstPtr+1) & PIXELARRAY_LENGTH_MASK;
-            for ( int toCopy = byteCount ; toCopy > 0 ; toCopy--,srcPtr++)
+            for ( int i = 0 ; i < HEIGHT ; i++ ) {
+                rows[i] <<= 4;
+            }
+        }
+        markDirty( ALL_ROWS );
+    }
+
+    /**
+     * Scrolls the display 4 pixels to the right (SUPER-CHIP <code>00FB</code>).
+     */
+    public void scrollRight()
+    {
+        if ( extendedMode )
+        {
+            for ( int i = 0 ; i < EXTENDED_HEIGHT*2 ; i += 2 )
             {
-                int src  = memory.read( srcPtr )<<(8-rightShift);
-                int dst = ( (data[dstPtr] & 0xff) << 8 | (data[dstPtr2] & 0xff) );
-                int newValue = (dst & ~mask) | ((src ^ dst) & mask);
-                data[dstPtr] = (byte) ((newValue & 0xff00) >>>8);
-                data[dstPtr2] = (byte) newValue;
-                clearedPixels |= (src & (~newValue & mask));
-                dstPtr = (dstPtr+BYTES_PER_ROW) & PIXELARRAY_LENGTH_MASK;
-                dstPtr2 = (dstPtr+1) & PIXELARRAY_LENGTH_MASK;
+                final long left = rows[i];
+                rows[i] = left >>> 4;
+                rows[i+1] = rows[i+1] >>> 4 | left << 60;
             }
         }
-        hasChanged.set(true);
-        return clearedPixels != 0;
+        else
+        {
+            for ( int i = 0 ; i < HEIGHT ; i++ ) {
+                rows[i] >>>= 4;
+            }
+        }
+        markDirty( ALL_ROWS );
+    }
+
+    /**
+     * Returns the cache of pre-shifted sprites used by {@link #drawSprite(int, int, int, int)}.
+     *
+     * @return
+     */
+    public SpriteCache getSpriteCache()
+    {
+        return spriteCache;
+    }
+
+    /**
+     * Switches between standard (64x32) and extended (128x64) resolution.
+     *
+     * The screen is cleared.
+     *
+     * @param extendedMode
+     */
+    public void setExtendedMode(boolean extendedMode)
+    {
+        this.extendedMode = extendedMode;
+        clear();
+    }
+
+    /**
+     * Returns whether the SUPER-CHIP extended (128x64) resolution is enabled.
+     *
+     * @return
+     */
+    public boolean isExtendedMode()
+    {
+        return extendedMode;
+    }
+
+    /**
+     * Returns the width of the display in pixels, depending on the current resolution.
+     *
+     * @return
+     */
+    public int getWidth()
+    {
+        return extendedMode ? EXTENDED_WIDTH : WIDTH;
+    }
+
+    /**
+     * Returns the height of the display in pixels, depending on the current resolution.
+     *
+     * @return
+     */
+    public int getHeight()
+    {
+        return extendedMode ? EXTENDED_HEIGHT : HEIGHT;
     }
 
     /**
      * Copy the screen's content to a {@link BufferedImage}.
      *
      * @param image destination image, <b>MUST BE {@link BufferedImage#TYPE_BYTE_BINARY}</b> otherwise
-     *              a {@link ClassCastException} will be thrown.
+     *              a {@link ClassCastException} will be thrown. May be <code>NULL</code>.
+     * @return the image the screen's content got copied to, a new one if <code>image</code> was <code>NULL</code>
+     *         or did not match the current resolution
      */
-    public void copyTo(BufferedImage image) {
+    public BufferedImage copyTo(BufferedImage image) {
+        return copyTo( image, ALL_ROWS );
+    }
 
+    /**
+     * Copy some rows of the screen's content to a {@link BufferedImage}.
+     *
+     * @param image destination image, <b>MUST BE {@link BufferedImage#TYPE_BYTE_BINARY}</b> otherwise
+     *              a {@link ClassCastException} will be thrown. May be <code>NULL</code>.
+     * @param rowMask rows to copy, bit n being row n. Ignored (all rows get copied)
+     *                if a new image needs to be created.
+     * @return the image the screen's content got copied to, a new one if <code>image</code> was <code>NULL</code>
+     *         or did not match the current resolution
+     * @see #takeDirtyRows()
+     */
+    public BufferedImage copyTo(BufferedImage image, long rowMask) {
+        return copyRows( rows, this.extendedMode, image, rowMask );
+    }
+
+    /**
+     * Copies the screen's pixels.
+     *
+     * One bit per pixel, leftmost pixel in the most significant bit. Each row
+     * takes one long in standard mode and two longs (left half first) in extended mode.
+     *
+     * @param dest destination array, must hold at least <code>getWidth()*getHeight()/64</code> elements
+     * @see Frame#copyRows(long[])
+     */
+    public void copyRows(long[] dest) {
+        System.arraycopy( rows, 0, dest, 0, (getWidth()*getHeight())/64 );
+    }
+
+    /*
+     * Copies rows of a framebuffer in this class' format to an image.
+     */
+    static BufferedImage copyRows(long[] rows, boolean extended, BufferedImage image, long rowMask)
+    {
+        final int width = extended ? EXTENDED_WIDTH : WIDTH;
+        final int height = extended ? EXTENDED_HEIGHT : HEIGHT;
+        if ( image == null || image.getWidth() != width || image.getHeight() != height ) {
+            image = new BufferedImage( width, height, BufferedImage.TYPE_BYTE_BINARY );
+            rowMask = ALL_ROWS;
+        }
         final byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        System.arraycopy(this.data,0,pixels,0,this.data.length);
+        // TYPE_BYTE_BINARY stores the leftmost pixel in the most significant bit as well
+        final LongBuffer buffer = ByteBuffer.wrap( pixels ).asLongBuffer();
+        if ( rowMask == ALL_ROWS ) {
+            buffer.put( rows, 0, (width*height)/64 );
+            return image;
+        }
+        final int wordsPerRow = width/64;
+        long mask = extended ? rowMask : rowMask & 0xffffffffL;
+        while ( mask != 0 )
+        {
+            final int offset = Long.numberOfTrailingZeros( mask ) * wordsPerRow;
+            mask &= mask-1;
+            buffer.position( offset );
+            buffer.put( rows, offset, wordsPerRow );
+        }
+        return image;
     }
 
     /**
@@ -171,6 +457,17 @@ public class Screen
         return GLYPH_MEM_START+(glyph*5);
     }
 
+    /**
+     * Get address of SUPER-CHIP sprite for hexadecimal glyph <code>glyph</code>.
+     * Sprite is 10 bytes high.
+     * @param glyph
+     * @return
+     */
+    public int getLargeGlyphAddr(int glyph)
+    {
+        return LARGE_GLYPH_MEM_START+((glyph & 0x0f)*10);
+    }
+
     /**
      * Enable/disable playing a beep.
      *
@@ -182,26 +479,53 @@ public class Screen
     }
 
     /**
-     * Clears the screen and disables the beeper.
+     * Returns whether the beeper is currently enabled.
+     *
+     * @return
+     * @see #setBeep(boolean)
+     */
+    public boolean isBeeping()
+    {
+        return isBeeping;
+    }
+
+    /**
+     * Clears the screen, switches back to standard resolution and disables the beeper.
      * @see #setBeep(boolean)
      */
     public void reset()
     {
         isBeeping = false;
+        extendedMode = false;
         clear();
         writeGlyphs();
     }
 
     /**
      * Check whether the screen's data got changed since the last
-     * call to this method.
+     * call to this method (or to {@link #takeDirtyRows()}).
      *
-     * After this method returns the internal 'hasChanged' flag is reset.
+     * After this method returns the set of changed rows is reset.
      *
      * @return <code>true</code> if the screen's data has changed since the last call to this method
      * @see #copyTo(BufferedImage)
      */
     public boolean hasChanged() {
-        return hasChanged.compareAndExchange( true,false );
+        return takeDirtyRows() != 0;
+    }
+
+    /**
+     * Returns the rows that changed since the last call to this method
+     * (or to {@link #hasChanged()}) and resets them.
+     *
+     * Since the set of changed rows gets reset, there should only be one
+     * consumer calling this method.
+     *
+     * @return bit mask with bit n being set if row n of the current resolution changed.
+     *         A resolution change or scrolling marks all rows as changed.
+     * @see #copyTo(BufferedImage, long)
+     */
+    public long takeDirtyRows() {
+        return (long) DIRTY_ROWS.getAndSet( this, 0L );
     }
 }
\ No newline at end of file
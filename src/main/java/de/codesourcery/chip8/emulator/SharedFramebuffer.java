@@ -0,0 +1,163 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Mirrors the screen's content into a memory-mapped file, so that other processes can
+ * watch the emulation without any serialization or syscalls per frame.
+ *
+ * The file is {@link #SIZE} bytes long, all values are little-endian:
+ * <pre>
+ * offset  size  content
+ *  0      4     magic 0x42463843 ("C8FB")
+ *  4      4     layout version (1)
+ *  8      8     seqlock counter, odd while the writer is updating the file
+ * 16      8     frame sequence number, incremented whenever the screen's content changed
+ * 24      4     flags, bit 0: extended (128x64) resolution, bit 1: beeper enabled
+ * 28      4     width in pixels
+ * 32      4     height in pixels
+ * 36     28     reserved
+ * 64   1024     pixels, one 64-bit word per 64 pixels, rows top to bottom (two words per row
+ *               in extended mode, left half first), leftmost pixel in the most significant bit
+ * </pre>
+ * To get a consistent frame, readers read the seqlock counter (retrying while it is odd), copy whatever they need,
+ * and read the counter again. If it changed, the copy may be torn and has to be retried.
+ * {@link SharedFramebufferReader} implements this protocol.
+ *
+ * Only to be updated by the emulation thread.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see EmulatorDriver#setSharedFramebuffer(SharedFramebuffer)
+ */
+public final class SharedFramebuffer implements AutoCloseable
+{
+    public static final int MAGIC = 0x42463843;
+    public static final int VERSION = 1;
+
+    public static final int SEQLOCK_OFFSET = 8;
+    public static final int FRAME_OFFSET = 16;
+    public static final int FLAGS_OFFSET = 24;
+    public static final int WIDTH_OFFSET = 28;
+    public static final int HEIGHT_OFFSET = 32;
+    public static final int PIXELS_OFFSET = 64;
+
+    public static final int FLAG_EXTENDED = 0x01;
+    public static final int FLAG_BEEPING = 0x02;
+
+    public static final int SIZE = PIXELS_OFFSET + Screen.EXTENDED_WIDTH * Screen.EXTENDED_HEIGHT / 8;
+
+    static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle( long[].class, ByteOrder.LITTLE_ENDIAN );
+    static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle( int[].class, ByteOrder.LITTLE_ENDIAN );
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private long seqlock;
+    private long frame;
+    private int flags = -1;
+
+    private SharedFramebuffer(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+        this.buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, SIZE );
+        // readers check the magic last
+        INTS.set( buffer, 4, VERSION );
+        LONGS.setRelease( buffer, SEQLOCK_OFFSET, 0L );
+        INTS.setRelease( buffer, 0, MAGIC );
+    }
+
+    /**
+     * Creates (or overwrites) a framebuffer file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static SharedFramebuffer create(Path file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        final FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+        try {
+            return new SharedFramebuffer( channel );
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Mirrors the screen's content.
+     *
+     * Nothing gets written if neither the screen's content nor the flags changed.
+     *
+     * @param screen
+     * @param contentChanged whether the screen's pixels changed since the last call
+     */
+    public void update(Screen screen, boolean contentChanged)
+    {
+        final boolean extended = screen.isExtendedMode();
+        final int newFlags = (extended ? FLAG_EXTENDED : 0) | (screen.isBeeping() ? FLAG_BEEPING : 0);
+        if ( ! contentChanged && newFlags == flags ) {
+            return;
+        }
+        LONGS.setOpaque( buffer, SEQLOCK_OFFSET, ++seqlock );
+        // the odd counter must become visible before any of the data
+        VarHandle.storeStoreFence();
+
+        if ( contentChanged )
+        {
+            final long[] rows = screen.rows;
+            final int words = extended ? rows.length : Screen.HEIGHT;
+            for ( int i = 0, offset = PIXELS_OFFSET ; i < words ; i++, offset += 8 ) {
+                LONGS.set( buffer, offset, rows[i] );
+            }
+            LONGS.set( buffer, FRAME_OFFSET, ++frame );
+        }
+        INTS.set( buffer, FLAGS_OFFSET, newFlags );
+        INTS.set( buffer, WIDTH_OFFSET, screen.getWidth() );
+        INTS.set( buffer, HEIGHT_OFFSET, screen.getHeight() );
+        flags = newFlags;
+
+        LONGS.setRelease( buffer, SEQLOCK_OFFSET, ++seqlock );
+    }
+
+    /**
+     * Closes the file.
+     *
+     * The mapping itself stays valid until this object gets garbage-collected.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static de.codesourcery.chip8.emulator.SharedFramebuffer.*;
+
+/**
+ * Reads frames from a file written by {@link SharedFramebuffer}, usually in another process.
+ *
+ * Not thread-safe.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SharedFramebufferReader implements AutoCloseable
+{
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+
+    private long frame = -1;
+    private int flags;
+    private int width;
+    private int height;
+
+    private SharedFramebufferReader(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+        if ( channel.size() < SIZE ) {
+            throw new IOException( "Not a framebuffer file (too small)" );
+        }
+        this.buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, SIZE );
+        if ( (int) INTS.getAcquire( buffer, 0 ) != MAGIC ) {
+            throw new IOException( "Not a framebuffer file" );
+        }
+        final int version = (int) INTS.get( buffer, 4 );
+        if ( version != VERSION ) {
+            throw new IOException( "Unsupported framebuffer version " + version );
+        }
+    }
+
+    /**
+     * Opens a framebuffer file.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static SharedFramebufferReader open(Path file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        final FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+        try {
+            return new SharedFramebufferReader( channel );
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the current frame if it differs from the one read by the previous call.
+     *
+     * Spins while the writer is updating the file, which never takes more than a few microseconds.
+     *
+     * @param dest destination for the pixels, in {@link Screen#copyRows(long[])} format. Must hold
+     *             at least <code>Screen.EXTENDED_WIDTH*Screen.EXTENDED_HEIGHT/64</code> elements.
+     * @return <code>true</code> if a new frame got read, <code>false</code> if nothing changed
+     */
+    public boolean read(long[] dest)
+    {
+        while ( true )
+        {
+            final long before = (long) LONGS.getAcquire( buffer, SEQLOCK_OFFSET );
+            if ( (before & 1) != 0 )
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+            final long newFrame = (long) LONGS.get( buffer, FRAME_OFFSET );
+            final int newFlags = (int) INTS.get( buffer, FLAGS_OFFSET );
+            if ( newFrame == frame && newFlags == flags ) {
+                return false;
+            }
+            final int newWidth = (int) INTS.get( buffer, WIDTH_OFFSET );
+            final int newHeight = (int) INTS.get( buffer, HEIGHT_OFFSET );
+            final int words = Math.min( newWidth * newHeight / 64, dest.length );
+            for ( int i = 0, offset = PIXELS_OFFSET ; i < words ; i++, offset += 8 ) {
+                dest[i] = (long) LONGS.get( buffer, offset );
+            }
+            // all reads above must complete before the counter gets checked again
+            VarHandle.loadLoadFence();
+            if ( (long) LONGS.getOpaque( buffer, SEQLOCK_OFFSET ) == before )
+            {
+                frame = newFrame;
+                flags = newFlags;
+                width = newWidth;
+                height = newHeight;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the sequence number of the frame last read.
+     *
+     * @return
+     */
+    public long getFrameSequence()
+    {
+        return frame;
+    }
+
+    public boolean isExtendedMode()
+    {
+        return (flags & FLAG_EXTENDED) != 0;
+    }
+
+    public boolean isBeeping()
+    {
+        return (flags & FLAG_BEEPING) != 0;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+}
@@ -17,9 +17,9 @@ package de.codesourcery.chip8.emulator;
 
 import org.apache.commons.lang3.Validate;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * A timer that invokes listeners ever 1/60th second.
@@ -32,8 +32,9 @@ public class SixtyHertzTimer extends Thread
 {
     private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
 
+    private static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos( 1 ) / 60;
+
     private volatile boolean terminate;
-    private final Object SLEEP_LOCK = new Object();
 
     public SixtyHertzTimer()
     {
@@ -66,8 +67,7 @@ public class SixtyHertzTimer extends Thread
     @Override
     public void run()
     {
-        int modCount = -1;
-        Runnable[] copy = new Runnable[0];
+        long deadline = System.nanoTime();
         while ( ! terminate )
         {
             listeners.forEach(x ->
@@ -80,18 +80,15 @@ public class SixtyHertzTimer extends Thread
                 }
             });
 
-            try
-            {
-                synchronized(SLEEP_LOCK)
-                {
-                    if (!terminate)
-                    {
-                        SLEEP_LOCK.wait(1000 / 60);
-                    }
-                }
+            // fixed-rate scheduling so that the time spent in listeners does not add up,
+            // don't try to catch up if we fell behind by more than one period
+            deadline += PERIOD_NANOS;
+            if ( System.nanoTime() - deadline > PERIOD_NANOS ) {
+                deadline = System.nanoTime();
             }
-            catch (InterruptedException e) {
-                e.printStackTrace();
+            long remaining;
+            while ( ! terminate && ( remaining = deadline - System.nanoTime() ) > 0 ) {
+                LockSupport.parkNanos( this, remaining );
             }
         }
     }
@@ -99,8 +96,6 @@ public class SixtyHertzTimer extends Thread
     public void terminate()
     {
         terminate = true;
-        synchronized (SLEEP_LOCK) {
-            SLEEP_LOCK.notifyAll();
-        }
+        LockSupport.unpark( this );
     }
-}
\ No newline at end of file
+}
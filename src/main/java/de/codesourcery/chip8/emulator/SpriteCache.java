@@ -0,0 +1,214 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+
+/**
+ * Cache of sprite rows that have already been read from memory and shifted
+ * into their position on the screen.
+ *
+ * Entries are keyed by (address, height, shift, sprite kind) and live in a
+ * direct-mapped table, so looking up a sprite never allocates. An entry is validated against
+ * {@link Memory#getWriteStamp(int, int)}, so sprites that got overwritten are re-read while
+ * sprites a game keeps drawing over and over again are blitted straight from the cached words.
+ *
+ * The tables are only allocated when the first sprite gets drawn and their size can be reduced
+ * (see {@link #SpriteCache(Memory, int)}), hosts running thousands of sessions
+ * trade some cache hits for a much smaller memory footprint that way.
+ *
+ * Not thread-safe, only to be used by the emulation thread (the hit/miss counters may
+ * be read by other threads but are not guaranteed to be up-to-date).
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SpriteCache
+{
+    /** 8 pixels wide, standard mode: one word per row. */
+    static final int NARROW = 0;
+    /** 16 pixels wide, standard mode: one word per row. */
+    static final int WIDE = 1;
+    /** 8 pixels wide, extended mode: two words (left, right) per row. */
+    static final int EXTENDED_NARROW = 2;
+    /** 16 pixels wide, extended mode: two words (left, right) per row. */
+    static final int EXTENDED_WIDE = 3;
+
+    private static final int MAX_SLOT_BITS = 8;
+
+    /**
+     * Default (and maximum) number of cache slots, needs 64 KB.
+     */
+    public static final int DEFAULT_SLOTS = 1 << MAX_SLOT_BITS;
+
+    /**
+     * Number of words reserved per slot, enough for a 16x16 sprite in extended mode.
+     */
+    static final int WORDS_PER_SLOT = 32;
+
+    private final Memory memory;
+    private final int slotMask;
+
+    // allocated on first lookup
+    private int[] keys;
+    private int[] stamps;
+
+    /**
+     * Pre-shifted sprite rows, {@link #WORDS_PER_SLOT} words per slot.
+     *
+     * <code>null</code> until the first call to {@link #lookup(int, int, int, int)}.
+     */
+    long[] words;
+
+    // plain fields, a volatile write per sprite drawn would cost more than the cache saves
+    private long hits;
+    private long misses;
+
+    public SpriteCache(Memory memory)
+    {
+        this( memory, DEFAULT_SLOTS );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param memory
+     * @param slots number of sprites that can be cached, must be a power of two (1...{@link #DEFAULT_SLOTS}).
+     *              Each slot takes 264 bytes.
+     */
+    public SpriteCache(Memory memory, int slots)
+    {
+        Validate.notNull(memory, "memory must not be null");
+        Validate.isTrue( slots > 0 && slots <= DEFAULT_SLOTS && Integer.bitCount( slots ) == 1,
+            "slots must be a power of two (1..."+DEFAULT_SLOTS+"), was: "+slots );
+        this.memory = memory;
+        this.slotMask = slots - 1;
+    }
+
+    /**
+     * Looks up a sprite, reading and shifting it if it is not cached (or no longer valid).
+     *
+     * @param kind one of {@link #NARROW}, {@link #WIDE}, {@link #EXTENDED_NARROW} or {@link #EXTENDED_WIDE}
+     * @param address address of the sprite's first byte
+     * @param height sprite height in rows (1...16)
+     * @param shift number of pixels to shift the sprite right (0...63)
+     * @return index of the sprite's first word in {@link #words}
+     */
+    int lookup(int kind,int address,int height,int shift)
+    {
+        if ( words == null ) {
+            allocate();
+        }
+        final int key = address << 13 | kind << 11 | height << 6 | shift;
+        final int slot = (key * 0x9E3779B9) >>> (32 - MAX_SLOT_BITS) & slotMask;
+        final int stamp = memory.getWriteStamp( address, (kind & 1) == 0 ? height : height * 2 );
+        final int base = slot * WORDS_PER_SLOT;
+        if ( keys[ slot ] == key && stamps[ slot ] == stamp )
+        {
+            hits++;
+            return base;
+        }
+        misses++;
+        fill( kind, address, height, shift, base );
+        keys[ slot ] = key;
+        stamps[ slot ] = stamp;
+        return base;
+    }
+
+    private void allocate()
+    {
+        final int slots = slotMask + 1;
+        keys = new int[ slots ];
+        stamps = new int[ slots ];
+        words = new long[ slots * WORDS_PER_SLOT ];
+        Arrays.fill( keys, -1 );
+    }
+
+    private void fill(int kind,int address,int height,int shift,int base)
+    {
+        final boolean wide = (kind & 1) != 0;
+        final int spriteWidth = wide ? 16 : 8;
+        int src = address;
+        for ( int i = 0 ; i < height ; i++ )
+        {
+            final int value = wide ? memory.read( src ) << 8 | memory.read( src + 1 ) : memory.read( src );
+            src += wide ? 2 : 1;
+            final long bits = (long) value << (64 - spriteWidth);
+            if ( kind == NARROW || kind == WIDE )
+            {
+                words[ base + i ] = Long.rotateRight( bits, shift );
+            }
+            else
+            {
+                // 128-bit rotate, two-step shift yields zero instead of 'bits' when shift == 0
+                words[ base + i*2 ] = bits >>> shift;
+                words[ base + i*2 + 1 ] = (bits << 1) << (63 - shift);
+            }
+        }
+    }
+
+    /**
+     * Discards all cached sprites.
+     */
+    public void clear()
+    {
+        if ( keys != null ) {
+            Arrays.fill( keys, -1 );
+        }
+    }
+
+    /**
+     * Returns the number of lookups that were served from the cache.
+     *
+     * @return
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that had to read the sprite from memory.
+     *
+     * @return
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from the cache.
+     *
+     * @return hit rate (0...1), zero if no lookups happened yet
+     */
+    public double getHitRate()
+    {
+        final long h = hits;
+        final long total = h + misses;
+        return total == 0 ? 0 : h / (double) total;
+    }
+
+    /**
+     * Resets the hit/miss counters.
+     */
+    public void resetStatistics()
+    {
+        hits = 0;
+        misses = 0;
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Limits emulation speed to a fixed number of instructions per second.
+ *
+ * Instructions are meant to be executed in batches, after each batch {@link #nanosUntilNextBatch()}
+ * tells how long to sleep until the next batch is due. Deadlines are calculated from
+ * the total number of instructions executed since the last {@link #restart()}, so
+ * inaccurate sleeps do not accumulate. If execution falls behind for too long
+ * (because the host is too slow or the thread got suspended), the schedule gets
+ * restarted instead of trying to catch up with a burst of instructions.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ThroughputGovernor
+{
+    /**
+     * Value for {@link #setInstructionsPerSecond(long)} that disables throttling.
+     */
+    public static final long UNLIMITED = 0;
+
+    // target time between two batches
+    private static final long BATCH_INTERVAL_NANOS = 1_000_000;
+
+    // max. time we may fall behind before giving up on catching up
+    private static final long MAX_LAG_NANOS = 20_000_000;
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private long instructionsPerSecond;
+    private long startNanos;
+    private long instructionCount;
+
+    /**
+     * Create instance.
+     *
+     * @param instructionsPerSecond target speed or {@link #UNLIMITED}
+     */
+    public ThroughputGovernor(long instructionsPerSecond)
+    {
+        setInstructionsPerSecond( instructionsPerSecond );
+    }
+
+    /**
+     * Sets the target speed.
+     *
+     * @param instructionsPerSecond target speed or {@link #UNLIMITED}
+     */
+    public void setInstructionsPerSecond(long instructionsPerSecond)
+    {
+        Validate.isTrue( instructionsPerSecond >= 0, "instructions per second must be >= 0" );
+        this.instructionsPerSecond = instructionsPerSecond;
+        restart();
+    }
+
+    /**
+     * Returns the target speed.
+     *
+     * @return instructions per second or {@link #UNLIMITED}
+     */
+    public long getInstructionsPerSecond()
+    {
+        return instructionsPerSecond;
+    }
+
+    /**
+     * Returns whether throttling is disabled.
+     *
+     * @return
+     */
+    public boolean isUnlimited()
+    {
+        return instructionsPerSecond == UNLIMITED;
+    }
+
+    /**
+     * Restarts the schedule, to be called whenever execution got suspended
+     * for reasons that should not count as falling behind (emulation stopped, waiting for a key press etc.).
+     */
+    public void restart()
+    {
+        restart( System.nanoTime() );
+    }
+
+    void restart(long nowNanos)
+    {
+        startNanos = nowNanos;
+        instructionCount = 0;
+    }
+
+    /**
+     * Returns the number of instructions to execute in the next batch.
+     *
+     * @param maxBatchSize upper limit
+     * @return
+     */
+    public int batchSize(int maxBatchSize)
+    {
+        if ( isUnlimited() ) {
+            return maxBatchSize;
+        }
+        final long size = instructionsPerSecond * BATCH_INTERVAL_NANOS / NANOS_PER_SECOND;
+        return (int) Math.max( 1, Math.min( maxBatchSize, size ) );
+    }
+
+    /**
+     * Tells the governor how many instructions got executed.
+     *
+     * @param count
+     */
+    public void executed(int count)
+    {
+        instructionCount += count;
+        if ( ! isUnlimited() && instructionCount >= instructionsPerSecond * 60 )
+        {
+            // move the start of the schedule forward by exactly one minute so that
+            // the deadline calculation never overflows
+            instructionCount -= instructionsPerSecond * 60;
+            startNanos += 60 * NANOS_PER_SECOND;
+        }
+    }
+
+    /**
+     * Returns the time to wait before the next batch may be executed.
+     *
+     * @return nanoseconds to wait, zero if the next batch is due
+     */
+    public long nanosUntilNextBatch()
+    {
+        return nanosUntilNextBatch( System.nanoTime() );
+    }
+
+    long nanosUntilNextBatch(long now)
+    {
+        if ( isUnlimited() ) {
+            return 0;
+        }
+        final long deadline = startNanos + instructionCount * NANOS_PER_SECOND / instructionsPerSecond;
+        final long remaining = deadline - now;
+        if ( remaining < -MAX_LAG_NANOS )
+        {
+            // too far behind, forget about the past
+            startNanos = now;
+            instructionCount = 0;
+            return 0;
+        }
+        return Math.max( 0, remaining );
+    }
+}
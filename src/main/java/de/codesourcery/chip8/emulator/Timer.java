@@ -17,6 +17,8 @@ package de.codesourcery.chip8.emulator;
 
 import org.apache.commons.lang3.Validate;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Abstract base-class for the sound and delay timers.
  *
@@ -27,10 +29,8 @@ public abstract class Timer implements Runnable
 {
     private final String name;
 
-    private final Object LOCK = new Object();
-
-    // @GuardedBy( LOCK )
-    private int value;
+    // written by the emulation thread, decremented by the 60 Hz timer thread
+    private final AtomicInteger value = new AtomicInteger();
 
     /**
      * Create instance.
@@ -51,32 +51,37 @@ public abstract class Timer implements Runnable
 
     public void run()
     {
-        boolean triggered = false;
-        synchronized (LOCK)
-        {
-            if ( value > 0 )
-            {
-                value--;
-                if ( value == 0 )
-                {
-                    triggered = true;
-                }
-            }
-        }
-        if ( triggered ) {
+        if ( tick() ) {
             triggered();
         }
     }
 
+    /**
+     * Decrements this timer by one unless it already is zero.
+     *
+     * Unlike {@link #run()}, this method does not invoke {@link #triggered()}.
+     *
+     * @return <code>true</code> if the timer just reached zero
+     */
+    public boolean tick()
+    {
+        int current;
+        do
+        {
+            current = value.get();
+            if ( current == 0 ) {
+                return false;
+            }
+        } while ( ! value.compareAndSet( current, current - 1 ) );
+        return current == 1;
+    }
+
     /**
      * Stops this timer.
      */
     public void reset()
     {
-        synchronized (LOCK)
-        {
-            value = 0;
-        }
+        value.set( 0 );
     }
 
     /**
@@ -86,10 +91,7 @@ public abstract class Timer implements Runnable
      */
     public void setValue(int value)
     {
-        synchronized (LOCK)
-        {
-            this.value = value & 0xff;
-        }
+        this.value.set( value & 0xff );
     }
 
     /**
@@ -98,11 +100,14 @@ public abstract class Timer implements Runnable
      */
     public int value()
     {
-        synchronized (LOCK)
-        {
-            return value;
-        }
+        return value.get();
     }
 
+    /**
+     * Invoked by {@link #run()} when the timer reached zero.
+     *
+     * This method gets called on the 60 Hz timer thread and thus must never block,
+     * use {@link EmulatorDriver#post(EmulatorDriver.IDriverCallback)} to notify the emulation.
+     */
     protected abstract void triggered();
 }
\ No newline at end of file
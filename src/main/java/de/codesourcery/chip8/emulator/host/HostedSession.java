@@ -0,0 +1,193 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.host;
+
+import de.codesourcery.chip8.emulator.EmulatorSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle for a session running on a {@link SessionHost}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see SessionHost#add(EmulatorSession, SessionHost.ISliceListener)
+ */
+public final class HostedSession
+{
+    private static final int ACTIVE = 0; // scheduled or running
+    private static final int PARKED = 1; // waiting for a key event
+    private static final int REMOVED = 2;
+
+    private final SessionHost host;
+    private final EmulatorSession session;
+    private final SessionHost.ISliceListener listener;
+
+    final Runnable slice = this::runSlice;
+    final TimingWheel.Entry<HostedSession> timer = new TimingWheel.Entry<>( this );
+
+    private final AtomicInteger state = new AtomicInteger( ACTIVE );
+
+    // set when a key event arrives, checked before parking so no wake-up gets lost
+    private volatile boolean keyPending;
+
+    // only accessed by time slices, which never run concurrently
+    private long nextFrameNanos;
+    private boolean resumed;
+
+    HostedSession(SessionHost host, EmulatorSession session, SessionHost.ISliceListener listener, long startNanos)
+    {
+        this.host = host;
+        this.session = session;
+        this.listener = listener;
+        this.nextFrameNanos = startNanos;
+    }
+
+    /**
+     * Returns the session.
+     *
+     * Must only be accessed from within a {@link SessionHost.ISliceListener}.
+     *
+     * @return
+     */
+    public EmulatorSession getSession()
+    {
+        return session;
+    }
+
+    /**
+     * Tell the emulation that a key has been pressed.
+     *
+     * May be invoked by any thread, wakes up the session if it is parked.
+     *
+     * @param key
+     */
+    public void keyPressed(int key)
+    {
+        session.keyPressed( key );
+        keyEvent();
+    }
+
+    /**
+     * Tell the emulation that a key has been released.
+     *
+     * May be invoked by any thread, wakes up the session if it is parked.
+     *
+     * @param key
+     */
+    public void keyReleased(int key)
+    {
+        session.keyReleased( key );
+        keyEvent();
+    }
+
+    private void keyEvent()
+    {
+        keyPending = true;
+        if ( state.compareAndSet( PARKED, ACTIVE ) ) {
+            host.execute( this );
+        }
+    }
+
+    /**
+     * Returns whether this session is parked, waiting for a key event.
+     *
+     * @return
+     */
+    public boolean isParked()
+    {
+        return state.get() == PARKED;
+    }
+
+    /**
+     * Returns whether this session has been removed from its host.
+     *
+     * @return
+     */
+    public boolean isRemoved()
+    {
+        return state.get() == REMOVED;
+    }
+
+    /**
+     * Stops running this session.
+     *
+     * A time slice that is currently in progress still completes.
+     */
+    public void remove()
+    {
+        if ( state.getAndSet( REMOVED ) != REMOVED ) {
+            host.sessionRemoved();
+        }
+    }
+
+    private void runSlice()
+    {
+        if ( state.get() == REMOVED ) {
+            return;
+        }
+        keyPending = false;
+
+        final long now = System.nanoTime();
+        if ( resumed || now - nextFrameNanos > SessionHost.MAX_LAG_NANOS )
+        {
+            // emulated time stood still while parked, lagging sessions drop frames
+            resumed = false;
+            nextFrameNanos = now;
+        }
+        try
+        {
+            // always run at least one frame, key events only get processed while running
+            int frames = 0;
+            do
+            {
+                runFrame();
+                nextFrameNanos += SessionHost.FRAME_NANOS;
+                frames++;
+            } while ( frames < SessionHost.MAX_FRAMES_PER_SLICE && nextFrameNanos <= now && ! session.isWaitingForKey() );
+            listener.sliceCompleted( this );
+        }
+        catch(Exception e)
+        {
+            System.err.println("Removing session that failed");
+            e.printStackTrace();
+            remove();
+            return;
+        }
+
+        if ( session.isWaitingForKey() )
+        {
+            resumed = true;
+            if ( state.compareAndSet( ACTIVE, PARKED ) && keyPending && state.compareAndSet( PARKED, ACTIVE ) ) {
+                host.execute( this );
+            }
+        }
+        else if ( nextFrameNanos <= System.nanoTime() ) {
+            host.execute( this );
+        } else {
+            host.schedule( this, nextFrameNanos );
+        }
+    }
+
+    private void runFrame()
+    {
+        final int instructionsPerFrame = session.getInstructionsPerFrame();
+        final long frameEnd = ( session.getCycleCount() / instructionsPerFrame + 1 ) * instructionsPerFrame;
+        long cycles;
+        while ( ( cycles = session.getCycleCount() ) < frameEnd ) {
+            session.run( (int) ( frameEnd - cycles ) );
+        }
+    }
+}
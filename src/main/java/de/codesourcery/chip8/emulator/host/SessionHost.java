@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.host;
+
+import de.codesourcery.chip8.emulator.EmulatorSession;
+import org.apache.commons.lang3.Validate;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Runs many {@link EmulatorSession}s at 60 frames per second on a small, shared work-stealing pool.
+ *
+ * Sessions are scheduled cooperatively: every time slice runs the frames that are due (at most
+ * {@link #MAX_FRAMES_PER_SLICE}) and then hands the session to a {@link TimingWheel} until its next
+ * frame is due. A single timer thread advances the wheel and submits due sessions to the pool, so
+ * the number of threads does not depend on the number of sessions.
+ *
+ * Sessions waiting for a key press (FX0A) are parked and cost nothing until a key event
+ * arrives through {@link HostedSession#keyPressed(int)}. Emulated time does not advance while parked.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class SessionHost implements AutoCloseable
+{
+    /**
+     * Gets notified after every time slice of a hosted session.
+     *
+     * Invoked on a pool thread while the session is not running, so it may safely inspect
+     * the session's state. Implementations need to be fast and must never block.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    @FunctionalInterface
+    public interface ISliceListener
+    {
+        void sliceCompleted(HostedSession session);
+    }
+
+    /**
+     * Max. number of frames a session may execute per time slice before it has to give up the CPU.
+     */
+    public static final int MAX_FRAMES_PER_SLICE = 4;
+
+    static final long FRAME_NANOS = TimeUnit.SECONDS.toNanos( 1 ) / 60;
+
+    // sessions lagging behind more than this drop frames instead of catching up
+    static final long MAX_LAG_NANOS = FRAME_NANOS * 30;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    private static final ISliceListener NOP_LISTENER = session -> {};
+
+    private final ForkJoinPool pool;
+    private final Thread timerThread;
+    private final long epochNanos = System.nanoTime();
+
+    // only accessed by the timer thread
+    private final TimingWheel<HostedSession> wheel = new TimingWheel<>( 0 );
+    private final Consumer<HostedSession> submitExpired = this::execute;
+
+    // sessions to put on the wheel, written by pool threads
+    private final Queue<HostedSession> scheduleRequests = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Create instance using one pool thread per available processor.
+     */
+    public SessionHost()
+    {
+        this( Runtime.getRuntime().availableProcessors() );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param parallelism number of threads running sessions
+     */
+    public SessionHost(int parallelism)
+    {
+        Validate.isTrue( parallelism > 0, "parallelism must be > 0" );
+        final ForkJoinPool.ForkJoinWorkerThreadFactory factory = p ->
+        {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( p );
+            thread.setName( "session-host-" + thread.getPoolIndex() );
+            return thread;
+        };
+        // FIFO scheduling, sessions re-submitted by a pool thread must not starve the others
+        pool = new ForkJoinPool( parallelism, factory, null, true );
+        timerThread = new Thread( this::runTimer, "session-host-timer" );
+        timerThread.setDaemon( true );
+        timerThread.start();
+    }
+
+    /**
+     * Starts running a session.
+     *
+     * The session must not be accessed directly afterwards, except from within a slice listener.
+     *
+     * @param session
+     * @return handle to interact with the running session
+     */
+    public HostedSession add(EmulatorSession session)
+    {
+        return add( session, NOP_LISTENER );
+    }
+
+    /**
+     * Starts running a session.
+     *
+     * The session must not be accessed directly afterwards, except from within the slice listener.
+     *
+     * @param session
+     * @param listener invoked after every time slice
+     * @return handle to interact with the running session
+     */
+    public HostedSession add(EmulatorSession session, ISliceListener listener)
+    {
+        Validate.notNull(session, "session must not be null");
+        Validate.notNull(listener, "listener must not be null");
+        Validate.isTrue( ! closed, "host is closed" );
+        final HostedSession hosted = new HostedSession( this, session, listener, System.nanoTime() );
+        sessionCount.incrementAndGet();
+        execute( hosted );
+        return hosted;
+    }
+
+    /**
+     * Returns the number of sessions that have not been removed yet.
+     *
+     * @return
+     */
+    public int getSessionCount()
+    {
+        return sessionCount.get();
+    }
+
+    void sessionRemoved()
+    {
+        sessionCount.decrementAndGet();
+    }
+
+    void execute(HostedSession session)
+    {
+        if ( ! closed )
+        {
+            try {
+                pool.execute( session.slice );
+            }
+            catch(RejectedExecutionException e) {
+                // host got closed concurrently
+            }
+        }
+    }
+
+    void schedule(HostedSession session, long deadlineNanos)
+    {
+        session.timer.deadline = ( deadlineNanos - epochNanos + TICK_NANOS - 1 ) / TICK_NANOS;
+        scheduleRequests.offer( session );
+    }
+
+    private void runTimer()
+    {
+        while ( ! closed )
+        {
+            HostedSession session;
+            while ( ( session = scheduleRequests.poll() ) != null ) {
+                wheel.schedule( session.timer, session.timer.deadline );
+            }
+            final long tick = ( System.nanoTime() - epochNanos ) / TICK_NANOS;
+            wheel.advanceTo( tick, submitExpired );
+            LockSupport.parkNanos( epochNanos + ( tick + 1 ) * TICK_NANOS - System.nanoTime() );
+        }
+    }
+
+    /**
+     * Stops running all sessions and waits for time slices still in progress to finish.
+     *
+     * If the calling thread gets interrupted while waiting, slices still running are
+     * interrupted as well and the method returns early with the thread's interrupt flag set.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark( timerThread );
+        try
+        {
+            timerThread.join();
+            pool.shutdown();
+            if ( ! pool.awaitTermination( 10, TimeUnit.SECONDS ) ) {
+                System.err.println("Time slices still running after 10 seconds, giving up");
+            }
+        }
+        catch(InterruptedException e)
+        {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
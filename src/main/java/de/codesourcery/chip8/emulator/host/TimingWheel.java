@@ -0,0 +1,167 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.host;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel.
+ *
+ * Time is measured in ticks, timeouts live in one of {@link #LEVELS} wheels of {@link #SLOTS} slots each,
+ * the wheel at level n covering <code>SLOTS^(n+1)</code> ticks. Whenever the wheel one level below completes
+ * a revolution, the entries in the current slot get redistributed to the lower levels. Scheduling and
+ * expiring a timeout are O(1), regardless of how many timeouts are pending.
+ *
+ * Entries form intrusive linked lists so scheduling does not allocate. Not thread-safe.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class TimingWheel<T>
+{
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 4;
+
+    private static final int MASK = SLOTS - 1;
+
+    // timeouts further in the future get cascaded repeatedly through the top-most level
+    private static final long MAX_DELTA = (1L << (LEVELS * SLOT_BITS)) - 1;
+
+    /**
+     * A timeout that can be scheduled on a timing wheel, at most once at a time.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    static final class Entry<T>
+    {
+        final T value;
+        long deadline;
+        boolean scheduled;
+        private Entry<T> next;
+
+        Entry(T value)
+        {
+            Validate.notNull(value, "value must not be null");
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings({"unchecked","rawtypes"})
+    private final Entry<T>[][] slots = new Entry[ LEVELS ][ SLOTS ];
+
+    private long currentTick;
+    private int size;
+
+    TimingWheel(long startTick)
+    {
+        this.currentTick = startTick;
+    }
+
+    /**
+     * Schedules an entry.
+     *
+     * @param entry entry that is not currently scheduled
+     * @param deadline tick at which the entry expires, deadlines that already passed
+     *                 expire on the next tick
+     */
+    void schedule(Entry<T> entry, long deadline)
+    {
+        Validate.isTrue( ! entry.scheduled, "entry is already scheduled" );
+        entry.deadline = Math.max( deadline, currentTick + 1 );
+        entry.scheduled = true;
+        insert( entry );
+        size++;
+    }
+
+    /**
+     * Advances the current time, expiring all entries whose deadline has been reached.
+     *
+     * @param tick
+     * @param expired invoked for the value of every expired entry, may re-schedule the entry
+     */
+    void advanceTo(long tick, Consumer<T> expired)
+    {
+        while ( currentTick < tick )
+        {
+            currentTick++;
+            // top-down so that entries cascaded from above get redistributed further on the same tick
+            for ( int level = LEVELS - 1 ; level > 0 ; level-- )
+            {
+                final int shift = level * SLOT_BITS;
+                if ( ( currentTick & ( ( 1L << shift ) - 1 ) ) == 0 )
+                {
+                    final int slot = (int) ( currentTick >>> shift ) & MASK;
+                    Entry<T> entry = slots[ level ][ slot ];
+                    slots[ level ][ slot ] = null;
+                    while ( entry != null )
+                    {
+                        final Entry<T> next = entry.next;
+                        insert( entry );
+                        entry = next;
+                    }
+                }
+            }
+
+            final int slot = (int) currentTick & MASK;
+            Entry<T> entry = slots[0][ slot ];
+            slots[0][ slot ] = null;
+            while ( entry != null )
+            {
+                final Entry<T> next = entry.next;
+                entry.next = null;
+                entry.scheduled = false;
+                size--;
+                expired.accept( entry.value );
+                entry = next;
+            }
+        }
+    }
+
+    private void insert(Entry<T> entry)
+    {
+        final long delta = entry.deadline - currentTick;
+        int level = 0;
+        while ( level < LEVELS - 1 && delta >= 1L << ( ( level + 1 ) * SLOT_BITS ) ) {
+            level++;
+        }
+        final long slotTick = delta > MAX_DELTA ? currentTick + MAX_DELTA : entry.deadline;
+        final int slot = (int) ( slotTick >>> ( level * SLOT_BITS ) ) & MASK;
+        entry.next = slots[ level ][ slot ];
+        slots[ level ][ slot ] = entry;
+    }
+
+    /**
+     * Returns the current tick.
+     *
+     * @return
+     */
+    long getCurrentTick()
+    {
+        return currentTick;
+    }
+
+    /**
+     * Returns the number of scheduled entries.
+     *
+     * @return
+     */
+    int size()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Memory;
+import org.apache.commons.lang3.Validate;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Translates a whole CHIP-8 program ahead-of-time into a JVM class and stores it in a jar file.
+ *
+ * All basic blocks statically reachable from the entry point (0x200) get translated, everything
+ * else (targets of computed jumps, code that got modified at runtime) is left to the
+ * interpreter, see {@link AotEngine}.
+ *
+ * Can be invoked from the command line:
+ * <pre>
+ * java -cp chip8.jar de.codesourcery.chip8.emulator.jit.AotCompiler &lt;ROM file&gt; [&lt;output jar&gt;]
+ * </pre>
+ * If no output file is given, the jar is stored in the {@link CodeCache#getDefault() default code cache}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CodeCache
+ */
+public final class AotCompiler
+{
+    /**
+     * Address programs get loaded to and start executing at.
+     */
+    public static final int ENTRY_POINT = 0x200;
+
+    /**
+     * Version of the generated code, needs to be incremented whenever the code generator
+     * changes so that outdated cache entries get ignored.
+     */
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * Manifest attribute holding the binary name of the generated class.
+     */
+    static final Attributes.Name PROGRAM_CLASS = new Attributes.Name( "Chip8-Program-Class" );
+
+    /**
+     * Manifest attribute holding the hash of the program the jar got generated from.
+     */
+    static final Attributes.Name PROGRAM_HASH = new Attributes.Name( "Chip8-Program-Hash" );
+
+    private static final String CLASS_PREFIX = "de/codesourcery/chip8/emulator/jit/generated/Program_";
+
+    private static final int MEMORY_SIZE = 4096;
+
+    private AotCompiler() {
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length < 1 || args.length > 2 )
+        {
+            System.err.println("Usage: <ROM file> [<output jar>]");
+            System.exit( 1 );
+        }
+        final byte[] image;
+        try ( InputStream in = new FileInputStream( args[0] ) ) {
+            image = trim( in.readAllBytes() );
+        }
+        final File jarFile = args.length > 1 ? new File( args[1] ) : CodeCache.getDefault().getJarFile( hash( image ) );
+
+        final long start = System.currentTimeMillis();
+        final List<BasicBlock> blocks = compile( image, jarFile );
+        final long elapsed = System.currentTimeMillis() - start;
+
+        final int instructions = blocks.stream().mapToInt( BasicBlock::length ).sum();
+        System.out.println("Translated "+blocks.size()+" basic blocks ("+instructions+" instructions) in "+elapsed+" ms");
+        System.out.println("Wrote "+jarFile.getAbsolutePath());
+    }
+
+    /**
+     * Returns the program image currently held by a memory.
+     *
+     * This is everything from the {@link #ENTRY_POINT entry point} up to (and including) the last non-zero byte.
+     *
+     * @param memory
+     * @return
+     */
+    public static byte[] image(Memory memory)
+    {
+        final byte[] data = new byte[ memory.getSizeInBytes() - ENTRY_POINT ];
+        memory.read( ENTRY_POINT, data.length, data );
+        return trim( data );
+    }
+
+    private static byte[] trim(byte[] data)
+    {
+        int len = data.length;
+        while ( len > 0 && data[ len - 1 ] == 0 ) {
+            len--;
+        }
+        return len == data.length ? data : Arrays.copyOf( data, len );
+    }
+
+    /**
+     * Returns the hash used to identify a program image.
+     *
+     * @param image
+     * @return SHA-256 hash as hex string
+     */
+    public static String hash(byte[] image)
+    {
+        Validate.notNull(image, "image must not be null");
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( image );
+            final StringBuilder result = new StringBuilder( digest.length * 2 );
+            for ( byte b : digest ) {
+                result.append( Character.forDigit( (b >>> 4) & 0x0f, 16 ) ).append( Character.forDigit( b & 0x0f, 16 ) );
+            }
+            return result.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Translates a program image and writes the result to a jar file.
+     *
+     * The jar file is written to a temporary file first and then moved to the
+     * target location so that concurrent readers never see a partially written file.
+     *
+     * @param image program image, gets loaded at the {@link #ENTRY_POINT entry point}
+     * @param jarFile
+     * @return the basic blocks that got translated
+     * @throws IOException
+     */
+    static List<BasicBlock> compile(byte[] image,File jarFile) throws IOException
+    {
+        Validate.notNull(image, "image must not be null");
+        Validate.notNull(jarFile, "jarFile must not be null");
+        Validate.isTrue( image.length <= MEMORY_SIZE - ENTRY_POINT, "Program is too large" );
+
+        final Memory memory = new Memory( MEMORY_SIZE );
+        memory.write( ENTRY_POINT, image );
+
+        final List<BasicBlock> blocks = ProgramAnalyzer.analyze( memory, ENTRY_POINT );
+        final String hash = hash( image );
+        final String className = CLASS_PREFIX + hash;
+        final byte[] classFile = CodeGenerator.generateProgramClass( className, blocks );
+
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        manifest.getMainAttributes().put( PROGRAM_CLASS, className.replace( '/', '.' ) );
+        manifest.getMainAttributes().put( PROGRAM_HASH, hash );
+
+        final File directory = jarFile.getAbsoluteFile().getParentFile();
+        if ( ! directory.exists() && ! directory.mkdirs() ) {
+            throw new IOException("Failed to create directory "+directory.getAbsolutePath());
+        }
+        final File tmpFile = File.createTempFile( "chip8", ".tmp", directory );
+        try
+        {
+            try ( JarOutputStream out = new JarOutputStream( new FileOutputStream( tmpFile ), manifest ) )
+            {
+                out.putNextEntry( new JarEntry( className + ".class" ) );
+                out.write( classFile );
+                out.closeEntry();
+            }
+            Files.move( tmpFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            Files.deleteIfExists( tmpFile.toPath() );
+        }
+        return blocks;
+    }
+}
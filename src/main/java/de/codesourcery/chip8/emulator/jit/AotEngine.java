@@ -0,0 +1,301 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.CommandQueue;
+import de.codesourcery.chip8.emulator.Emulator;
+import de.codesourcery.chip8.emulator.IExecutionEngine;
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Quirks;
+import org.apache.commons.lang3.Validate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Execution engine that runs {@link AotCompiler ahead-of-time compiled} programs.
+ *
+ * When execution starts, the program currently loaded into memory gets looked up in
+ * the {@link CodeCache}. Cached programs are used right away, everything else gets
+ * translated on a background thread while the program is being interpreted.
+ *
+ * Compiled blocks are checked against the actual memory contents before their first use
+ * and again after every write to memory they cover, blocks that don't match
+ * (self-modifying code) as well as everything that wasn't statically reachable
+ * (computed jumps) gets executed by the interpreter.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see AotCompiler
+ */
+public final class AotEngine implements IExecutionEngine, Memory.IWriteListener
+{
+    private static final byte STATE_UNCHECKED = 0;
+    private static final byte STATE_VALID = 1;
+    private static final byte STATE_INVALID = 2;
+
+    private final CodeCache cache;
+    private final Executor compiler;
+
+    private Emulator emulator;
+    private boolean lookupRequired = true;
+    private CompletableFuture<ICompiledProgram> pending;
+
+    private ICompiledProgram program;
+    private String programHash;
+    private byte[] programImage;
+    private Quirks quirks;
+
+    private long compiledInstructions;
+
+    // all of the following is indexed by memory address
+    private BasicBlock[] blocks = new BasicBlock[0];
+    private byte[] state = new byte[0];
+    // number of blocks covering a given address
+    private int[] coverage = new int[0];
+
+    /**
+     * Create instance using the {@link CodeCache#getDefault() default code cache}.
+     */
+    public AotEngine()
+    {
+        this( CodeCache.getDefault() );
+    }
+
+    /**
+     * Create instance that compiles on the shared background compiler thread.
+     *
+     * @param cache
+     */
+    public AotEngine(CodeCache cache)
+    {
+        this( cache, JitEngine.COMPILER_THREAD );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param cache
+     * @param compiler executor to run compilations on
+     */
+    public AotEngine(CodeCache cache, Executor compiler)
+    {
+        Validate.notNull(cache, "cache must not be null");
+        Validate.notNull(compiler, "compiler must not be null");
+        this.cache = cache;
+        this.compiler = compiler;
+    }
+
+    @Override
+    public void attach(Emulator emulator)
+    {
+        Validate.isTrue( this.emulator == null, "Engine is already attached to an emulator" );
+        this.emulator = emulator;
+        final int size = emulator.memory.getSizeInBytes();
+        blocks = new BasicBlock[ size ];
+        state = new byte[ size ];
+        coverage = new int[ size ];
+        lookupRequired = true;
+        emulator.memory.addWriteListener( this );
+    }
+
+    @Override
+    public void detach(Emulator emulator)
+    {
+        emulator.memory.removeWriteListener( this );
+        this.emulator = null;
+        program = null;
+        programHash = null;
+        pending = null;
+    }
+
+    @Override
+    public void reset()
+    {
+        // program is loaded after the reset, look it up on the next execution.
+        // A compilation still in progress is kept, it gets discarded if a different program is loaded
+        lookupRequired = true;
+    }
+
+    @Override
+    public int execute(Emulator emulator, CommandQueue cmdQueue, int maxInstructions)
+    {
+        if ( lookupRequired ) {
+            lookupProgram();
+        }
+        if ( pending != null && pending.isDone() ) {
+            installProgram();
+        }
+        if ( quirks != emulator.getQuirks() )
+        {
+            quirks = emulator.getQuirks();
+            Arrays.fill( state, STATE_UNCHECKED );
+        }
+
+        int executed = 0;
+        do
+        {
+            final int pc = emulator.pc;
+            final BasicBlock block = blocks[ pc ];
+            if ( block != null && block.length() <= maxInstructions - executed && isValid( block ) )
+            {
+                final int count = program.execute( emulator, pc );
+                compiledInstructions += count;
+                executed += count;
+            }
+            else
+            {
+                emulator.executeOneInstruction( cmdQueue );
+                executed++;
+            }
+        } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+        return executed;
+    }
+
+    private boolean isValid(BasicBlock block)
+    {
+        final int address = block.startAddress;
+        if ( state[ address ] == STATE_UNCHECKED )
+        {
+            boolean valid = block.matches( emulator.memory );
+            for ( int i = 0 ; valid && i < block.length() ; i++ ) {
+                valid = ! quirks.affects( block.opcodes[i] );
+            }
+            state[ address ] = valid ? STATE_VALID : STATE_INVALID;
+        }
+        return state[ address ] == STATE_VALID;
+    }
+
+    private void lookupProgram()
+    {
+        lookupRequired = false;
+        final byte[] image = AotCompiler.image( emulator.memory );
+        final String hash = AotCompiler.hash( image );
+        if ( hash.equals( programHash ) && ( program != null || pending != null ) ) {
+            return;
+        }
+        try
+        {
+            final ICompiledProgram cached = cache.lookup( image );
+            if ( cached != null ) {
+                install( cached, hash, image );
+                return;
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Failed to load compiled program from cache");
+            e.printStackTrace();
+        }
+        install( null, null, null );
+        pending = CompletableFuture.supplyAsync( () ->
+        {
+            try
+            {
+                return cache.getOrCompile( image );
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException( e );
+            }
+        }, compiler );
+        programHash = hash;
+        programImage = image;
+    }
+
+    private void installProgram()
+    {
+        final CompletableFuture<ICompiledProgram> future = pending;
+        pending = null;
+        try
+        {
+            install( future.join(), programHash, programImage );
+        }
+        catch(Exception e)
+        {
+            System.err.println("Failed to compile program");
+            e.printStackTrace();
+        }
+    }
+
+    private void install(ICompiledProgram program,String hash,byte[] image)
+    {
+        this.program = program;
+        this.programHash = hash;
+        this.programImage = image;
+        Arrays.fill( blocks, null );
+        Arrays.fill( state, STATE_UNCHECKED );
+        Arrays.fill( coverage, 0 );
+        if ( program == null ) {
+            return;
+        }
+        final int[] addresses = program.getBlockAddresses();
+        final int[] lengths = program.getBlockLengths();
+        for ( int i = 0 ; i < addresses.length ; i++ )
+        {
+            final int start = addresses[i];
+            final int[] opcodes = new int[ lengths[i] ];
+            // the instructions the program got compiled from, memory might have changed in the meantime
+            for ( int j = 0, offset = start - AotCompiler.ENTRY_POINT ; j < opcodes.length ; j++, offset += 2 ) {
+                opcodes[j] = (read( image, offset ) << 8) | read( image, offset + 1 );
+            }
+            final BasicBlock block = new BasicBlock( start, opcodes );
+            blocks[ start ] = block;
+            for ( int adr = start, end = block.endAddress() ; adr < end ; adr++ ) {
+                coverage[ adr ]++;
+            }
+        }
+    }
+
+    private static int read(byte[] image,int offset) {
+        return offset < image.length ? image[ offset ] & 0xff : 0;
+    }
+
+    @Override
+    public void memoryWritten(int address, int count)
+    {
+        for ( int adr = address, end = address + count ; adr < end ; adr++ )
+        {
+            if ( coverage[ adr ] != 0 )
+            {
+                // check all blocks that might cover the written range again before running them
+                final int first = Math.max( 0, address - BasicBlock.MAX_LENGTH * 2 );
+                Arrays.fill( state, first, end, STATE_UNCHECKED );
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a compiled program is currently being used.
+     *
+     * @return
+     */
+    public boolean hasCompiledProgram() {
+        return program != null;
+    }
+
+    /**
+     * Returns the total number of instructions that were executed by compiled code.
+     *
+     * @return
+     */
+    public long getCompiledInstructionCount() {
+        return compiledInstructions;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Quirks;
+
+import java.util.Arrays;
+
+/**
+ * A straight-line sequence of CHIP-8 instructions that gets translated as a single unit.
+ *
+ * A basic block ends with the first instruction that unconditionally transfers control
+ * (jumps, calls, returns) or that writes to memory. Instructions that cannot be translated
+ * (because they need to suspend the emulation or are illegal) are never part of a block, a
+ * block ends right in front of them instead.
+ *
+ * Conditional skip instructions do <b>not</b> end a block, they get translated into forward branches.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class BasicBlock
+{
+    /**
+     * Max. number of instructions in a single block.
+     */
+    static final int MAX_LENGTH = 64;
+
+    public final int startAddress;
+    public final int[] opcodes;
+
+    BasicBlock(int startAddress, int[] opcodes)
+    {
+        this.startAddress = startAddress;
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * Discovers the basic block starting at a given address.
+     *
+     * @param memory
+     * @param startAddress
+     * @param quirks instructions whose behaviour differs from the default are not translated
+     * @return basic block or <code>null</code> if the instruction at the start address cannot be translated
+     */
+    public static BasicBlock discover(Memory memory,int startAddress,Quirks quirks)
+    {
+        final int[] buffer = new int[ MAX_LENGTH ];
+        int count = 0;
+        for ( int adr = startAddress ; count < MAX_LENGTH && adr + 1 < memory.getSizeInBytes() ; adr += 2 )
+        {
+            final int opcode = memory.read( adr ) << 8 | memory.read( adr + 1 );
+            if ( ! isTranslatable( opcode ) || quirks.affects( opcode ) ) {
+                break;
+            }
+            buffer[count++] = opcode;
+            if ( endsBlock( opcode ) ) {
+                break;
+            }
+        }
+        return count == 0 ? null : new BasicBlock( startAddress, Arrays.copyOf( buffer, count ) );
+    }
+
+    /**
+     * Returns the number of instructions in this block.
+     *
+     * @return
+     */
+    public int length() {
+        return opcodes.length;
+    }
+
+    /**
+     * Returns the address of the instruction following the last instruction of this block.
+     *
+     * @return
+     */
+    public int endAddress() {
+        return startAddress + opcodes.length * 2;
+    }
+
+    /**
+     * Returns the address of the n-th instruction in this block.
+     *
+     * @param index
+     * @return
+     */
+    public int address(int index) {
+        return startAddress + index * 2;
+    }
+
+    /**
+     * Check whether this block's instructions still match the contents of a given memory.
+     *
+     * @param memory
+     * @return
+     */
+    public boolean matches(Memory memory)
+    {
+        for ( int i = 0, adr = startAddress ; i < opcodes.length ; i++, adr+= 2 )
+        {
+            if ( opcodes[i] != ( memory.read( adr ) << 8 | memory.read( adr + 1 ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether a given address is covered by this block.
+     *
+     * @param address
+     * @return
+     */
+    public boolean contains(int address) {
+        return address >= startAddress && address < endAddress();
+    }
+
+    /**
+     * Check whether an instruction can be translated into bytecode.
+     *
+     * Instructions that suspend the emulation (<code>FX0A</code>,<code>FX15</code>)
+     * or are illegal are always executed by the interpreter.
+     *
+     * @param opcode
+     * @return
+     */
+    static boolean isTranslatable(int opcode)
+    {
+        switch( opcode & 0xf000 )
+        {
+            case 0x0000:
+                return opcode == 0x00e0 || opcode == 0x00ee;
+            case 0x8000:
+                final int n = opcode & 0x000f;
+                return n <= 7 || n == 0x0e;
+            case 0xe000:
+                return (opcode & 0xff) == 0x9e || (opcode & 0xff) == 0xa1;
+            case 0xf000:
+                switch( opcode & 0xff )
+                {
+                    case 0x07:
+                    case 0x18:
+                    case 0x1e:
+                    case 0x29:
+                    case 0x33:
+                    case 0x55:
+                    case 0x65:
+                        return true;
+                    default:
+                        return false;
+                }
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Check whether an instruction unconditionally ends a basic block.
+     *
+     * @param opcode
+     * @return
+     */
+    static boolean endsBlock(int opcode)
+    {
+        switch( opcode & 0xf000 )
+        {
+            case 0x0000:
+                return opcode == 0x00ee;
+            case 0x1000:
+            case 0x2000:
+            case 0xb000:
+                return true;
+            case 0xf000:
+                // instructions that write to memory might modify the block itself
+                return (opcode & 0xff) == 0x33 || (opcode & 0xff) == 0x55;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check whether an instruction is a conditional skip.
+     *
+     * @param opcode
+     * @return
+     */
+    static boolean isSkip(int opcode)
+    {
+        switch( opcode & 0xf000 )
+        {
+            case 0x3000:
+            case 0x4000:
+            case 0x5000:
+            case 0x9000:
+            case 0xe000:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BasicBlock[ 0x"+Integer.toHexString( startAddress )+" - 0x"+Integer.toHexString( endAddress() )+", "+length()+" instructions ]";
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * On-disk cache of {@link AotCompiler ahead-of-time compiled} programs.
+ *
+ * Entries are keyed by the hash of the program image so that a program only
+ * needs to be translated once, no matter where it got loaded from.
+ *
+ * The default cache directory is <code>$HOME/.chip8/aot-cache</code>, this can be
+ * changed using the <code>{@value #CACHE_DIR_PROPERTY}</code> system property.
+ *
+ * Programs loaded from disk are kept in memory, so looking up the same program
+ * again (after a reset, for example) neither opens the jar nor defines its class again.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class CodeCache
+{
+    /**
+     * System property that may be used to override the default cache directory.
+     */
+    public static final String CACHE_DIR_PROPERTY = "chip8.aotCache";
+
+    // programs that got loaded already, by jar file
+    private static final Map<File,ICompiledProgram> LOADED = new ConcurrentHashMap<>();
+
+    private final File directory;
+
+    /**
+     * Create instance.
+     *
+     * @param directory directory to store compiled programs in, gets created if it doesn't exist
+     */
+    public CodeCache(File directory)
+    {
+        Validate.notNull(directory, "directory must not be null");
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the default cache.
+     *
+     * @return
+     * @see #CACHE_DIR_PROPERTY
+     */
+    public static CodeCache getDefault()
+    {
+        final String dir = System.getProperty( CACHE_DIR_PROPERTY );
+        if ( dir != null ) {
+            return new CodeCache( new File( dir ) );
+        }
+        return new CodeCache( new File( System.getProperty( "user.home" ), ".chip8/aot-cache" ) );
+    }
+
+    /**
+     * Returns the jar file used to store the translation of a program with a given hash.
+     *
+     * @param hash
+     * @return
+     * @see AotCompiler#hash(byte[])
+     */
+    public File getJarFile(String hash)
+    {
+        return new File( directory, hash + "-v" + AotCompiler.FORMAT_VERSION + ".jar" );
+    }
+
+    /**
+     * Looks up the translation of a program image.
+     *
+     * @param image
+     * @return translated program or <code>null</code> if the program is not in the cache
+     * @throws IOException
+     */
+    public ICompiledProgram lookup(byte[] image) throws IOException
+    {
+        final File file = getJarFile( AotCompiler.hash( image ) );
+        final ICompiledProgram program = LOADED.get( file );
+        if ( program != null ) {
+            return program;
+        }
+        return file.exists() ? remember( file, load( file ) ) : null;
+    }
+
+    /**
+     * Looks up the translation of a program image, translating it
+     * and storing the result in the cache if necessary.
+     *
+     * @param image
+     * @return
+     * @throws IOException
+     */
+    public ICompiledProgram getOrCompile(byte[] image) throws IOException
+    {
+        final ICompiledProgram existing = lookup( image );
+        if ( existing != null ) {
+            return existing;
+        }
+        final File file = getJarFile( AotCompiler.hash( image ) );
+        AotCompiler.compile( image, file );
+        return remember( file, load( file ) );
+    }
+
+    private static ICompiledProgram remember(File jarFile,ICompiledProgram program)
+    {
+        final ICompiledProgram existing = LOADED.putIfAbsent( jarFile, program );
+        return existing != null ? existing : program;
+    }
+
+    /**
+     * Loads a program from a jar file created by {@link AotCompiler}.
+     *
+     * @param jarFile
+     * @return
+     * @throws IOException
+     */
+    public static ICompiledProgram load(File jarFile) throws IOException
+    {
+        final String className;
+        try ( JarFile jar = new JarFile( jarFile ) )
+        {
+            final Manifest manifest = jar.getManifest();
+            final Attributes attributes = manifest == null ? null : manifest.getMainAttributes();
+            className = attributes == null ? null : attributes.getValue( AotCompiler.PROGRAM_CLASS );
+        }
+        if ( className == null ) {
+            throw new IOException("Not a compiled CHIP-8 program: "+jarFile.getAbsolutePath());
+        }
+        // the jar holds nothing but the program class, so the loader (and the jar file it keeps open)
+        // is no longer needed once the class got defined
+        try ( URLClassLoader loader = new URLClassLoader( new URL[] { jarFile.toURI().toURL() }, CodeCache.class.getClassLoader() ) )
+        {
+            return (ICompiledProgram) loader.loadClass( className ).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e)
+        {
+            throw new IOException("Failed to load "+className+" from "+jarFile.getAbsolutePath(), e );
+        }
+    }
+}
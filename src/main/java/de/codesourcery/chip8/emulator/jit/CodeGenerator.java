@@ -0,0 +1,720 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Emulator;
+import de.codesourcery.chip8.emulator.Keyboard;
+import de.codesourcery.chip8.emulator.Screen;
+import de.codesourcery.chip8.emulator.Timer;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Translates a {@link BasicBlock} into JVM bytecode.
+ *
+ * The generated code keeps all CHIP-8 registers (including the index register) in
+ * local variables and only writes them back to the {@link Emulator} when leaving the block
+ * or before calling a helper method that needs to see them.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see JitRuntime
+ */
+final class CodeGenerator
+{
+    private static final String EMULATOR = Type.getInternalName( Emulator.class );
+    private static final String EMULATOR_DESC = Type.getDescriptor( Emulator.class );
+    private static final String RUNTIME = Type.getInternalName( JitRuntime.class );
+
+    private final MethodVisitor mv;
+    private final BasicBlock block;
+
+    // local variable slots
+    private final int emulator;
+    private final int registers;
+    private final int skipped;
+    private final int firstRegister;
+    private final int index;
+    private final int tmp;
+
+    private final boolean[] usedRegisters = new boolean[16];
+    private final boolean[] writtenRegisters = new boolean[16];
+    private boolean indexWritten;
+
+    private Label[] labels;
+
+    /**
+     * Create instance.
+     *
+     * @param mv method visitor to write to, the method must return an <code>int</code>
+     * @param block block to translate
+     * @param emulatorLocal local variable slot holding the {@link Emulator} instance, all slots above are used
+     *                      by the generated code
+     */
+    CodeGenerator(MethodVisitor mv,BasicBlock block,int emulatorLocal)
+    {
+        this.mv = mv;
+        this.block = block;
+        this.emulator = emulatorLocal;
+        this.registers = emulatorLocal + 1;
+        this.skipped = emulatorLocal + 2;
+        this.index = emulatorLocal + 3;
+        this.tmp = emulatorLocal + 4;
+        this.firstRegister = emulatorLocal + 5;
+    }
+
+    /**
+     * Generates a class implementing {@link ICompiledBlock}.
+     *
+     * @param internalClassName internal name of the class to generate
+     * @param block
+     * @return class file
+     */
+    static byte[] generateClass(String internalClassName,BasicBlock block)
+    {
+        final ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS );
+        cw.visit( V11, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, internalClassName, null, "java/lang/Object",
+                new String[] { Type.getInternalName( ICompiledBlock.class ) } );
+
+        final MethodVisitor init = cw.visitMethod( ACC_PUBLIC, "<init>", "()V", null, null );
+        init.visitCode();
+        init.visitVarInsn( ALOAD, 0 );
+        init.visitMethodInsn( INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false );
+        init.visitInsn( RETURN );
+        init.visitMaxs( 0, 0 );
+        init.visitEnd();
+
+        final MethodVisitor mv = cw.visitMethod( ACC_PUBLIC, "execute", "(" + EMULATOR_DESC + ")I", null, null );
+        new CodeGenerator( mv, block, 1 ).generate();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Generates a class implementing {@link ICompiledProgram}.
+     *
+     * Every block gets translated into a static method of its own, {@link ICompiledProgram#execute(Emulator, int)}
+     * dispatches to these methods using a <code>switch</code> on the block start address.
+     *
+     * @param internalClassName internal name of the class to generate
+     * @param blocks blocks to translate, ordered ascending by start address
+     * @return class file
+     */
+    static byte[] generateProgramClass(String internalClassName, List<BasicBlock> blocks)
+    {
+        final ClassWriter cw = new ClassWriter( ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS );
+        cw.visit( V11, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, internalClassName, null, "java/lang/Object",
+                new String[] { Type.getInternalName( ICompiledProgram.class ) } );
+
+        final MethodVisitor init = cw.visitMethod( ACC_PUBLIC, "<init>", "()V", null, null );
+        init.visitCode();
+        init.visitVarInsn( ALOAD, 0 );
+        init.visitMethodInsn( INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false );
+        init.visitInsn( RETURN );
+        init.visitMaxs( 0, 0 );
+        init.visitEnd();
+
+        final int[] addresses = blocks.stream().mapToInt( b -> b.startAddress ).toArray();
+        generateArrayGetter( cw, "getBlockAddresses", addresses );
+        generateArrayGetter( cw, "getBlockLengths", blocks.stream().mapToInt( BasicBlock::length ).toArray() );
+
+        // dispatcher
+        final MethodVisitor mv = cw.visitMethod( ACC_PUBLIC, "execute", "(" + EMULATOR_DESC + "I)I", null, null );
+        mv.visitCode();
+        final Label unknownBlock = new Label();
+        final Label[] targets = new Label[ blocks.size() ];
+        for ( int i = 0 ; i < targets.length ; i++ ) {
+            targets[i] = new Label();
+        }
+        mv.visitVarInsn( ILOAD, 2 );
+        mv.visitLookupSwitchInsn( unknownBlock, addresses, targets );
+        for ( int i = 0 ; i < targets.length ; i++ )
+        {
+            mv.visitLabel( targets[i] );
+            mv.visitVarInsn( ALOAD, 1 );
+            mv.visitMethodInsn( INVOKESTATIC, internalClassName, blockMethodName( addresses[i] ), "(" + EMULATOR_DESC + ")I", false );
+            mv.visitInsn( IRETURN );
+        }
+        mv.visitLabel( unknownBlock );
+        mv.visitTypeInsn( NEW, "java/lang/IllegalArgumentException" );
+        mv.visitInsn( DUP );
+        mv.visitLdcInsn( "No compiled block at this address" );
+        mv.visitMethodInsn( INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "(Ljava/lang/String;)V", false );
+        mv.visitInsn( ATHROW );
+        mv.visitMaxs( 0, 0 );
+        mv.visitEnd();
+
+        for ( BasicBlock block : blocks )
+        {
+            final MethodVisitor blockMethod = cw.visitMethod( ACC_PRIVATE | ACC_STATIC, blockMethodName( block.startAddress ),
+                    "(" + EMULATOR_DESC + ")I", null, null );
+            new CodeGenerator( blockMethod, block, 0 ).generate();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String blockMethodName(int address) {
+        return "block_" + Integer.toHexString( address );
+    }
+
+    private static void generateArrayGetter(ClassWriter cw,String methodName,int[] values)
+    {
+        final MethodVisitor mv = cw.visitMethod( ACC_PUBLIC, methodName, "()[I", null, null );
+        final CodeGenerator gen = new CodeGenerator( mv, null, 0 );
+        mv.visitCode();
+        gen.push( values.length );
+        mv.visitIntInsn( NEWARRAY, T_INT );
+        for ( int i = 0 ; i < values.length ; i++ )
+        {
+            mv.visitInsn( DUP );
+            gen.push( i );
+            gen.push( values[i] );
+            mv.visitInsn( IASTORE );
+        }
+        mv.visitInsn( ARETURN );
+        mv.visitMaxs( 0, 0 );
+        mv.visitEnd();
+    }
+
+    /**
+     * Generates the method body.
+     */
+    void generate()
+    {
+        analyze();
+
+        mv.visitCode();
+
+        // prologue
+        mv.visitVarInsn( ALOAD, emulator );
+        mv.visitFieldInsn( GETFIELD, EMULATOR, "register", "[I" );
+        mv.visitVarInsn( ASTORE, registers );
+        mv.visitInsn( ICONST_0 );
+        mv.visitVarInsn( ISTORE, skipped );
+        mv.visitVarInsn( ALOAD, emulator );
+        mv.visitFieldInsn( GETFIELD, EMULATOR, "index", "I" );
+        mv.visitVarInsn( ISTORE, index );
+        for ( int r = 0 ; r < 16 ; r++ )
+        {
+            if ( usedRegisters[r] ) {
+                loadRegister( r );
+            }
+        }
+
+        final int len = block.length();
+        labels = new Label[ len + 1 ];
+        for ( int i = 0 ; i <= len ; i++ ) {
+            labels[i] = new Label();
+        }
+
+        for ( int i = 0 ; i < len ; i++ )
+        {
+            mv.visitLabel( labels[i] );
+            translate( i );
+        }
+
+        // fell off the end of the block
+        mv.visitLabel( labels[len] );
+        writeBack();
+        setPC( block.endAddress() );
+        exit( len );
+
+        mv.visitMaxs( 0, 0 );
+        mv.visitEnd();
+    }
+
+    private void analyze()
+    {
+        for ( int opcode : block.opcodes )
+        {
+            final int x = (opcode >>> 8) & 0x0f;
+            final int y = (opcode >>> 4) & 0x0f;
+            switch( opcode & 0xf000 )
+            {
+                case 0x3000:
+                case 0x4000:
+                case 0xe000:
+                    usedRegisters[x] = true;
+                    break;
+                case 0x5000:
+                case 0x9000:
+                    usedRegisters[x] = usedRegisters[y] = true;
+                    break;
+                case 0x6000:
+                case 0x7000:
+                case 0xc000:
+                    written( x );
+                    break;
+                case 0x8000:
+                    usedRegisters[y] = true;
+                    written( x );
+                    switch( opcode & 0x0f )
+                    {
+                        case 0x06:
+                        case 0x0e:
+                            written( y );
+                            written( 0x0f );
+                            break;
+                        case 0x04:
+                        case 0x05:
+                        case 0x07:
+                            written( 0x0f );
+                    }
+                    break;
+                case 0xa000:
+                    indexWritten = true;
+                    break;
+                case 0xb000:
+                    usedRegisters[0] = true;
+                    break;
+                case 0xd000:
+                    usedRegisters[x] = usedRegisters[y] = true;
+                    written( 0x0f );
+                    break;
+                case 0xf000:
+                    switch( opcode & 0xff )
+                    {
+                        case 0x07:
+                            written( x );
+                            break;
+                        case 0x1e:
+                        case 0x29:
+                            usedRegisters[x] = true;
+                            indexWritten = true;
+                            break;
+                        case 0x55:
+                            for ( int r = 0 ; r <= x ; r++ ) {
+                                usedRegisters[r] = true;
+                            }
+                            indexWritten = true;
+                            break;
+                        case 0x65:
+                            for ( int r = 0 ; r <= x ; r++ ) {
+                                written( r );
+                            }
+                            indexWritten = true;
+                            break;
+                        default:
+                            usedRegisters[x] = true;
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void written(int register)
+    {
+        usedRegisters[register] = true;
+        writtenRegisters[register] = true;
+    }
+
+    private void translate(int i)
+    {
+        final int opcode = block.opcodes[i];
+        final int address = block.address( i );
+        final int x = (opcode >>> 8) & 0x0f;
+        final int y = (opcode >>> 4) & 0x0f;
+        final int n = opcode & 0x0f;
+        final int nn = opcode & 0xff;
+        final int nnn = opcode & 0xfff;
+
+        switch( opcode & 0xf000 )
+        {
+            case 0x0000:
+                if ( opcode == 0x00e0 )
+                {
+                    mv.visitVarInsn( ALOAD, emulator );
+                    mv.visitFieldInsn( GETFIELD, EMULATOR, "screen", Type.getDescriptor( Screen.class ) );
+                    mv.visitMethodInsn( INVOKEVIRTUAL, Type.getInternalName( Screen.class ), "clear", "()V", false );
+                }
+                else
+                {
+                    // 00EE
+                    writeBack();
+                    mv.visitVarInsn( ALOAD, emulator );
+                    mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "ret", "(" + EMULATOR_DESC + ")V", false );
+                    exit( i + 1 );
+                }
+                break;
+            case 0x1000:
+                writeBack();
+                setPC( nnn );
+                exit( i + 1 );
+                break;
+            case 0x2000:
+                writeBack();
+                mv.visitVarInsn( ALOAD, emulator );
+                push( address + 2 );
+                push( nnn );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "call", "(" + EMULATOR_DESC + "II)V", false );
+                exit( i + 1 );
+                break;
+            case 0x3000:
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                push( nn );
+                skip( IF_ICMPNE, i );
+                break;
+            case 0x4000:
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                push( nn );
+                skip( IF_ICMPEQ, i );
+                break;
+            case 0x5000:
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                skip( IF_ICMPNE, i );
+                break;
+            case 0x6000:
+                push( nn );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x7000:
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                push( nn );
+                mv.visitInsn( IADD );
+                push( 0xff );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x8000:
+                translateArithmetic( x, y, n );
+                break;
+            case 0x9000:
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                skip( IF_ICMPEQ, i );
+                break;
+            case 0xa000:
+                push( nnn );
+                mv.visitVarInsn( ISTORE, index );
+                break;
+            case 0xb000:
+                writeBack();
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitVarInsn( ILOAD, reg( 0 ) );
+                push( nnn );
+                mv.visitInsn( IADD );
+                push( 0xfff );
+                mv.visitInsn( IAND );
+                mv.visitFieldInsn( PUTFIELD, EMULATOR, "pc", "I" );
+                exit( i + 1 );
+                break;
+            case 0xc000:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitMethodInsn( INVOKEVIRTUAL, EMULATOR, "randomByte", "()I", false );
+                push( nn );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0xd000:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                push( n );
+                mv.visitVarInsn( ILOAD, index );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "drawSprite", "(" + EMULATOR_DESC + "IIII)I", false );
+                mv.visitVarInsn( ISTORE, reg( 0x0f ) );
+                break;
+            case 0xe000:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitFieldInsn( GETFIELD, EMULATOR, "keyboard", Type.getDescriptor( Keyboard.class ) );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitMethodInsn( INVOKEVIRTUAL, Type.getInternalName( Keyboard.class ), "isKeyPressed", "(I)Z", false );
+                // EX9E skips if pressed, EXA1 skips if not pressed
+                skip( nn == 0x9e ? IFEQ : IFNE, i );
+                break;
+            case 0xf000:
+                translateMisc( x, nn );
+                break;
+            default:
+                throw new IllegalArgumentException( "Unhandled opcode 0x" + Integer.toHexString( opcode ) );
+        }
+    }
+
+    private void translateArithmetic(int x,int y,int n)
+    {
+        switch( n )
+        {
+            case 0x00:
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x01:
+                binaryOp( x, y, IOR );
+                break;
+            case 0x02:
+                binaryOp( x, y, IAND );
+                break;
+            case 0x03:
+                binaryOp( x, y, IXOR );
+                break;
+            case 0x04:
+                // registers only hold values 0...255, so the carry is simply bit 8 of the sum
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitInsn( IADD );
+                mv.visitVarInsn( ISTORE, tmp );
+                mv.visitVarInsn( ILOAD, tmp );
+                push( 8 );
+                mv.visitInsn( IUSHR );
+                mv.visitVarInsn( ISTORE, reg( 0x0f ) );
+                mv.visitVarInsn( ILOAD, tmp );
+                push( 0xff );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x05:
+                notBorrow( y, x );
+                subtract( x, x, y );
+                break;
+            case 0x06:
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitInsn( ICONST_1 );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( 0x0f ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitInsn( ICONST_1 );
+                mv.visitInsn( IUSHR );
+                mv.visitVarInsn( ISTORE, reg( y ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x07:
+                notBorrow( x, y );
+                subtract( x, y, x );
+                break;
+            case 0x0e:
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                push( 0x80 );
+                mv.visitInsn( IAND );
+                push( 7 );
+                mv.visitInsn( IUSHR );
+                mv.visitVarInsn( ISTORE, reg( 0x0f ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitInsn( ICONST_1 );
+                mv.visitInsn( ISHL );
+                push( 0xff );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( y ) );
+                mv.visitVarInsn( ILOAD, reg( y ) );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            default:
+                throw new IllegalArgumentException( "Unhandled opcode 0x8" + Integer.toHexString( x ) + Integer.toHexString( y ) + Integer.toHexString( n ) );
+        }
+    }
+
+    private void translateMisc(int x,int nn)
+    {
+        switch( nn )
+        {
+            case 0x07:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitFieldInsn( GETFIELD, EMULATOR, "delayTimer", Type.getDescriptor( Timer.class ) );
+                mv.visitMethodInsn( INVOKEVIRTUAL, Type.getInternalName( Timer.class ), "value", "()I", false );
+                push( 0xff );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, reg( x ) );
+                break;
+            case 0x18:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "setSoundTimer", "(" + EMULATOR_DESC + "I)V", false );
+                break;
+            case 0x1e:
+                mv.visitVarInsn( ILOAD, index );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitInsn( IADD );
+                push( 0xfff );
+                mv.visitInsn( IAND );
+                mv.visitVarInsn( ISTORE, index );
+                break;
+            case 0x29:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitFieldInsn( GETFIELD, EMULATOR, "screen", Type.getDescriptor( Screen.class ) );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitMethodInsn( INVOKEVIRTUAL, Type.getInternalName( Screen.class ), "getGlyphAddr", "(I)I", false );
+                mv.visitVarInsn( ISTORE, index );
+                break;
+            case 0x33:
+                mv.visitVarInsn( ALOAD, emulator );
+                mv.visitVarInsn( ILOAD, index );
+                mv.visitVarInsn( ILOAD, reg( x ) );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "storeBCD", "(" + EMULATOR_DESC + "II)V", false );
+                break;
+            case 0x55:
+                writeBack();
+                mv.visitVarInsn( ALOAD, emulator );
+                push( x );
+                mv.visitVarInsn( ILOAD, index );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "storeRegisters", "(" + EMULATOR_DESC + "II)I", false );
+                mv.visitVarInsn( ISTORE, index );
+                break;
+            case 0x65:
+                mv.visitVarInsn( ALOAD, emulator );
+                push( x );
+                mv.visitVarInsn( ILOAD, index );
+                mv.visitMethodInsn( INVOKESTATIC, RUNTIME, "loadRegisters", "(" + EMULATOR_DESC + "II)I", false );
+                mv.visitVarInsn( ISTORE, index );
+                for ( int r = 0 ; r <= x ; r++ ) {
+                    loadRegister( r );
+                }
+                break;
+            default:
+                throw new IllegalArgumentException( "Unhandled opcode 0xf" + Integer.toHexString( x ) + Integer.toHexString( nn ) );
+        }
+    }
+
+    private void binaryOp(int x,int y,int op)
+    {
+        mv.visitVarInsn( ILOAD, reg( x ) );
+        mv.visitVarInsn( ILOAD, reg( y ) );
+        mv.visitInsn( op );
+        if ( op == IXOR ) {
+            push( 0xff );
+            mv.visitInsn( IAND );
+        }
+        mv.visitVarInsn( ISTORE, reg( x ) );
+    }
+
+    /*
+     * VF = a > b ? 0 : 1
+     *
+     * Since registers only hold values 0...255, (a - b - 1) is negative
+     * if and only if a <= b.
+     */
+    private void notBorrow(int a,int b)
+    {
+        mv.visitVarInsn( ILOAD, reg( a ) );
+        mv.visitVarInsn( ILOAD, reg( b ) );
+        mv.visitInsn( ISUB );
+        mv.visitInsn( ICONST_1 );
+        mv.visitInsn( ISUB );
+        push( 31 );
+        mv.visitInsn( IUSHR );
+        mv.visitVarInsn( ISTORE, reg( 0x0f ) );
+    }
+
+    // V[destination] = (V[a] - V[b]) & 0xff
+    private void subtract(int destination,int a,int b)
+    {
+        mv.visitVarInsn( ILOAD, reg( a ) );
+        mv.visitVarInsn( ILOAD, reg( b ) );
+        mv.visitInsn( ISUB );
+        push( 0xff );
+        mv.visitInsn( IAND );
+        mv.visitVarInsn( ISTORE, reg( destination ) );
+    }
+
+    /**
+     * Emits a conditional skip.
+     *
+     * Expects the operands of the comparison on the operand stack.
+     *
+     * @param notTakenOpcode jump instruction that branches if the skip is <b>not</b> taken
+     * @param i index of the skip instruction within the block
+     */
+    private void skip(int notTakenOpcode,int i)
+    {
+        mv.visitJumpInsn( notTakenOpcode, labels[ i + 1 ] );
+        if ( i + 2 <= block.length() )
+        {
+            mv.visitIincInsn( skipped, 1 );
+            mv.visitJumpInsn( GOTO, labels[ i + 2 ] );
+        }
+        else
+        {
+            // skip target lies outside of this block
+            writeBack();
+            setPC( block.address( i ) + 4 );
+            exit( i + 1 );
+        }
+    }
+
+    /*
+     * Writes all registers modified by this block back to the emulator.
+     */
+    private void writeBack()
+    {
+        for ( int r = 0 ; r < 16 ; r++ )
+        {
+            if ( writtenRegisters[r] )
+            {
+                mv.visitVarInsn( ALOAD, registers );
+                push( r );
+                mv.visitVarInsn( ILOAD, reg( r ) );
+                mv.visitInsn( IASTORE );
+            }
+        }
+        if ( indexWritten )
+        {
+            mv.visitVarInsn( ALOAD, emulator );
+            mv.visitVarInsn( ILOAD, index );
+            mv.visitFieldInsn( PUTFIELD, EMULATOR, "index", "I" );
+        }
+    }
+
+    private void setPC(int value)
+    {
+        mv.visitVarInsn( ALOAD, emulator );
+        push( value );
+        mv.visitFieldInsn( PUTFIELD, EMULATOR, "pc", "I" );
+    }
+
+    /*
+     * Returns the number of executed instructions, given the number of
+     * instructions up to (and including) the current one.
+     */
+    private void exit(int instructionCount)
+    {
+        push( instructionCount );
+        mv.visitVarInsn( ILOAD, skipped );
+        mv.visitInsn( ISUB );
+        mv.visitInsn( IRETURN );
+    }
+
+    private void loadRegister(int r)
+    {
+        mv.visitVarInsn( ALOAD, registers );
+        push( r );
+        mv.visitInsn( IALOAD );
+        mv.visitVarInsn( ISTORE, reg( r ) );
+    }
+
+    private int reg(int r) {
+        return firstRegister + r;
+    }
+
+    private void push(int value)
+    {
+        if ( value >= -1 && value <= 5 ) {
+            mv.visitInsn( ICONST_0 + value );
+        } else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            mv.visitIntInsn( BIPUSH, value );
+        } else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            mv.visitIntInsn( SIPUSH, value );
+        } else {
+            mv.visitLdcInsn( value );
+        }
+    }
+}
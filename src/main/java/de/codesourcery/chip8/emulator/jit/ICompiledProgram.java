@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Emulator;
+
+/**
+ * A whole CHIP-8 program that got translated ahead-of-time into JVM bytecode.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see AotCompiler
+ */
+public interface ICompiledProgram
+{
+    /**
+     * Returns the start addresses of all translated basic blocks, in ascending order.
+     *
+     * @return
+     */
+    int[] getBlockAddresses();
+
+    /**
+     * Returns the number of instructions of each translated basic block.
+     *
+     * @return block lengths, in the same order as {@link #getBlockAddresses()}
+     */
+    int[] getBlockLengths();
+
+    /**
+     * Executes the block starting at a given address.
+     *
+     * When this method returns, the emulator's PC points to the next instruction to execute and all
+     * registers have been written back to the emulator.
+     *
+     * @param emulator
+     * @param address block start address, must be one of {@link #getBlockAddresses()}
+     * @return number of instructions that got executed
+     */
+    int execute(Emulator emulator,int address);
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.CommandQueue;
+import de.codesourcery.chip8.emulator.Emulator;
+import de.codesourcery.chip8.emulator.IExecutionEngine;
+import de.codesourcery.chip8.emulator.Memory;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Execution engine that translates frequently executed basic blocks into JVM bytecode.
+ *
+ * Instructions are interpreted until the number of times a block entry point
+ * (any address reached by a jump, call, return or taken skip) got executed crosses a threshold.
+ * The block starting at this address is then handed to a background compiler thread
+ * and installed as soon as the translation finished.
+ *
+ * Every generated class gets its own class loader so that the class can be garbage-collected
+ * as soon as the block gets invalidated.
+ *
+ * Writes to memory covered by a compiled block invalidate the block, blocks that get
+ * invalidated too often are never compiled again.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see BasicBlock
+ * @see CodeGenerator
+ */
+public final class JitEngine implements IExecutionEngine, Memory.IWriteListener
+{
+    /**
+     * Number of times a block entry needs to be executed before it gets compiled.
+     */
+    public static final int DEFAULT_HOT_THRESHOLD = 200;
+
+    /**
+     * Max. number of times a block may get invalidated before we stop compiling it.
+     */
+    private static final int MAX_INVALIDATIONS = 8;
+
+    private static final byte STATE_INTERPRETED = 0;
+    private static final byte STATE_PENDING = 1;
+    private static final byte STATE_COMPILED = 2;
+    private static final byte STATE_BLACKLISTED = 3;
+
+    private static final String CLASS_PREFIX = "de/codesourcery/chip8/emulator/jit/generated/Block_";
+    private static final AtomicLong CLASS_ID = new AtomicLong();
+
+    static final ExecutorService COMPILER_THREAD = Executors.newSingleThreadExecutor( r ->
+    {
+        final Thread t = new Thread( r, "jit-compiler" );
+        t.setDaemon( true );
+        return t;
+    });
+
+    private static final class CompilationResult
+    {
+        public final BasicBlock block;
+        public final ICompiledBlock compiled;
+
+        private CompilationResult(BasicBlock block, ICompiledBlock compiled)
+        {
+            this.block = block;
+            this.compiled = compiled;
+        }
+    }
+
+    private static final class BlockClassLoader extends ClassLoader
+    {
+        BlockClassLoader() {
+            super( JitEngine.class.getClassLoader() );
+        }
+
+        Class<?> define(String internalName,byte[] classFile) {
+            return defineClass( internalName.replace('/','.'), classFile, 0, classFile.length );
+        }
+    }
+
+    private final Executor compiler;
+    private final int hotThreshold;
+
+    // compilation results, written by the compiler thread
+    private final ConcurrentLinkedQueue<CompilationResult> results = new ConcurrentLinkedQueue<>();
+
+    private Emulator emulator;
+
+    // all of the following is indexed by memory address
+    private ICompiledBlock[] compiled = new ICompiledBlock[0];
+    private int[] blockLength = new int[0];
+    private int[] entryCount = new int[0];
+    private int[] invalidations = new int[0];
+    private byte[] state = new byte[0];
+    // number of compiled blocks covering a given address
+    private int[] coverage = new int[0];
+
+    private final List<BasicBlock> installed = new ArrayList<>();
+
+    private long compiledBlocks;
+    private long invalidatedBlocks;
+
+    /**
+     * Create instance that compiles on the shared background compiler thread.
+     */
+    public JitEngine()
+    {
+        this( COMPILER_THREAD, DEFAULT_HOT_THRESHOLD );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param compiler executor to run compilations on
+     * @param hotThreshold number of times a block entry needs to be executed before it gets compiled
+     */
+    public JitEngine(Executor compiler, int hotThreshold)
+    {
+        Validate.notNull(compiler, "compiler must not be null");
+        Validate.isTrue( hotThreshold > 0, "hot threshold must be > 0" );
+        this.compiler = compiler;
+        this.hotThreshold = hotThreshold;
+    }
+
+    @Override
+    public void attach(Emulator emulator)
+    {
+        Validate.isTrue( this.emulator == null, "Engine is already attached to an emulator" );
+        this.emulator = emulator;
+        final int size = emulator.memory.getSizeInBytes();
+        compiled = new ICompiledBlock[ size ];
+        blockLength = new int[ size ];
+        entryCount = new int[ size ];
+        invalidations = new int[ size ];
+        state = new byte[ size ];
+        coverage = new int[ size ];
+        emulator.memory.addWriteListener( this );
+    }
+
+    @Override
+    public void detach(Emulator emulator)
+    {
+        emulator.memory.removeWriteListener( this );
+        reset();
+        this.emulator = null;
+    }
+
+    @Override
+    public void reset()
+    {
+        Arrays.fill( compiled, null );
+        Arrays.fill( blockLength, 0 );
+        Arrays.fill( entryCount, 0 );
+        Arrays.fill( invalidations, 0 );
+        Arrays.fill( state, STATE_INTERPRETED );
+        Arrays.fill( coverage, 0 );
+        installed.clear();
+    }
+
+    @Override
+    public int execute(Emulator emulator, CommandQueue cmdQueue, int maxInstructions)
+    {
+        final Memory memory = emulator.memory;
+        int executed = 0;
+        do
+        {
+            final int pc = emulator.pc;
+            ICompiledBlock block = compiled[ pc ];
+            if ( block == null && ! results.isEmpty() )
+            {
+                installCompiledBlocks();
+                block = compiled[ pc ];
+            }
+            if ( block != null && blockLength[ pc ] <= maxInstructions - executed )
+            {
+                executed += block.execute( emulator );
+                blockEntered( emulator.pc );
+            }
+            else
+            {
+                final int opcode = memory.read( pc ) << 8 | memory.read( pc + 1 );
+                emulator.executeOneInstruction( cmdQueue );
+                executed++;
+                if ( emulator.pc != pc + 2 || ! BasicBlock.isTranslatable( opcode ) ||
+                     BasicBlock.endsBlock( opcode ) || emulator.getQuirks().affects( opcode ) )
+                {
+                    blockEntered( emulator.pc );
+                }
+            }
+        } while ( executed < maxInstructions && ! cmdQueue.isWaiting() );
+        return executed;
+    }
+
+    private void blockEntered(int address)
+    {
+        if ( address < entryCount.length && ++entryCount[ address ] == hotThreshold && state[ address ] == STATE_INTERPRETED )
+        {
+            final BasicBlock block = BasicBlock.discover( emulator.memory, address, emulator.getQuirks() );
+            if ( block == null ) {
+                state[ address ] = STATE_BLACKLISTED;
+                return;
+            }
+            state[ address ] = STATE_PENDING;
+            compiler.execute( () -> results.add( new CompilationResult( block, compile( block ) ) ) );
+        }
+    }
+
+    /**
+     * Translates a basic block.
+     *
+     * @param block
+     * @return compiled block or <code>null</code> if compilation failed
+     */
+    private static ICompiledBlock compile(BasicBlock block)
+    {
+        final String className = CLASS_PREFIX + Integer.toHexString( block.startAddress ) + "_" + CLASS_ID.incrementAndGet();
+        try
+        {
+            final byte[] classFile = CodeGenerator.generateClass( className, block );
+            final Class<?> clazz = new BlockClassLoader().define( className, classFile );
+            return (ICompiledBlock) clazz.getDeclaredConstructor().newInstance();
+        }
+        catch(Exception e)
+        {
+            System.err.println("Failed to compile "+block);
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private void installCompiledBlocks()
+    {
+        CompilationResult result;
+        while ( ( result = results.poll() ) != null )
+        {
+            final int address = result.block.startAddress;
+            if ( state[ address ] != STATE_PENDING ) {
+                continue; // got reset in the meantime
+            }
+            if ( result.compiled == null ) {
+                state[ address ] = STATE_BLACKLISTED;
+                continue;
+            }
+            if ( ! result.block.matches( emulator.memory ) )
+            {
+                // memory got changed while the block was being compiled
+                state[ address ] = STATE_INTERPRETED;
+                entryCount[ address ] = 0;
+                continue;
+            }
+            state[ address ] = STATE_COMPILED;
+            compiled[ address ] = result.compiled;
+            blockLength[ address ] = result.block.length();
+            for ( int adr = address, end = result.block.endAddress() ; adr < end ; adr++ ) {
+                coverage[ adr ]++;
+            }
+            installed.add( result.block );
+            compiledBlocks++;
+        }
+    }
+
+    @Override
+    public void memoryWritten(int address, int count)
+    {
+        for ( int adr = address, end = address + count ; adr < end ; adr++ )
+        {
+            if ( coverage[ adr ] != 0 ) {
+                invalidate( adr );
+            }
+        }
+    }
+
+    private void invalidate(int address)
+    {
+        for ( int i = installed.size() - 1 ; i >= 0 ; i-- )
+        {
+            final BasicBlock block = installed.get( i );
+            if ( block.contains( address ) )
+            {
+                installed.remove( i );
+                final int start = block.startAddress;
+                compiled[ start ] = null;
+                blockLength[ start ] = 0;
+                entryCount[ start ] = 0;
+                state[ start ] = ++invalidations[ start ] < MAX_INVALIDATIONS ? STATE_INTERPRETED : STATE_BLACKLISTED;
+                for ( int adr = start, end = block.endAddress() ; adr < end ; adr++ ) {
+                    coverage[ adr ]--;
+                }
+                invalidatedBlocks++;
+            }
+        }
+    }
+
+    /**
+     * Returns the total number of blocks this engine installed so far.
+     *
+     * @return
+     */
+    public long getCompiledBlockCount() {
+        return compiledBlocks;
+    }
+
+    /**
+     * Returns the total number of compiled blocks that got invalidated because of writes to memory.
+     *
+     * @return
+     */
+    public long getInvalidatedBlockCount() {
+        return invalidatedBlocks;
+    }
+}
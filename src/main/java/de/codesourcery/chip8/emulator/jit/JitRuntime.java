@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Emulator;
+
+/**
+ * Helper methods invoked by translated code.
+ *
+ * Translated code lives in its own class loader and thus may only
+ * access public members.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see CodeGenerator
+ */
+public final class JitRuntime
+{
+    private JitRuntime() {
+    }
+
+    /**
+     * <code>DXYN</code>
+     *
+     * @return 1 if at least one pixel got cleared, otherwise 0
+     */
+    public static int drawSprite(Emulator emulator,int x,int y,int height,int index)
+    {
+        return emulator.screen.drawSprite( x, y, height, index ) ? 1 : 0;
+    }
+
+    /**
+     * <code>2NNN</code>
+     */
+    public static void call(Emulator emulator,int returnAddress,int target)
+    {
+        emulator.stack[ emulator.sp++ ] = returnAddress;
+        emulator.pc = target;
+    }
+
+    /**
+     * <code>00EE</code>
+     */
+    public static void ret(Emulator emulator)
+    {
+        emulator.pc = emulator.stack[ --emulator.sp ];
+    }
+
+    /**
+     * <code>FX18</code>
+     */
+    public static void setSoundTimer(Emulator emulator,int value)
+    {
+        emulator.soundTimer.setValue( value );
+        emulator.screen.setBeep( value > 0 );
+    }
+
+    /**
+     * <code>FX33</code>
+     */
+    public static void storeBCD(Emulator emulator,int index,int value)
+    {
+        final int v0 = value / 100;
+        value -= v0 * 100;
+        final int v1 = value / 10;
+        value -= v1 * 10;
+        emulator.memory.write( index, v0 );
+        index = (index + 1) & 0xfff;
+        emulator.memory.write( index, v1 );
+        index = (index + 1) & 0xfff;
+        emulator.memory.write( index, value );
+    }
+
+    /**
+     * <code>FX55</code>
+     *
+     * @return new value of the index register
+     */
+    public static int storeRegisters(Emulator emulator,int lastRegister,int index)
+    {
+        for ( int i = 0 ; i <= lastRegister ; i++ )
+        {
+            emulator.memory.write( index, emulator.register[i] );
+            index = (index + 1) & 0xfff;
+        }
+        return index;
+    }
+
+    /**
+     * <code>FX65</code>
+     *
+     * @return new value of the index register
+     */
+    public static int loadRegisters(Emulator emulator,int lastRegister,int index)
+    {
+        for ( int i = 0 ; i <= lastRegister ; i++ )
+        {
+            emulator.register[i] = emulator.memory.read( index );
+            index = (index + 1) & 0xfff;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.jit;
+
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Quirks;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Statically discovers all basic blocks reachable from a program's entry point.
+ *
+ * Starting at the entry point, all direct control transfers (jumps, calls, returns to the
+ * instruction following a call, skips and fall-throughs) are followed. Targets of computed
+ * jumps (<code>BNNN</code>) can not be determined statically and are left to the interpreter.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class ProgramAnalyzer
+{
+    private ProgramAnalyzer() {
+    }
+
+    /**
+     * Discovers all basic blocks reachable from an entry point.
+     *
+     * @param memory memory holding the program
+     * @param entryPoint
+     * @return basic blocks, ordered ascending by start address
+     */
+    static List<BasicBlock> analyze(Memory memory,int entryPoint)
+    {
+        final int size = memory.getSizeInBytes();
+        final boolean[] visited = new boolean[ size ];
+        final IntArrayList worklist = new IntArrayList();
+        final List<BasicBlock> result = new ArrayList<>();
+
+        worklist.add( entryPoint );
+        while ( ! worklist.isEmpty() )
+        {
+            final int address = worklist.removeInt( worklist.size() - 1 );
+            if ( address < 0 || address + 1 >= size || visited[ address ] ) {
+                continue;
+            }
+            visited[ address ] = true;
+
+            final BasicBlock block = BasicBlock.discover( memory, address, Quirks.DEFAULT );
+            if ( block == null )
+            {
+                // FX0A and FX15 get interpreted, execution continues with the next instruction
+                final int opcode = memory.read( address ) << 8 | memory.read( address + 1 );
+                final int nn = opcode & 0xff;
+                if ( (opcode & 0xf000) == 0xf000 && ( nn == 0x0a || nn == 0x15 ) ) {
+                    worklist.add( address + 2 );
+                }
+                continue;
+            }
+            result.add( block );
+
+            for ( int i = 0 , len = block.length() ; i < len ; i++ )
+            {
+                final int opcode = block.opcodes[i];
+                final int adr = block.address( i );
+                if ( BasicBlock.isSkip( opcode ) && i + 2 >= len ) {
+                    worklist.add( adr + 4 );
+                }
+                switch( opcode & 0xf000 )
+                {
+                    case 0x1000:
+                        worklist.add( opcode & 0xfff );
+                        break;
+                    case 0x2000:
+                        worklist.add( opcode & 0xfff );
+                        worklist.add( adr + 2 );
+                        break;
+                    case 0xf000:
+                        if ( BasicBlock.endsBlock( opcode ) ) {
+                            // FX33 / FX55
+                            worklist.add( adr + 2 );
+                        }
+                        break;
+                }
+            }
+            if ( ! BasicBlock.endsBlock( block.opcodes[ block.length() - 1 ] ) ) {
+                worklist.add( block.endAddress() );
+            }
+        }
+        result.sort( Comparator.comparingInt( b -> b.startAddress ) );
+        return result;
+    }
+}
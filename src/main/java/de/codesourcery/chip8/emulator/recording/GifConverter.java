@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.recording;
+
+import de.codesourcery.chip8.emulator.Screen;
+import org.apache.commons.lang3.Validate;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts a recording into an animated GIF.
+ *
+ * Standard and extended resolution frames are scaled to the same size (standard resolution pixels
+ * being twice as large). GIF frame delays have a resolution of 1/100 s, frames shown for a shorter period
+ * than that get merged with their successor.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see VideoRecorder
+ */
+public final class GifConverter
+{
+    private static final String GIF_METADATA = "javax_imageio_gif_image_1.0";
+
+    private final int scale;
+
+    /**
+     * Create instance.
+     *
+     * @param scale size of an extended resolution pixel in the output, standard resolution pixels are twice as large
+     */
+    public GifConverter(int scale)
+    {
+        Validate.isTrue( scale > 0 && scale <= 16, "scale must be in range 1...16" );
+        this.scale = scale;
+    }
+
+    /**
+     * Converts a recording.
+     *
+     * @param recording the recording, gets closed
+     * @param gif stream to write the GIF to, gets closed
+     * @return number of GIF frames written
+     * @throws IOException
+     */
+    public int convert(InputStream recording, OutputStream gif) throws IOException
+    {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName( "gif" ).next();
+        try (RecordingReader reader = new RecordingReader( recording );
+             ImageOutputStream out = ImageIO.createImageOutputStream( gif ) )
+        {
+            writer.setOutput( out );
+            writer.prepareWriteSequence( null );
+
+            // writing a frame is synchronous, so the image can be reused
+            final BufferedImage image = new BufferedImage( Screen.EXTENDED_WIDTH * scale, Screen.EXTENDED_HEIGHT * scale, BufferedImage.TYPE_BYTE_BINARY );
+            boolean pending = false;
+            long pendingCentis = 0;
+            int written = 0;
+            while ( true )
+            {
+                final boolean hasNext = reader.next();
+                final long centis = reader.getTimestampMicros() / 10_000;
+                if ( pending && ( centis > pendingCentis || ! hasNext ) )
+                {
+                    // last frame is shown for at least 1/100 s
+                    writeFrame( writer, image, (int) Math.min( 0xffff, Math.max( 1, centis - pendingCentis ) ), written == 0 );
+                    written++;
+                    pending = false;
+                }
+                if ( ! hasNext ) {
+                    break;
+                }
+                // frames shown for less than 1/100 s are superseded by their successor
+                if ( ! pending ) {
+                    pending = true;
+                    pendingCentis = centis;
+                }
+                render( reader, image );
+            }
+            writer.endWriteSequence();
+            return written;
+        }
+        finally
+        {
+            writer.dispose();
+            gif.close();
+        }
+    }
+
+    private void render(RecordingReader reader, BufferedImage image)
+    {
+        final byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        final int pixelSize = reader.isExtendedMode() ? scale : scale * 2;
+        final int bytesPerLine = ( image.getWidth() + 7 ) / 8;
+        for ( int y = 0 ; y < image.getHeight() ; y++ )
+        {
+            final int srcY = y / pixelSize;
+            final int lineStart = y * bytesPerLine;
+            for ( int x = 0 ; x < image.getWidth() ; x++ )
+            {
+                final int bit = 0x80 >>> (x & 7);
+                if ( reader.isSet( x / pixelSize, srcY ) ) {
+                    pixels[ lineStart + (x >>> 3) ] |= bit;
+                } else {
+                    pixels[ lineStart + (x >>> 3) ] &= ~bit;
+                }
+            }
+        }
+    }
+
+    private static void writeFrame(ImageWriter writer, BufferedImage image, int delayCentis, boolean first) throws IOException
+    {
+        final ImageWriteParam param = writer.getDefaultWriteParam();
+        final IIOMetadata metadata = writer.getDefaultImageMetadata( ImageTypeSpecifier.createFromRenderedImage( image ), param );
+        final IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree( GIF_METADATA );
+
+        final IIOMetadataNode control = new IIOMetadataNode( "GraphicControlExtension" );
+        control.setAttribute( "disposalMethod", "none" );
+        control.setAttribute( "userInputFlag", "FALSE" );
+        control.setAttribute( "transparentColorFlag", "FALSE" );
+        control.setAttribute( "delayTime", Integer.toString( delayCentis ) );
+        control.setAttribute( "transparentColorIndex", "0" );
+        root.appendChild( control );
+
+        if ( first )
+        {
+            // NETSCAPE2.0 extension, loop forever
+            final IIOMetadataNode extensions = new IIOMetadataNode( "ApplicationExtensions" );
+            final IIOMetadataNode loop = new IIOMetadataNode( "ApplicationExtension" );
+            loop.setAttribute( "applicationID", "NETSCAPE" );
+            loop.setAttribute( "authenticationCode", "2.0" );
+            loop.setUserObject( new byte[]{ 1, 0, 0 } );
+            extensions.appendChild( loop );
+            root.appendChild( extensions );
+        }
+        metadata.setFromTree( GIF_METADATA, root );
+        writer.writeToSequence( new IIOImage( image, null, metadata ), param );
+    }
+
+    /**
+     * Converts a recording file.
+     *
+     * @param args recording file, GIF file and (optional) scale factor
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length < 2 || args.length > 3 )
+        {
+            System.err.println( "Usage: <recording> <output.gif> [scale]" );
+            System.exit( 1 );
+        }
+        final int scale = args.length == 3 ? Integer.parseInt( args[2] ) : 4;
+        final int frames = new GifConverter( scale ).convert( new FileInputStream( args[0] ), new FileOutputStream( args[1] ) );
+        System.out.println( "Wrote " + frames + " frames to " + new File( args[1] ).getAbsolutePath() );
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.recording;
+
+import de.codesourcery.chip8.emulator.Screen;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the frames of a recording created by {@link VideoRecorder}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see RecordingWriter
+ */
+public final class RecordingReader implements AutoCloseable
+{
+    private final DataInputStream in;
+
+    private final long[] rows = new long[ RecordingWriter.MAX_BYTES / 8 ];
+    private final byte[] literal = new byte[ RecordingWriter.MAX_BYTES ];
+
+    private boolean extended;
+    private long timestampMicros;
+    private int frameCount;
+    private boolean atEnd;
+
+    /**
+     * Create instance.
+     *
+     * @param in stream to read the recording from, gets closed by {@link #close()}
+     * @throws IOException if the stream does not start with a recording header
+     */
+    public RecordingReader(InputStream in) throws IOException
+    {
+        Validate.notNull( in, "input stream must not be null" );
+        this.in = new DataInputStream( new BufferedInputStream( in ) );
+        final byte[] magic = new byte[ RecordingWriter.MAGIC.length ];
+        this.in.readFully( magic );
+        if ( ! Arrays.equals( magic, RecordingWriter.MAGIC ) ) {
+            throw new IOException( "Not a recording" );
+        }
+        final int version = this.in.read();
+        if ( version != RecordingWriter.VERSION ) {
+            throw new IOException( "Unsupported recording version " + version );
+        }
+    }
+
+    /**
+     * Advances to the next frame.
+     *
+     * @return <code>false</code> if the recording has no more frames
+     * @throws IOException
+     */
+    public boolean next() throws IOException
+    {
+        if ( atEnd ) {
+            return false;
+        }
+        final int flags = in.read();
+        if ( flags == -1 )
+        {
+            // recording did not get closed properly
+            atEnd = true;
+            return false;
+        }
+        timestampMicros += readVarInt();
+        if ( (flags & RecordingWriter.END) != 0 )
+        {
+            atEnd = true;
+            return false;
+        }
+        extended = (flags & RecordingWriter.EXTENDED) != 0;
+        if ( (flags & RecordingWriter.KEYFRAME) != 0 ) {
+            Arrays.fill( rows, 0 );
+        }
+        if ( (flags & RecordingWriter.UNCHANGED) == 0 ) {
+            readRuns( getWidth() * getHeight() / 8 );
+        }
+        frameCount++;
+        return true;
+    }
+
+    private void readRuns(int len) throws IOException
+    {
+        int ptr = 0;
+        while ( ptr < len )
+        {
+            ptr += (int) readVarInt();
+            if ( ptr >= len ) {
+                break;
+            }
+            final int count = (int) readVarInt();
+            if ( ptr + count > len ) {
+                throw new IOException( "Corrupted recording, run exceeds frame size" );
+            }
+            in.readFully( literal, 0, count );
+            for ( int i = 0 ; i < count ; i++, ptr++ ) {
+                rows[ ptr >>> 3 ] ^= (long) (literal[i] & 0xff) << ( 56 - ( (ptr & 7) << 3 ) );
+            }
+        }
+    }
+
+    private long readVarInt() throws IOException
+    {
+        long result = 0;
+        for ( int shift = 0 ; ; shift += 7 )
+        {
+            final int value = in.read();
+            if ( value == -1 ) {
+                throw new EOFException( "Truncated recording" );
+            }
+            result |= (long) (value & 0x7f) << shift;
+            if ( (value & 0x80) == 0 ) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Returns the current frame's time since the start of the recording.
+     *
+     * After {@link #next()} returned <code>false</code>, this is the time the recording ended.
+     *
+     * @return
+     */
+    public long getTimestampMicros()
+    {
+        return timestampMicros;
+    }
+
+    /**
+     * Returns the number of frames read so far.
+     *
+     * @return
+     */
+    public int getFrameCount()
+    {
+        return frameCount;
+    }
+
+    public boolean isExtendedMode()
+    {
+        return extended;
+    }
+
+    public int getWidth()
+    {
+        return extended ? Screen.EXTENDED_WIDTH : Screen.WIDTH;
+    }
+
+    public int getHeight()
+    {
+        return extended ? Screen.EXTENDED_HEIGHT : Screen.HEIGHT;
+    }
+
+    /**
+     * Returns whether a pixel of the current frame is set.
+     *
+     * @param x
+     * @param y
+     * @return
+     */
+    public boolean isSet(int x, int y)
+    {
+        final int wordsPerRow = getWidth() / 64;
+        final long word = rows[ y * wordsPerRow + (x >>> 6) ];
+        return ( word & (1L << (63 - (x & 63))) ) != 0;
+    }
+
+    /**
+     * Copies the current frame's pixels.
+     *
+     * @param dest destination array, must hold at least <code>getWidth()*getHeight()/64</code> elements
+     * @see Screen#copyRows(long[])
+     */
+    public void copyRows(long[] dest)
+    {
+        System.arraycopy( rows, 0, dest, 0, getWidth() * getHeight() / 64 );
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        in.close();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.recording;
+
+import de.codesourcery.chip8.emulator.Screen;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Writes frames in the recording container format.
+ *
+ * A recording starts with the magic bytes <code>C8RV</code> and a version byte, followed by one record per frame:
+ * <pre>
+ * record  := flags:byte, micros:varint, [payload]
+ * payload := ( zeroBytes:varint, [ literalCount:varint, literalBytes ] )*
+ * </pre>
+ * <code>micros</code> is the time elapsed since the previous record. The payload run-length encodes
+ * the XOR of the frame's pixels (one bit per pixel, rows top to bottom, leftmost pixel in the most significant bit)
+ * with the previous frame's pixels, or with a blank screen for key frames. Runs alternate between zero bytes and
+ * literal bytes until the frame is complete. Frames identical to their predecessor have no payload at all.
+ * The last record only holds {@link #END} and the time elapsed since the last frame.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see RecordingReader
+ */
+final class RecordingWriter
+{
+    static final byte[] MAGIC = { 'C', '8', 'R', 'V' };
+    static final int VERSION = 1;
+
+    /** Frame uses the 128x64 resolution. */
+    static final int EXTENDED = 0x01;
+    /** Frame is XORed with a blank screen instead of the previous frame. */
+    static final int KEYFRAME = 0x02;
+    /** Frame is identical to the previous one, no payload follows. */
+    static final int UNCHANGED = 0x04;
+    /** End of recording. */
+    static final int END = 0x80;
+
+    static final int MAX_BYTES = Screen.EXTENDED_WIDTH * Screen.EXTENDED_HEIGHT / 8;
+
+    private final DataOutputStream out;
+
+    private final long[] previous = new long[ MAX_BYTES / 8 ];
+    private final byte[] delta = new byte[ MAX_BYTES ];
+    private boolean previousExtended;
+    private boolean first = true;
+
+    RecordingWriter(OutputStream out) throws IOException
+    {
+        this.out = new DataOutputStream( out );
+        this.out.write( MAGIC );
+        this.out.write( VERSION );
+    }
+
+    /**
+     * Appends a frame.
+     *
+     * @param rows the frame's pixels, in {@link Screen#copyRows(long[])} format
+     * @param extended whether the frame uses the 128x64 resolution
+     * @param micros time elapsed since the previous frame
+     * @throws IOException
+     */
+    void writeFrame(long[] rows, boolean extended, long micros) throws IOException
+    {
+        final int words = (extended ? MAX_BYTES : MAX_BYTES/4) / 8;
+        int flags = extended ? EXTENDED : 0;
+        if ( first || extended != previousExtended )
+        {
+            flags |= KEYFRAME;
+            Arrays.fill( previous, 0 );
+            first = false;
+            previousExtended = extended;
+        }
+
+        long changed = 0;
+        for ( int i = 0, ptr = 0 ; i < words ; i++ )
+        {
+            final long diff = rows[i] ^ previous[i];
+            previous[i] = rows[i];
+            changed |= diff;
+            for ( int shift = 56 ; shift >= 0 ; shift -= 8 ) {
+                delta[ptr++] = (byte) (diff >>> shift);
+            }
+        }
+        if ( changed == 0 && (flags & KEYFRAME) == 0 )
+        {
+            out.write( flags | UNCHANGED );
+            writeVarInt( micros );
+            return;
+        }
+        out.write( flags );
+        writeVarInt( micros );
+        writeRuns( words * 8 );
+    }
+
+    private void writeRuns(int len) throws IOException
+    {
+        int ptr = 0;
+        while ( ptr < len )
+        {
+            final int zeroStart = ptr;
+            while ( ptr < len && delta[ptr] == 0 ) {
+                ptr++;
+            }
+            writeVarInt( ptr - zeroStart );
+            if ( ptr == len ) {
+                break;
+            }
+            // literal run ends at the next pair of zero bytes, a single zero byte is cheaper as a literal
+            final int literalStart = ptr;
+            while ( ptr < len && ( delta[ptr] != 0 || ( ptr + 1 < len && delta[ptr+1] != 0 ) ) ) {
+                ptr++;
+            }
+            writeVarInt( ptr - literalStart );
+            out.write( delta, literalStart, ptr - literalStart );
+        }
+    }
+
+    /**
+     * Writes the end-of-recording marker.
+     *
+     * @param micros time elapsed since the last frame
+     * @throws IOException
+     */
+    void writeEnd(long micros) throws IOException
+    {
+        out.write( END );
+        writeVarInt( micros );
+        out.flush();
+    }
+
+    private void writeVarInt(long value) throws IOException
+    {
+        while ( (value & ~0x7fL) != 0 )
+        {
+            out.write( (int) (value & 0x7f) | 0x80 );
+            value >>>= 7;
+        }
+        out.write( (int) value );
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.recording;
+
+import de.codesourcery.chip8.emulator.Screen;
+import org.apache.commons.lang3.Validate;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the emulator's screen to a file.
+ *
+ * The emulation thread only copies each frame into a buffer taken from a fixed pool, a background
+ * thread delta-encodes the frames and does all the I/O. {@link #record(Screen)} thus never blocks, if the
+ * encoder falls behind (all buffers in use) frames get dropped instead.
+ *
+ * Recordings can be played back using {@link RecordingReader} or converted to an animated
+ * GIF using {@link GifConverter}.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see de.codesourcery.chip8.emulator.EmulatorDriver#setVideoRecorder(VideoRecorder)
+ */
+public final class VideoRecorder implements AutoCloseable
+{
+    // two seconds worth of frames at 60 fps
+    private static final int POOL_SIZE = 128;
+    private static final int MASK = POOL_SIZE - 1;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 5 );
+
+    // buffer pool used as a single-producer/single-consumer ring
+    private final long[][] buffers = new long[ POOL_SIZE ][ RecordingWriter.MAX_BYTES / 8 ];
+    private final boolean[] extended = new boolean[ POOL_SIZE ];
+    private final long[] timestamps = new long[ POOL_SIZE ];
+
+    // next slot to be filled, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // next slot to be encoded, only written by the encoder
+    private final AtomicLong head = new AtomicLong();
+
+    private final long startNanos = System.nanoTime();
+    private final OutputStream out;
+    private final Thread encoder;
+
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private volatile long droppedFrames;
+    private volatile long recordedFrames;
+
+    private VideoRecorder(OutputStream out) throws IOException
+    {
+        this.out = out;
+        final RecordingWriter writer = new RecordingWriter( out );
+        this.encoder = new Thread( () -> encode( writer ), "video-encoder" );
+        this.encoder.setDaemon( true );
+        this.encoder.start();
+    }
+
+    /**
+     * Starts a new recording.
+     *
+     * @param file file to write the recording to, gets overwritten if it already exists
+     * @return
+     * @throws IOException
+     */
+    public static VideoRecorder create(Path file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        return create( Files.newOutputStream( file ) );
+    }
+
+    /**
+     * Starts a new recording.
+     *
+     * @param out stream to write the recording to, gets closed by {@link #close()}
+     * @return
+     * @throws IOException
+     */
+    public static VideoRecorder create(OutputStream out) throws IOException
+    {
+        Validate.notNull( out, "output stream must not be null" );
+        return new VideoRecorder( new BufferedOutputStream( out, 64*1024 ) );
+    }
+
+    /**
+     * Records the screen's current content.
+     *
+     * Must only be invoked by a single thread (usually the emulation thread), never blocks.
+     *
+     * @param screen
+     * @return <code>false</code> if the frame got dropped because the encoder fell behind
+     *         or the recording got closed or failed
+     */
+    public boolean record(Screen screen)
+    {
+        if ( closed || failure != null ) {
+            return false;
+        }
+        final long t = tail.get();
+        if ( t - head.get() == POOL_SIZE )
+        {
+            droppedFrames++;
+            return false;
+        }
+        final int slot = (int) (t & MASK);
+        timestamps[ slot ] = System.nanoTime();
+        extended[ slot ] = screen.isExtendedMode();
+        screen.copyRows( buffers[ slot ] );
+        tail.lazySet( t + 1 );
+        return true;
+    }
+
+    private void encode(RecordingWriter writer)
+    {
+        long lastNanos = startNanos;
+        try
+        {
+            while ( true )
+            {
+                final long h = head.get();
+                if ( h == tail.get() )
+                {
+                    // re-check after reading 'closed', frames recorded before close() must not get lost
+                    if ( closed && h == tail.get() ) {
+                        break;
+                    }
+                    LockSupport.parkNanos( IDLE_PARK_NANOS );
+                    continue;
+                }
+                final int slot = (int) (h & MASK);
+                final long now = timestamps[ slot ];
+                writer.writeFrame( buffers[ slot ], extended[ slot ], TimeUnit.NANOSECONDS.toMicros( now - lastNanos ) );
+                lastNanos = now;
+                head.lazySet( h + 1 );
+                recordedFrames++;
+            }
+            writer.writeEnd( TimeUnit.NANOSECONDS.toMicros( System.nanoTime() - lastNanos ) );
+        }
+        catch (IOException e)
+        {
+            System.err.println( "Video recording failed: " + e.getMessage() );
+            e.printStackTrace();
+            failure = e;
+        }
+        finally
+        {
+            try {
+                out.close();
+            }
+            catch (IOException e) {
+                if ( failure == null ) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of frames that got dropped because the encoder could not keep up.
+     *
+     * @return
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of frames written so far.
+     *
+     * @return
+     */
+    public long getRecordedFrames()
+    {
+        return recordedFrames;
+    }
+
+    /**
+     * Stops the recording, waiting for all pending frames to be written.
+     *
+     * Frames passed to {@link #record(Screen)} after this method got invoked are ignored.
+     *
+     * @throws IOException if writing the recording failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        LockSupport.unpark( encoder );
+        try {
+            encoder.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for the encoder", e );
+        }
+        if ( failure != null ) {
+            throw failure;
+        }
+    }
+}
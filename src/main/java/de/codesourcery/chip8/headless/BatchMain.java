@@ -0,0 +1,395 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Runs all ROMs (<code>*.ch8</code>) found in directories and zip files in parallel and
+ * streams one JSON object per ROM (JSON Lines), followed by a summary on <code>System.err</code>.
+ *
+ * Every ROM runs with the same options as supported by {@link HeadlessMain}. Never touches AWT.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class BatchMain
+{
+    private static final String ROM_SUFFIX = ".ch8";
+
+    // max. number of failing ROMs listed in the summary
+    private static final int MAX_LISTED_FAILURES = 20;
+
+    /**
+     * Reads the contents of a ROM, invoked by the thread that is going to run it.
+     */
+    @FunctionalInterface
+    private interface IRomLoader
+    {
+        byte[] load() throws IOException;
+    }
+
+    private static final class Rom
+    {
+        final String name;
+        final IRomLoader loader;
+
+        Rom(String name, IRomLoader loader)
+        {
+            this.name = name;
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * Outcome of running a single ROM.
+     */
+    private static final class Report
+    {
+        final String rom;
+        final HeadlessRunner.Result result; // NULL if the ROM could not be loaded
+        final String error;
+        final long wallNanos;
+
+        Report(String rom, HeadlessRunner.Result result, String error, long wallNanos)
+        {
+            this.rom = rom;
+            this.result = result;
+            this.error = error;
+            this.wallNanos = wallNanos;
+        }
+
+        String outcome()
+        {
+            return result == null ? "ERROR" : result.outcome.name();
+        }
+
+        boolean isFailure()
+        {
+            return result == null || result.outcome == HeadlessRunner.Outcome.FAULT;
+        }
+
+        long instructionsPerSecond()
+        {
+            return wallNanos == 0 ? 0 : (long) ( result.instructions / ( wallNanos / 1e9 ) );
+        }
+
+        String toJSON()
+        {
+            final StringBuilder json = new StringBuilder( "{\"rom\":" );
+            appendString( json, rom ).append( ",\"outcome\":\"" ).append( outcome() ).append( '"' );
+            if ( result != null )
+            {
+                json.append( ",\"frames\":" ).append( result.frames );
+                json.append( ",\"instructions\":" ).append( result.instructions );
+                json.append( ",\"pc\":" ).append( result.state.pc );
+                json.append( ",\"screenSha256\":\"" ).append( result.screenDigest ).append( '"' );
+                json.append( ",\"memorySha256\":\"" ).append( result.memoryDigest ).append( '"' );
+                if ( result.fault != null ) {
+                    appendString( json.append( ",\"fault\":" ), result.fault );
+                }
+                json.append( ",\"wallMillis\":" ).append( String.format( Locale.ROOT, "%.3f", wallNanos / 1e6 ) );
+                json.append( ",\"instructionsPerSecond\":" ).append( instructionsPerSecond() );
+            }
+            else
+            {
+                appendString( json.append( ",\"error\":" ), error );
+            }
+            return json.append( '}' ).toString();
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        System.exit( run( args ) );
+    }
+
+    static int run(String[] args)
+    {
+        final HeadlessRunner.Options options = new HeadlessRunner.Options();
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path outputFile = null;
+        final List<Path> inputs = new ArrayList<>();
+        try
+        {
+            final List<String> rest = HeadlessMain.parseOptions( args, options );
+            for ( int i = 0 ; i < rest.size() ; i++ )
+            {
+                final String arg = rest.get( i );
+                if ( "--threads".equals( arg ) || "--output".equals( arg ) )
+                {
+                    if ( i + 1 == rest.size() ) {
+                        throw new IllegalArgumentException( "Option "+arg+" requires a value" );
+                    }
+                    final String value = rest.get( ++i );
+                    if ( "--output".equals( arg ) ) {
+                        outputFile = Paths.get( value );
+                        continue;
+                    }
+                    try {
+                        threads = Integer.parseInt( value );
+                    }
+                    catch(NumberFormatException e) {
+                        threads = 0;
+                    }
+                    if ( threads < 1 ) {
+                        throw new IllegalArgumentException( "Option --threads requires a positive number but got '"+value+"'" );
+                    }
+                }
+                else if ( arg.startsWith( "--" ) ) {
+                    throw new IllegalArgumentException( "Unknown option "+arg );
+                } else {
+                    inputs.add( Paths.get( arg ) );
+                }
+            }
+            if ( inputs.isEmpty() ) {
+                throw new IllegalArgumentException( "No directory or zip file given" );
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println( e.getMessage() );
+            System.err.println();
+            System.err.println( "Usage: --batch [options] <directory|zip file|ROM file>...\n\n" + HeadlessMain.OPTIONS_USAGE +
+                "  --threads <n>            number of ROMs to run in parallel (default: number of processors)\n" +
+                "  --output <file>          write JSON Lines to a file instead of stdout\n\n" +
+                "Exit codes: 0 = no failures, 1 = at least one ROM faulted or could not be loaded, 2 = invalid arguments,\n" +
+                "3 = inputs could not be read" );
+            return HeadlessRunner.EXIT_USAGE;
+        }
+
+        final List<ZipFile> zipFiles = new ArrayList<>();
+        try
+        {
+            final List<Rom> roms = new ArrayList<>();
+            for ( Path input : inputs ) {
+                collectRoms( input, roms, zipFiles );
+            }
+            try ( Writer out = outputFile != null ? Files.newBufferedWriter( outputFile, StandardCharsets.UTF_8 ) :
+                new BufferedWriter( new OutputStreamWriter( System.out, StandardCharsets.UTF_8 ) ) )
+            {
+                return runAll( roms, options, threads, out );
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println( "Batch run failed: "+e.getMessage() );
+            e.printStackTrace();
+            return HeadlessRunner.EXIT_FAILURE;
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return HeadlessRunner.EXIT_FAILURE;
+        }
+        finally
+        {
+            for ( ZipFile zip : zipFiles )
+            {
+                try {
+                    zip.close();
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static void collectRoms(Path input, List<Rom> roms, List<ZipFile> zipFiles) throws IOException
+    {
+        if ( Files.isDirectory( input ) )
+        {
+            try ( Stream<Path> files = Files.walk( input ) )
+            {
+                for ( Path file : files.filter( Files::isRegularFile ).filter( BatchMain::isRom ).sorted().collect( Collectors.toList() ) ) {
+                    roms.add( new Rom( file.toString(), () -> Files.readAllBytes( file ) ) );
+                }
+            }
+        }
+        else if ( input.getFileName().toString().toLowerCase( Locale.ROOT ).endsWith( ".zip" ) )
+        {
+            final ZipFile zip = new ZipFile( input.toFile() );
+            zipFiles.add( zip );
+            final List<ZipEntry> entries = zip.stream()
+                .filter( entry -> ! entry.isDirectory() && entry.getName().toLowerCase( Locale.ROOT ).endsWith( ROM_SUFFIX ) )
+                .sorted( (a,b) -> a.getName().compareTo( b.getName() ) )
+                .collect( Collectors.toList() );
+            for ( ZipEntry entry : entries )
+            {
+                roms.add( new Rom( input + "!/" + entry.getName(), () ->
+                {
+                    try ( InputStream in = zip.getInputStream( entry ) ) {
+                        return in.readAllBytes();
+                    }
+                }));
+            }
+        }
+        else if ( Files.isRegularFile( input ) ) {
+            roms.add( new Rom( input.toString(), () -> Files.readAllBytes( input ) ) );
+        } else {
+            throw new IOException( "No such file or directory: "+input );
+        }
+    }
+
+    private static boolean isRom(Path file)
+    {
+        return file.getFileName().toString().toLowerCase( Locale.ROOT ).endsWith( ROM_SUFFIX );
+    }
+
+    private static int runAll(List<Rom> roms, HeadlessRunner.Options options, int threads, Writer out) throws IOException, InterruptedException
+    {
+        final AtomicInteger threadId = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool( threads, r ->
+        {
+            final Thread thread = new Thread( r, "batch-runner-" + threadId.incrementAndGet() );
+            thread.setDaemon( true );
+            return thread;
+        });
+        final long start = System.nanoTime();
+        final Map<String,Integer> outcomes = new LinkedHashMap<>();
+        for ( HeadlessRunner.Outcome outcome : HeadlessRunner.Outcome.values() ) {
+            outcomes.put( outcome.name(), 0 );
+        }
+        outcomes.put( "ERROR", 0 );
+        final List<Report> failures = new ArrayList<>();
+        long instructions = 0;
+        try
+        {
+            final CompletionService<Report> completion = new ExecutorCompletionService<>( pool );
+            for ( Rom rom : roms ) {
+                completion.submit( () -> runOne( rom, options ) );
+            }
+            for ( int i = 0 ; i < roms.size() ; i++ )
+            {
+                final Report report;
+                try {
+                    report = completion.take().get();
+                }
+                catch (ExecutionException e) {
+                    throw new IOException( "Internal error", e.getCause() ); // runOne() only throws VirtualMachineErrors
+                }
+                out.write( report.toJSON() );
+                out.write( '\n' );
+                out.flush();
+
+                outcomes.merge( report.outcome(), 1, Integer::sum );
+                if ( report.result != null ) {
+                    instructions += report.result.instructions;
+                }
+                if ( report.isFailure() ) {
+                    failures.add( report );
+                }
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        final long wallNanos = System.nanoTime() - start;
+        printSummary( roms.size(), threads, wallNanos, instructions, outcomes, failures );
+        return failures.isEmpty() ? HeadlessRunner.EXIT_SUCCESS : HeadlessRunner.EXIT_NOT_MET;
+    }
+
+    private static Report runOne(Rom rom, HeadlessRunner.Options options)
+    {
+        final byte[] data;
+        try {
+            data = rom.loader.load();
+        }
+        catch(IOException e) {
+            return new Report( rom.name, null, "Failed to read ROM: "+e.getMessage(), 0 );
+        }
+        final long start = System.nanoTime();
+        try
+        {
+            final HeadlessRunner.Result result = HeadlessRunner.run( data, options );
+            return new Report( rom.name, result, null, System.nanoTime() - start );
+        }
+        catch(VirtualMachineError e) {
+            throw e; // the JVM itself is in trouble, results of the remaining ROMs would be meaningless
+        }
+        catch(Throwable t) {
+            // anything else (including errors like AssertionError or LinkageError) only affects this ROM
+            return new Report( rom.name, null, t.getMessage() != null ? t.getMessage() : t.toString(), System.nanoTime() - start );
+        }
+    }
+
+    private static void printSummary(int romCount, int threads, long wallNanos, long instructions, Map<String,Integer> outcomes, List<Report> failures)
+    {
+        final double seconds = wallNanos / 1e9;
+        System.err.println( String.format( Locale.ROOT, "Ran %d ROMs in %.2f s on %d threads", romCount, seconds, threads ) );
+        System.err.println( "  " + outcomes.entrySet().stream().map( e -> e.getKey() + ": " + e.getValue() ).collect( Collectors.joining( ", " ) ) );
+        System.err.println( String.format( Locale.ROOT, "  %d instructions, %d instructions/s", instructions, seconds == 0 ? 0 : (long) ( instructions / seconds ) ) );
+        if ( ! failures.isEmpty() )
+        {
+            System.err.println( "  Failures:" );
+            failures.sort( (a,b) -> a.rom.compareTo( b.rom ) );
+            for ( Report report : failures.subList( 0, Math.min( MAX_LISTED_FAILURES, failures.size() ) ) ) {
+                System.err.println( "    " + report.rom + ": " + ( report.result != null ? report.result.fault : report.error ) );
+            }
+            if ( failures.size() > MAX_LISTED_FAILURES ) {
+                System.err.println( "    ... and " + ( failures.size() - MAX_LISTED_FAILURES ) + " more" );
+            }
+        }
+    }
+
+    private static StringBuilder appendString(StringBuilder json, String value)
+    {
+        json.append( '"' );
+        for ( int i = 0 ; i < value.length() ; i++ )
+        {
+            final char c = value.charAt( i );
+            switch( c )
+            {
+                case '"':  json.append( "\\\"" ); break;
+                case '\\': json.append( "\\\\" ); break;
+                case '\n': json.append( "\\n" ); break;
+                case '\r': json.append( "\\r" ); break;
+                case '\t': json.append( "\\t" ); break;
+                default:
+                    if ( c < 0x20 ) {
+                        json.append( String.format( "\\u%04x", (int) c ) );
+                    } else {
+                        json.append( c );
+                    }
+            }
+        }
+        return json.append( '"' );
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import de.codesourcery.chip8.emulator.EmulatorSession;
+import de.codesourcery.chip8.emulator.EngineType;
+import de.codesourcery.chip8.emulator.Quirks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a ROM without any UI and prints the final emulation state, intended for CI and servers without a display.
+ *
+ * Never touches AWT, so startup stays fast and this works fine with <code>java.awt.headless=true</code>.
+ * Exits with one of the <code>HeadlessRunner.EXIT_XXX</code> status codes.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public class HeadlessMain
+{
+    static final String OPTIONS_USAGE =
+        "  --frames <n>             stop after n frames (default: " + HeadlessRunner.DEFAULT_MAX_FRAMES + " unless --instructions is given)\n" +
+        "  --instructions <n>       stop after n executed instructions\n" +
+        "  --until-pc <address>     stop as soon as the PC reaches an address\n" +
+        "  --until <expression>     stop as soon as an expression becomes true, e.g. \"v3 == 5\"\n" +
+        "  --keys <events>|@<file>  scripted key events, e.g. \"30:5+ 35:5-\" presses key 5 in frame 30 and releases it in frame 35\n" +
+        "  --engine <name>          execution engine: interpreter, opcode_table, predecoded, jit, aot (default: interpreter)\n" +
+        "  --ipf <n>                instructions per frame (default: " + EmulatorSession.DEFAULT_INSTRUCTIONS_PER_FRAME + ")\n" +
+        "  --quirks <list>          comma-separated enabled quirks: shift-vy, load-store-inc-i, jump-vx, logic-resets-vf\n" +
+        "                           (default: shift-vy,load-store-inc-i), 'none' disables all of them\n";
+
+    public static void main(String[] args)
+    {
+        System.exit( run( args ) );
+    }
+
+    static int run(String[] args)
+    {
+        final HeadlessRunner.Options options = new HeadlessRunner.Options();
+        Path screenFile = null;
+        boolean quiet = false;
+        final List<String> files = new ArrayList<>();
+        try
+        {
+            final List<String> rest = parseOptions( args, options );
+            for ( int i = 0 ; i < rest.size() ; i++ )
+            {
+                switch( rest.get( i ) )
+                {
+                    case "--screen":
+                        if ( i + 1 == rest.size() ) {
+                            throw new IllegalArgumentException( "Option --screen requires a value" );
+                        }
+                        screenFile = Paths.get( rest.get( ++i ) );
+                        break;
+                    case "--quiet":
+                        quiet = true;
+                        break;
+                    default:
+                        if ( rest.get( i ).startsWith( "--" ) ) {
+                            throw new IllegalArgumentException( "Unknown option "+rest.get( i ) );
+                        }
+                        files.add( rest.get( i ) );
+                }
+            }
+            if ( files.size() != 1 ) {
+                throw new IllegalArgumentException( files.isEmpty() ? "No ROM file given" : "Expected exactly one ROM file but got "+files );
+            }
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println( e.getMessage() );
+            System.err.println();
+            System.err.println( "Usage: --headless [options] <ROM file>\n\n" + OPTIONS_USAGE +
+                "  --screen <file>          write the final screen to a .pbm or .png file\n" +
+                "  --quiet                  do not print registers and digests\n\n" +
+                "Exit codes: 0 = condition met or limit reached (without condition), 1 = condition not met or\n" +
+                "program waiting for a key after the last scripted key event, 2 = invalid arguments, 3 = failure" );
+            return HeadlessRunner.EXIT_USAGE;
+        }
+
+        final Path romFile = Paths.get( files.get( 0 ) );
+        try
+        {
+            final HeadlessRunner.Result result = HeadlessRunner.run( Files.readAllBytes( romFile ), options );
+            if ( screenFile != null )
+            {
+                try ( OutputStream out = Files.newOutputStream( screenFile ) )
+                {
+                    if ( screenFile.getFileName().toString().toLowerCase( Locale.ROOT ).endsWith( ".png" ) ) {
+                        result.getScreen().writePNG( out );
+                    } else {
+                        result.getScreen().writePBM( out );
+                    }
+                }
+            }
+            if ( ! quiet ) {
+                System.out.print( result );
+            }
+            return result.exitCode;
+        }
+        catch(Exception e)
+        {
+            System.err.println( "Failed to run "+romFile+": "+e.getMessage() );
+            e.printStackTrace();
+            return HeadlessRunner.EXIT_FAILURE;
+        }
+    }
+
+    /**
+     * Parses the options controlling a run.
+     *
+     * @param args
+     * @param options options to populate
+     * @return arguments that are not run options, in their original order
+     * @throws IllegalArgumentException if an option is invalid
+     */
+    static List<String> parseOptions(String[] args, HeadlessRunner.Options options)
+    {
+        final List<String> rest = new ArrayList<>();
+        for ( int i = 0 ; i < args.length ; i++ )
+        {
+            final String arg = args[i];
+            switch( arg )
+            {
+                case "--frames":
+                    options.maxFrames( parseNumber( arg, value( args, ++i, arg ) ) );
+                    break;
+                case "--instructions":
+                    options.maxInstructions( parseNumber( arg, value( args, ++i, arg ) ) );
+                    break;
+                case "--until-pc":
+                    options.untilPC( (int) parseNumber( arg, value( args, ++i, arg ) ) );
+                    break;
+                case "--until":
+                    options.until( value( args, ++i, arg ) );
+                    break;
+                case "--keys":
+                    options.keys( parseKeys( value( args, ++i, arg ) ) );
+                    break;
+                case "--engine":
+                    options.engine( parseEngine( value( args, ++i, arg ) ) );
+                    break;
+                case "--ipf":
+                    options.instructionsPerFrame( (int) parseNumber( arg, value( args, ++i, arg ) ) );
+                    break;
+                case "--quirks":
+                    options.quirks( parseQuirks( value( args, ++i, arg ) ) );
+                    break;
+                default:
+                    rest.add( arg );
+            }
+        }
+        return rest;
+    }
+
+    private static String value(String[] args, int index, String option)
+    {
+        if ( index >= args.length ) {
+            throw new IllegalArgumentException( "Option "+option+" requires a value" );
+        }
+        return args[ index ];
+    }
+
+    private static long parseNumber(String option, String value)
+    {
+        try
+        {
+            final long result = Long.decode( value );
+            if ( result <= 0 && ! "--until-pc".equals( option ) ) {
+                throw new IllegalArgumentException( "Option "+option+" requires a positive number" );
+            }
+            return result;
+        }
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException( "Option "+option+" requires a number but got '"+value+"'" );
+        }
+    }
+
+    private static KeyTimeline parseKeys(String value)
+    {
+        if ( ! value.startsWith( "@" ) ) {
+            return KeyTimeline.parse( value );
+        }
+        try {
+            return KeyTimeline.parse( new String( Files.readAllBytes( Paths.get( value.substring( 1 ) ) ), StandardCharsets.UTF_8 ) );
+        }
+        catch(IOException e) {
+            throw new IllegalArgumentException( "Failed to read key events from "+value.substring( 1 )+": "+e.getMessage() );
+        }
+    }
+
+    private static EngineType parseEngine(String value)
+    {
+        try {
+            return EngineType.valueOf( value.toUpperCase( Locale.ROOT ).replace( '-', '_' ) );
+        }
+        catch(IllegalArgumentException e) {
+            throw new IllegalArgumentException( "Unknown engine '"+value+"'" );
+        }
+    }
+
+    private static Quirks parseQuirks(String value)
+    {
+        Quirks quirks = new Quirks( false, false, false, false );
+        if ( "none".equals( value ) ) {
+            return quirks;
+        }
+        for ( String name : value.split( "," ) )
+        {
+            switch( name.trim() )
+            {
+                case "shift-vy":         quirks = quirks.withShiftUsesVY( true ); break;
+                case "load-store-inc-i": quirks = quirks.withLoadStoreIncrementsI( true ); break;
+                case "jump-vx":          quirks = quirks.withJumpUsesVX( true ); break;
+                case "logic-resets-vf":  quirks = quirks.withLogicResetsVF( true ); break;
+                default:
+                    throw new IllegalArgumentException( "Unknown quirk '"+name+"'" );
+            }
+        }
+        return quirks;
+    }
+}
@@ -0,0 +1,385 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import de.codesourcery.chip8.asm.ExpressionEvaluator;
+import de.codesourcery.chip8.asm.RuntimeExpressions;
+import de.codesourcery.chip8.asm.ast.ASTNode;
+import de.codesourcery.chip8.emulator.Emulator;
+import de.codesourcery.chip8.emulator.EmulatorSession;
+import de.codesourcery.chip8.emulator.EmulatorState;
+import de.codesourcery.chip8.emulator.EngineType;
+import de.codesourcery.chip8.emulator.Quirks;
+import de.codesourcery.chip8.emulator.Screen;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Runs a ROM without any UI until a stop condition is met or a limit is reached.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see HeadlessMain
+ */
+public final class HeadlessRunner
+{
+    /**
+     * Frame limit used when neither a frame nor an instruction limit has been set (10 emulated seconds).
+     */
+    public static final long DEFAULT_MAX_FRAMES = 600;
+
+    /**
+     * Exit code when the stop condition was met or - without a stop condition - the limit was reached.
+     */
+    public static final int EXIT_SUCCESS = 0;
+    /**
+     * Exit code when the limit was reached before the stop condition was met or the program got stuck waiting
+     * for a key.
+     */
+    public static final int EXIT_NOT_MET = 1;
+    /**
+     * Exit code for invalid command-line arguments.
+     */
+    public static final int EXIT_USAGE = 2;
+    /**
+     * Exit code for I/O errors or emulation failures (illegal opcodes etc).
+     */
+    public static final int EXIT_FAILURE = 3;
+
+    /**
+     * Why a run ended.
+     */
+    public enum Outcome
+    {
+        /**
+         * The PC reached the requested address or the stop condition became true.
+         */
+        CONDITION_MET,
+        /**
+         * The frame or instruction limit has been reached.
+         */
+        LIMIT_REACHED,
+        /**
+         * The program is waiting for a key press but the key timeline has no more events.
+         */
+        STALLED,
+        /**
+         * The emulation failed, most likely because of an illegal opcode.
+         */
+        FAULT
+    }
+
+    /**
+     * Settings for a run.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Options
+    {
+        private Quirks quirks = Quirks.DEFAULT;
+        private EngineType engine = EngineType.INTERPRETER;
+        private int instructionsPerFrame = EmulatorSession.DEFAULT_INSTRUCTIONS_PER_FRAME;
+        private long maxFrames = -1;
+        private long maxInstructions = -1;
+        private Integer untilPC;
+        private String untilCondition;
+        private ASTNode condition;
+        private KeyTimeline keys = KeyTimeline.EMPTY;
+
+        public Options quirks(Quirks quirks)
+        {
+            Validate.notNull(quirks, "quirks must not be null");
+            this.quirks = quirks;
+            return this;
+        }
+
+        public Options engine(EngineType engine)
+        {
+            Validate.notNull(engine, "engine must not be null");
+            this.engine = engine;
+            return this;
+        }
+
+        public Options instructionsPerFrame(int instructionsPerFrame)
+        {
+            Validate.isTrue( instructionsPerFrame > 0, "instructions per frame must be > 0" );
+            this.instructionsPerFrame = instructionsPerFrame;
+            return this;
+        }
+
+        public Options maxFrames(long maxFrames)
+        {
+            Validate.isTrue( maxFrames > 0, "max. frames must be > 0" );
+            this.maxFrames = maxFrames;
+            return this;
+        }
+
+        public Options maxInstructions(long maxInstructions)
+        {
+            Validate.isTrue( maxInstructions > 0, "max. instructions must be > 0" );
+            this.maxInstructions = maxInstructions;
+            return this;
+        }
+
+        /**
+         * Stop as soon as the PC reaches a given address.
+         *
+         * @param address
+         * @return
+         */
+        public Options untilPC(int address)
+        {
+            Validate.isTrue( address >= 0 && address <= 0xfff, "address out of range" );
+            this.untilPC = address;
+            return this;
+        }
+
+        /**
+         * Stop as soon as a boolean expression becomes true.
+         *
+         * Expressions use the same syntax as breakpoint conditions in the debugger, e.g. <code>v3 == 5 &amp;&amp; pc &gt; 0x300</code>.
+         *
+         * @param expression
+         * @return
+         * @throws IllegalArgumentException if the expression is malformed
+         */
+        public Options until(String expression)
+        {
+            Validate.notBlank(expression, "expression must not be null or blank");
+            final ASTNode ast = RuntimeExpressions.compile( expression );
+            if ( ast == null ) {
+                throw new IllegalArgumentException( "Invalid condition: "+expression );
+            }
+            this.untilCondition = expression;
+            this.condition = ast;
+            return this;
+        }
+
+        public Options keys(KeyTimeline keys)
+        {
+            Validate.notNull(keys, "keys must not be null");
+            this.keys = keys;
+            return this;
+        }
+
+        boolean hasCondition()
+        {
+            return untilPC != null || condition != null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "engine=" + engine + ", instructionsPerFrame=" + instructionsPerFrame + ", maxFrames=" + maxFrames +
+                ", maxInstructions=" + maxInstructions + ", untilPC=" + untilPC + ", until=" + untilCondition + ", keyEvents=" + keys.size();
+        }
+    }
+
+    /**
+     * Outcome and final state of a run.
+     *
+     * @author tobias.gierke@code-sourcery.de
+     */
+    public static final class Result
+    {
+        public final Outcome outcome;
+        public final int exitCode;
+        public final long frames;
+        public final long instructions;
+        public final EmulatorState state;
+        public final int screenWidth;
+        public final int screenHeight;
+        private final long[] screenRows;
+        public final String memoryDigest;
+        public final String screenDigest;
+        /**
+         * Error message if the outcome is {@link Outcome#FAULT}, otherwise <code>null</code>.
+         */
+        public final String fault;
+
+        private Result(Outcome outcome, int exitCode, EmulatorSession session)
+        {
+            this( outcome, exitCode, session, null );
+        }
+
+        private Result(Outcome outcome, int exitCode, EmulatorSession session, String fault)
+        {
+            this.outcome = outcome;
+            this.exitCode = exitCode;
+            this.fault = fault;
+            this.frames = session.getFrameCount();
+            this.instructions = session.getInstructionCount();
+            this.state = session.snapshot();
+
+            final Screen screen = session.getScreen();
+            this.screenWidth = screen.getWidth();
+            this.screenHeight = screen.getHeight();
+            this.screenRows = new long[ ( screenWidth * screenHeight ) / 64 ];
+            screen.copyRows( screenRows );
+
+            final byte[] memory = new byte[ state.getMemorySize() ];
+            state.readMemory( 0, memory.length, memory );
+            this.memoryDigest = sha256( memory );
+            final byte[] pixels = new byte[ screenRows.length * 8 ];
+            for ( int i = 0, ptr = 0 ; i < screenRows.length ; i++ )
+            {
+                for ( int shift = 56 ; shift >= 0 ; shift -= 8 ) {
+                    pixels[ ptr++ ] = (byte) ( screenRows[i] >>> shift );
+                }
+            }
+            this.screenDigest = sha256( pixels );
+        }
+
+        /**
+         * Returns the final screen contents.
+         *
+         * @return
+         */
+        public ScreenDump getScreen()
+        {
+            return new ScreenDump( screenRows, screenWidth, screenHeight );
+        }
+
+        /**
+         * Returns the registers and digests of memory and screen, one <code>key=value</code> pair per line.
+         *
+         * @return
+         */
+        @Override
+        public String toString()
+        {
+            final StringBuilder buffer = new StringBuilder();
+            buffer.append( "outcome=" ).append( outcome ).append( '\n' );
+            if ( fault != null ) {
+                buffer.append( "fault=" ).append( fault ).append( '\n' );
+            }
+            buffer.append( "frames=" ).append( frames ).append( '\n' );
+            buffer.append( "instructions=" ).append( instructions ).append( '\n' );
+            buffer.append( "pc=" ).append( hex( state.pc, 4 ) ).append( '\n' );
+            buffer.append( "i=" ).append( hex( state.index, 4 ) ).append( '\n' );
+            buffer.append( "sp=" ).append( state.sp ).append( '\n' );
+            buffer.append( "dt=" ).append( state.delayTimer ).append( '\n' );
+            buffer.append( "st=" ).append( state.soundTimer ).append( '\n' );
+            buffer.append( "v=" );
+            for ( int i = 0 ; i < 16 ; i++ ) {
+                buffer.append( i == 0 ? "" : " " ).append( hex( state.register( i ), 2 ) );
+            }
+            buffer.append( '\n' );
+            buffer.append( "screen=" ).append( screenWidth ).append( 'x' ).append( screenHeight ).append( '\n' );
+            buffer.append( "screen.sha256=" ).append( screenDigest ).append( '\n' );
+            buffer.append( "memory.sha256=" ).append( memoryDigest ).append( '\n' );
+            return buffer.toString();
+        }
+    }
+
+    private HeadlessRunner() {
+    }
+
+    /**
+     * Runs a ROM.
+     *
+     * @param rom
+     * @param options
+     * @return
+     */
+    public static Result run(byte[] rom, Options options)
+    {
+        Validate.notNull(rom, "rom must not be null");
+        Validate.notNull(options, "options must not be null");
+
+        final EmulatorSession session = EmulatorSession.builder()
+            .rom( rom )
+            .quirks( options.quirks )
+            .engine( options.engine )
+            .instructionsPerFrame( options.instructionsPerFrame )
+            .build();
+        final Emulator emulator = session.getEmulator();
+        final ExpressionEvaluator.INodeEvaluator evaluator = options.condition == null ? null :
+            RuntimeExpressions.createNodeEvaluator( () -> emulator.pc, reg -> emulator.register[ reg ] );
+
+        final boolean hasCondition = options.hasCondition();
+        final long maxFrames = options.maxFrames == -1 && options.maxInstructions == -1 ? DEFAULT_MAX_FRAMES :
+            options.maxFrames == -1 ? Long.MAX_VALUE : options.maxFrames;
+        final long maxInstructions = options.maxInstructions == -1 ? Long.MAX_VALUE : options.maxInstructions;
+        final int instructionsPerFrame = options.instructionsPerFrame;
+
+        final KeyTimeline keys = options.keys;
+        int nextKey = 0;
+        while ( true )
+        {
+            if ( hasCondition && conditionMet( emulator, options, evaluator ) ) {
+                return new Result( Outcome.CONDITION_MET, EXIT_SUCCESS, session );
+            }
+            if ( session.getFrameCount() >= maxFrames || session.getInstructionCount() >= maxInstructions ) {
+                return new Result( Outcome.LIMIT_REACHED, hasCondition ? EXIT_NOT_MET : EXIT_SUCCESS, session );
+            }
+            final int frameSlot = (int) ( session.getCycleCount() % instructionsPerFrame );
+            if ( frameSlot == 0 )
+            {
+                final int previous = nextKey;
+                nextKey = keys.apply( session.getFrameCount(), session, nextKey );
+                if ( nextKey == previous && nextKey == keys.size() && session.isWaitingForKey() ) {
+                    return new Result( Outcome.STALLED, EXIT_NOT_MET, session );
+                }
+            }
+            // conditions need to be checked after every single instruction
+            final long budget = hasCondition ? 1 :
+                Math.min( instructionsPerFrame - frameSlot, maxInstructions - session.getInstructionCount() );
+            try {
+                session.run( (int) budget );
+            }
+            catch(RuntimeException e) {
+                return new Result( Outcome.FAULT, EXIT_FAILURE, session, e.getMessage() != null ? e.getMessage() : e.toString() );
+            }
+        }
+    }
+
+    private static boolean conditionMet(Emulator emulator, Options options, ExpressionEvaluator.INodeEvaluator evaluator)
+    {
+        if ( options.untilPC != null && emulator.pc == options.untilPC ) {
+            return true;
+        }
+        if ( evaluator != null )
+        {
+            final Object result = evaluator.evaluate( options.condition, false );
+            return result instanceof Boolean && (Boolean) result;
+        }
+        return false;
+    }
+
+    private static String hex(int value, int digits)
+    {
+        return "0x" + StringUtils.leftPad( Integer.toHexString( value ), digits, '0' );
+    }
+
+    private static String sha256(byte[] data)
+    {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException( e ); // every JVM supports SHA-256
+        }
+        final StringBuilder buffer = new StringBuilder();
+        for ( byte b : digest.digest( data ) ) {
+            buffer.append( Character.forDigit( (b >>> 4) & 0x0f, 16 ) ).append( Character.forDigit( b & 0x0f, 16 ) );
+        }
+        return buffer.toString();
+    }
+}
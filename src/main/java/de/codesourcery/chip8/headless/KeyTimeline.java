@@ -0,0 +1,138 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import de.codesourcery.chip8.emulator.EmulatorSession;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Scripted key presses and releases, each one happening at the start of a specific frame.
+ *
+ * Events are written as <code>&lt;frame&gt;:&lt;key&gt;&lt;+|-&gt;</code>, separated by commas or whitespace,
+ * <code>+</code> presses and <code>-</code> releases the key (hexadecimal, 0...f). Text after a '#'
+ * is ignored up to the end of the line. Example: <code>30:5+ 35:5-</code>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class KeyTimeline
+{
+    public static final KeyTimeline EMPTY = new KeyTimeline( new long[0], new int[0] );
+
+    private final long[] frames;
+    // key in bits 0-3, bit 4 set for key presses
+    private final int[] events;
+
+    private KeyTimeline(long[] frames, int[] events)
+    {
+        this.frames = frames;
+        this.events = events;
+    }
+
+    /**
+     * Parses a key timeline.
+     *
+     * @param script
+     * @return
+     * @throws IllegalArgumentException if the script is malformed
+     */
+    public static KeyTimeline parse(String script)
+    {
+        Validate.notNull(script, "script must not be null");
+        final List<long[]> parsed = new ArrayList<>();
+        for ( String line : script.split( "\n" ) )
+        {
+            final int comment = line.indexOf( '#' );
+            if ( comment != -1 ) {
+                line = line.substring( 0, comment );
+            }
+            for ( String event : line.trim().split( "[,\\s]+" ) )
+            {
+                if ( StringUtils.isNotBlank( event ) ) {
+                    parsed.add( parseEvent( event ) );
+                }
+            }
+        }
+        // stable sort, events within the same frame keep their order
+        parsed.sort( Comparator.comparingLong( e -> e[0] ) );
+        final long[] frames = new long[ parsed.size() ];
+        final int[] events = new int[ parsed.size() ];
+        for ( int i = 0 ; i < frames.length ; i++ )
+        {
+            frames[i] = parsed.get( i )[0];
+            events[i] = (int) parsed.get( i )[1];
+        }
+        return new KeyTimeline( frames, events );
+    }
+
+    private static long[] parseEvent(String event)
+    {
+        final int colon = event.indexOf( ':' );
+        final char action = event.charAt( event.length() - 1 );
+        if ( colon < 1 || colon != event.length() - 3 || ( action != '+' && action != '-' ) ) {
+            throw new IllegalArgumentException( "Malformed key event '"+event+"', expected <frame>:<key><+|->" );
+        }
+        final long frame;
+        try {
+            frame = Long.parseLong( event.substring( 0, colon ) );
+        }
+        catch(NumberFormatException e) {
+            throw new IllegalArgumentException( "Malformed frame number in key event '"+event+"'" );
+        }
+        final int key = Character.digit( event.charAt( colon + 1 ), 16 );
+        if ( frame < 0 || key == -1 ) {
+            throw new IllegalArgumentException( "Malformed key event '"+event+"'" );
+        }
+        return new long[] { frame, action == '+' ? key | 0x10 : key };
+    }
+
+    /**
+     * Returns the number of events.
+     *
+     * @return
+     */
+    public int size()
+    {
+        return frames.length;
+    }
+
+    /**
+     * Sends the events of a given frame to a session.
+     *
+     * @param frame
+     * @param session
+     * @param next index of the first event not sent yet, <code>0</code> initially
+     * @return index of the first event not sent yet
+     */
+    public int apply(long frame, EmulatorSession session, int next)
+    {
+        int i = next;
+        for ( ; i < frames.length && frames[i] <= frame ; i++ )
+        {
+            final int key = events[i] & 0x0f;
+            if ( ( events[i] & 0x10 ) != 0 ) {
+                session.keyPressed( key );
+            } else {
+                session.keyReleased( key );
+            }
+        }
+        return i;
+    }
+}
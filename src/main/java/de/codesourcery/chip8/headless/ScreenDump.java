@@ -0,0 +1,141 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import org.apache.commons.lang3.Validate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes screen contents as PBM or PNG images.
+ *
+ * Pixels are taken from the screen's row format (see {@link de.codesourcery.chip8.emulator.Screen#copyRows(long[])}),
+ * both formats are written without going through AWT/ImageIO.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ScreenDump
+{
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private final long[] rows;
+    private final int width;
+    private final int height;
+
+    /**
+     * Create instance.
+     *
+     * @param rows pixels, one bit per pixel with the leftmost pixel in the most significant bit
+     * @param width width in pixels, a multiple of 64
+     * @param height height in pixels
+     */
+    public ScreenDump(long[] rows, int width, int height)
+    {
+        Validate.notNull(rows, "rows must not be null");
+        Validate.isTrue( width > 0 && (width % 64) == 0, "width must be a multiple of 64" );
+        Validate.isTrue( height > 0 && rows.length >= (width/64) * height, "not enough rows" );
+        this.rows = rows;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Writes a binary PBM (P4) image, set pixels are black.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writePBM(OutputStream out) throws IOException
+    {
+        out.write( ( "P4\n" + width + " " + height + "\n" ).getBytes( StandardCharsets.US_ASCII ) );
+        out.write( pixelBytes() );
+        out.flush();
+    }
+
+    /**
+     * Writes a 1-bit grayscale PNG image, set pixels are white just like on the emulator's screen.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writePNG(OutputStream out) throws IOException
+    {
+        final DataOutputStream data = new DataOutputStream( out );
+        data.write( PNG_SIGNATURE );
+
+        final ByteArrayOutputStream header = new ByteArrayOutputStream();
+        final DataOutputStream headerData = new DataOutputStream( header );
+        headerData.writeInt( width );
+        headerData.writeInt( height );
+        headerData.writeByte( 1 ); // bit depth
+        headerData.writeByte( 0 ); // grayscale
+        headerData.writeByte( 0 ); // deflate
+        headerData.writeByte( 0 ); // adaptive filtering
+        headerData.writeByte( 0 ); // no interlacing
+        writeChunk( data, "IHDR", header.toByteArray() );
+
+        final byte[] pixels = pixelBytes();
+        final int bytesPerRow = width / 8;
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try ( DeflaterOutputStream deflater = new DeflaterOutputStream( compressed ) )
+        {
+            for ( int y = 0 ; y < height ; y++ )
+            {
+                deflater.write( 0 ); // filter type: none
+                deflater.write( pixels, y * bytesPerRow, bytesPerRow );
+            }
+        }
+        writeChunk( data, "IDAT", compressed.toByteArray() );
+        writeChunk( data, "IEND", new byte[0] );
+        data.flush();
+    }
+
+    /*
+     * PBM uses 1 for black and 1-bit grayscale PNG uses 1 for white,
+     * so both formats store set pixels as 1 bits.
+     */
+    private byte[] pixelBytes()
+    {
+        final int words = (width / 64) * height;
+        final byte[] result = new byte[ words * 8 ];
+        for ( int i = 0, ptr = 0 ; i < words ; i++ )
+        {
+            final long word = rows[i];
+            for ( int shift = 56 ; shift >= 0 ; shift -= 8 ) {
+                result[ ptr++ ] = (byte) ( word >>> shift );
+            }
+        }
+        return result;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] payload) throws IOException
+    {
+        final byte[] typeBytes = type.getBytes( StandardCharsets.US_ASCII );
+        final CRC32 crc = new CRC32();
+        crc.update( typeBytes );
+        crc.update( payload );
+        out.writeInt( payload.length );
+        out.write( typeBytes );
+        out.write( payload );
+        out.writeInt( (int) crc.getValue() );
+    }
+}
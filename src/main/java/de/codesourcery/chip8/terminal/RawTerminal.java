@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.terminal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Switches the controlling terminal into raw mode (no line buffering, no echo, no signals)
+ * and back, using <code>stty</code>.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class RawTerminal implements AutoCloseable
+{
+    private final String savedSettings;
+    private boolean restored;
+
+    private RawTerminal(String savedSettings)
+    {
+        this.savedSettings = savedSettings;
+    }
+
+    /**
+     * Switches the terminal into raw mode.
+     *
+     * @return handle to restore the previous settings with
+     * @throws IOException if the settings could not be changed (no terminal, no <code>stty</code>)
+     */
+    static RawTerminal enable() throws IOException
+    {
+        final RawTerminal result = new RawTerminal( stty( "-g" ).trim() );
+        stty( "raw -echo" );
+        return result;
+    }
+
+    /**
+     * Restores the settings the terminal had before {@link #enable()}, only the first call has an effect.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if ( ! restored )
+        {
+            restored = true;
+            try {
+                stty( savedSettings );
+            }
+            catch (IOException e)
+            {
+                System.err.println( "Failed to restore terminal settings, try 'stty sane'" );
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static String stty(String args) throws IOException
+    {
+        final Process process = new ProcessBuilder( "sh", "-c", "stty " + args + " < /dev/tty" )
+            .redirectErrorStream( true )
+            .start();
+        try (InputStream in = process.getInputStream())
+        {
+            final String output = new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+            if ( process.waitFor() != 0 ) {
+                throw new IOException( "stty " + args + " failed: " + output.trim() );
+            }
+            return output;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for stty", e );
+        }
+    }
+}
@@ -0,0 +1,299 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.terminal;
+
+import de.codesourcery.chip8.Main;
+import de.codesourcery.chip8.emulator.Emulator;
+import de.codesourcery.chip8.emulator.EmulatorDriver;
+import de.codesourcery.chip8.emulator.Frame;
+import de.codesourcery.chip8.emulator.FrameExchange;
+import de.codesourcery.chip8.emulator.Keyboard;
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Screen;
+import de.codesourcery.chip8.emulator.SixtyHertzTimer;
+import de.codesourcery.chip8.emulator.Timer;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the emulator inside an ANSI terminal, without any GUI.
+ *
+ * Keys are read from the terminal in raw mode. Terminals only report key presses, so releasing
+ * a key has to be guessed from the keyboard's auto-repeat: a key is considered released when no repeated
+ * key press arrived for {@link #KEY_RELEASE_MILLIS} milliseconds. Since terminals wait 250-660 ms
+ * (depending on the user's settings) before they start repeating a key, the longer
+ * {@link #INITIAL_KEY_RELEASE_MILLIS} timeout applies until the first repeat has been seen.
+ *
+ * This is a heuristic with some unavoidable limitations:
+ * <ul>
+ *   <li>a key that is only tapped stays pressed for {@link #INITIAL_KEY_RELEASE_MILLIS} milliseconds</li>
+ *   <li>keys get released too early if the terminal's auto-repeat delay is longer than
+ *   {@link #INITIAL_KEY_RELEASE_MILLIS} or its repeat rate is slower than one key every {@link #KEY_RELEASE_MILLIS}</li>
+ *   <li>terminals only repeat the key pressed last, so holding down two keys at the same time
+ *   releases the first one</li>
+ * </ul>
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see TerminalRenderer
+ */
+public final class TerminalMain
+{
+    private static final long KEY_RELEASE_MILLIS = 150;
+    private static final long INITIAL_KEY_RELEASE_MILLIS = 700;
+
+    // how often to check for key presses while the screen does not change
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    private static final int CTRL_C = 0x03;
+    private static final int CTRL_D = 0x04;
+
+    private final SixtyHertzTimer timer60Hz = new SixtyHertzTimer();
+    private final Timer soundTimer = new Timer( "sound" )
+    {
+        private final EmulatorDriver.IDriverCallback cb = ip ->
+        {
+            if ( ip.emulator.soundTimer.value() == 0 ) {
+                ip.emulator.screen.setBeep(false);
+            }
+        };
+
+        @Override
+        protected void triggered()
+        {
+            driver.post(cb);
+        }
+    };
+
+    private final Timer delayTimer = new Timer( "delay" )
+    {
+        @Override
+        protected void triggered()
+        {
+            driver.delayTimerTriggered();
+        }
+    };
+
+    private final Keyboard keyboard = new Keyboard()
+    {
+        @Override
+        protected EmulatorDriver getDriver()
+        {
+            return driver;
+        }
+    };
+
+    private final EmulatorDriver driver;
+
+    // time each key was last reported as pressed (System.nanoTime()), 0 if released
+    private final long[] keyPressed = new long[16];
+    // whether the terminal started auto-repeating a pressed key
+    private final boolean[] keyRepeating = new boolean[16];
+
+    private TerminalMain(File rom)
+    {
+        final Memory memory = new Memory( 4096 );
+        final Emulator emulator = new Emulator( memory, new Screen( memory ), keyboard, soundTimer, delayTimer, emu ->
+        {
+            try
+            {
+                if ( rom != null )
+                {
+                    try ( FileInputStream in = new FileInputStream( rom ) ) {
+                        emu.memory.load( in, 0x200 );
+                    }
+                } else {
+                    emu.memory.load( Main.PROGRAM_CLASSPATH, 0x200 );
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println("Failed to load executable");
+                e.printStackTrace();
+            }
+        });
+        driver = new EmulatorDriver( emulator );
+        driver.setSpeed( 0.5f );
+        driver.addShutdownListener( timer60Hz::terminate );
+        Main.exportFramebuffer( driver );
+        timer60Hz.addListener( () ->
+        {
+            if ( ! driver.isFrameSynchronous() )
+            {
+                soundTimer.run();
+                delayTimer.run();
+            }
+        });
+    }
+
+    /**
+     * Runs a ROM in the terminal.
+     *
+     * @param args path to the ROM file, defaults to the built-in demo program
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length > 1 )
+        {
+            System.err.println( "Usage: [ROM file]" );
+            System.exit( 1 );
+        }
+        if ( System.console() == null )
+        {
+            System.err.println( "The terminal front-end needs to be run in an interactive terminal" );
+            System.exit( 1 );
+        }
+        new TerminalMain( args.length == 1 ? new File( args[0] ) : null ).run();
+    }
+
+    private void run() throws IOException
+    {
+        final OutputStream out = new FileOutputStream( FileDescriptor.out );
+        final InputStream in = new FileInputStream( FileDescriptor.in );
+        final PrintStream stdout = System.out;
+        final RawTerminal terminal = RawTerminal.enable();
+        final Thread restoreOnExit = new Thread( terminal::close );
+        Runtime.getRuntime().addShutdownHook( restoreOnExit );
+        // other output would garble the screen
+        System.setOut( new PrintStream( OutputStream.nullOutputStream() ) );
+        try
+        {
+            final Thread renderThread = Thread.currentThread();
+            final FrameExchange frames = driver.getFrames();
+            frames.setFrameListener( () -> LockSupport.unpark( renderThread ) );
+
+            final TerminalRenderer renderer = new TerminalRenderer( "Keys: 1-4 Q-R A-F Z-V, Ctrl-C to quit" );
+            final StringBuilder buffer = new StringBuilder();
+            write( TerminalRenderer.HIDE_CURSOR, out );
+
+            timer60Hz.start();
+            driver.reset();
+            driver.requestFrame();
+            driver.start();
+
+            while ( processInput( in ) )
+            {
+                final Frame frame = frames.take();
+                if ( frame != null )
+                {
+                    buffer.setLength( 0 );
+                    renderer.render( frame, buffer );
+                    write( buffer, out );
+                }
+                LockSupport.parkNanos( POLL_NANOS );
+            }
+            buffer.setLength( 0 );
+            renderer.moveBelow( buffer );
+            buffer.append( "\r\n" ).append( TerminalRenderer.SHOW_CURSOR );
+            write( buffer, out );
+        }
+        finally
+        {
+            driver.destroy();
+            terminal.close();
+            Runtime.getRuntime().removeShutdownHook( restoreOnExit );
+            System.setOut( stdout );
+        }
+    }
+
+    /*
+     * Returns false if the user asked to quit.
+     */
+    private boolean processInput(InputStream in) throws IOException
+    {
+        final long now = System.nanoTime();
+        while ( in.available() > 0 )
+        {
+            final int c = in.read();
+            if ( c == -1 || c == CTRL_C || c == CTRL_D ) {
+                return false;
+            }
+            final int key = keyCode( Character.toLowerCase( (char) c ) );
+            if ( key != -1 )
+            {
+                if ( keyPressed[ key ] == 0 ) {
+                    driver.keyPressed( key );
+                } else {
+                    keyRepeating[ key ] = true;
+                }
+                keyPressed[ key ] = now;
+            }
+        }
+        for ( int key = 0 ; key < keyPressed.length ; key++ )
+        {
+            final long timeout = keyRepeating[ key ] ? KEY_RELEASE_MILLIS : INITIAL_KEY_RELEASE_MILLIS;
+            if ( keyPressed[ key ] != 0 && now - keyPressed[ key ] > TimeUnit.MILLISECONDS.toNanos( timeout ) )
+            {
+                keyPressed[ key ] = 0;
+                keyRepeating[ key ] = false;
+                driver.keyReleased( key );
+            }
+        }
+        return true;
+    }
+
+    private static void write(CharSequence text, OutputStream out) throws IOException
+    {
+        out.write( text.toString().getBytes( StandardCharsets.UTF_8 ) );
+        out.flush();
+    }
+
+    /*
+     * 1 2 3 C
+     * 4 5 6 D
+     * 7 8 9 E
+     * A 0 B F
+     */
+    static int keyCode(char c)
+    {
+        switch ( c )
+        {
+            case '1': return 0x01;
+            case '2': return 0x02;
+            case '3': return 0x03;
+            case '4': return 0x0c;
+            // --
+            case 'q': return 0x04;
+            case 'w': return 0x05;
+            case 'e': return 0x06;
+            case 'r': return 0x0d;
+            // --
+            case 'a': return 0x07;
+            case 's': return 0x08;
+            case 'd': return 0x09;
+            case 'f': return 0x0e;
+            // -- 'y' for QWERTZ keyboards
+            case 'z':
+            case 'y': return 0x0a;
+            case 'x': return 0x00;
+            case 'c': return 0x0b;
+            case 'v': return 0x0f;
+            // --
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.terminal;
+
+import de.codesourcery.chip8.emulator.Frame;
+import de.codesourcery.chip8.emulator.Screen;
+
+import org.apache.commons.lang3.Validate;
+
+import java.util.Arrays;
+
+/**
+ * Renders frames as text for ANSI terminals.
+ *
+ * Each character cell shows two pixels on top of each other using the Unicode
+ * half-block characters, so the screen takes 64x16 (or 128x32 in extended mode) cells.
+ * Only cells that changed since the previous frame get written, using cursor addressing
+ * to skip over unchanged ones.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class TerminalRenderer
+{
+    static final String ESC = "\u001b[";
+
+    static final String CLEAR_SCREEN = ESC + "2J";
+    static final String HIDE_CURSOR = ESC + "?25l";
+    static final String SHOW_CURSOR = ESC + "?25h";
+
+    // indexed by (top pixel << 1 | bottom pixel): space, lower half block, upper half block, full block
+    private static final char[] BLOCKS = { ' ', '\u2584', '\u2580', '\u2588' };
+
+    private final long[] current = new long[ (Screen.EXTENDED_WIDTH/64) * Screen.EXTENDED_HEIGHT ];
+    private final long[] previous = new long[ current.length ];
+
+    private final String footer;
+
+    private boolean valid;
+    private boolean extended;
+
+    // position the terminal's cursor is known to be at (0-based), -1 if unknown
+    private int cursorLine = -1;
+    private int cursorColumn = -1;
+
+    public TerminalRenderer() {
+        this( "" );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param footer text to show below the screen
+     */
+    public TerminalRenderer(String footer)
+    {
+        Validate.notNull( footer, "footer must not be null" );
+        this.footer = footer;
+    }
+
+    /**
+     * Appends the escape sequences and characters needed to bring the terminal
+     * up-to-date with a frame.
+     *
+     * @param frame
+     * @param out
+     * @return number of cells written
+     */
+    public int render(Frame frame, StringBuilder out)
+    {
+        frame.copyRows( current );
+        return render( current, frame.isExtendedMode(), out );
+    }
+
+    /**
+     * Appends the escape sequences and characters needed to bring the terminal
+     * up-to-date with a screen's content.
+     *
+     * @param rows pixels in {@link Screen#copyRows(long[])} format
+     * @param extendedMode whether the pixels are in the 128x64 resolution
+     * @param out
+     * @return number of cells written
+     */
+    int render(long[] rows, boolean extendedMode, StringBuilder out)
+    {
+        if ( ! valid || extendedMode != this.extended )
+        {
+            out.append( CLEAR_SCREEN );
+            // everything is blank now
+            Arrays.fill( previous, 0 );
+            this.extended = extendedMode;
+            this.valid = true;
+            if ( ! footer.isEmpty() ) {
+                moveBelow( out );
+                out.append( footer );
+            }
+            cursorLine = -1;
+        }
+        final int wordsPerRow = extendedMode ? 2 : 1;
+        final int height = extendedMode ? Screen.EXTENDED_HEIGHT : Screen.HEIGHT;
+
+        int cells = 0;
+        for ( int y = 0, line = 0 ; y < height ; y += 2, line++ )
+        {
+            for ( int word = 0 ; word < wordsPerRow ; word++ )
+            {
+                final int top = y * wordsPerRow + word;
+                final int bottom = top + wordsPerRow;
+                long changed = ( rows[ top ] ^ previous[ top ] ) | ( rows[ bottom ] ^ previous[ bottom ] );
+                while ( changed != 0 )
+                {
+                    final int bit = Long.numberOfLeadingZeros( changed );
+                    changed &= ~( Long.MIN_VALUE >>> bit );
+                    final int shift = 63 - bit;
+                    final int block = (int) ( ( rows[ top ] >>> shift ) & 1 ) << 1 | (int) ( ( rows[ bottom ] >>> shift ) & 1 );
+                    moveTo( line, word * 64 + bit, out );
+                    out.append( BLOCKS[ block ] );
+                    cursorColumn++;
+                    cells++;
+                }
+                previous[ top ] = rows[ top ];
+                previous[ bottom ] = rows[ bottom ];
+            }
+        }
+        return cells;
+    }
+
+    private void moveTo(int line, int column, StringBuilder out)
+    {
+        if ( line != cursorLine || column != cursorColumn )
+        {
+            out.append( ESC ).append( line + 1 ).append( ';' ).append( column + 1 ).append( 'H' );
+            cursorLine = line;
+            cursorColumn = column;
+        }
+    }
+
+    /**
+     * Makes the next call to {@link #render(Frame, StringBuilder)} redraw the whole screen.
+     */
+    public void invalidate()
+    {
+        valid = false;
+    }
+
+    /**
+     * Appends the escape sequence that moves the cursor below the rendered screen.
+     *
+     * @param out
+     */
+    public void moveBelow(StringBuilder out)
+    {
+        final int lines = ( extended ? Screen.EXTENDED_HEIGHT : Screen.HEIGHT ) / 2;
+        out.append( ESC ).append( lines + 1 ).append( ";1H" );
+        cursorLine = -1;
+    }
+}
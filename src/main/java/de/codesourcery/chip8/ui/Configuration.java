@@ -15,6 +15,7 @@
  */
 package de.codesourcery.chip8.ui;
 
+import de.codesourcery.chip8.emulator.EngineType;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.swing.text.Style;
@@ -187,6 +188,50 @@ public final class Configuration
         setFile("source",file);
     }
 
+    public EngineType getEngineType()
+    {
+        final String value = getProperty("engine");
+        if ( StringUtils.isNotBlank( value ) )
+        {
+            try {
+                return EngineType.valueOf( value.trim() );
+            } catch(IllegalArgumentException e) {
+                System.err.println("Ignoring unknown execution engine '"+value+"'");
+            }
+        }
+        return EngineType.INTERPRETER;
+    }
+
+    public void setEngineType(EngineType type) {
+        setProperty("engine", type == null ? null : type.name() );
+    }
+
+    public boolean isFrameSynchronous() {
+        return getBoolean("frameSynchronous", false );
+    }
+
+    public void setFrameSynchronous(boolean yesNo) {
+        setBoolean("frameSynchronous", yesNo );
+    }
+
+    public FrameBlending getFrameBlending()
+    {
+        final String value = getProperty("frameBlending");
+        if ( StringUtils.isNotBlank( value ) )
+        {
+            try {
+                return FrameBlending.valueOf( value.trim() );
+            } catch(IllegalArgumentException e) {
+                System.err.println("Ignoring unknown frame blending '"+value+"'");
+            }
+        }
+        return FrameBlending.NONE;
+    }
+
+    public void setFrameBlending(FrameBlending blending) {
+        setProperty("frameBlending", blending == null ? null : blending.name() );
+    }
+
     public Color getColor(HighlightingColors key) {
         final String value = getProperty( key.propertyName );
         if ( StringUtils.isBlank( value ) ) {
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.ui;
+
+/**
+ * How to blend the most recent frames to hide the flicker caused by
+ * CHIP-8 programs erasing and redrawing sprites using XOR.
+ *
+ * A pixel's brightness is the weight of the most recent frame it was set in.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ * @see ScaledScreenRenderer#setBlending(FrameBlending)
+ */
+public enum FrameBlending
+{
+    NONE("None", 1f),
+    OR_LAST_TWO("OR of last two frames", 1f, 1f),
+    PHOSPHOR("Phosphor persistence", 1f, 0.6f, 0.35f, 0.15f);
+
+    public final String displayName;
+
+    // one weight per frame, most recent one first. Number of frames must divide 8
+    final float[] weights;
+
+    FrameBlending(String displayName, float... weights)
+    {
+        this.displayName = displayName;
+        this.weights = weights;
+    }
+
+    /**
+     * Returns the number of frames being blended.
+     *
+     * @return
+     */
+    public int frameCount() {
+        return weights.length;
+    }
+}
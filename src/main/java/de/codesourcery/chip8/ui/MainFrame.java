@@ -15,14 +15,11 @@
  */
 package de.codesourcery.chip8.ui;
 
-import de.codesourcery.chip8.Disassembler;
 import de.codesourcery.chip8.asm.Assembler;
 import de.codesourcery.chip8.asm.CompilationMessages;
 import de.codesourcery.chip8.asm.ExecutableWriter;
 import de.codesourcery.chip8.asm.ExpressionEvaluator;
-import de.codesourcery.chip8.asm.ISymbolResolver;
-import de.codesourcery.chip8.asm.Identifier;
-import de.codesourcery.chip8.asm.SymbolTable;
+import de.codesourcery.chip8.asm.RuntimeExpressions;
 import de.codesourcery.chip8.asm.ast.ASTNode;
 import de.codesourcery.chip8.asm.ast.CommentNode;
 import de.codesourcery.chip8.asm.ast.DirectiveNode;
@@ -38,6 +35,10 @@ import de.codesourcery.chip8.asm.parser.Scanner;
 import de.codesourcery.chip8.emulator.Breakpoint;
 import de.codesourcery.chip8.emulator.Emulator;
 import de.codesourcery.chip8.emulator.EmulatorDriver;
+import de.codesourcery.chip8.emulator.EmulatorState;
+import de.codesourcery.chip8.emulator.EngineType;
+import de.codesourcery.chip8.emulator.recording.GifConverter;
+import de.codesourcery.chip8.emulator.recording.VideoRecorder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
@@ -83,7 +84,6 @@ import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.Toolkit;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
@@ -94,6 +94,7 @@ import java.awt.geom.Rectangle2D;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -158,8 +159,6 @@ public class MainFrame extends JFrame
         }
     }
 
-    private Timer swingTimer;
-
     public interface IConfigurationProvider
     {
         Properties load();
@@ -169,6 +168,13 @@ public class MainFrame extends JFrame
     private final Map<ConfigKey,MyFrame> windows = new HashMap<>();
     private final EmulatorDriver driver;
 
+    // only accessed by the EDT
+    private ScreenPanel screenPanel;
+    private VideoRecorder videoRecorder;
+
+    // polls the latest emulation state snapshot
+    private final Timer snapshotTimer = new Timer( 1000 / EmulatorDriver.DEFAULT_SNAPSHOT_RATE, ev -> pollSnapshot() );
+
     private final IConfigurationProvider configProvider;
     private final Properties config;
     private final JDesktopPane desktop = new JDesktopPane();
@@ -192,6 +198,7 @@ public class MainFrame extends JFrame
         setVisible( true );
         setLocationRelativeTo( null );
         addWindowListener(new WindowAdapter() {@Override public void windowClosing(WindowEvent e) { quit(); } } );
+        snapshotTimer.start();
     }
 
     protected abstract class MyFrame extends JInternalFrame implements EmulatorDriver.IDriverCallback, EmulatorDriver.IStateListener
@@ -199,11 +206,21 @@ public class MainFrame extends JFrame
         public final ConfigKey configKey;
         private final boolean needsTick;
         private final boolean needsState;
+        private final boolean needsSnapshots;
+
+        // only accessed by the EDT
+        private EmulatorState lastSnapshot;
 
         public MyFrame(String title, ConfigKey configKey, boolean needsTick, boolean needsState)
+        {
+            this(title, configKey, needsTick, needsState, false);
+        }
+
+        public MyFrame(String title, ConfigKey configKey, boolean needsTick, boolean needsState, boolean needsSnapshots)
         {
             super(title,true,false,true);
             this.needsTick = needsTick;
+            this.needsSnapshots = needsSnapshots;
             this.needsState = needsState;
             this.setDefaultCloseOperation( JInternalFrame.DISPOSE_ON_CLOSE );
             this.configKey = configKey;
@@ -255,6 +272,33 @@ public class MainFrame extends JFrame
 
         @Override
         public void stateChanged(EmulatorDriver controller, EmulatorDriver.Reason reason) { }
+
+        /**
+         * Invoked on the EDT whenever a new snapshot of the emulation state got published.
+         *
+         * Only invoked if this frame was created with <code>needsSnapshots</code> set.
+         *
+         * @param state
+         */
+        protected void snapshotChanged(EmulatorState state) { }
+
+        final void updateSnapshot(EmulatorState state, boolean force)
+        {
+            if ( needsSnapshots && ( force || state != lastSnapshot ) )
+            {
+                lastSnapshot = state;
+                snapshotChanged( state );
+            }
+        }
+
+        /**
+         * Refreshes this frame using the latest snapshot of the emulation state.
+         *
+         * Must be invoked on the EDT.
+         */
+        protected final void refresh() {
+            updateSnapshot( driver.getState(), true );
+        }
     }
 
     private MyFrame createInternalFrame(ConfigKey key)
@@ -483,7 +527,7 @@ public class MainFrame extends JFrame
 
     private MyFrame createMemoryView()
     {
-        return new MyFrame("Memory", ConfigKey.MEMORY, true,false )
+        return new MyFrame("Memory", ConfigKey.MEMORY, false,false,true )
         {
             public static final int BYTES_TO_DUMP = 128;
             public static final int BYTES_PER_ROW = 16;
@@ -502,7 +546,7 @@ public class MainFrame extends JFrame
                 address.addActionListener(ev ->
                 {
                     expression = address.getText();
-                    driver.runOnThread(this);
+                    refresh();
                 });
 
                 final KeyAdapter adapter = new KeyAdapter()
@@ -528,10 +572,11 @@ public class MainFrame extends JFrame
                         }
                         if (func != null)
                         {
-                            Integer current = evaluate(expression, createNodeEvaluator( driver ) );
+                            final EmulatorState state = driver.getState();
+                            Integer current = evaluate(expression, createNodeEvaluator( state ) );
                             if (current != null)
                             {
-                                current = func.apply(current) % driver.emulator.memory.getSizeInBytes();
+                                current = func.apply(current) % state.getMemorySize();
                                 expression = "0x" + Integer.toHexString(current);
                                 address.setText(expression);
                                 refresh();
@@ -542,21 +587,13 @@ public class MainFrame extends JFrame
                 dump.addKeyListener(adapter);
             }
 
-            private void refresh() {
-                driver.runOnThread(this);
-            }
-
             @Override
-            public void invoke(EmulatorDriver controller)
+            protected void snapshotChanged(EmulatorState state)
             {
-                final Integer adr = evaluate(expression, createNodeEvaluator( controller ));
+                final Integer adr = evaluate(expression, createNodeEvaluator( state ));
                 if ( adr != null )
                 {
-                    final String text = controller.emulator.memory.dump(
-                            adr % controller.emulator.memory.getSizeInBytes(),
-                            BYTES_TO_DUMP,
-                            BYTES_PER_ROW);
-                    SwingUtilities.invokeLater(() -> dump.setText(text));
+                    dump.setText( state.dumpMemory( adr % state.getMemorySize(), BYTES_TO_DUMP, BYTES_PER_ROW ) );
                 }
             }
         };
@@ -564,7 +601,7 @@ public class MainFrame extends JFrame
 
     private MyFrame createSpriteView()
     {
-        return new MyFrame("Sprites", ConfigKey.SPRITE_VIEW, true, false)
+        return new MyFrame("Sprites", ConfigKey.SPRITE_VIEW, false, false, true)
         {
             private static final int BYTES_TO_DISPLAY = 16;
 
@@ -609,20 +646,16 @@ public class MainFrame extends JFrame
             };
 
             @Override
-            public void invoke(EmulatorDriver controller)
+            protected void snapshotChanged(EmulatorState state)
             {
-                Integer adr = evaluate(expression, createNodeEvaluator( controller ));
+                Integer adr = evaluate(expression, createNodeEvaluator( state ));
                 if ( adr != null )
                 {
                     synchronized (data)
                     {
-                        controller.emulator.memory.read(adr, BYTES_TO_DISPLAY, data);
+                        state.readMemory(adr, BYTES_TO_DISPLAY, data);
                     }
                 }
-            }
-
-            private void refresh() {
-                driver.runOnThread(this);
                 panel.repaint();
             }
 
@@ -659,10 +692,11 @@ public class MainFrame extends JFrame
                         }
                         if (func != null)
                         {
-                            Integer current = evaluate(expression, createNodeEvaluator( driver ));
+                            final EmulatorState state = driver.getState();
+                            Integer current = evaluate(expression, createNodeEvaluator( state ));
                             if (current != null)
                             {
-                                current = func.apply(current) % driver.emulator.memory.getSizeInBytes();
+                                current = func.apply(current) % state.getMemorySize();
                                 expression = "0x" + Integer.toHexString(current);
                                 textfield.setText(expression);
                                 refresh();
@@ -680,27 +714,20 @@ public class MainFrame extends JFrame
     {
         return new MyFrame("Screen", ConfigKey.SCREEN, false,false ) {
 
+            private final ScreenPanel panel = new ScreenPanel( driver );
+
             {
-                final ScreenPanel p = new ScreenPanel( driver );
-                getContentPane().add( p );
-                swingTimer = new Timer(16, ev ->
-                {
-                    final boolean screenChanged = driver.runOnThreadWithResult(driver ->
-                    {
-                        if (driver.emulator.screen.hasChanged())
-                        {
-                            p.draw(driver.emulator.screen);
-                            return true;
-                        }
-                        return false;
-                    });
-                    if ( screenChanged )
-                    {
-                        p.repaint();
-                        Toolkit.getDefaultToolkit().sync();
-                    }
-                });
-                swingTimer.start();
+                getContentPane().add( panel );
+                panel.setFrameBlending( Configuration.of( config ).getFrameBlending() );
+                panel.attach();
+                screenPanel = panel;
+            }
+
+            @Override
+            protected void onDispose()
+            {
+                panel.detach();
+                screenPanel = null;
             }
         };
     }
@@ -739,11 +766,11 @@ public class MainFrame extends JFrame
                         }
                     }
                 } );
-                startButton.addActionListener( ev -> driver.start() );
-                stopButton.addActionListener( ev -> driver.stop() );
-                stepButton.addActionListener( ev -> driver.step() );
+                startButton.addActionListener( ev -> driver.startAsync() );
+                stopButton.addActionListener( ev -> driver.stopAsync() );
+                stepButton.addActionListener( ev -> driver.stepAsync() );
                 stepOverButton.addActionListener( ev -> driver.stepOver() );
-                resetButton.addActionListener( ev -> driver.reset() );
+                resetButton.addActionListener( ev -> driver.resetAsync() );
                 loadButton.addActionListener( ev ->
                 {
                     final Configuration serializer = Configuration.of(config);
@@ -795,7 +822,7 @@ public class MainFrame extends JFrame
 
     private MyFrame createCPUView()
     {
-        return new MyFrame("CPU", ConfigKey.CPU, true,true) {
+        return new MyFrame("CPU", ConfigKey.CPU, false,false,true) {
 
             private final StringBuilder buffer = new StringBuilder();
             private final JTextArea area = new JTextArea();
@@ -807,19 +834,12 @@ public class MainFrame extends JFrame
             }
 
             @Override
-            public void stateChanged(EmulatorDriver controller, EmulatorDriver.Reason reason)
-            {
-                invoke(controller);
-            }
-
-            @Override
-            public void invoke(EmulatorDriver controller)
+            protected void snapshotChanged(EmulatorState state)
             {
-                final Emulator interpreter = controller.emulator;
                 buffer.setLength(0);
-                buffer.append("PC: ").append( hexWord( interpreter.pc ) );
-                buffer.append("    Index: ").append( hexWord( interpreter.index ) );
-                buffer.append("    SP: ").append( hexByte( interpreter.sp) );
+                buffer.append("PC: ").append( hexWord( state.pc ) );
+                buffer.append("    Index: ").append( hexWord( state.index ) );
+                buffer.append("    SP: ").append( hexByte( state.sp) );
                 buffer.append("\n\n");
 
                 for ( int reg = 0 ; reg < 4 ; reg++)
@@ -828,7 +848,7 @@ public class MainFrame extends JFrame
                     for (int i = 4 ; i > 0 ; i--, num+=4 )
                     {
                         String regNum = StringUtils.leftPad(Integer.toString(num), 2, ' ');
-                        String sReg = "Register " + regNum + ": " + hexByte(interpreter.register[num]);
+                        String sReg = "Register " + regNum + ": " + hexByte(state.register(num));
                         buffer.append(sReg);
                         if (i>1)
                         {
@@ -837,22 +857,22 @@ public class MainFrame extends JFrame
                     }
                     buffer.append("\n");
                 }
-
-
-                final String s = buffer.toString();
-                SwingUtilities.invokeLater( () -> area.setText( s ) );
+                area.setText( buffer.toString() );
             }
         };
     }
 
     private MyFrame createDisasmView()
     {
-        return new MyFrame("Disasm", ConfigKey.DISASM, true,true) {
+        return new MyFrame("Disasm", ConfigKey.DISASM, false,true,true) {
 
             private static final int WORDS_TO_DISASSEMBLE = 16;
 
             private volatile EmulatorDriver.IDriverCallback bpListener;
 
+            // enabled, non-temporary breakpoints by address
+            private volatile Map<Integer, Breakpoint> breakpoints = new HashMap<>();
+
             // @GuardedBy( lines )
             private boolean userProvidedAddress;
 
@@ -871,14 +891,24 @@ public class MainFrame extends JFrame
                 synchronized (lines) {
                     userProvidedAddress = false;
                 }
-                refresh();
+                SwingUtilities.invokeLater( this::refresh );
             }
 
             @Override
             protected void initialize(EmulatorDriver driver)
             {
                 super.initialize( driver );
-                bpListener = d -> refresh();
+                // invoked on the emulation thread
+                bpListener = d ->
+                {
+                    final Map<Integer, Breakpoint> bps = new HashMap<>();
+                    d.getAllBreakpoints().stream()
+                            .filter(x -> !x.isTemporary)
+                            .filter( d::isEnabled )
+                            .forEach(x -> bps.put(x.address, x));
+                    breakpoints = bps;
+                    SwingUtilities.invokeLater( this::repaint );
+                };
                 driver.addBreakpointChangeListener( bpListener);
             }
 
@@ -893,11 +923,6 @@ public class MainFrame extends JFrame
                 driver.toggle(new Breakpoint(address,false) );
             }
 
-            private void refresh()
-            {
-                driver.runOnThread( this );
-            }
-
             private final JPanel panel = new JPanel() {
 
                 {
@@ -966,36 +991,23 @@ public class MainFrame extends JFrame
                     int x0 = 0;
                     int y0 = fontHeight;
 
-                    final Map<Integer, Breakpoint> bps = new HashMap<>();
-                    driver.runOnThread(emuDriver ->
-                    {
-                        synchronized(bps)
-                        {
-                            emuDriver.getAllBreakpoints().stream()
-                                    .filter(x -> !x.isTemporary)
-                                    .filter( emuDriver::isEnabled )
-                                    .forEach(x -> bps.put(x.address, x));
-                        }
-                    });
+                    final Map<Integer, Breakpoint> bps = breakpoints;
                     synchronized (lines)
                     {
-                        synchronized (bps)
+                        int address = startAddress;
+                        for (String line : lines)
                         {
-                            int address = startAddress;
-                            for (String line : lines)
+                            final String pcMarker = address == currentPC ? " >> " : "    ";
+                            if (bps.containsKey(address))
                             {
-                                final String pcMarker = address == currentPC ? " >> " : "    ";
-                                if (bps.containsKey(address))
-                                {
-                                    g.drawString("[B]" + pcMarker + line, x0, y0);
-                                }
-                                else
-                                {
-                                    g.drawString("[ ]" + pcMarker + line, x0, y0);
-                                }
-                                y0 += fontHeight;
-                                address += 2;
+                                g.drawString("[B]" + pcMarker + line, x0, y0);
+                            }
+                            else
+                            {
+                                g.drawString("[ ]" + pcMarker + line, x0, y0);
                             }
+                            y0 += fontHeight;
+                            address += 2;
                         }
                     }
                 }
@@ -1004,15 +1016,15 @@ public class MainFrame extends JFrame
             {
                 getContentPane().add( panel );
                 configure(panel);
+                driver.post( bpListener );
             }
 
             @Override
-            public void invoke(EmulatorDriver controller)
+            protected void snapshotChanged(EmulatorState state)
             {
                 synchronized(this.lines)
                 {
-                    final Emulator interpreter = controller.emulator;
-                    this.currentPC = interpreter.pc;
+                    this.currentPC = state.pc;
 
                     final int displayStart;
                     if ( userProvidedAddress )
@@ -1030,7 +1042,7 @@ public class MainFrame extends JFrame
                             displayStart = startAddress;
                         }
                     }
-                    final List<String> lines = Disassembler.disAsm( interpreter.memory,displayStart,WORDS_TO_DISASSEMBLE );
+                    final List<String> lines = state.disassemble( displayStart,WORDS_TO_DISASSEMBLE );
 
                     this.startAddress = displayStart;
                     this.lines.clear();
@@ -1549,10 +1561,123 @@ public class MainFrame extends JFrame
                                 getWindow( key ).isPresent(),
                         () -> toggleVisibility( key ) )
                 );
+        final JMenu blending = new JMenu( "Anti-flicker" );
+        Stream.of( FrameBlending.values() ).forEach( mode -> cbMenuItem( blending, mode.displayName,
+                () -> Configuration.of( config ).getFrameBlending() == mode,
+                () -> {
+                    Configuration.of( config ).setFrameBlending( mode );
+                    configProvider.save();
+                    if ( screenPanel != null ) {
+                        screenPanel.setFrameBlending( mode );
+                    }
+                })
+        );
+        view.addSeparator();
+        view.add( blending );
         bar.add( view );
+
+        // 'Emulation' menu
+        final JMenu emulation = new JMenu( "Emulation" );
+        final JMenu engines = new JMenu( "Execution engine" );
+        Stream.of( EngineType.values() ).forEach( type -> cbMenuItem( engines, type.displayName,
+                () -> Configuration.of( config ).getEngineType() == type,
+                () -> {
+                    Configuration.of( config ).setEngineType( type );
+                    configProvider.save();
+                    driver.setExecutionEngine( type );
+                })
+        );
+        emulation.add( engines );
+        cbMenuItem( emulation, "Frame-synchronous timing",
+                () -> Configuration.of( config ).isFrameSynchronous(),
+                () -> {
+                    final boolean frameSynchronous = ! Configuration.of( config ).isFrameSynchronous();
+                    Configuration.of( config ).setFrameSynchronous( frameSynchronous );
+                    configProvider.save();
+                    if ( frameSynchronous ) {
+                        driver.setFrameSynchronous( EmulatorDriver.DEFAULT_INSTRUCTIONS_PER_FRAME, true );
+                    } else {
+                        driver.setRealTime();
+                    }
+                });
+        emulation.addSeparator();
+        cbMenuItem( emulation, "Record video...", () -> videoRecorder != null, this::toggleVideoRecording );
+        menuItem( emulation, "Convert recording to GIF...", this::convertRecording );
+        bar.add( emulation );
         return bar;
     }
 
+    private void toggleVideoRecording()
+    {
+        if ( videoRecorder != null )
+        {
+            stopVideoRecording();
+            return;
+        }
+        final File file = selectFileSave( null );
+        if ( file != null )
+        {
+            try
+            {
+                videoRecorder = VideoRecorder.create( file.toPath() );
+                driver.setVideoRecorder( videoRecorder );
+                System.out.println("Recording video to "+file.getAbsolutePath());
+            }
+            catch (IOException e)
+            {
+                System.err.println("Failed to start recording to "+file.getAbsolutePath());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void stopVideoRecording()
+    {
+        if ( videoRecorder != null )
+        {
+            driver.setVideoRecorder( null );
+            try
+            {
+                videoRecorder.close();
+                System.out.println("Recorded "+videoRecorder.getRecordedFrames()+" frames ("+videoRecorder.getDroppedFrames()+" dropped)");
+            }
+            catch (IOException e)
+            {
+                System.err.println("Video recording failed");
+                e.printStackTrace();
+            }
+            videoRecorder = null;
+        }
+    }
+
+    private void convertRecording()
+    {
+        final File recording = selectFileOpen( null );
+        if ( recording == null ) {
+            return;
+        }
+        final File gif = selectFileSave( new File( recording.getAbsolutePath() + ".gif" ) );
+        if ( gif == null ) {
+            return;
+        }
+        // conversion may take a while, keep the UI responsive
+        final Thread thread = new Thread( () ->
+        {
+            try
+            {
+                final int frames = new GifConverter( 4 ).convert( new FileInputStream( recording ), new FileOutputStream( gif ) );
+                System.out.println("Wrote "+frames+" frames to "+gif.getAbsolutePath());
+            }
+            catch (IOException e)
+            {
+                System.err.println("Failed to convert "+recording.getAbsolutePath());
+                e.printStackTrace();
+            }
+        }, "gif-converter" );
+        thread.setDaemon( true );
+        thread.start();
+    }
+
     private void toggleVisibility(ConfigKey configKey)
     {
         // hide window
@@ -1575,6 +1700,7 @@ public class MainFrame extends JFrame
         Configuration.applyWindowState( config, configKey, newFrame );
         configProvider.save();
         driver.runOnThread( newFrame );
+        newFrame.refresh();
     }
 
     private Optional<MyFrame> getWindow(ConfigKey key) {
@@ -1605,12 +1731,16 @@ public class MainFrame extends JFrame
         menu.add( result );
     }
 
+    private void pollSnapshot()
+    {
+        final EmulatorState state = driver.getState();
+        windows.values().forEach( w -> w.updateSnapshot( state, false ) );
+    }
+
     private void quit()
     {
-        if ( swingTimer != null )
-        {
-            swingTimer.stop();
-        }
+        snapshotTimer.stop();
+        stopVideoRecording();
         driver.destroy();
         windows.values().forEach(win -> Configuration.saveWindowState(config, win.configKey,win) );
         Configuration.saveWindowState(config, ConfigKey.MAINFRAME, MainFrame.this);
@@ -1621,90 +1751,22 @@ public class MainFrame extends JFrame
 
     public static ExpressionEvaluator.INodeEvaluator createNodeEvaluator(EmulatorDriver driver)
     {
-        final ISymbolResolver symbolResolver = new ISymbolResolver()
-        {
-            @Override public SymbolTable.Symbol get(Identifier scope, Identifier name) { return get(name); }
+        return RuntimeExpressions.createNodeEvaluator( () -> driver.runOnThreadWithResult( x -> x.emulator.pc ),
+                regNum -> driver.runOnThreadWithResult( x -> x.emulator.register[regNum] ) );
+    }
 
-            @Override
-            public SymbolTable.Symbol get(Identifier name)
-            {
-                Integer result = null;
-                final String v = name.value.toLowerCase();
-                if ( "pc".equals( v ) ) {
-                    result = driver.runOnThreadWithResult( x -> x.emulator.pc );
-                }
-                else if ( v.startsWith("v" ) ) {
-                    try {
-                        int regNum = Integer.parseInt( v.substring( 1 ) );
-                        result = driver.runOnThreadWithResult( x -> x.emulator.register[regNum] );
-                    }
-                    catch(Exception e) {
-                        // failure will be reported because of NULL symbol return
-                    }
-                }
-                if ( result == null ) {
-                    return null;
-                }
-                return new SymbolTable.Symbol( SymbolTable.GLOBAL_SCOPE,name, SymbolTable.Symbol.Type.LABEL,result);
-            }
-        };
-        return new ExpressionEvaluator.NodeEvaluator( symbolResolver )
-        {
-            @Override
-            public Object evaluate(ASTNode node, boolean failOnErrors)
-            {
-                if ( node instanceof RegisterNode ) {
-                    final int reg = ((RegisterNode ) node).regNum;
-                    return driver.emulator.register[ reg ];
-                }
-                if ( node instanceof TextNode )
-                {
-                    // string like "pc" , "v0" etc. are considered reserved words and thus are never
-                    // valid identifiers ; the lexer will turn these into Token.Type.TEXT and not Token.Type.IDENTIFIER
-                    final String value = ((TextNode) node).value;
-                    // convert into IdentifierNode and then use evaluateIdentifier() to interpret it
-                    final IdentifierNode idNode = new IdentifierNode(Identifier.unsafe( value ), node.getRegion() );
-                    return evaluateIdentifier( idNode, failOnErrors );
-                }
-                return super.evaluate( node, failOnErrors );
-            }
-        };
+    public static ExpressionEvaluator.INodeEvaluator createNodeEvaluator(EmulatorState state)
+    {
+        return RuntimeExpressions.createNodeEvaluator( () -> state.pc, state::register );
     }
 
     public static Integer evaluate(String expression, ExpressionEvaluator.INodeEvaluator evaluator)
     {
-        final ASTNode ast = compileExpression( expression );
-        if ( ast == null ) {
-            return null;
-        }
-
-        Object obj = null;
-        try
-        {
-            obj = evaluator.evaluate(ast, true);
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-            System.err.println( "Failed to evaluate expression >" + expression + "<" );
-        }
-        return obj instanceof Number ? ((Number) obj).intValue() : null;
+        return RuntimeExpressions.evaluate( expression, evaluator );
     }
 
     public static ASTNode compileExpression(String expression)
     {
-        final Assembler.CompilationContext ctx = new Assembler.CompilationContext( new ExecutableWriter() );
-        final Parser p = new Parser( new Lexer( new Scanner(expression) ) , ctx );
-        ASTNode ast = p.parseExpression();
-
-        if ( ctx.hasErrors() )
-        {
-            System.err.println("Failed to evaluate expression >"+expression+"<");
-            ctx.messages.stream().forEach( System.err::println );
-            return null;
-        }
-        System.out.println("Parsed >"+expression+"<");
-        System.out.println( ast.toPrettyString() );
-        return ast;
+        return RuntimeExpressions.compile( expression );
     }
 }
\ No newline at end of file
@@ -0,0 +1,338 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.ui;
+
+import de.codesourcery.chip8.emulator.Frame;
+import de.codesourcery.chip8.emulator.Screen;
+import org.apache.commons.lang3.Validate;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Renders frames into an RGB image that is already scaled to (almost) the size of the target component,
+ * so painting boils down to an unscaled blit.
+ *
+ * Scale factors are integers, each framebuffer byte gets expanded into <code>8*scaleX</code> destination
+ * pixels through a lookup table and the resulting line is copied <code>scaleY</code> times.
+ * Only rows that changed are rendered again, everything gets re-rendered when the size or resolution changes.
+ *
+ * Optionally, the most recent frames are kept as bit planes and blended to hide flicker (see {@link FrameBlending}).
+ * The lookup table is then indexed by the bits of <code>8/frameCount</code> adjacent pixels from all planes.
+ *
+ * Not thread-safe, meant to be used by the EDT only.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class ScaledScreenRenderer
+{
+    private static final int WORDS = (Screen.EXTENDED_WIDTH/64) * Screen.EXTENDED_HEIGHT;
+
+    private FrameBlending blending = FrameBlending.NONE;
+
+    // the most recent frames, planes[newest] being the latest one
+    private long[][] planes = new long[1][ WORDS ];
+    // rows that changed with each plane, compared to the plane before it
+    private long[] changes = new long[1];
+    private int newest;
+
+    private final long[] incoming = new long[ WORDS ];
+    private final long[] planeBits = new long[ 8 ];
+
+    private int frameWidth = Screen.WIDTH;
+    private int frameHeight = Screen.HEIGHT;
+
+    private int width;
+    private int height;
+    private int scaleX;
+    private int scaleY;
+
+    private BufferedImage image;
+    private int[] pixels;
+
+    // pixels for each possible combination of plane bits, (8/frameCount)*scaleX entries each
+    private int[][] lut;
+
+    /**
+     * Renders the rows that changed with a frame.
+     *
+     * @param frame
+     * @return area that needs to be repainted in target component coordinates, <code>NULL</code> if nothing changed
+     */
+    public Rectangle update(Frame frame)
+    {
+        frame.copyRows( incoming );
+        if ( frame.getWidth() != frameWidth || frame.getHeight() != frameHeight )
+        {
+            frameWidth = frame.getWidth();
+            frameHeight = frame.getHeight();
+            resetHistory( incoming );
+            if ( image != null ) {
+                createImage();
+            }
+            return new Rectangle( 0, 0, width, height );
+        }
+        // the frame's dirty rows are a superset, only render rows that actually changed
+        final int wordsPerRow = frameWidth / 64;
+        final long[] latest = planes[ newest ];
+        long changed = 0;
+        for ( long mask = frameHeight == 64 ? frame.getDirtyRows() : frame.getDirtyRows() & 0xffffffffL ; mask != 0 ; mask &= mask - 1 )
+        {
+            final int y = Long.numberOfTrailingZeros( mask );
+            for ( int i = y * wordsPerRow, last = i + wordsPerRow ; i < last ; i++ )
+            {
+                if ( latest[i] != incoming[i] ) {
+                    changed |= 1L << y;
+                }
+            }
+        }
+        if ( changed == 0 && planes.length == 1 ) {
+            return null;
+        }
+        push( incoming, changed );
+        return image == null ? null : render( pendingRows() );
+    }
+
+    /**
+     * Returns whether the blended image still changes without new frames arriving.
+     *
+     * @return
+     * @see #advance()
+     */
+    public boolean isSettling()
+    {
+        // the oldest plane's changes are relative to a frame that already dropped out
+        final int frameCount = planes.length;
+        long result = 0;
+        for ( int i = 0 ; i < frameCount - 1 ; i++ ) {
+            result |= changes[ (newest - i + frameCount) % frameCount ];
+        }
+        return result != 0;
+    }
+
+    /**
+     * Advances the blending by one frame, repeating the latest frame.
+     *
+     * Needs to be invoked at the frame rate until {@link #isSettling()} returns false,
+     * otherwise older frames would remain visible when no new frames arrive.
+     *
+     * @return area that needs to be repainted in target component coordinates, <code>NULL</code> if nothing changed
+     */
+    public Rectangle advance()
+    {
+        if ( ! isSettling() ) {
+            return null;
+        }
+        push( planes[ newest ], 0 );
+        return image == null ? null : render( pendingRows() );
+    }
+
+    /**
+     * Sets how frames are blended.
+     *
+     * The whole image gets re-rendered.
+     *
+     * @param blending
+     */
+    public void setBlending(FrameBlending blending)
+    {
+        Validate.notNull( blending, "blending must not be null" );
+        if ( blending != this.blending )
+        {
+            this.blending = blending;
+            System.arraycopy( planes[ newest ], 0, incoming, 0, WORDS );
+            resetHistory( incoming );
+            lut = null;
+            if ( image != null ) {
+                createImage();
+            }
+        }
+    }
+
+    public FrameBlending getBlending() {
+        return blending;
+    }
+
+    /**
+     * Sets the size of the target component.
+     *
+     * @param width
+     * @param height
+     */
+    public void setSize(int width,int height)
+    {
+        if ( width != this.width || height != this.height || image == null )
+        {
+            this.width = width;
+            this.height = height;
+            createImage();
+        }
+    }
+
+    /**
+     * Paints the latest frame, centered within the target component's area.
+     *
+     * @param g
+     */
+    public void paint(Graphics g)
+    {
+        if ( image == null ) {
+            return;
+        }
+        final int x0 = offsetX();
+        final int y0 = offsetY();
+        final int imageWidth = image.getWidth();
+        final int imageHeight = image.getHeight();
+        if ( imageWidth != width || imageHeight != height )
+        {
+            // borders left by integer scaling
+            g.setColor( Color.BLACK );
+            g.fillRect( 0, 0, width, y0 );
+            g.fillRect( 0, y0 + imageHeight, width, height - y0 - imageHeight );
+            g.fillRect( 0, y0, x0, imageHeight );
+            g.fillRect( x0 + imageWidth, y0, width - x0 - imageWidth, imageHeight );
+        }
+        g.drawImage( image, x0, y0, null );
+    }
+
+    private int offsetX() {
+        return (width - frameWidth * scaleX) / 2;
+    }
+
+    private int offsetY() {
+        return (height - frameHeight * scaleY) / 2;
+    }
+
+    private void resetHistory(long[] current)
+    {
+        final int frameCount = blending.frameCount();
+        planes = new long[ frameCount ][ WORDS ];
+        for ( long[] plane : planes ) {
+            System.arraycopy( current, 0, plane, 0, WORDS );
+        }
+        changes = new long[ frameCount ];
+        newest = 0;
+    }
+
+    private void push(long[] frame,long changedRows)
+    {
+        final int next = (newest + 1) % planes.length;
+        System.arraycopy( frame, 0, planes[ next ], 0, WORDS );
+        changes[ next ] = changedRows;
+        newest = next;
+    }
+
+    /*
+     * Rows whose blended result may differ from the previous one.
+     */
+    private long pendingRows()
+    {
+        long result = 0;
+        for ( long mask : changes ) {
+            result |= mask;
+        }
+        return result;
+    }
+
+    private Rectangle render(long rowMask)
+    {
+        long mask = frameHeight == 64 ? rowMask : rowMask & 0xffffffffL;
+        if ( mask == 0 ) {
+            return null;
+        }
+        final int first = Long.numberOfTrailingZeros( mask );
+        final int end = 64 - Long.numberOfLeadingZeros( mask );
+        for ( ; mask != 0 ; mask &= mask - 1 ) {
+            renderRow( Long.numberOfTrailingZeros( mask ) );
+        }
+        return new Rectangle( 0, offsetY() + first * scaleY, width, (end - first) * scaleY );
+    }
+
+    private void createImage()
+    {
+        final int newScaleX = Math.max( 1, width / frameWidth );
+        scaleY = Math.max( 1, height / frameHeight );
+        if ( lut == null || newScaleX != scaleX ) {
+            lut = createLUT( blending, newScaleX );
+        }
+        scaleX = newScaleX;
+        image = new BufferedImage( frameWidth * scaleX, frameHeight * scaleY, BufferedImage.TYPE_INT_RGB );
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for ( int y = 0 ; y < frameHeight ; y++ ) {
+            renderRow( y );
+        }
+    }
+
+    private static int[][] createLUT(FrameBlending blending,int scaleX)
+    {
+        final int frameCount = blending.frameCount();
+        final int pixelsPerKey = 8 / frameCount;
+        final int[][] result = new int[256][ pixelsPerKey * scaleX ];
+        for ( int key = 0 ; key < 256 ; key++ )
+        {
+            final int[] run = result[key];
+            for ( int pixel = 0 ; pixel < pixelsPerKey ; pixel++ )
+            {
+                // bits of the most recent frame are in the lowest bits of the key
+                float intensity = 0;
+                for ( int frame = frameCount - 1 ; frame >= 0 ; frame-- )
+                {
+                    if ( ( key & (1 << (frame * pixelsPerKey + pixelsPerKey - 1 - pixel)) ) != 0 ) {
+                        intensity = Math.max( intensity, blending.weights[frame] );
+                    }
+                }
+                final int gray = Math.round( intensity * 255 );
+                Arrays.fill( run, pixel * scaleX, (pixel + 1) * scaleX, gray << 16 | gray << 8 | gray );
+            }
+        }
+        return result;
+    }
+
+    private void renderRow(int y)
+    {
+        final int frameCount = planes.length;
+        final int pixelsPerKey = 8 / frameCount;
+        final int keysPerWord = 64 / pixelsPerKey;
+        final int wordsPerRow = frameWidth / 64;
+        final int imageWidth = frameWidth * scaleX;
+        final int run = pixelsPerKey * scaleX;
+        final int start = y * scaleY * imageWidth;
+        int dst = start;
+        for ( int word = y * wordsPerRow, last = word + wordsPerRow ; word < last ; word++ )
+        {
+            for ( int frame = 0 ; frame < frameCount ; frame++ ) {
+                planeBits[ frame ] = planes[ (newest - frame + frameCount) % frameCount ][ word ];
+            }
+            for ( int i = 0 ; i < keysPerWord ; i++, dst += run )
+            {
+                int key = 0;
+                for ( int frame = 0 ; frame < frameCount ; frame++ )
+                {
+                    key |= (int) (planeBits[ frame ] >>> (64 - pixelsPerKey)) << (frame * pixelsPerKey);
+                    planeBits[ frame ] <<= pixelsPerKey;
+                }
+                System.arraycopy( lut[ key ], 0, pixels, dst, run );
+            }
+        }
+        for ( int i = 1 ; i < scaleY ; i++ ) {
+            System.arraycopy( pixels, start, pixels, start + i * imageWidth, imageWidth );
+        }
+    }
+}
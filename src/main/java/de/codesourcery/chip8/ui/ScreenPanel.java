@@ -16,34 +16,50 @@
 package de.codesourcery.chip8.ui;
 
 import de.codesourcery.chip8.emulator.EmulatorDriver;
-import de.codesourcery.chip8.emulator.Screen;
+import de.codesourcery.chip8.emulator.Frame;
+import de.codesourcery.chip8.emulator.FrameExchange;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import java.awt.Color;
 import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link JPanel} that renders the emulator's screen.
  *
+ * Frames are taken from the driver's {@link FrameExchange} on the EDT
+ * whenever the emulation thread signals that a new one is ready and
+ * rendered through a {@link ScaledScreenRenderer}.
+ *
  * @author tobias.gierke@code-sourcery.de
  */
 public class ScreenPanel extends JPanel
 {
     private static final boolean SHOW_FPS = false;
 
-    private final Object IMAGE_LOCK = new Object();
+    private final EmulatorDriver driver;
+    private final FrameExchange frames;
 
-    // @GuardedBy( IMAGE_LOCK )
-    private BufferedImage image;
+    // set while a call to renderLatestFrame() is queued on the EDT
+    private final AtomicBoolean updatePending = new AtomicBoolean();
 
-    // @GuardedBy( IMAGE_LOCK )
+    // only accessed by the EDT
+    private final ScaledScreenRenderer renderer = new ScaledScreenRenderer();
     private long lastPaint;
 
+    // keeps blending going at 60 Hz while no new frames arrive, only running while needed
+    private final Timer settleTimer = new Timer( 1000 / 60, ev -> settle() );
+
     public ScreenPanel(EmulatorDriver driver)
     {
+        this.driver = driver;
+        this.frames = driver.getFrames();
         setFocusable( true );
         requestFocusInWindow();
         final KeyAdapter keyListener = new KeyAdapter()
@@ -54,7 +70,7 @@ public class ScreenPanel extends JPanel
                 int key = keyCode( e );
                 if ( key != -1 )
                 {
-                    driver.runOnThread(ip -> ip.emulator.keyboard.keyPressed(key));
+                    driver.keyPressed( key );
                 }
             }
 
@@ -65,7 +81,7 @@ public class ScreenPanel extends JPanel
                 int key = keyCode( e );
                 if ( key != -1 )
                 {
-                    driver.runOnThread(ip -> ip.emulator.keyboard.keyReleased(key));
+                    driver.keyReleased( key );
                 }
             }
 
@@ -123,40 +139,99 @@ public class ScreenPanel extends JPanel
         addKeyListener( keyListener );
     }
 
-    public synchronized void draw(Screen screen)
+    /**
+     * Starts rendering frames published by the emulation thread.
+     *
+     * Frames are rendered as soon as they get published, no polling involved.
+     */
+    public void attach()
     {
-        synchronized (IMAGE_LOCK)
+        frames.setFrameListener( () ->
         {
-            if ( image != null )
-            {
-                screen.copyTo(image);
+            // coalesce notifications until the EDT got around to take the latest frame
+            if ( ! updatePending.getAndSet( true ) ) {
+                SwingUtilities.invokeLater( this::renderLatestFrame );
             }
+        });
+        driver.requestFrame();
+    }
+
+    /**
+     * Stops rendering frames.
+     */
+    public void detach()
+    {
+        frames.setFrameListener( null );
+        settleTimer.stop();
+    }
+
+    /**
+     * Sets how the most recent frames are blended to reduce flicker.
+     *
+     * Must be invoked on the EDT.
+     *
+     * @param blending
+     */
+    public void setFrameBlending(FrameBlending blending)
+    {
+        renderer.setBlending( blending );
+        settleTimer.stop();
+        repaint();
+    }
+
+    private void settle()
+    {
+        final Rectangle dirty = renderer.advance();
+        if ( dirty != null ) {
+            paintImmediately( dirty );
+        }
+        if ( ! renderer.isSettling() ) {
+            settleTimer.stop();
+        }
+    }
+
+    /*
+     * Renders the rows that changed with the latest frame
+     * and immediately repaints the affected band.
+     */
+    private void renderLatestFrame()
+    {
+        updatePending.set( false );
+        final Frame frame = frames.take();
+        if ( frame == null ) {
+            return;
+        }
+        renderer.setSize( getWidth(), getHeight() );
+        final Rectangle dirty = renderer.update( frame );
+        if ( dirty != null )
+        {
+            paintImmediately( dirty );
+            Toolkit.getDefaultToolkit().sync();
+        }
+        if ( renderer.isSettling() ) {
+            settleTimer.restart();
         }
     }
 
     @Override
     protected void paintComponent(Graphics g)
     {
-        synchronized (IMAGE_LOCK)
+        // no-op unless the size changed
+        renderer.setSize( getWidth(), getHeight() );
+        renderer.paint( g );
+        if ( SHOW_FPS )
         {
-            if ( image == null ) {
-                image = new BufferedImage( Screen.WIDTH, Screen.HEIGHT, BufferedImage.TYPE_BYTE_BINARY );
-            }
-            g.drawImage( image, 0, 0, getWidth(), getHeight(), null );
-            if ( SHOW_FPS )
+            final long now = System.currentTimeMillis();
+            if (lastPaint != 0)
             {
-                final long now = System.currentTimeMillis();
-                if (lastPaint != 0)
+                final long elapsed = now - lastPaint;
+                if (elapsed > 0)
                 {
-                    final long elapsed = now - lastPaint;
-                    if (elapsed > 0)
-                    {
-                        g.setColor(Color.RED);
-                        g.drawString("FPS: " + (1000 / elapsed), 10, 50);
-                    }
+                    g.setColor(Color.RED);
+                    g.drawString("FPS: " + (1000 / elapsed), 10, 50);
                 }
-                lastPaint = now;
             }
+            lastPaint = now;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import de.codesourcery.chip8.emulator.recording.RecordingReader;
+import de.codesourcery.chip8.emulator.recording.VideoRecorder;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class EmulatorDriverTest extends TestCase
+{
+    private EmulatorDriver driver;
+    private final CountDownLatch breakpointHit = new CountDownLatch( 1 );
+
+    @Override
+    protected void tearDown()
+    {
+        if ( driver != null ) {
+            driver.destroy();
+        }
+    }
+
+    public void testCommandsFromManyThreadsAreProcessedInOrder() throws InterruptedException
+    {
+        createDriver( 0x1200 ); // 0x200: jump 0x200
+        driver.setInstructionsPerSecond( ThroughputGovernor.UNLIMITED );
+        driver.start();
+
+        final int threadCount = 4;
+        final int commandsPerThread = 10_000;
+        final List<List<Integer>> received = new ArrayList<>();
+        final Thread[] threads = new Thread[ threadCount ];
+        for ( int i = 0 ; i < threadCount ; i++ )
+        {
+            final List<Integer> list = new ArrayList<>();
+            received.add( list );
+            threads[i] = new Thread( () ->
+            {
+                for ( int j = 0 ; j < commandsPerThread ; j++ )
+                {
+                    final int value = j;
+                    driver.post( ip -> list.add( value ) );
+                }
+            });
+            threads[i].start();
+        }
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        // commands are processed in submission order, so this one comes last
+        driver.runOnThread( ip -> {} );
+
+        for ( List<Integer> list : driver.runOnThreadWithResult( ip -> received ) )
+        {
+            assertEquals( commandsPerThread, list.size() );
+            for ( int j = 0 ; j < commandsPerThread ; j++ ) {
+                assertEquals( j, list.get( j ).intValue() );
+            }
+        }
+    }
+
+    public void testAsyncRequestsCanBePipelined() throws Exception
+    {
+        createDriver( 0x1200 ); // 0x200: jump 0x200
+
+        final List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            final int value = i;
+            futures.add( driver.runOnThreadWithResultAsync( ip -> value ) );
+        }
+        final CompletableFuture<Boolean> enabled = driver.isEnabledAsync( new Breakpoint( 0x200, false ) );
+        final CompletableFuture<List<Breakpoint>> breakpoints = driver.getAllBreakpointsAsync();
+        for ( int i = 0 ; i < futures.size() ; i++ ) {
+            assertEquals( i, futures.get( i ).get( 5, TimeUnit.SECONDS ).intValue() );
+        }
+        assertNull( enabled.get( 5, TimeUnit.SECONDS ) );
+        assertTrue( breakpoints.get( 5, TimeUnit.SECONDS ).isEmpty() );
+    }
+
+    public void testCallbackExceptionsArePropagated() throws Exception
+    {
+        createDriver( 0x1200 ); // 0x200: jump 0x200
+
+        final CompletableFuture<Void> future = driver.runOnThreadAsync( ip -> {
+            throw new IllegalStateException( "expected" );
+        });
+        try
+        {
+            future.get( 5, TimeUnit.SECONDS );
+            fail( "Should have failed" );
+        }
+        catch(ExecutionException e) {
+            assertEquals( "expected", e.getCause().getMessage() );
+        }
+        try
+        {
+            driver.runOnThread( ip -> {
+                throw new IllegalStateException( "expected" );
+            });
+            fail( "Should have failed" );
+        }
+        catch(IllegalStateException e) {
+            assertEquals( "expected", e.getMessage() );
+        }
+        // emulation thread must still be alive
+        assertEquals( 0x200, driver.runOnThreadWithResult( ip -> ip.emulator.pc ).intValue() );
+    }
+
+    public void testPublishesStateSnapshots() throws Exception
+    {
+        createDriver( 0x7001, 0x1200 ); // 0x200: v0 += 1 ; 0x202: jump 0x200
+        driver.setSnapshotRate( 1000 );
+
+        final EmulatorState initial = driver.getState();
+        assertEquals( 0x200, initial.pc );
+        assertEquals( 0, initial.register( 0 ) );
+        assertEquals( 0x70, initial.readMemory( 0x200 ) );
+
+        driver.step();
+        // step() returns as soon as the command got received, not after the instruction got executed
+        final long stepDeadline = System.currentTimeMillis() + 5000;
+        EmulatorState stepped;
+        do {
+            stepped = driver.getState();
+        } while ( stepped.pc == 0x200 && System.currentTimeMillis() < stepDeadline );
+        assertTrue( stepped.sequence > initial.sequence );
+        assertEquals( 0x202, stepped.pc );
+        assertEquals( 1, stepped.register( 0 ) );
+
+        // snapshots get published while running
+        driver.setInstructionsPerSecond( 1000 );
+        driver.start();
+        final long deadline = System.currentTimeMillis() + 5000;
+        EmulatorState current;
+        do {
+            current = driver.getState();
+        } while ( current.sequence < stepped.sequence + 10 && System.currentTimeMillis() < deadline );
+        assertTrue( current.sequence >= stepped.sequence + 10 );
+        assertEquals( stepped.memoryGeneration, current.memoryGeneration );
+
+        // snapshots are immutable
+        final int v0 = current.register( 0 );
+        current.getRegisters()[0] = v0 + 1;
+        assertEquals( v0, current.register( 0 ) );
+
+        driver.stop();
+        final EmulatorState stopped = driver.getState();
+        assertEquals( stopped.pc, driver.runOnThreadWithResult( ip -> ip.emulator.pc ).intValue() );
+        assertEquals( stopped.register( 0 ), driver.runOnThreadWithResult( ip -> ip.emulator.register[0] ).intValue() );
+    }
+
+    public void testKeyPressResumesWaitingEmulation() throws InterruptedException
+    {
+        createDriver( 0xF30A, 0x1202 ); // 0x200: wait for key press, put key in v3 ; 0x202: jump 0x202
+        driver.addBreakpoint( new Breakpoint( 0x202, false ), true );
+        driver.start();
+
+        // key presses before the emulation started waiting are ignored
+        do
+        {
+            driver.keyPressed( 5 );
+            driver.keyReleased( 5 );
+        } while ( ! breakpointHit.await( 10, TimeUnit.MILLISECONDS ) );
+
+        assertEquals( 5, driver.runOnThreadWithResult( ip -> ip.emulator.register[3] ).intValue() );
+    }
+
+    public void testRequestedFramesReachAllSinks() throws Exception
+    {
+        createDriver( 0x1200 ); // 0x200: jump 0x200
+        final Path file = Files.createTempFile( "chip8", ".fb" );
+        try ( SharedFramebuffer framebuffer = SharedFramebuffer.create( file );
+              SharedFramebufferReader reader = SharedFramebufferReader.open( file ) )
+        {
+            driver.setSharedFramebuffer( framebuffer );
+            driver.setInstructionsPerSecond( ThroughputGovernor.UNLIMITED );
+            driver.start();
+
+            // the frame request gets processed in the same batch of commands, before any regular frame is published
+            driver.runOnThread( ip ->
+            {
+                ip.emulator.memory.write( 0x300, (byte) 0xff );
+                ip.emulator.screen.drawSprite( 0, 0, 1, 0x300 );
+                ip.requestFrame();
+            });
+            driver.runOnThread( ip -> {} );
+
+            final long[] pixels = new long[ 128 ];
+            reader.read( pixels );
+            assertEquals( 0xff00000000000000L, pixels[0] );
+        }
+        finally {
+            Files.deleteIfExists( file );
+        }
+    }
+
+    public void testRequestedFramesGetRecorded() throws Exception
+    {
+        createDriver( 0x1200 ); // 0x200: jump 0x200
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final VideoRecorder recorder = VideoRecorder.create( out );
+        driver.setVideoRecorder( recorder );
+        driver.setInstructionsPerSecond( ThroughputGovernor.UNLIMITED );
+        driver.start();
+
+        // the frame request gets processed in the same batch of commands, before any regular frame is published
+        driver.runOnThread( ip ->
+        {
+            ip.emulator.memory.write( 0x300, (byte) 0x80 );
+            ip.emulator.screen.drawSprite( 5, 7, 1, 0x300 );
+            ip.requestFrame();
+        });
+        driver.runOnThread( ip -> {} );
+        driver.setVideoRecorder( null );
+        recorder.close();
+
+        try ( RecordingReader reader = new RecordingReader( new ByteArrayInputStream( out.toByteArray() ) ) )
+        {
+            boolean lastSet = false;
+            while ( reader.next() ) {
+                lastSet = reader.isSet( 5, 7 );
+            }
+            assertTrue( lastSet );
+        }
+    }
+
+    private void createDriver(int... program)
+    {
+        final byte[] data = TestPrograms.program( program );
+        driver = new EmulatorDriver( EmulatorFixture.create( emu -> emu.memory.write( EmulatorFixture.PROGRAM_START, data ), () -> driver ) );
+        driver.registerStateListener( (controller, reason) ->
+        {
+            if ( reason == EmulatorDriver.Reason.STOPPED_BREAKPOINT ) {
+                breakpointHit.countDown();
+            }
+        });
+        driver.reset();
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Creates emulators for tests: 4 KB of memory, a screen, a keyboard and timers that
+ * only count down without notifying anyone.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+final class EmulatorFixture
+{
+    static final int PROGRAM_START = 0x200;
+
+    private EmulatorFixture() {
+    }
+
+    /**
+     * Creates an emulator that has the program loaded at {@link #PROGRAM_START} after each reset.
+     *
+     * @param program
+     * @return
+     */
+    static Emulator create(byte[] program)
+    {
+        return create( emu -> emu.memory.write( PROGRAM_START, program ) );
+    }
+
+    /**
+     * Creates an emulator that is not attached to a driver.
+     *
+     * @param resetHook invoked on each reset, to load the program
+     * @return
+     */
+    static Emulator create(Consumer<Emulator> resetHook)
+    {
+        return create( resetHook, () -> null );
+    }
+
+    /**
+     * Creates an emulator.
+     *
+     * @param resetHook invoked on each reset, to load the program
+     * @param driver supplies the driver the keyboard reports to, may return <code>null</code>
+     * @return
+     */
+    static Emulator create(Consumer<Emulator> resetHook, Supplier<EmulatorDriver> driver)
+    {
+        final Memory memory = new Memory( 4096 );
+        final Keyboard keyboard = new Keyboard()
+        {
+            @Override
+            protected EmulatorDriver getDriver()
+            {
+                return driver.get();
+            }
+        };
+        return new Emulator( memory, new Screen( memory ), keyboard, new TestTimer( "sound" ), new TestTimer( "delay" ), resetHook );
+    }
+
+    private static final class TestTimer extends Timer
+    {
+        TestTimer(String name) {
+            super( name );
+        }
+
+        @Override
+        protected void triggered() {
+        }
+    }
+}
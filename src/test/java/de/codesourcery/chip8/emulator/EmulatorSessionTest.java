@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+public class EmulatorSessionTest extends TestCase
+{
+    // 4x waits for the delay timer (3 frames each) while the sound timer keeps counting down
+    private static final byte[] TIMER_PROGRAM = program(
+        0x60C8, // 0x200: v0 = 200
+        0xF018, // 0x202: sound-timer = v0
+        0x6103, // 0x204: v1 = 3
+        0x6200, // 0x206: v2 = 0
+        0xF115, // 0x208: delay-timer = v1 (wait until expired)
+        0x7201, // 0x20a: v2 += 1
+        0x3204, // 0x20c: skip if v2 == 4
+        0x1208, // 0x20e: jump 0x208
+        0x1210  // 0x210: jump 0x210
+    );
+
+    public void testTimersAdvanceOncePerFrame()
+    {
+        for ( EngineType type : EngineType.values() )
+        {
+            final EmulatorSession session = EmulatorSession.builder().rom( TIMER_PROGRAM ).engine( type ).instructionsPerFrame( 15 ).build();
+            assertEquals( EmulatorSession.StopReason.INSTRUCTION_LIMIT, session.run( 15 * 14 ) );
+            final Emulator emulator = session.getEmulator();
+            assertEquals( type.name(), 0x210, emulator.pc );
+            assertEquals( type.name(), 4, emulator.register[2] );
+            assertEquals( type.name(), 200 - 14, emulator.soundTimer.value() );
+            assertEquals( type.name(), 14, session.getFrameCount() );
+            assertEquals( type.name(), 15 * 14, session.getCycleCount() );
+        }
+    }
+
+    public void testSessionsAreIsolated()
+    {
+        final EmulatorSession first = EmulatorSession.builder().rom( program( 0x7001, 0x1200 ) ).build(); // v0 += 1 ; jump 0x200
+        final EmulatorSession second = EmulatorSession.builder().rom( program( 0x7101, 0x1200 ) ).build(); // v1 += 1 ; jump 0x200
+
+        first.run( 100 );
+        second.run( 10 );
+        assertEquals( 50, first.getEmulator().register[0] );
+        assertEquals( 0, first.getEmulator().register[1] );
+        assertEquals( 5, second.getEmulator().register[1] );
+        assertEquals( 0, second.getEmulator().register[0] );
+        assertNotSame( first.getScreen(), second.getScreen() );
+
+        first.reset();
+        assertEquals( 0, first.getEmulator().register[0] );
+        assertEquals( 0, first.getInstructionCount() );
+        assertEquals( 0x70, first.snapshot().readMemory( 0x200 ) );
+    }
+
+    public void testStopsWhenWaitingForKey()
+    {
+        final EmulatorSession session = EmulatorSession.builder()
+            .rom( program( 0x6001, 0xF30A, 0x1204 ) ) // v0 = 1 ; wait for key press, put key in v3 ; jump 0x204
+            .stopOn( EmulatorSession.StopReason.WAITING_FOR_KEY )
+            .build();
+
+        assertEquals( EmulatorSession.StopReason.WAITING_FOR_KEY, session.run( 1000 ) );
+        assertTrue( session.isWaitingForKey() );
+        assertEquals( 2, session.getInstructionCount() );
+
+        // idles while waiting
+        assertEquals( EmulatorSession.StopReason.INSTRUCTION_LIMIT, session.run( 1000 ) );
+        assertEquals( 2, session.getInstructionCount() );
+        assertEquals( 1002, session.getCycleCount() );
+
+        session.keyPressed( 7 );
+        session.keyReleased( 7 );
+        session.run( 100 );
+        assertFalse( session.isWaitingForKey() );
+        assertEquals( 7, session.getEmulator().register[3] );
+        assertEquals( 0x204, session.getEmulator().pc );
+    }
+
+    public void testStopsOnScreenChangeAndFrame()
+    {
+        final EmulatorSession session = EmulatorSession.builder()
+            .rom( program( 0x6000, 0xF029, 0xD005, 0x1206 ) ) // v0 = 0 ; I = glyph(v0) ; draw 5 rows at (v0,v0) ; jump 0x206
+            .stopOn( EmulatorSession.StopReason.SCREEN_CHANGED, EmulatorSession.StopReason.FRAME_COMPLETED )
+            .instructionsPerFrame( 10 )
+            .build();
+
+        assertEquals( EmulatorSession.StopReason.SCREEN_CHANGED, session.run( 1000 ) );
+        assertTrue( session.getInstructionCount() >= 3 );
+        // the screen does not change any more
+        final long frames = session.getFrameCount();
+        assertEquals( EmulatorSession.StopReason.FRAME_COMPLETED, session.run( 1000 ) );
+        assertEquals( frames + 1, session.getFrameCount() );
+        assertEquals( session.getFrameCount() * 10, session.getCycleCount() );
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import de.codesourcery.chip8.emulator.jit.AotEngine;
+import de.codesourcery.chip8.emulator.jit.CodeCache;
+import de.codesourcery.chip8.emulator.jit.JitEngine;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+/**
+ * Runs programs on the different execution engines and compares the
+ * results with those of the plain interpreter.
+ */
+public class ExecutionEngineTest extends TestCase
+{
+    private static final String[] ROMS = {
+            "/space_invaders.ch8",
+            "/Particle Demo [zeroZshadow, 2008].ch8",
+            "/Sierpinski [Sergey Naydenov, 2010].ch8",
+            "/Breakout (Brix hack) [David Winter, 1997].ch8",
+            "/Division Test [Sergey Naydenov, 2010].ch8",
+            "/Lunar Lander (Udo Pernisz, 1979).ch8",
+            "/ibm_logo.ch8",
+            "/picture.ch8"
+    };
+
+    private static final int INSTRUCTIONS = 200_000;
+
+    private static final class Result
+    {
+        public final Emulator emulator;
+        public final String error;
+
+        private Result(Emulator emulator, String error)
+        {
+            this.emulator = emulator;
+            this.error = error;
+        }
+    }
+
+    private File cacheDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        cacheDir = Files.createTempDirectory( "chip8-aot" ).toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        final File[] files = cacheDir.listFiles();
+        if ( files != null ) {
+            Arrays.stream( files ).forEach( File::delete );
+        }
+        cacheDir.delete();
+    }
+
+    public void testJITMatchesInterpreterOnROMs()
+    {
+        for ( String rom : ROMS ) {
+            assertSameResult( rom, loadROM( rom ), () -> new JitEngine( Runnable::run, 2 ) );
+        }
+    }
+
+    public void testJITHandlesSelfModifyingCode()
+    {
+        final byte[] program = program(
+                0x6A00, // 0x200: ld va, 0
+                0x7B01, // 0x202: add vb, 1    <--- gets patched to 'add vb,3'
+                0x7A01, // 0x204: add va, 1
+                0x3A40, // 0x206: se va, 0x40
+                0x1202, // 0x208: jp 0x202
+                0x607B, // 0x20a: ld v0, 0x7b
+                0x6103, // 0x20c: ld v1, 0x03
+                0xA202, // 0x20e: ld i, 0x202
+                0xF155, // 0x210: ld [i], v1
+                0x6A00, // 0x212: ld va, 0
+                0x1202  // 0x214: jp 0x202
+        );
+        final JitEngine jit = new JitEngine( Runnable::run, 2 );
+        final Result result = assertSameResult( "self-modifying", emu -> emu.memory.write( 0x200, program ), () -> jit );
+        assertTrue( jit.getCompiledBlockCount() > 0 );
+        assertTrue( jit.getInvalidatedBlockCount() > 0 );
+        assertEquals( 0x7B, result.emulator.memory.read( 0x202 ) );
+        assertEquals( 0x03, result.emulator.memory.read( 0x203 ) );
+    }
+
+    public void testJITSkipsAndArithmetic()
+    {
+        final byte[] program = program(
+                0x6000, // 0x200: ld v0, 0
+                0x61FF, // 0x202: ld v1, 0xff
+                0x8014, // 0x204: add v0, v1
+                0x8F15, // 0x206: sub vf, v1
+                0x8106, // 0x208: shr v1, v0
+                0x810E, // 0x20a: shl v1, v0
+                0x8017, // 0x20c: subn v0, v1
+                0x3005, // 0x20e: se v0, 5
+                0x7003, // 0x210: add v0, 3
+                0x4007, // 0x212: sne v0, 7
+                0x7101, // 0x214: add v1, 1
+                0x5010, // 0x216: se v0, v1
+                0x9010, // 0x218: sne v0, v1
+                0xF01E, // 0x21a: add i, v0
+                0xF133, // 0x21c: ld b, v1
+                0xF265, // 0x21e: ld v2, [i]
+                0xB202  // 0x220: jp v0, 0x202
+        );
+        assertSameResult( "arithmetic", emu -> emu.memory.write( 0x200, program ), () -> new JitEngine( Runnable::run, 1 ) );
+    }
+
+    public void testOpcodeTableMatchesInterpreterOnROMs()
+    {
+        for ( String rom : ROMS ) {
+            assertSameResult( rom, loadROM( rom ), OpcodeTableEngine::new );
+        }
+    }
+
+    public void testIllegalInstructions()
+    {
+        for ( int opcode : new int[] { 0x0123, 0x8008, 0xE000, 0xF0FF } )
+        {
+            final byte[] program = program( 0x6001, opcode );
+            for ( EngineType type : EngineType.values() )
+            {
+                final Result result = assertSameResult( type + " / " + Integer.toHexString( opcode ),
+                    emu -> emu.memory.write( 0x200, program ), () -> createEngine( type ) );
+                assertNotNull( result.error );
+            }
+        }
+    }
+
+    public void testSuperChipInstructions()
+    {
+        final byte[] program = program(
+                0x00FF, // 0x200: high
+                0x6005, // 0x202: ld v0, 5
+                0xF030, // 0x204: ld hf, v0
+                0x613C, // 0x206: ld v1, 0x3c
+                0x6210, // 0x208: ld v2, 0x10
+                0xD12A, // 0x20a: drw v1, v2, 10
+                0xA200, // 0x20c: ld i, 0x200
+                0xD120, // 0x20e: drw v1, v2, 0
+                0x00C3, // 0x210: scd 3
+                0x00FB, // 0x212: scr
+                0x00FC, // 0x214: scl
+                0x00FC, // 0x216: scl
+                0x7107, // 0x218: add v1, 7
+                0xF275, // 0x21a: ld r, v2
+                0x6000, // 0x21c: ld v0, 0
+                0xF285, // 0x21e: ld v2, r
+                0xF030, // 0x220: ld hf, v0
+                0x1206  // 0x222: jp 0x206
+        );
+        for ( EngineType type : EngineType.values() )
+        {
+            final Result result = assertSameResult( "SUPER-CHIP / " + type, emu -> emu.memory.write( 0x200, program ), () -> createEngine( type ) );
+            assertNull( result.error );
+            assertTrue( result.emulator.screen.isExtendedMode() );
+            assertEquals( 5, result.emulator.register[0] );
+        }
+    }
+
+    public void testQuirks()
+    {
+        final byte[] program = program(
+                0x6081, // 0x200: ld v0, 0x81
+                0x6103, // 0x202: ld v1, 0x03
+                0x6F05, // 0x204: ld vf, 5
+                0x8016, // 0x206: shr v0, v1
+                0x8F11, // 0x208: or vf, v1
+                0xA300, // 0x20a: ld i, 0x300
+                0xF155, // 0x20c: ld [i], v1
+                0xB210  // 0x20e: jp v0, 0x210
+        );
+        final Quirks[] configurations = {
+                Quirks.DEFAULT,
+                Quirks.DEFAULT.withShiftUsesVY( false ),
+                Quirks.DEFAULT.withLoadStoreIncrementsI( false ),
+                Quirks.DEFAULT.withJumpUsesVX( true ),
+                Quirks.DEFAULT.withLogicResetsVF( true ),
+        };
+        final int[][] expected = {
+                // V0, V1, VF, I, PC
+                { 0x01, 0x01, 0x01, 0x302, 0x211 },
+                { 0x40, 0x03, 0x03, 0x302, 0x250 },
+                { 0x01, 0x01, 0x01, 0x300, 0x211 },
+                { 0x01, 0x01, 0x01, 0x302, 0x210 },
+                { 0x01, 0x01, 0x00, 0x302, 0x211 },
+        };
+        for ( int i = 0 ; i < configurations.length ; i++ )
+        {
+            final Quirks quirks = configurations[i];
+            final Consumer<Emulator> setup = emu -> {
+                emu.setQuirks( quirks );
+                emu.memory.write( 0x200, program );
+            };
+            final Emulator emulator = EmulatorFixture.create( setup );
+            final CommandQueue queue = new CommandQueue();
+            for ( int j = 0 ; j < 8 ; j++ ) {
+                emulator.executeOneInstruction( queue );
+            }
+            final int[] actual = { emulator.register[0], emulator.register[1], emulator.register[0x0f], emulator.index, emulator.pc };
+            assertTrue( quirks + ": " + Arrays.toString( actual ), Arrays.equals( expected[i], actual ) );
+
+            for ( EngineType type : EngineType.values() ) {
+                assertSameResult( type + " / " + quirks, setup, () -> createEngine( type ) );
+            }
+        }
+    }
+
+    public void testAOTMatchesInterpreterOnROMs()
+    {
+        for ( String rom : ROMS )
+        {
+            final AotEngine engine = new AotEngine( new CodeCache( cacheDir ), Runnable::run );
+            assertSameResult( rom, loadROM( rom ), () -> engine );
+            assertTrue( rom, engine.hasCompiledProgram() );
+            assertTrue( rom, engine.getCompiledInstructionCount() > 0 );
+        }
+        assertEquals( ROMS.length, cacheDir.listFiles().length );
+
+        // second run must be served from the cache
+        final File jar = cacheDir.listFiles()[0];
+        final long lastModified = jar.lastModified();
+        for ( String rom : ROMS ) {
+            assertSameResult( rom, loadROM( rom ), () -> new AotEngine( new CodeCache( cacheDir ), Runnable::run ) );
+        }
+        assertEquals( ROMS.length, cacheDir.listFiles().length );
+        assertEquals( lastModified, jar.lastModified() );
+    }
+
+    public void testAOTHandlesSelfModifyingCode()
+    {
+        final byte[] program = program(
+                0x6A00, // 0x200: ld va, 0
+                0x7B01, // 0x202: add vb, 1    <--- gets patched to 'add vb,3'
+                0x7A01, // 0x204: add va, 1
+                0x3A40, // 0x206: se va, 0x40
+                0x1202, // 0x208: jp 0x202
+                0x607B, // 0x20a: ld v0, 0x7b
+                0x6103, // 0x20c: ld v1, 0x03
+                0xA202, // 0x20e: ld i, 0x202
+                0xF155, // 0x210: ld [i], v1
+                0x6A00, // 0x212: ld va, 0
+                0x2300, // 0x214: call 0x300
+                0x1202  // 0x216: jp 0x202
+        );
+        final AotEngine engine = new AotEngine( new CodeCache( cacheDir ), Runnable::run );
+        final Result result = assertSameResult( "self-modifying", emu -> {
+            emu.memory.write( 0x200, program );
+            emu.memory.write( 0x300, program( 0x6000, 0xB218 ) ); // 0x300: ld v0,0 ; jp v0, 0x218 (computed jump)
+            emu.memory.write( 0x218, program( 0x7C01, 0x00EE ) ); // 0x218: add vc, 1 ; ret
+        }, () -> engine );
+        assertTrue( engine.hasCompiledProgram() );
+        assertTrue( engine.getCompiledInstructionCount() > 0 );
+        assertEquals( 0x7B, result.emulator.memory.read( 0x202 ) );
+        assertEquals( 0x03, result.emulator.memory.read( 0x203 ) );
+    }
+
+    public void testAOTSurvivesResetDuringCompilation()
+    {
+        // compilations only run when the test says so
+        final List<Runnable> compilations = new ArrayList<>();
+        final AotEngine engine = new AotEngine( new CodeCache( cacheDir ), compilations::add );
+        final Emulator emulator = EmulatorFixture.create( loadROM( ROMS[0] ) );
+        emulator.setExecutionEngine( engine );
+        emulator.reset();
+        final CommandQueue queue = new CommandQueue();
+        emulator.execute( queue, 1 );
+        assertEquals( 1, compilations.size() );
+
+        // same program gets loaded again while it's still being compiled
+        emulator.reset();
+        emulator.execute( queue, 1 );
+        assertEquals( 1, compilations.size() );
+        compilations.forEach( Runnable::run );
+
+        emulator.execute( queue, 1 );
+        assertTrue( engine.hasCompiledProgram() );
+        emulator.reset();
+        emulator.execute( queue, 1 );
+        assertTrue( engine.hasCompiledProgram() );
+        assertEquals( 1, compilations.size() );
+    }
+
+    public void testPredecodedMatchesInterpreterOnROMs()
+    {
+        for ( String rom : ROMS ) {
+            assertSameResult( rom, loadROM( rom ), PredecodedEngine::new );
+        }
+    }
+
+    public void testPredecodedHandlesSelfModifyingCode()
+    {
+        final byte[] program = program(
+                0x6A00, // 0x200: ld va, 0
+                0x6B00, // 0x202: ld vb, 0     <--- gets patched to 'ld vb, 0x10' (second half of a fused pair)
+                0x6C00, // 0x204: ld vc, 0     <--- gets patched to 'add vc, 3' (breaks up the fused pair)
+                0xA300, // 0x206: ld i, 0x300
+                0xDAB1, // 0x208: drw va, vb, 1
+                0x7A01, // 0x20a: add va, 1
+                0x3A08, // 0x20c: se va, 8
+                0x1202, // 0x20e: jp 0x202
+                0x606B, // 0x210: ld v0, 0x6b
+                0x6110, // 0x212: ld v1, 0x10
+                0x627C, // 0x214: ld v2, 0x7c
+                0x6303, // 0x216: ld v3, 0x03
+                0xA202, // 0x218: ld i, 0x202
+                0xF355, // 0x21a: ld [i], v3
+                0x6A00, // 0x21c: ld va, 0
+                0x1202  // 0x21e: jp 0x202
+        );
+        final Result result = assertSameResult( "self-modifying", emu -> {
+            emu.memory.write( 0x200, program );
+            emu.memory.write( 0x300, (byte) 0xff );
+        }, PredecodedEngine::new );
+        assertEquals( 0x6B, result.emulator.memory.read( 0x202 ) );
+        assertEquals( 0x10, result.emulator.memory.read( 0x203 ) );
+        assertEquals( 0x7C, result.emulator.memory.read( 0x204 ) );
+    }
+
+    public void testPredecodedSuperinstructionsRespectBudget()
+    {
+        final Emulator emulator = EmulatorFixture.create( emu -> emu.memory.write( 0x200, program(
+                0x6011, // 0x200: ld v0, 0x11
+                0x6122, // 0x202: ld v1, 0x22
+                0xA300, // 0x204: ld i, 0x300
+                0xD011  // 0x206: drw v0, v1, 1
+        ) ) );
+        emulator.setExecutionEngine( new PredecodedEngine() );
+        emulator.reset();
+        final CommandQueue queue = new CommandQueue();
+
+        assertEquals( 1, emulator.execute( queue, 1 ) );
+        assertEquals( 0x202, emulator.pc );
+        assertEquals( 0x11, emulator.register[0] );
+        assertEquals( 0x00, emulator.register[1] );
+
+        emulator.reset();
+        assertEquals( 2, emulator.execute( queue, 2 ) );
+        assertEquals( 0x204, emulator.pc );
+        assertEquals( 0x22, emulator.register[1] );
+
+        assertEquals( 1, emulator.execute( queue, 1 ) );
+        assertEquals( 0x206, emulator.pc );
+        assertEquals( 0x300, emulator.index );
+    }
+
+    public void testPerformance()
+    {
+        final int instructions = 5_000_000;
+        final EngineType[] types = { EngineType.INTERPRETER, EngineType.OPCODE_TABLE, EngineType.PREDECODED };
+
+        // warm-up
+        for ( String rom : ROMS )
+        {
+            for ( EngineType type : types ) {
+                run( loadROM( rom ), type.create(), instructions );
+            }
+        }
+
+        for ( String rom : ROMS )
+        {
+            final StringBuilder line = new StringBuilder( rom );
+            double interpreterTime = 0;
+            for ( EngineType type : types )
+            {
+                double best = Double.MAX_VALUE;
+                for ( int i = 0 ; i < 3 ; i++ )
+                {
+                    final long start = System.nanoTime();
+                    run( loadROM( rom ), type.create(), instructions );
+                    best = Math.min( best, (System.nanoTime() - start) / 1_000_000d );
+                }
+                if ( type == EngineType.INTERPRETER ) {
+                    interpreterTime = best;
+                }
+                line.append( String.format( " | %s: %.1f ms (%.2fx)", type.displayName, best, interpreterTime / best ) );
+            }
+            System.out.println( line );
+        }
+    }
+
+    private IExecutionEngine createEngine(EngineType type)
+    {
+        switch( type )
+        {
+            case JIT:
+                return new JitEngine( Runnable::run, 1 );
+            case AOT:
+                return new AotEngine( new CodeCache( cacheDir ), Runnable::run );
+            default:
+                return type.create();
+        }
+    }
+
+    private static Result assertSameResult(String name,Consumer<Emulator> program,Supplier<IExecutionEngine> engine)
+    {
+        final Result expected = run( program, EngineType.INTERPRETER.create() );
+        final Result actual = run( program, engine.get() );
+
+        assertEquals( name + ": error", expected.error, actual.error );
+        final Emulator e = expected.emulator;
+        final Emulator a = actual.emulator;
+        assertEquals( name + ": PC", e.pc, a.pc );
+        assertEquals( name + ": I", e.index, a.index );
+        assertEquals( name + ": SP", e.sp, a.sp );
+        assertTrue( name + ": registers", Arrays.equals( e.register, a.register ) );
+        assertTrue( name + ": stack", Arrays.equals( e.stack, a.stack ) );
+        assertTrue( name + ": screen", Arrays.equals( e.screen.rows, a.screen.rows ) );
+        assertEquals( name + ": extended mode", e.screen.isExtendedMode(), a.screen.isExtendedMode() );
+        assertTrue( name + ": memory", Arrays.equals( dump( e.memory ), dump( a.memory ) ) );
+        return actual;
+    }
+
+    private static Result run(Consumer<Emulator> program,IExecutionEngine engine)
+    {
+        return run( program, engine, INSTRUCTIONS );
+    }
+
+    private static Result run(Consumer<Emulator> program,IExecutionEngine engine,int instructions)
+    {
+        final Emulator emulator = EmulatorFixture.create( program );
+        emulator.setExecutionEngine( engine );
+        emulator.reset();
+
+        final CommandQueue queue = new CommandQueue();
+        String error = null;
+        int executed = 0;
+        try
+        {
+            while ( executed < instructions )
+            {
+                if ( queue.isWaiting() ) {
+                    queue.reset(); // pretend a key got pressed / the delay timer expired
+                }
+                executed += emulator.execute( queue, instructions - executed );
+            }
+        }
+        catch(RuntimeException e) {
+            error = e.getMessage();
+        }
+        return new Result( emulator, error );
+    }
+
+    private static Consumer<Emulator> loadROM(String classpath)
+    {
+        return emu ->
+        {
+            try
+            {
+                emu.memory.load( classpath, 0x200 );
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException( e );
+            }
+        };
+    }
+
+    private static byte[] dump(Memory memory)
+    {
+        final byte[] result = new byte[ memory.getSizeInBytes() ];
+        memory.read( 0, result.length, result );
+        return result;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class FrameExchangeTest extends TestCase
+{
+    private Memory memory;
+    private Screen screen;
+    private FrameExchange exchange;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        memory = new Memory( 4096 );
+        screen = new Screen( memory );
+        exchange = new FrameExchange();
+        memory.write( 0, 0xff );
+    }
+
+    public void testTakesLatestFrame()
+    {
+        assertNull( exchange.take() );
+        assertTrue( exchange.publish( screen ) );
+        assertFalse( "nothing changed", exchange.publish( screen ) );
+
+        final Frame first = exchange.take();
+        assertNotNull( first );
+        assertEquals( 1, first.getSequence() );
+        assertNull( exchange.take() );
+
+        screen.drawSprite( 0, 1, 1, 0 );
+        exchange.publish( screen );
+        screen.drawSprite( 0, 2, 1, 0 );
+        exchange.publish( screen );
+
+        final Frame latest = exchange.take();
+        assertEquals( 3, latest.getSequence() );
+        // rows of the skipped frame must not get lost
+        assertEquals( 0b110L, latest.getDirtyRows() & 0b110L );
+        assertEquals( 0xff00000000000000L, latest.rows[1] );
+        assertEquals( 0xff00000000000000L, latest.rows[2] );
+    }
+
+    public void testDirtyRowsOfTakenFramesAreNotRepeated()
+    {
+        exchange.publish( screen );
+        exchange.take();
+
+        screen.drawSprite( 0, 1, 1, 0 );
+        exchange.publish( screen );
+        exchange.take();
+
+        screen.drawSprite( 0, 2, 1, 0 );
+        exchange.publish( screen );
+        screen.drawSprite( 0, 3, 1, 0 );
+        exchange.publish( screen );
+        assertEquals( 0b1100L, exchange.take().getDirtyRows() );
+    }
+
+    public void testInvalidatePublishesCompleteFrame()
+    {
+        exchange.publish( screen );
+        exchange.take();
+
+        exchange.invalidate();
+        assertTrue( exchange.publish( screen ) );
+        final Frame frame = exchange.take();
+        assertEquals( Screen.ALL_ROWS, frame.getDirtyRows() );
+
+        final BufferedImage image = frame.copyTo( null );
+        assertEquals( Screen.WIDTH, image.getWidth() );
+        assertEquals( Screen.HEIGHT, image.getHeight() );
+    }
+
+    public void testListenerIsNotified()
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        exchange.setFrameListener( calls::incrementAndGet );
+        exchange.publish( screen );
+        exchange.publish( screen );
+        assertEquals( 1, calls.get() );
+        exchange.setFrameListener( null );
+        screen.clear();
+        exchange.publish( screen );
+        assertEquals( 1, calls.get() );
+    }
+
+    public void testConcurrentHandOff() throws Exception
+    {
+        final int frameCount = 200_000;
+        final Thread producer = new Thread( () ->
+        {
+            for ( int i = 0 ; i < frameCount ; i++ )
+            {
+                // row 0 always holds the frame number so torn frames can be detected
+                screen.rows[0] = i;
+                screen.rows[1] = ~i;
+                screen.drawSprite( 0, 2, 1, 0 );
+                exchange.publish( screen );
+            }
+        });
+        producer.start();
+        long lastSequence = 0;
+        int taken = 0;
+        while ( producer.isAlive() || lastSequence < frameCount )
+        {
+            final Frame frame = exchange.take();
+            if ( frame == null ) {
+                Thread.onSpinWait();
+                continue;
+            }
+            taken++;
+            assertTrue( frame.getSequence() > lastSequence );
+            assertEquals( frame.getSequence() - 1, frame.rows[0] );
+            assertEquals( ~frame.rows[0], frame.rows[1] );
+            lastSequence = frame.getSequence();
+        }
+        producer.join();
+        assertEquals( frameCount, lastSequence );
+        assertTrue( taken > 0 );
+    }
+}
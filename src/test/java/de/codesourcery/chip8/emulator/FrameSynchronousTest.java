@@ -0,0 +1,109 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+public class FrameSynchronousTest extends TestCase
+{
+    private static final int END_ADDRESS = 0x210;
+
+    // 4x waits for the delay timer (3 frames each) while the sound timer keeps counting down
+    private static final byte[] PROGRAM = program(
+        0x60C8, // 0x200: v0 = 200
+        0xF018, // 0x202: sound-timer = v0
+        0x6103, // 0x204: v1 = 3
+        0x6200, // 0x206: v2 = 0
+        0xF115, // 0x208: delay-timer = v1 (wait until expired)
+        0x7201, // 0x20a: v2 += 1
+        0x3204, // 0x20c: skip if v2 == 4
+        0x1208, // 0x20e: jump 0x208
+        0x1210  // 0x210: jump 0x210
+    );
+
+    public void testTimersAdvanceOncePerFrame() throws InterruptedException
+    {
+        final Emulator emulator = run( PROGRAM, 15 );
+        assertEquals( END_ADDRESS, emulator.pc );
+        assertEquals( 4, emulator.register[2] );
+        // 4 waits of 3 frames each
+        assertEquals( 200 - 12, emulator.soundTimer.value() );
+        assertEquals( 0, emulator.delayTimer.value() );
+    }
+
+    public void testFewInstructionsPerFrame() throws InterruptedException
+    {
+        final Emulator emulator = run( PROGRAM, 2 );
+        assertEquals( END_ADDRESS, emulator.pc );
+        assertEquals( 4, emulator.register[2] );
+        // 5 frames until the first wait expired, 3x 4 frames per loop iteration, 1 frame until END_ADDRESS
+        assertEquals( 200 - 18, emulator.soundTimer.value() );
+    }
+
+    public void testUnthrottledRunsFasterThanRealTime() throws InterruptedException
+    {
+        final byte[] program = program(
+            0x6000, // 0x200: v0 = 0
+            0x61FF, // 0x202: v1 = 255
+            0xF115, // 0x204: delay-timer = v1 (wait until expired)
+            0x7001, // 0x206: v0 += 1
+            0x300A, // 0x208: skip if v0 == 10
+            0x1204, // 0x20a: jump 0x204
+            0x120C  // 0x20c: jump 0x20c
+        );
+        // 2550 frames, 42.5 seconds in real-time
+        final long start = System.nanoTime();
+        final Emulator emulator = run( program, 0x20c, 15, false );
+        final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertEquals( 10, emulator.register[0] );
+        assertTrue( "Took "+elapsedMillis+" ms", elapsedMillis < 10_000 );
+    }
+
+    private static Emulator run(byte[] program, int instructionsPerFrame) throws InterruptedException
+    {
+        return run( program, END_ADDRESS, instructionsPerFrame, false );
+    }
+
+    private static Emulator run(byte[] program, int endAddress, int instructionsPerFrame, boolean throttled) throws InterruptedException
+    {
+        final EmulatorDriver driver = new EmulatorDriver( EmulatorFixture.create( program ) );
+        try
+        {
+            final CountDownLatch stopped = new CountDownLatch( 1 );
+            driver.registerStateListener( (controller, reason) ->
+            {
+                if ( reason == EmulatorDriver.Reason.STOPPED_BREAKPOINT ) {
+                    stopped.countDown();
+                }
+            });
+            driver.setFrameSynchronous( instructionsPerFrame, throttled );
+            driver.addBreakpoint( new Breakpoint( endAddress, false ), true );
+            driver.reset();
+            driver.start();
+            assertTrue( "Emulation did not reach breakpoint", stopped.await( 30, TimeUnit.SECONDS ) );
+            return driver.runOnThreadWithResult( ip -> ip.emulator );
+        }
+        finally
+        {
+            driver.destroy();
+        }
+    }
+}
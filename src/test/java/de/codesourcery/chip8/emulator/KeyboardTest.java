@@ -0,0 +1,126 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyboardTest extends TestCase
+{
+    private final AtomicInteger wakeUps = new AtomicInteger();
+    private Keyboard keyboard;
+
+    @Override
+    protected void setUp()
+    {
+        keyboard = new Keyboard()
+        {
+            @Override
+            protected EmulatorDriver getDriver()
+            {
+                wakeUps.incrementAndGet();
+                return null;
+            }
+        };
+    }
+
+    public void testKeyMask()
+    {
+        keyboard.keyPressed( 0x0 );
+        keyboard.keyPressed( 0xf );
+        assertEquals( 0x8001, keyboard.getPressedKeys() );
+        assertTrue( keyboard.isKeyPressed( 0x0 ) );
+        assertTrue( keyboard.isKeyPressed( 0xf ) );
+        assertFalse( keyboard.isKeyPressed( 0x5 ) );
+        // register values beyond the keypad never match
+        assertFalse( keyboard.isKeyPressed( 0x20 ) );
+
+        keyboard.keyReleased( 0x0 );
+        assertFalse( keyboard.isKeyPressed( 0x0 ) );
+        assertEquals( 3, wakeUps.get() );
+
+        keyboard.reset();
+        assertEquals( 0, keyboard.getPressedKeys() );
+        assertEquals( -1, keyboard.pollEvent() );
+    }
+
+    public void testEventsAreQueuedInOrder()
+    {
+        keyboard.keyPressed( 0x3 );
+        keyboard.keyReleased( 0x3 );
+        keyboard.keyPressed( 0xa );
+        assertEquals( 0x3 | Keyboard.PRESSED, keyboard.pollEvent() );
+        assertEquals( 0x3, keyboard.pollEvent() );
+        assertEquals( 0xa | Keyboard.PRESSED, keyboard.pollEvent() );
+        assertEquals( -1, keyboard.pollEvent() );
+    }
+
+    public void testFullQueueDropsEvents()
+    {
+        final KeyEventQueue queue = new KeyEventQueue( 4 );
+        for ( int i = 0 ; i < 4 ; i++ ) {
+            assertTrue( queue.offer( i ) );
+        }
+        assertFalse( queue.offer( 4 ) );
+        assertEquals( 0, queue.poll() );
+        assertTrue( queue.offer( 5 ) );
+        assertEquals( 1, queue.poll() );
+        assertEquals( 2, queue.poll() );
+        assertEquals( 3, queue.poll() );
+        assertEquals( 5, queue.poll() );
+        assertEquals( -1, queue.poll() );
+    }
+
+    public void testConcurrentProducers() throws InterruptedException
+    {
+        final KeyEventQueue queue = new KeyEventQueue( 64 );
+        final int producers = 4;
+        final int eventsPerProducer = 20_000;
+        final Thread[] threads = new Thread[ producers ];
+        for ( int p = 0 ; p < producers ; p++ )
+        {
+            final int producer = p;
+            threads[p] = new Thread( () ->
+            {
+                for ( int i = 0 ; i < eventsPerProducer ; i++ )
+                {
+                    while ( ! queue.offer( producer << 24 | i ) ) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        // events of each producer arrive in order, none get lost or duplicated
+        final int[] expected = new int[ producers ];
+        for ( int received = 0 ; received < producers * eventsPerProducer ; )
+        {
+            final int event = queue.poll();
+            if ( event == -1 ) {
+                Thread.yield();
+                continue;
+            }
+            final int producer = event >>> 24;
+            assertEquals( expected[ producer ]++, event & 0xffffff );
+            received++;
+        }
+        for ( Thread t : threads ) {
+            t.join();
+        }
+        assertEquals( -1, queue.poll() );
+    }
+}
@@ -18,6 +18,7 @@ package de.codesourcery.chip8.emulator;
 import junit.framework.TestCase;
 import org.apache.commons.lang3.StringUtils;
 
+import java.awt.image.BufferedImage;
 import java.util.Arrays;
 
 public class ScreenTest extends TestCase
@@ -69,14 +70,13 @@ public class ScreenTest extends TestCase
             System.out.println("x = "+x+", MASK: "+binary(mask,8));
             memory.write( 0,mask);
             screen.clear();
-            screen.data[0] = (byte) 0xff;
-            screen.data[1] = (byte) 0xff;
+            screen.rows[0] = 0xffffL << 48;
 
             int expected = (0xffff ^ (mask<<(8-x)));
             boolean pixelsCleared = screen.drawSprite( x,0,1,0);
             final String lmsg = "x = "+leftPad(Integer.toString(x),2 )+ ", %" + binary( mask,8);
             assertTrue( "Cleared pixel check failed for " + lmsg, pixelsCleared );
-            int actual = (screen.data[0] & 0xff) << 8 | (screen.data[1] & 0xff);
+            int actual = (int) (screen.rows[0] >>> 48);
             System.out.println("EXPECTED: "+binary(expected,16));
             System.out.println("GOT     : "+binary(actual,16));
             assertEquals( "Screen contents mismatch", expected,actual );
@@ -95,14 +95,13 @@ public class ScreenTest extends TestCase
             System.out.println("x = "+x+", MASK: "+binary(mask,8));
             memory.write( 0,mask);
             screen.clear();
-            screen.data[0] = (byte) 0x00;
-            screen.data[1] = (byte) 0x00;
+            screen.rows[0] = 0;
 
             int expected = (0x0000 ^ (mask<<(8-x)));
             boolean pixelsCleared = screen.drawSprite( x,0,1,0);
             final String lmsg = "x = "+leftPad(Integer.toString(x),2 )+ ", %" + binary( mask,8);
             assertFalse( "Cleared pixel check failed for " + lmsg, pixelsCleared );
-            int actual = (screen.data[0] & 0xff) << 8 | (screen.data[1] & 0xff);
+            int actual = (int) (screen.rows[0] >>> 48);
             System.out.println("EXPECTED: "+binary(expected,16));
             System.out.println("GOT     : "+binary(actual,16));
             assertEquals( "Screen contents mismatch", expected,actual );
@@ -110,6 +109,231 @@ public class ScreenTest extends TestCase
         }
     }
 
+    public void testWrapsAround()
+    {
+        memory.write( 0, 0xff );
+        memory.write( 1, 0x81 );
+        screen.clear();
+
+        assertFalse( screen.drawSprite( 60, 31, 2, 0 ) );
+        // right half wraps to the start of the same row, second row wraps to the top
+        assertEquals( 0xf00000000000000fL, screen.rows[31] );
+        assertEquals( 0x1000000000000008L, screen.rows[0] );
+
+        assertTrue( screen.drawSprite( 60, 31, 2, 0 ) );
+        assertEquals( 0, screen.rows[31] );
+        assertEquals( 0, screen.rows[0] );
+    }
+
+    public void testSmallSpriteCache()
+    {
+        final Screen small = new Screen( memory, 1 );
+        final SpriteCache cache = small.getSpriteCache();
+        assertNull( cache.words ); // allocated on first use
+        memory.write( 0x300, 0x80 );
+        memory.write( 0x301, 0x40 );
+
+        // two sprites competing for the only slot
+        for ( int i = 0 ; i < 3 ; i++ )
+        {
+            small.drawSprite( 0, 0, 1, 0x300 );
+            small.drawSprite( 0, 0, 1, 0x301 );
+        }
+        assertEquals( 0xc000000000000000L, small.rows[0] );
+        assertEquals( 6, cache.getMisses() );
+        assertEquals( 1, cache.words.length / SpriteCache.WORDS_PER_SLOT );
+        try
+        {
+            new Screen( memory, 3 );
+            fail( "Should have failed" );
+        }
+        catch(IllegalArgumentException e) {
+            // ok, not a power of two
+        }
+    }
+
+    public void testSpriteCacheSeesMemoryWrites()
+    {
+        final int addr = 0x300;
+        memory.write( addr, 0xf0 );
+        final SpriteCache cache = screen.getSpriteCache();
+        cache.resetStatistics();
+
+        screen.drawSprite( 4, 0, 1, addr );
+        screen.drawSprite( 4, 0, 1, addr );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 1, cache.getMisses() );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 0.5, cache.getHitRate(), 0.0001 );
+
+        // changed sprite data must not be served from the cache
+        memory.write( addr, 0x0f );
+        screen.drawSprite( 4, 0, 1, addr );
+        assertEquals( 0x00f0000000000000L, screen.rows[0] );
+
+        // same goes for bulk writes, the sprite's data spanning two write blocks
+        final int wide = (1 << Memory.WRITE_BLOCK_SHIFT) * 4 - 1;
+        memory.write( wide, new byte[]{ (byte) 0x80, (byte) 0x80 } );
+        screen.clear();
+        screen.drawSprite( 0, 0, 2, wide );
+        screen.drawSprite( 0, 0, 2, wide );
+        memory.write( wide, new byte[]{ 0, 1 } );
+        screen.drawSprite( 0, 0, 2, wide );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 0x0100000000000000L, screen.rows[1] );
+
+        // extended mode uses separate entries for the same address
+        screen.setExtendedMode( true );
+        screen.drawSprite( 63, 0, 1, wide );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 0, screen.rows[1] );
+        screen.drawSprite( 56, 1, 1, wide+1 );
+        assertEquals( 0x0100000000000000L >>> 56, screen.rows[2] );
+    }
+
+    public void testExtendedPerformance()
+    {
+        final byte[] data = new byte[]{1,2,3,4,5,6,7,8};
+
+        memory.write(0,data );
+        screen.setExtendedMode( true );
+
+        long best = 12345678;
+        for ( int i = 20; i > 0 ; i-- ) {
+
+            long start = System.currentTimeMillis();
+            for (int j = 0 ; j < 100000 ; j++)
+            {
+                for (int x = 0; x < (64 - 8); x++)
+                {
+                    screen.drawSprite(x*2, 1, 8, 0);
+                }
+            }
+            long end = System.currentTimeMillis();
+            best = Math.min( best , end-start );
+        }
+        System.out.println("EXTENDED TIME (best): "+best+" ms");
+    }
+
+    public void testExtendedModeSpriteStraddlesWords()
+    {
+        memory.write( 0, 0xff );
+        screen.setExtendedMode( true );
+        assertEquals( 128, screen.getWidth() );
+        assertEquals( 64, screen.getHeight() );
+
+        // x = 60 covers pixels 60-67, spread across both words of row 63
+        assertFalse( screen.drawSprite( 60, 63, 1, 0 ) );
+        assertEquals( 0x0fL, screen.rows[126] );
+        assertEquals( 0xf000000000000000L, screen.rows[127] );
+
+        // x = 124 wraps around to the start of the same row
+        screen.clear();
+        assertFalse( screen.drawSprite( 124, 0, 1, 0 ) );
+        assertEquals( 0xf000000000000000L, screen.rows[0] );
+        assertEquals( 0x0fL, screen.rows[1] );
+        assertTrue( screen.drawSprite( 124, 0, 1, 0 ) );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 0, screen.rows[1] );
+    }
+
+    public void testLargeSprite()
+    {
+        memory.write( 0, 0xff );
+        memory.write( 1, 0x81 );
+        screen.setExtendedMode( true );
+
+        assertFalse( screen.drawSprite( 8, 0, 0, 0 ) );
+        assertEquals( 0x00ff810000000000L, screen.rows[0] );
+        assertEquals( 0, screen.rows[1] );
+
+        // standard mode draws 16x16 sprites as well
+        screen.setExtendedMode( false );
+        assertFalse( screen.drawSprite( 56, 0, 0, 0 ) );
+        assertEquals( 0x81000000000000ffL, screen.rows[0] );
+    }
+
+    public void testScroll()
+    {
+        memory.write( 0, 0x81 );
+        screen.setExtendedMode( true );
+        screen.drawSprite( 60, 0, 1, 0 );
+        assertEquals( 0x08L, screen.rows[0] );
+        assertEquals( 0x1000000000000000L, screen.rows[1] );
+
+        screen.scrollDown( 3 );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 0, screen.rows[1] );
+        assertEquals( 0x08L, screen.rows[6] );
+        assertEquals( 0x1000000000000000L, screen.rows[7] );
+
+        screen.scrollRight();
+        assertEquals( 0, screen.rows[6] );
+        assertEquals( 0x8100000000000000L, screen.rows[7] );
+
+        screen.scrollLeft();
+        screen.scrollLeft();
+        assertEquals( 0x81L, screen.rows[6] );
+        assertEquals( 0, screen.rows[7] );
+
+        // scrolling in standard mode
+        screen.setExtendedMode( false );
+        screen.drawSprite( 0, 0, 1, 0 );
+        screen.scrollDown( 1 );
+        assertEquals( 0, screen.rows[0] );
+        assertEquals( 0x8100000000000000L, screen.rows[1] );
+        screen.scrollRight();
+        assertEquals( 0x0810000000000000L, screen.rows[1] );
+        screen.scrollLeft();
+        screen.scrollLeft();
+        assertEquals( 0x1000000000000000L, screen.rows[1] );
+    }
+
+    public void testDirtyRows()
+    {
+        memory.write( 0, 0xff );
+        assertEquals( 0xffffffff_ffffffffL, screen.takeDirtyRows() );
+        assertEquals( 0, screen.takeDirtyRows() );
+
+        screen.drawSprite( 3, 4, 2, 0 );
+        assertEquals( 0b110000L, screen.takeDirtyRows() );
+
+        // wraps around at the bottom
+        screen.drawSprite( 0, 31, 3, 0 );
+        assertEquals( 0x80000003L, screen.takeDirtyRows() );
+
+        screen.setExtendedMode( true );
+        screen.takeDirtyRows();
+        screen.drawSprite( 0, 62, 3, 0 );
+        assertEquals( 0xc000000000000001L, screen.takeDirtyRows() );
+        assertFalse( screen.hasChanged() );
+
+        screen.scrollLeft();
+        assertTrue( screen.hasChanged() );
+    }
+
+    public void testCopyDirtyRows()
+    {
+        memory.write( 0, 0xff );
+        BufferedImage image = screen.copyTo( null );
+        assertEquals( 64, image.getWidth() );
+        assertEquals( 32, image.getHeight() );
+
+        screen.drawSprite( 8, 1, 1, 0 );
+        screen.drawSprite( 8, 5, 1, 0 );
+        // only row 5 gets copied
+        assertSame( image, screen.copyTo( image, 1L << 5 ) );
+        assertEquals( 0, image.getRGB( 8, 1 ) & 0xffffff );
+        assertEquals( 0xffffff, image.getRGB( 8, 5 ) & 0xffffff );
+
+        screen.setExtendedMode( true );
+        screen.drawSprite( 120, 63, 1, 0 );
+        final BufferedImage extended = screen.copyTo( image, 0 );
+        assertNotSame( image, extended );
+        assertEquals( 128, extended.getWidth() );
+        assertEquals( 0xffffff, extended.getRGB( 127, 63 ) & 0xffffff );
+    }
+
     private static String leftPad(String value,int len) {
         return StringUtils.leftPad(value,len,'0');
     }
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SharedFramebufferTest extends TestCase
+{
+    private Path file;
+    private Memory memory;
+    private Screen screen;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        file = Files.createTempFile( "chip8", ".fb" );
+        memory = new Memory( 4096 );
+        screen = new Screen( memory );
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        Files.deleteIfExists( file );
+    }
+
+    public void testMirrorsScreen() throws IOException
+    {
+        memory.write( 0x300, new byte[]{ (byte) 0xff, (byte) 0x81 } );
+        screen.drawSprite( 60, 3, 2, 0x300 );
+        final long[] pixels = new long[ screen.rows.length ];
+        try (SharedFramebuffer framebuffer = SharedFramebuffer.create( file );
+             SharedFramebufferReader reader = SharedFramebufferReader.open( file ) )
+        {
+            assertEquals( SharedFramebuffer.SIZE, Files.size( file ) );
+            framebuffer.update( screen, true );
+            assertTrue( reader.read( pixels ) );
+            assertEquals( 1, reader.getFrameSequence() );
+            assertEquals( 64, reader.getWidth() );
+            assertEquals( 32, reader.getHeight() );
+            assertFalse( reader.isBeeping() );
+            assertEquals( 0xf00000000000000fL, pixels[3] );
+            assertEquals( 0x1000000000000008L, pixels[4] );
+
+            // nothing changed
+            framebuffer.update( screen, false );
+            assertFalse( reader.read( pixels ) );
+
+            // beeper state does not count as a new frame
+            screen.setBeep( true );
+            framebuffer.update( screen, false );
+            assertTrue( reader.read( pixels ) );
+            assertTrue( reader.isBeeping() );
+            assertEquals( 1, reader.getFrameSequence() );
+
+            screen.setExtendedMode( true );
+            screen.drawSprite( 127, 63, 1, 0x300 );
+            framebuffer.update( screen, true );
+            assertTrue( reader.read( pixels ) );
+            assertTrue( reader.isExtendedMode() );
+            assertEquals( 2, reader.getFrameSequence() );
+            assertEquals( 128, reader.getWidth() );
+            assertEquals( 1L, pixels[127] );
+            assertEquals( 0xfe00000000000000L, pixels[126] );
+        }
+    }
+
+    public void testReadersNeverSeeTornFrames() throws Exception
+    {
+        final AtomicBoolean stop = new AtomicBoolean();
+        try (SharedFramebuffer framebuffer = SharedFramebuffer.create( file );
+             SharedFramebufferReader reader = SharedFramebufferReader.open( file ) )
+        {
+            final Thread writer = new Thread( () ->
+            {
+                // every frame has all words set to the frame's sequence number
+                for ( long frame = 1 ; ! stop.get() ; frame++ )
+                {
+                    Arrays.fill( screen.rows, frame );
+                    framebuffer.update( screen, true );
+                }
+            });
+            writer.start();
+
+            final long[] pixels = new long[ screen.rows.length ];
+            int framesRead = 0;
+            final long deadline = System.currentTimeMillis() + 500;
+            while ( System.currentTimeMillis() < deadline )
+            {
+                if ( reader.read( pixels ) )
+                {
+                    framesRead++;
+                    for ( int i = 0 ; i < Screen.HEIGHT ; i++ ) {
+                        assertEquals( reader.getFrameSequence(), pixels[i] );
+                    }
+                }
+            }
+            stop.set( true );
+            writer.join();
+            assertTrue( framesRead > 0 );
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+/**
+ * Helpers for assembling tiny test programs by hand.
+ *
+ * @author tobias.gierke@code-sourcery.de
+ */
+public final class TestPrograms
+{
+    private TestPrograms() {
+    }
+
+    /**
+     * Turns a list of 16-bit instructions into program bytes (big-endian).
+     *
+     * @param words instructions
+     * @return program bytes
+     */
+    public static byte[] program(int... words)
+    {
+        final byte[] data = new byte[ words.length * 2 ];
+        for ( int i = 0 ; i < words.length ; i++ )
+        {
+            data[ i * 2 ] = (byte) (words[i] >>> 8);
+            data[ i * 2 + 1 ] = (byte) words[i];
+        }
+        return data;
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+public class ThroughputGovernorTest extends TestCase
+{
+    private static final long MILLIS = 1_000_000;
+
+    public void testBatchSize()
+    {
+        assertEquals( 64, new ThroughputGovernor( ThroughputGovernor.UNLIMITED ).batchSize( 64 ) );
+        assertEquals( 1, new ThroughputGovernor( 10 ).batchSize( 64 ) );
+        assertEquals( 20, new ThroughputGovernor( 20_000 ).batchSize( 64 ) );
+        assertEquals( 64, new ThroughputGovernor( 1_000_000 ).batchSize( 64 ) );
+    }
+
+    public void testUnlimitedNeverWaits()
+    {
+        final ThroughputGovernor governor = new ThroughputGovernor( ThroughputGovernor.UNLIMITED );
+        governor.executed( 1_000_000 );
+        assertEquals( 0, governor.nanosUntilNextBatch() );
+    }
+
+    public void testDeadlinesFollowTargetRate()
+    {
+        final ThroughputGovernor governor = new ThroughputGovernor( 20_000 );
+        governor.restart( 0 );
+        assertEquals( 0, governor.nanosUntilNextBatch( 0 ) );
+
+        // 20 instructions at 20k/s take 1 ms
+        governor.executed( governor.batchSize( 64 ) );
+        assertEquals( 1 * MILLIS, governor.nanosUntilNextBatch( 0 ) );
+        assertEquals( 400_000, governor.nanosUntilNextBatch( 600_000 ) );
+        assertEquals( 0, governor.nanosUntilNextBatch( 1 * MILLIS ) );
+
+        // deadlines are calculated from the total, waking up late does not delay the following batches
+        governor.executed( 20 );
+        assertEquals( 500_000, governor.nanosUntilNextBatch( 1_500_000 ) );
+    }
+
+    public void testCatchesUpWithSmallLag()
+    {
+        final ThroughputGovernor governor = new ThroughputGovernor( 1000 );
+        governor.restart( 0 );
+        governor.executed( 10 );
+        // 15 ms behind schedule, within the max. lag
+        assertEquals( 0, governor.nanosUntilNextBatch( 25 * MILLIS ) );
+        governor.executed( 10 );
+        assertEquals( 0, governor.nanosUntilNextBatch( 25 * MILLIS ) );
+        governor.executed( 10 );
+        assertEquals( 5 * MILLIS, governor.nanosUntilNextBatch( 25 * MILLIS ) );
+    }
+
+    public void testDoesNotCatchUpAfterLongPause()
+    {
+        final ThroughputGovernor governor = new ThroughputGovernor( 1000 );
+        governor.restart( 0 );
+        // 100 instructions overdue, but way past the max. lag
+        assertEquals( 0, governor.nanosUntilNextBatch( 100 * MILLIS ) );
+        governor.executed( 1 );
+        assertEquals( 1 * MILLIS, governor.nanosUntilNextBatch( 100 * MILLIS ) );
+    }
+
+    public void testScheduleMovesForwardEveryMinute()
+    {
+        final ThroughputGovernor governor = new ThroughputGovernor( 20_000 );
+        governor.restart( 0 );
+        governor.executed( 20_000 * 60 );
+        final long oneMinute = 60_000 * MILLIS;
+        assertEquals( 0, governor.nanosUntilNextBatch( oneMinute ) );
+        governor.executed( 20 );
+        assertEquals( 1 * MILLIS, governor.nanosUntilNextBatch( oneMinute ) );
+    }
+}
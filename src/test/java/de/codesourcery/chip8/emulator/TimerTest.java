@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimerTest extends TestCase
+{
+    private final AtomicInteger triggerCount = new AtomicInteger();
+
+    private final Timer timer = new Timer( "test" )
+    {
+        @Override
+        protected void triggered()
+        {
+            triggerCount.incrementAndGet();
+        }
+    };
+
+    public void testCountsDownToZero()
+    {
+        timer.setValue( 2 );
+        timer.run();
+        assertEquals( 1, timer.value() );
+        assertEquals( 0, triggerCount.get() );
+        timer.run();
+        assertEquals( 0, timer.value() );
+        assertEquals( 1, triggerCount.get() );
+        timer.run();
+        assertEquals( 0, timer.value() );
+        assertEquals( 1, triggerCount.get() );
+    }
+
+    public void testValueIsTruncatedToByte()
+    {
+        timer.setValue( 0x1ff );
+        assertEquals( 0xff, timer.value() );
+    }
+
+    public void testConcurrentTicksTriggerExactlyOnce() throws InterruptedException
+    {
+        for ( int round = 0 ; round < 100 ; round++ )
+        {
+            triggerCount.set( 0 );
+            timer.setValue( 255 );
+            final Thread[] threads = new Thread[4];
+            for ( int i = 0 ; i < threads.length ; i++ )
+            {
+                threads[i] = new Thread( () -> {
+                    for ( int j = 0 ; j < 100 ; j++ ) {
+                        timer.run();
+                    }
+                });
+                threads[i].start();
+            }
+            for ( Thread t : threads ) {
+                t.join();
+            }
+            assertEquals( 0, timer.value() );
+            assertEquals( 1, triggerCount.get() );
+        }
+    }
+
+    public void testExpiryNotificationDoesNotWaitForBusyEmulation() throws InterruptedException
+    {
+        final Memory memory = new Memory( 4096 );
+        final Keyboard keyboard = new Keyboard()
+        {
+            @Override
+            protected EmulatorDriver getDriver()
+            {
+                return null;
+            }
+        };
+        final EmulatorDriver driver = new EmulatorDriver( new Emulator( memory, new Screen( memory ), keyboard, timer, timer, emu -> {} ) );
+        final Timer delayTimer = new Timer( "delay" )
+        {
+            @Override
+            protected void triggered()
+            {
+                driver.delayTimerTriggered();
+            }
+        };
+        final CountDownLatch busy = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        try
+        {
+            driver.post( ip ->
+            {
+                busy.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue( busy.await( 5, TimeUnit.SECONDS ) );
+
+            delayTimer.setValue( 1 );
+            final long start = System.nanoTime();
+            delayTimer.run();
+            assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) < 1000 );
+        }
+        finally
+        {
+            release.countDown();
+            driver.destroy();
+        }
+    }
+}
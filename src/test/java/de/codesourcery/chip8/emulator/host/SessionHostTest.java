@@ -0,0 +1,112 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.host;
+
+import de.codesourcery.chip8.emulator.EmulatorSession;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+public class SessionHostTest extends TestCase
+{
+    private SessionHost host;
+
+    @Override
+    protected void setUp()
+    {
+        host = new SessionHost( 2 );
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        host.close();
+    }
+
+    public void testRunsManySessionsOnFewThreads() throws InterruptedException
+    {
+        final int sessionCount = 1000;
+        final CountDownLatch allRunning = new CountDownLatch( sessionCount );
+        final List<EmulatorSession> sessions = new ArrayList<>();
+        for ( int i = 0 ; i < sessionCount ; i++ )
+        {
+            final EmulatorSession session = EmulatorSession.builder()
+                .rom( program( 0x7001, 0x1200 ) ) // v0 += 1 ; jump 0x200
+                .instructionsPerFrame( 10 )
+                .build();
+            sessions.add( session );
+            final boolean[] counted = new boolean[1]; // slices of the same session never run concurrently
+            host.add( session, hosted ->
+            {
+                if ( ! counted[0] && hosted.getSession().getFrameCount() >= 3 )
+                {
+                    counted[0] = true;
+                    allRunning.countDown();
+                }
+            });
+        }
+        assertEquals( sessionCount, host.getSessionCount() );
+        assertTrue( allRunning.await( 30, TimeUnit.SECONDS ) );
+
+        host.close();
+        for ( EmulatorSession session : sessions )
+        {
+            assertTrue( session.getFrameCount() >= 3 );
+            assertEquals( session.getFrameCount() * 10, session.getCycleCount() );
+            // 2 instructions per iteration
+            assertEquals( ( session.getInstructionCount() / 2 ) & 0xff, session.getEmulator().register[0] );
+        }
+    }
+
+    public void testSessionsWaitingForKeyArePickedUpByKeyEvents() throws InterruptedException
+    {
+        final CountDownLatch keyReceived = new CountDownLatch( 1 );
+        final List<HostedSession> hosted = new ArrayList<>();
+        for ( int i = 0 ; i < 100 ; i++ )
+        {
+            final EmulatorSession session = EmulatorSession.builder()
+                .rom( program( 0xF30A, 0x1202 ) ) // wait for key press, put key in v3 ; jump 0x202
+                .build();
+            hosted.add( host.add( session, h ->
+            {
+                if ( h.getSession().getEmulator().register[3] == 9 ) {
+                    keyReceived.countDown();
+                }
+            }));
+        }
+        final long deadline = System.currentTimeMillis() + 30_000;
+        while ( ! hosted.stream().allMatch( HostedSession::isParked ) && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 10 );
+        }
+        assertTrue( hosted.stream().allMatch( HostedSession::isParked ) );
+
+        final HostedSession first = hosted.get( 0 );
+        first.keyPressed( 9 );
+        first.keyReleased( 9 );
+        assertTrue( keyReceived.await( 30, TimeUnit.SECONDS ) );
+        assertFalse( first.isParked() );
+
+        first.remove();
+        assertTrue( first.isRemoved() );
+        assertEquals( 99, host.getSessionCount() );
+        assertTrue( hosted.get( 1 ).isParked() );
+    }
+}
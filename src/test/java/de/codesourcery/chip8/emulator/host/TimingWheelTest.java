@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.host;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TimingWheelTest extends TestCase
+{
+    private final TimingWheel<Long> wheel = new TimingWheel<>( 0 );
+
+    public void testEntriesExpireExactlyAtTheirDeadline()
+    {
+        final Random rnd = new Random( 0xdeadbeef );
+        final List<TimingWheel.Entry<Long>> entries = new ArrayList<>();
+        for ( int i = 0 ; i < 10_000 ; i++ )
+        {
+            // spread across all levels
+            final long deadline = 1 + rnd.nextInt( 1 << ( 1 + rnd.nextInt( 20 ) ) );
+            final TimingWheel.Entry<Long> entry = new TimingWheel.Entry<>( deadline );
+            entries.add( entry );
+            wheel.schedule( entry, deadline );
+        }
+        assertEquals( entries.size(), wheel.size() );
+
+        final int[] expired = new int[1];
+        for ( long tick = 0 ; wheel.size() > 0 ; tick += 37 )
+        {
+            wheel.advanceTo( tick, deadline ->
+            {
+                assertEquals( deadline.longValue(), wheel.getCurrentTick() );
+                expired[0]++;
+            });
+        }
+        assertEquals( entries.size(), expired[0] );
+    }
+
+    public void testDeadlinesBeyondTheTopLevelCascade()
+    {
+        final long deadline = ( 1L << ( TimingWheel.LEVELS * TimingWheel.SLOT_BITS ) ) + 12345;
+        wheel.schedule( new TimingWheel.Entry<>( deadline ), deadline );
+        final List<Long> expiredAt = new ArrayList<>();
+        wheel.advanceTo( deadline + 10, value -> expiredAt.add( wheel.getCurrentTick() ) );
+        assertEquals( List.of( deadline ), expiredAt );
+    }
+
+    public void testPastDeadlinesExpireOnNextTickAndMayReschedule()
+    {
+        wheel.advanceTo( 100, value -> fail() );
+        final TimingWheel.Entry<Long> entry = new TimingWheel.Entry<>( 1L );
+        wheel.schedule( entry, 50 );
+
+        final List<Long> expiredAt = new ArrayList<>();
+        wheel.advanceTo( 300, value ->
+        {
+            expiredAt.add( wheel.getCurrentTick() );
+            if ( expiredAt.size() < 3 ) {
+                wheel.schedule( entry, wheel.getCurrentTick() + 100 );
+            }
+        });
+        assertEquals( List.of( 101L, 201L ), expiredAt );
+        assertEquals( 1, wheel.size() );
+        wheel.advanceTo( 301, value -> expiredAt.add( wheel.getCurrentTick() ) );
+        assertEquals( List.of( 101L, 201L, 301L ), expiredAt );
+        assertEquals( 0, wheel.size() );
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.emulator.recording;
+
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Screen;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class VideoRecorderTest extends TestCase
+{
+    private Memory memory;
+    private Screen screen;
+
+    @Override
+    protected void setUp()
+    {
+        memory = new Memory( 4096 );
+        screen = new Screen( memory );
+        memory.write( 0x300, new byte[]{ (byte) 0xff, (byte) 0x81, (byte) 0xff } );
+    }
+
+    public void testRecordingRoundTrip() throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<long[]> expected = new ArrayList<>();
+        try (VideoRecorder recorder = VideoRecorder.create( out ) )
+        {
+            for ( int i = 0 ; i < 50 ; i++ )
+            {
+                if ( i == 30 ) {
+                    screen.setExtendedMode( true );
+                }
+                screen.drawSprite( i * 3, i, 3, 0x300 );
+                assertTrue( recorder.record( screen ) );
+                final long[] rows = new long[ screen.getWidth() * screen.getHeight() / 64 ];
+                screen.copyRows( rows );
+                expected.add( rows );
+            }
+        }
+
+        try (RecordingReader reader = new RecordingReader( new ByteArrayInputStream( out.toByteArray() ) ) )
+        {
+            long lastTimestamp = 0;
+            for ( long[] rows : expected )
+            {
+                assertTrue( reader.next() );
+                assertEquals( rows.length == 32 ? Screen.WIDTH : Screen.EXTENDED_WIDTH, reader.getWidth() );
+                final long[] actual = new long[ rows.length ];
+                reader.copyRows( actual );
+                for ( int i = 0 ; i < rows.length ; i++ ) {
+                    assertEquals( "frame " + reader.getFrameCount() + ", word " + i, rows[i], actual[i] );
+                }
+                assertTrue( reader.getTimestampMicros() >= lastTimestamp );
+                lastTimestamp = reader.getTimestampMicros();
+            }
+            assertFalse( reader.next() );
+            assertEquals( expected.size(), reader.getFrameCount() );
+        }
+    }
+
+    public void testIdenticalFramesAreCheap() throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        screen.drawSprite( 10, 10, 3, 0x300 );
+        try (VideoRecorder recorder = VideoRecorder.create( out ) ) {
+            assertTrue( recorder.record( screen ) );
+        }
+        final int oneFrame = out.size();
+
+        final int frames = 100;
+        out.reset();
+        try (VideoRecorder recorder = VideoRecorder.create( out ) )
+        {
+            for ( int i = 0 ; i < frames ; i++ ) {
+                assertTrue( recorder.record( screen ) );
+            }
+        }
+        // flags and a small timestamp delta
+        assertTrue( "size: " + out.size(), out.size() - oneFrame <= ( frames - 1 ) * 4 );
+    }
+
+    public void testRecordNeverBlocks() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // stalls the encoder thread on its first write to disk
+        final FilterOutputStream slowDisk = new FilterOutputStream( bytes )
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException( e );
+                }
+                bytes.write( b, off, len );
+            }
+
+            @Override
+            public void flush() throws IOException
+            {
+                write( new byte[0], 0, 0 );
+            }
+        };
+
+        final VideoRecorder recorder = VideoRecorder.create( slowDisk );
+        int recorded = 0;
+        for ( int i = 0 ; i < 100_000 ; i++ )
+        {
+            screen.drawSprite( i & 63, 0, 1, 0x300 );
+            if ( recorder.record( screen ) ) {
+                recorded++;
+            }
+        }
+        release.countDown();
+        recorder.close();
+
+        assertTrue( recorder.getDroppedFrames() > 0 );
+        assertEquals( recorded, recorder.getRecordedFrames() );
+        try (RecordingReader reader = new RecordingReader( new ByteArrayInputStream( bytes.toByteArray() ) ) )
+        {
+            while ( reader.next() ) {
+            }
+            assertEquals( recorded, reader.getFrameCount() );
+        }
+    }
+
+    public void testConvertToGif() throws IOException
+    {
+        final ByteArrayOutputStream recording = new ByteArrayOutputStream();
+        try (VideoRecorder recorder = VideoRecorder.create( recording ) )
+        {
+            for ( int i = 0 ; i < 3 ; i++ )
+            {
+                screen.drawSprite( i * 8, 0, 3, 0x300 );
+                recorder.record( screen );
+                sleep( 30 );
+            }
+        }
+
+        final ByteArrayOutputStream gif = new ByteArrayOutputStream();
+        final int frames = new GifConverter( 1 ).convert( new ByteArrayInputStream( recording.toByteArray() ), gif );
+        assertEquals( 3, frames );
+
+        final ImageReader reader = ImageIO.getImageReadersByFormatName( "gif" ).next();
+        try (ImageInputStream in = ImageIO.createImageInputStream( new ByteArrayInputStream( gif.toByteArray() ) ) )
+        {
+            reader.setInput( in );
+            assertEquals( 3, reader.getNumImages( true ) );
+            // standard resolution pixels are twice as large
+            assertEquals( Screen.EXTENDED_WIDTH, reader.getWidth( 2 ) );
+            assertEquals( 0xffffff, reader.read( 2 ).getRGB( 33, 0 ) & 0xffffff );
+            assertEquals( 0, reader.read( 2 ).getRGB( 34, 2 ) & 0xffffff );
+            assertEquals( 0xffffff, reader.read( 2 ).getRGB( 32, 2 ) & 0xffffff );
+        }
+        finally {
+            reader.dispose();
+        }
+    }
+
+    private static void sleep(long millis)
+    {
+        try {
+            Thread.sleep( millis );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
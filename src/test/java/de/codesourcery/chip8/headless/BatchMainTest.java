@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+public class BatchMainTest extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory( "batch" );
+    }
+
+    @Override
+    protected void tearDown() throws IOException
+    {
+        try ( Stream<Path> files = Files.walk( dir ) ) {
+            for ( Path file : files.sorted( Comparator.reverseOrder() ).collect( Collectors.toList() ) ) {
+                Files.delete( file );
+            }
+        }
+    }
+
+    public void testRunsRomsFromDirectoriesAndZipFiles() throws IOException
+    {
+        final Path roms = Files.createDirectories( dir.resolve( "roms/nested" ) );
+        Files.write( dir.resolve( "roms/counter.ch8" ), program( 0x7001, 0x1200 ) ); // v0 += 1 ; jump 0x200
+        Files.write( roms.resolve( "illegal.ch8" ), program( 0x0000 ) );
+        Files.write( roms.resolve( "readme.txt" ), new byte[] { 1, 2, 3 } );
+
+        final Path zip = dir.resolve( "roms.zip" );
+        try ( ZipOutputStream out = new ZipOutputStream( Files.newOutputStream( zip ) ) )
+        {
+            out.putNextEntry( new ZipEntry( "games/wait.ch8" ) );
+            out.write( program( 0xF30A ) ); // wait for key press, put key in v3
+            out.putNextEntry( new ZipEntry( "games/too_large.ch8" ) );
+            out.write( new byte[ 4096 ] );
+            out.closeEntry();
+        }
+
+        final Path output = dir.resolve( "results.jsonl" );
+        final int exitCode = BatchMain.run( new String[] { "--frames", "5", "--threads", "2", "--output", output.toString(),
+            dir.resolve( "roms" ).toString(), zip.toString() } );
+        assertEquals( HeadlessRunner.EXIT_NOT_MET, exitCode );
+
+        final List<String> lines = Files.readAllLines( output, StandardCharsets.UTF_8 );
+        assertEquals( 4, lines.size() );
+        assertEquals( "\"LIMIT_REACHED\"", field( lines, "counter.ch8", "outcome" ) );
+        assertEquals( "75", field( lines, "counter.ch8", "instructions" ) );
+        assertEquals( "\"FAULT\"", field( lines, "illegal.ch8", "outcome" ) );
+        assertEquals( "\"STALLED\"", field( lines, "roms.zip!/games/wait.ch8", "outcome" ) );
+        assertEquals( "\"ERROR\"", field( lines, "too_large.ch8", "outcome" ) );
+        for ( String line : lines ) {
+            assertTrue( line, line.startsWith( "{\"rom\":\"" ) && line.endsWith( "}" ) );
+        }
+    }
+
+    public void testExitCodes() throws IOException
+    {
+        Files.write( dir.resolve( "counter.ch8" ), program( 0x7001, 0x1200 ) );
+        final String output = dir.resolve( "results.jsonl" ).toString();
+        assertEquals( HeadlessRunner.EXIT_SUCCESS, BatchMain.run( new String[] { "--frames", "1", "--output", output, dir.toString() } ) );
+        assertEquals( HeadlessRunner.EXIT_USAGE, BatchMain.run( new String[] { "--frames", "1" } ) );
+        assertEquals( HeadlessRunner.EXIT_USAGE, BatchMain.run( new String[] { "--threads", "0", dir.toString() } ) );
+        assertEquals( HeadlessRunner.EXIT_FAILURE, BatchMain.run( new String[] { "--output", output, dir.resolve( "missing" ).toString() } ) );
+    }
+
+    private static String field(List<String> lines, String romSuffix, String name)
+    {
+        final String line = lines.stream().filter( l -> l.contains( romSuffix + "\"" ) ).findFirst().orElseThrow();
+        final int start = line.indexOf( "\"" + name + "\":" ) + name.length() + 3;
+        int end = start;
+        while ( line.charAt( end ) != ',' && line.charAt( end ) != '}' ) {
+            end++;
+        }
+        return line.substring( start, end );
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.headless;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static de.codesourcery.chip8.emulator.TestPrograms.program;
+
+public class HeadlessRunnerTest extends TestCase
+{
+    // v0 += 1 ; jump 0x200
+    private static final byte[] COUNTER = program( 0x7001, 0x1200 );
+
+    public void testStopsAtFrameLimit()
+    {
+        final HeadlessRunner.Result result = HeadlessRunner.run( COUNTER, new HeadlessRunner.Options().maxFrames( 10 ).instructionsPerFrame( 4 ) );
+        assertEquals( HeadlessRunner.Outcome.LIMIT_REACHED, result.outcome );
+        assertEquals( HeadlessRunner.EXIT_SUCCESS, result.exitCode );
+        assertEquals( 10, result.frames );
+        assertEquals( 40, result.instructions );
+        assertEquals( 20, result.state.register( 0 ) );
+    }
+
+    public void testStopsAtInstructionLimit()
+    {
+        final HeadlessRunner.Result result = HeadlessRunner.run( COUNTER, new HeadlessRunner.Options().maxInstructions( 7 ) );
+        assertEquals( HeadlessRunner.Outcome.LIMIT_REACHED, result.outcome );
+        assertEquals( 7, result.instructions );
+        assertEquals( 0x202, result.state.pc );
+    }
+
+    public void testStopsWhenConditionBecomesTrue()
+    {
+        final HeadlessRunner.Result result = HeadlessRunner.run( COUNTER, new HeadlessRunner.Options().until( "v0 == 5" ) );
+        assertEquals( HeadlessRunner.Outcome.CONDITION_MET, result.outcome );
+        assertEquals( HeadlessRunner.EXIT_SUCCESS, result.exitCode );
+        assertEquals( 5, result.state.register( 0 ) );
+        assertEquals( 9, result.instructions );
+
+        final HeadlessRunner.Result notMet = HeadlessRunner.run( COUNTER, new HeadlessRunner.Options().untilPC( 0x300 ).maxFrames( 2 ) );
+        assertEquals( HeadlessRunner.Outcome.LIMIT_REACHED, notMet.outcome );
+        assertEquals( HeadlessRunner.EXIT_NOT_MET, notMet.exitCode );
+    }
+
+    public void testKeyTimelineAndStall()
+    {
+        // wait for key press, put key in v3 ; wait for key press, put key in v4 ; jump 0x206 ; jump 0x206
+        final byte[] program = program( 0xF30A, 0xF40A, 0x1206, 0x1206 );
+        final HeadlessRunner.Result result = HeadlessRunner.run( program,
+            new HeadlessRunner.Options().keys( KeyTimeline.parse( "5:a+ 6:a- # first key\n10:3+,12:3-" ) ).untilPC( 0x206 ) );
+        assertEquals( HeadlessRunner.Outcome.CONDITION_MET, result.outcome );
+        assertEquals( 0xa, result.state.register( 3 ) );
+        assertEquals( 3, result.state.register( 4 ) );
+        assertEquals( 12, result.frames );
+
+        final HeadlessRunner.Result stalled = HeadlessRunner.run( program, new HeadlessRunner.Options().keys( KeyTimeline.parse( "5:a+ 6:a-" ) ) );
+        assertEquals( HeadlessRunner.Outcome.STALLED, stalled.outcome );
+        assertEquals( HeadlessRunner.EXIT_NOT_MET, stalled.exitCode );
+        assertEquals( 0xa, stalled.state.register( 3 ) );
+    }
+
+    public void testIllegalOpcodesAreReportedAsFaults()
+    {
+        final HeadlessRunner.Result result = HeadlessRunner.run( program( 0x7001, 0x0000 ), new HeadlessRunner.Options() ); // v0 += 1 ; illegal
+        assertEquals( HeadlessRunner.Outcome.FAULT, result.outcome );
+        assertEquals( HeadlessRunner.EXIT_FAILURE, result.exitCode );
+        assertNotNull( result.fault );
+        assertEquals( 1, result.state.register( 0 ) );
+        assertTrue( result.toString().contains( "fault=" ) );
+    }
+
+    public void testMalformedKeyEventsAreRejected()
+    {
+        for ( String script : Arrays.asList( "5:a", "x:1+", "5:g+", "5:10+", ":1+" ) )
+        {
+            try {
+                KeyTimeline.parse( script );
+                fail( "Should have failed: "+script );
+            }
+            catch(IllegalArgumentException e) {
+                // ok
+            }
+        }
+    }
+
+    public void testRunsAreReproducible()
+    {
+        final byte[] program = program( 0x6000, 0xF029, 0xD005, 0x1206 ); // v0 = 0 ; I = glyph(v0) ; draw 5 rows at (v0,v0) ; jump 0x206
+        final HeadlessRunner.Result first = HeadlessRunner.run( program, new HeadlessRunner.Options().maxFrames( 3 ) );
+        final HeadlessRunner.Result second = HeadlessRunner.run( program, new HeadlessRunner.Options().maxFrames( 3 ) );
+        assertEquals( first.toString(), second.toString() );
+        assertEquals( 64, first.memoryDigest.length() );
+
+        final HeadlessRunner.Result empty = HeadlessRunner.run( program( 0x1200 ), new HeadlessRunner.Options().maxFrames( 3 ) );
+        assertFalse( first.screenDigest.equals( empty.screenDigest ) );
+    }
+
+    public void testWritesPBM() throws IOException
+    {
+        final byte[] program = program( 0x6000, 0xF029, 0xD005, 0x1206 ); // draws glyph '0' at (0,0)
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        HeadlessRunner.run( program, new HeadlessRunner.Options().maxFrames( 1 ) ).getScreen().writePBM( out );
+        final byte[] data = out.toByteArray();
+        final byte[] header = "P4\n64 32\n".getBytes( StandardCharsets.US_ASCII );
+        assertEquals( header.length + 8 * 32, data.length );
+        assertEquals( new String( header, StandardCharsets.US_ASCII ), new String( data, 0, header.length, StandardCharsets.US_ASCII ) );
+        // glyph '0' is 0xf0 0x90 0x90 0x90 0xf0
+        assertEquals( (byte) 0xf0, data[ header.length ] );
+        assertEquals( (byte) 0x90, data[ header.length + 8 ] );
+        assertEquals( 0, data[ header.length + 1 ] );
+    }
+
+    public void testCommandLineExitCodes()
+    {
+        assertEquals( HeadlessRunner.EXIT_USAGE, HeadlessMain.run( new String[] { "--frames" } ) );
+        assertEquals( HeadlessRunner.EXIT_USAGE, HeadlessMain.run( new String[] { "--frames", "10" } ) );
+        assertEquals( HeadlessRunner.EXIT_USAGE, HeadlessMain.run( new String[] { "--engine", "warp", "rom.ch8" } ) );
+        assertEquals( HeadlessRunner.EXIT_FAILURE, HeadlessMain.run( new String[] { "--quiet", "does-not-exist.ch8" } ) );
+    }
+}
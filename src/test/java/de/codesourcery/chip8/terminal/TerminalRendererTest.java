@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.terminal;
+
+import de.codesourcery.chip8.emulator.Screen;
+import junit.framework.TestCase;
+
+public class TerminalRendererTest extends TestCase
+{
+    private final long[] rows = new long[ (Screen.EXTENDED_WIDTH/64) * Screen.EXTENDED_HEIGHT ];
+    private final StringBuilder out = new StringBuilder();
+    private TerminalRenderer renderer;
+
+    @Override
+    protected void setUp()
+    {
+        renderer = new TerminalRenderer();
+    }
+
+    public void testHalfBlocks()
+    {
+        rows[0] = 0b11L << 62; // top pixels of cells 0 and 1
+        rows[1] = 0b101L << 61; // bottom pixels of cells 0 and 2
+        assertEquals( 3, render( false ) );
+        assertEquals( TerminalRenderer.CLEAR_SCREEN + esc( "1;1H" ) + "\u2588\u2580\u2584", out.toString() );
+    }
+
+    public void testOnlyChangedCellsAreWritten()
+    {
+        rows[0] = 1L << 63;
+        render( false );
+
+        // unchanged frame costs nothing
+        assertEquals( 0, render( false ) );
+        assertEquals( "", out.toString() );
+
+        rows[5] = 1L; // bottom pixel of line 2, column 63
+        rows[0] = 0;
+        assertEquals( 2, render( false ) );
+        assertEquals( esc( "1;1H" ) + " " + esc( "3;64H" ) + "\u2584", out.toString() );
+    }
+
+    public void testAdjacentCellsNeedNoCursorMovement()
+    {
+        render( false );
+        rows[2] = 0xf0L << 56;
+        render( false );
+        assertEquals( esc( "2;1H" ) + "\u2580\u2580\u2580\u2580", out.toString() );
+    }
+
+    public void testResolutionChangeRedraws()
+    {
+        rows[0] = 1L << 63;
+        render( false );
+        rows[1] = 1L; // right half of the first row in extended mode
+        assertEquals( 2, render( true ) );
+        assertEquals( TerminalRenderer.CLEAR_SCREEN + esc( "1;1H" ) + "\u2580" + esc( "1;128H" ) + "\u2580", out.toString() );
+    }
+
+    public void testFooterIsShownBelowScreen()
+    {
+        renderer = new TerminalRenderer( "help" );
+        render( false );
+        assertEquals( TerminalRenderer.CLEAR_SCREEN + esc( "17;1H" ) + "help", out.toString() );
+    }
+
+    public void testKeyMapping()
+    {
+        assertEquals( 0x0c, TerminalMain.keyCode( '4' ) );
+        assertEquals( 0x00, TerminalMain.keyCode( 'x' ) );
+        assertEquals( 0x0a, TerminalMain.keyCode( 'z' ) );
+        assertEquals( 0x0a, TerminalMain.keyCode( 'y' ) );
+        assertEquals( -1, TerminalMain.keyCode( 'p' ) );
+    }
+
+    private int render(boolean extended)
+    {
+        out.setLength( 0 );
+        return renderer.render( rows, extended, out );
+    }
+
+    private static String esc(String sequence)
+    {
+        return TerminalRenderer.ESC + sequence;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2012 Tobias Gierke <tobias.gierke@code-sourcery.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.codesourcery.chip8.ui;
+
+import de.codesourcery.chip8.emulator.FrameExchange;
+import de.codesourcery.chip8.emulator.Memory;
+import de.codesourcery.chip8.emulator.Screen;
+import junit.framework.TestCase;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+public class ScaledScreenRendererTest extends TestCase
+{
+    private Memory memory;
+    private Screen screen;
+    private FrameExchange exchange;
+    private ScaledScreenRenderer renderer;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        memory = new Memory( 4096 );
+        screen = new Screen( memory );
+        exchange = new FrameExchange();
+        renderer = new ScaledScreenRenderer();
+        memory.write( 0, 0b1010_0000 );
+    }
+
+    public void testRendersScaledPixels()
+    {
+        // 3x2 scale, panel 4 pixels wider and 2 pixels higher than needed
+        renderer.setSize( 64*3 + 4, 32*2 + 2 );
+        screen.drawSprite( 1, 1, 1, 0 );
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+
+        final BufferedImage image = paint( 64*3 + 4, 32*2 + 2 );
+        final int x0 = 2;
+        final int y0 = 1;
+        assertPixel( image, x0 + 0, y0 + 2, false );
+        for ( int x = 3 ; x < 6 ; x++ ) {
+            assertPixel( image, x0 + x, y0 + 2, true );
+            assertPixel( image, x0 + x, y0 + 3, true );
+            assertPixel( image, x0 + x, y0 + 4, false );
+        }
+        assertPixel( image, x0 + 6, y0 + 2, false );
+        assertPixel( image, x0 + 9, y0 + 2, true );
+        assertPixel( image, x0 + 12, y0 + 2, false );
+    }
+
+    public void testOnlyChangedRowsAreRepainted()
+    {
+        renderer.setSize( 640, 320 );
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+
+        screen.drawSprite( 0, 4, 2, 0 );
+        exchange.publish( screen );
+        assertEquals( new Rectangle( 0, 40, 640, 20 ), renderer.update( exchange.take() ) );
+    }
+
+    public void testResolutionChange()
+    {
+        renderer.setSize( 256, 128 );
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+
+        screen.setExtendedMode( true );
+        screen.drawSprite( 127, 63, 1, 0 );
+        exchange.publish( screen );
+        assertEquals( new Rectangle( 0, 0, 256, 128 ), renderer.update( exchange.take() ) );
+
+        // the pixel wraps around, scale is 2 now
+        final BufferedImage image = paint( 256, 128 );
+        assertPixel( image, 254, 126, true );
+        assertPixel( image, 2, 126, true );
+        assertPixel( image, 4, 126, false );
+    }
+
+    public void testOrOfLastTwoFrames()
+    {
+        renderer.setBlending( FrameBlending.OR_LAST_TWO );
+        renderer.setSize( 64, 32 );
+        screen.drawSprite( 0, 0, 1, 0 );
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+        assertPixel( paint( 64, 32 ), 0, 0, true );
+
+        // erasing the sprite keeps it visible for one more frame
+        screen.drawSprite( 0, 0, 1, 0 );
+        exchange.publish( screen );
+        assertNotNull( renderer.update( exchange.take() ) );
+        assertPixel( paint( 64, 32 ), 0, 0, true );
+        assertPixel( paint( 64, 32 ), 2, 0, true );
+        assertTrue( renderer.isSettling() );
+
+        assertNotNull( renderer.advance() );
+        assertPixel( paint( 64, 32 ), 0, 0, false );
+        assertFalse( renderer.isSettling() );
+        assertNull( renderer.advance() );
+    }
+
+    public void testPhosphorDecay()
+    {
+        renderer.setBlending( FrameBlending.PHOSPHOR );
+        renderer.setSize( 64, 32 );
+        screen.drawSprite( 0, 0, 1, 0 );
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+        screen.clear();
+        exchange.publish( screen );
+        renderer.update( exchange.take() );
+
+        int previous = paint( 64, 32 ).getRGB( 0, 0 ) & 0xff;
+        assertTrue( previous > 0 && previous < 0xff );
+        int frames = 1;
+        while ( renderer.isSettling() )
+        {
+            renderer.advance();
+            final int current = paint( 64, 32 ).getRGB( 0, 0 ) & 0xff;
+            assertTrue( current < previous || current == 0 );
+            previous = current;
+            frames++;
+        }
+        assertEquals( 0, previous );
+        assertEquals( FrameBlending.PHOSPHOR.frameCount(), frames );
+    }
+
+    private BufferedImage paint(int width,int height)
+    {
+        final BufferedImage image = new BufferedImage( width, height, BufferedImage.TYPE_INT_RGB );
+        final Graphics2D g = image.createGraphics();
+        renderer.paint( g );
+        g.dispose();
+        return image;
+    }
+
+    private static void assertPixel(BufferedImage image,int x,int y,boolean set)
+    {
+        assertEquals( "Pixel ("+x+","+y+")", set ? 0xffffff : 0, image.getRGB( x, y ) & 0xffffff );
+    }
+}